@@ -6,6 +6,7 @@
 
 package com.twitter.whiskey.demo;
 
+import com.twitter.whiskey.net.BlockingBody;
 import com.twitter.whiskey.net.Header;
 import com.twitter.whiskey.net.Headers;
 import com.twitter.whiskey.net.Request;
@@ -27,7 +28,6 @@ import java.security.Principal;
 import java.security.cert.Certificate;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -291,29 +291,7 @@ public class HttpUrlConnectionImpl extends HttpURLConnection {
 
         if (!doInput) throw new UnsupportedOperationException();
 
-        return new InputStream() {
-            Iterator<ByteBuffer> iterator = getResponseFuture().getBodyFuture().iterator();
-            private ByteBuffer currentBuffer;
-            @Override
-            public int read() throws IOException {
-                try {
-                    if (currentBuffer != null && currentBuffer.remaining() > 0) {
-                        return currentBuffer.get() & 0xff;
-                    }
-
-                    while (iterator.hasNext()) {
-                        currentBuffer = iterator.next();
-                        if (currentBuffer != null && currentBuffer.remaining() > 0) {
-                            return currentBuffer.get() & 0xff;
-                        }
-                    }
-
-                    return -1;
-                } catch (RuntimeException e) {
-                    throw new IOException(e);
-                }
-            }
-        };
+        return new BlockingBody(getResponseFuture().getBodyFuture());
     }
 
     public ByteBuffer getBody() {
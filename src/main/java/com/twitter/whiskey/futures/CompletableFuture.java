@@ -6,192 +6,240 @@
 
 package com.twitter.whiskey.futures;
 
-import java.util.ArrayList;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Straightforward implementation of ListenableFuture.
  *
+ * The future is lock-free: completion is decided by a single CAS on its
+ * outcome, and listeners and blocked threads are pushed onto a Treiber
+ * stack which is closed and drained by the completing thread. Threads
+ * blocked in {@link #get()} are parked via {@link LockSupport}.
+ *
  * @author Michael Schore
  */
 public class CompletableFuture<T> implements ListenableFuture<T> {
 
-    private ArrayList<Listener<T>> listeners = new ArrayList<>();
-    private volatile T result = null;
-    private volatile Throwable error = null;
-    private volatile boolean cancelled = false;
-    volatile boolean done = false;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CompletableFuture, Object> OUTCOME =
+        AtomicReferenceFieldUpdater.newUpdater(CompletableFuture.class, Object.class, "outcome");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CompletableFuture, Node> STACK =
+        AtomicReferenceFieldUpdater.newUpdater(CompletableFuture.class, Node.class, "stack");
+
+    // Stands in for a null result, as a null outcome indicates the future is pending.
+    private static final Object NULL = new Object();
+    // Replaces the stack once the future completes; nothing may be pushed after.
+    private static final Node CLOSED = new Node(null, null);
+
+    private volatile Object outcome = null;
+    private volatile Node stack = null;
 
     public CompletableFuture() {
     }
 
     public boolean set(final T result) {
-
-        if (done) return false;
-
-        synchronized(this) {
-            if (done) return false;
-            this.result = result;
-            done = true;
-
-            for (final Listener<T> listener : listeners) {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onComplete(result);
-                    }
-                });
-            }
-
-            notifyAll();
-            return true;
-        }
+        return resolve(result == null ? NULL : result);
     }
 
     public boolean fail(final Throwable throwable) {
-
-        if (done) return false;
-
-        synchronized(this) {
-            if (done) return false;
-            error = throwable;
-            done = true;
-
-            for (final Listener<T> listener : listeners) {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(error);
-                    }
-                });
-            }
-
-            notifyAll();
-            return true;
-        }
+        return resolve(new Failure(throwable, false));
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
+        return resolve(new Failure(new CancellationException(), true));
+    }
 
-        if (done) return false;
+    @SuppressWarnings("unchecked")
+    private boolean resolve(Object outcome) {
 
-        synchronized(this) {
-            if (done) return false;
-            cancelled = true;
-            done = true;
+        if (!OUTCOME.compareAndSet(this, null, outcome)) return false;
 
-            final Exception e = new CancellationException();
-            for (final Listener<T> listener : listeners) {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(e);
-                    }
-                });
-            }
+        // Nodes were pushed in reverse; restore registration order.
+        Node head = STACK.getAndSet(this, CLOSED);
+        Node reversed = null;
+        while (head != null) {
+            Node next = head.next;
+            head.next = reversed;
+            reversed = head;
+            head = next;
+        }
 
-            notifyAll();
-            return true;
+        for (Node node = reversed; node != null; node = node.next) {
+            if (node.listener != null) {
+                // Only this future's own listeners are pushed on its stack
+                notify((Listener<T>) node.listener, outcome);
+            } else if (node.waiter != null) {
+                LockSupport.unpark(node.waiter);
+            }
         }
+        return true;
     }
 
     @Override
     public boolean isCancelled() {
-        return cancelled;
+        Object outcome = this.outcome;
+        return outcome instanceof Failure && ((Failure) outcome).cancelled;
     }
 
     @Override
     public boolean isDone() {
-        return done;
+        return outcome != null;
+    }
+
+    /**
+     * @return the cause of failure, or null if the future is pending or succeeded
+     */
+    Throwable getFailure() {
+        Object outcome = this.outcome;
+        return outcome instanceof Failure ? ((Failure) outcome).cause : null;
     }
 
     @Override
     public T get() throws InterruptedException, ExecutionException {
 
-        if (!done) {
-            synchronized(this) {
-                if (!done) wait();
+        if (outcome == null) {
+            Node node = new Node(null, Thread.currentThread());
+            if (push(node)) {
+                try {
+                    while (outcome == null) {
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) throw new InterruptedException();
+                    }
+                } finally {
+                    node.waiter = null;
+                }
             }
         }
 
-        if (error != null) {
-            throw new ExecutionException(error);
-        }
-
-        if (cancelled) {
-            throw new CancellationException();
-        }
-
-        return result;
+        return report(outcome);
     }
 
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
 
-        if (!done) {
-            synchronized(this) {
-                if (!done) wait(unit.toMillis(timeout));
+        if (outcome == null) {
+            Node node = new Node(null, Thread.currentThread());
+            if (push(node)) {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                try {
+                    long remaining;
+                    while (outcome == null && (remaining = deadline - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(this, remaining);
+                        if (Thread.interrupted()) throw new InterruptedException();
+                    }
+                } finally {
+                    node.waiter = null;
+                }
             }
         }
 
-        if (!done) {
+        Object outcome = this.outcome;
+        if (outcome == null) {
             throw new TimeoutException();
         }
 
-        if (error != null) {
-            throw new ExecutionException(error);
-        }
+        return report(outcome);
+    }
 
-        if (cancelled) {
-            throw new CancellationException();
+    @SuppressWarnings("unchecked")
+    private T report(Object outcome) throws ExecutionException {
+
+        if (outcome instanceof Failure) {
+            Failure failure = (Failure) outcome;
+            if (failure.cancelled) throw new CancellationException();
+            throw new ExecutionException(failure.cause);
         }
 
-        return result;
+        return outcome == NULL ? null : (T) outcome;
     }
 
     @Override
     public void addListener(final Listener<T> listener) {
+        if (!push(new Node(listener, null))) {
+            notify(listener, outcome);
+        }
+    }
+
+    /**
+     * @return false if the future has completed and the node was not pushed
+     */
+    private boolean push(Node node) {
+
+        Node head;
+        do {
+            head = stack;
+            if (head == CLOSED) return false;
+            node.next = head;
+        } while (!STACK.compareAndSet(this, head, node));
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notify(final Listener<T> listener, final Object outcome) {
 
-        boolean notify = false;
-        if (!done) {
-            synchronized (this) {
-                if (!done) {
-                    listeners.add(listener);
+        Executor executor = listener.getExecutor();
+        DirectDispatch.Frames frames = DirectDispatch.enter(executor);
+        if (frames != null) {
+            try {
+                if (outcome instanceof Failure) {
+                    listener.onError(((Failure) outcome).cause);
                 } else {
-                    notify = true;
+                    listener.onComplete(outcome == NULL ? null : (T) outcome);
                 }
+            } finally {
+                DirectDispatch.exit(frames);
             }
+            return;
+        }
+
+        if (outcome instanceof Failure) {
+            final Throwable cause = ((Failure) outcome).cause;
+            DirectDispatch.execute(executor, new Runnable() {
+                @Override
+                public void run() {
+                    listener.onError(cause);
+                }
+            });
         } else {
-            notify = true;
+            final T result = outcome == NULL ? null : (T) outcome;
+            DirectDispatch.execute(executor, new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete(result);
+                }
+            });
         }
+    }
 
-        if (notify) {
-            if (result != null) {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onComplete(result);
-                    }
-                });
-            } else if (error != null) {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(error);
-                    }
-                });
-            } else {
-                listener.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(new CancellationException());
-                    }
-                });
-            }
+    private static final class Failure {
+        final Throwable cause;
+        final boolean cancelled;
+
+        Failure(Throwable cause, boolean cancelled) {
+            this.cause = cause;
+            this.cancelled = cancelled;
+        }
+    }
+
+    /**
+     * An entry on the stack: either a listener or a blocked thread.
+     */
+    private static final class Node {
+        final Listener<?> listener;
+        volatile Thread waiter;
+        Node next;
+
+        Node(Listener<?> listener, Thread waiter) {
+            this.listener = listener;
+            this.waiter = waiter;
         }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.futures;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides whether a callback may be invoked directly on the completing
+ * thread, avoiding the allocation of a task and a hop through the executor's
+ * queue. This is the case for {@link Inline} executors and for a
+ * {@link ThreadBoundExecutor} when already on its thread.
+ *
+ * Direct invocation nests: a callback may complete another future, whose
+ * callbacks run on the same stack. Beyond {@link #MAX_DEPTH} nested
+ * invocations, callbacks are handed to their executor instead, via
+ * {@link #execute}. Since an {@link Inline} executor would run them on the
+ * same stack, their callbacks are instead queued on the thread and run by the
+ * outermost invocation once it returns, so that long chains cannot overflow
+ * the stack.
+ */
+final class DirectDispatch {
+
+    static final int MAX_DEPTH = 16;
+
+    private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+        @Override
+        protected Frames initialValue() {
+            return new Frames();
+        }
+    };
+
+    private DirectDispatch() {
+    }
+
+    /**
+     * @return the thread's frames, which must be passed to
+     *         {@link #exit(Frames)} after invoking the callback, or null if
+     *         the callback should be passed to {@link #execute}
+     */
+    static Frames enter(Executor executor) {
+
+        if (executor != Inline.INSTANCE &&
+            !(executor instanceof ThreadBoundExecutor && ((ThreadBoundExecutor) executor).inExecutorThread())) {
+            return null;
+        }
+
+        Frames frames = FRAMES.get();
+        if (frames.depth >= MAX_DEPTH) return null;
+        frames.depth++;
+        return frames;
+    }
+
+    /**
+     * Leaves a direct invocation, running the callbacks deferred beyond the
+     * depth limit if it was the outermost.
+     */
+    static void exit(Frames frames) {
+
+        if (--frames.depth > 0 || frames.draining) return;
+
+        frames.draining = true;
+        RuntimeException exception = null;
+        try {
+            Runnable task;
+            while ((task = frames.deferred.poll()) != null) {
+                // A failing callback must not strand those queued after it
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if (exception == null) exception = e;
+                }
+            }
+        } finally {
+            frames.draining = false;
+        }
+        if (exception != null) throw exception;
+    }
+
+    /**
+     * Submits a callback which could not be invoked directly to its executor,
+     * or defers it to the outermost direct invocation if the executor is
+     * {@link Inline}.
+     */
+    static void execute(Executor executor, Runnable task) {
+
+        Frames frames;
+        if (executor == Inline.INSTANCE && ((frames = FRAMES.get()).depth > 0 || frames.draining)) {
+            frames.deferred.add(task);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    static final class Frames {
+
+        private final Queue<Runnable> deferred = new ArrayDeque<>();
+        private int depth;
+        private boolean draining;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.futures;
+
+/**
+ * Interfaces for demand-driven streams, mirroring those of the Reactive
+ * Streams specification and {@code java.util.concurrent.Flow}, which is not
+ * available on the platforms Whiskey supports. Adapting to either requires
+ * only forwarding each method.
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    public interface Publisher<T> {
+
+        /**
+         * Adds the subscriber, which will first receive
+         * {@link Subscriber#onSubscribe} and thereafter elements only as
+         * requested via its {@link Subscription}.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * Adds n elements to the subscriber's outstanding demand. A request
+         * of {@link Long#MAX_VALUE} is effectively unbounded, and a
+         * non-positive request terminates the subscription with an error.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
@@ -7,21 +7,44 @@
 package com.twitter.whiskey.futures;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * A future whose eventual value is built from a stream of elements, which
+ * may also be consumed incrementally by observers and iterators.
+ *
+ * Elements are provided by a single producer (the future's creator), and are
+ * accumulated until {@link #release()} is called and a consumer is present.
+ * Accumulated elements are only ever drained by the producer, either while
+ * streaming or once it has completed the future, so neither the producer's
+ * path nor the subclass's accumulation requires locking. Subclasses must
+ * drain without disturbing a result already built from the elements.
+ *
  * @author Michael Schore
  */
 public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implements ObservableFuture<T, E> {
 
     private static final Object SENTINEL = new Object();
-    private final ArrayList<Observer<E>> observers = new ArrayList<>(4);
-    private final ArrayList<StreamingIterator> iterators = new ArrayList<>(4);
-    private volatile Throwable error = null;
-    private volatile boolean drained = false;
+    private static final int DEFAULT_ITERATOR_CAPACITY = 64;
+    private static final int MAX_SPINS = 128;
+    private final CopyOnWriteArrayList<Sink> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean drained = new AtomicBoolean(false);
+    private final AtomicReference<PublisherSink> primary = new AtomicReference<>();
+    // Elements delivered to subscribers on completion; null until completed
+    private volatile List<E> remaining = null;
     private volatile boolean streaming = false;
 
     public ReactiveFuture() {
@@ -30,17 +53,14 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
     public boolean provide(final E element) throws RuntimeException {
 
         if (isDone()) return false;
-
-        synchronized(this) {
-            if (isDone()) return false;
-            if (!streaming || (observers.isEmpty() && iterators.isEmpty())) {
-                accumulate(element);
-                return true;
-            }
-
-            dispatch(element);
+        if (!streaming || subscribers.isEmpty()) {
+            accumulate(element);
             return true;
         }
+
+        drainToSubscribers();
+        dispatch(element);
+        return true;
     }
 
     /**
@@ -49,17 +69,9 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
     public void release() {
 
         if (streaming) return;
+        streaming = true;
 
-        synchronized (this) {
-            if (streaming) return;
-            streaming = true;
-
-            if (observers.isEmpty() && iterators.isEmpty()) return;
-            drained = true;
-            for (final E element : drain()) {
-                dispatch(element);
-            }
-        }
+        if (!subscribers.isEmpty()) drainToSubscribers();
     }
 
     /**
@@ -67,23 +79,10 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
      */
     public boolean finish() {
 
-        if (drained) {
-            boolean result = set(null);
-            if (result) {
-                for (final Observer observer : observers) {
-                    observer.getExecutor().execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            observer.onComplete();
-                        }
-                    });
-                }
+        if (streaming && !subscribers.isEmpty()) drainToSubscribers();
 
-                for (final StreamingIterator iterator : iterators) {
-                    iterator.queue(SENTINEL);
-                }
-            }
-            return result;
+        if (drained.get()) {
+            return set(null);
         } else {
             return complete();
         }
@@ -93,74 +92,151 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
     protected abstract Iterable<E> drain();
     protected abstract boolean complete();
 
-    private void dispatch(final E element) {
+    /**
+     * Called as an element is handed to the first subscriber of a publisher
+     * returned by {@link #asPublisher}, once the subscriber has requested it.
+     * May be called from the publisher's executor.
+     */
+    protected void onDeliver(E element) {
+    }
 
-        for (final Observer<E> observer : observers) {
-            observer.getExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    observer.onNext(element);
-                }
-            });
+    /**
+     * Called when the first publisher subscriber is cancelled, after which
+     * delivery is no longer demand-driven.
+     */
+    protected void onDemandReleased() {
+    }
+
+    /**
+     * Called as an element is handed to subscribers, once for each
+     * subscriber it is delivered to on completion.
+     *
+     * @return false to withhold the element from subscribers
+     */
+    protected boolean onHandOff(E element) {
+        return true;
+    }
+
+    /**
+     * @return true if accumulated elements have been handed to subscribers,
+     *         in which case the future completes with a null result
+     */
+    protected boolean isDrained() {
+        return drained.get();
+    }
+
+    /**
+     * @return true if any observers, iterators or publishers are subscribed
+     */
+    protected boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * @return true if delivery is paced by a publisher subscriber's demand
+     */
+    protected boolean hasDemandSubscriber() {
+        PublisherSink sink = primary.get();
+        return sink != null && !sink.cancelled;
+    }
+
+    /**
+     * Hands accumulated elements to the current subscribers, at most once.
+     */
+    private void drainToSubscribers() {
+
+        if (drained.get() || !drained.compareAndSet(false, true)) return;
+        for (E element : drain()) {
+            dispatch(element);
         }
-        for (final StreamingIterator iterator : iterators) {
-            iterator.queue(element);
+    }
+
+    private void dispatch(final E element) {
+        if (!onHandOff(element)) return;
+        for (Sink subscriber : subscribers) {
+            subscriber.next(element);
         }
     }
 
+    @Override
+    public boolean set(T result) {
+
+        if (super.set(result)) {
+            terminateSubscribers(true);
+            return true;
+        }
+
+        return false;
+    }
+
     @Override
     public boolean fail(final Throwable throwable) {
 
         if (super.fail(throwable)) {
-            synchronized(this) {
-                error = throwable;
-
-                for (final Observer<E> observer : observers) {
-                    observer.getExecutor().execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            observer.onError(throwable);
-                        }
-                    });
-                }
-                for (final StreamingIterator iterator : iterators) {
-                    iterator.queue(SENTINEL);
-                }
-
-                return true;
-            }
+            terminateSubscribers(true);
+            return true;
         }
 
         return false;
     }
 
+    /**
+     * Cancellation may come from any thread, so never drains elements the
+     * producer may still be accumulating.
+     */
     @Override
-    public void addObserver(final Observer<E> observer) {
+    public boolean cancel(boolean mayInterruptIfRunning) {
 
-        synchronized (this) {
-            observers.add(observer);
+        if (super.cancel(mayInterruptIfRunning)) {
+            terminateSubscribers(false);
+            return true;
+        }
 
-            if (streaming && !drained) {
-                drained = true;
-                for (final E element : drain()) {
-                    observer.getExecutor().execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            observer.onNext(element);
-                        }
-                    });
-                }
-            }
+        return false;
+    }
 
-            if (isDone()) {
-                observer.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        observer.onComplete();
-                    }
-                });
+    /**
+     * Called by the thread which completed the future. Elements still
+     * accumulated, such as when a subscriber arrived as the producer
+     * finished, are drained for every subscriber present now or later.
+     * They are published before the subscribers are read, so a subscriber
+     * registering concurrently is either read here or finds them itself.
+     */
+    private void terminateSubscribers(boolean drainRemaining) {
+
+        List<E> elements = Collections.emptyList();
+        if (drainRemaining && streaming && drained.compareAndSet(false, true)) {
+            elements = new ArrayList<>();
+            for (E element : drain()) {
+                elements.add(element);
             }
         }
+
+        remaining = elements;
+        for (Sink subscriber : subscribers) {
+            subscriber.terminate(elements);
+        }
+    }
+
+    /**
+     * Registers a subscriber. Once the future is done, elements still
+     * accumulated and completion are delivered by whichever of this and the
+     * completing thread observes the other, exactly once.
+     */
+    private void subscribe(Sink subscriber) {
+
+        subscribers.add(subscriber);
+
+        if (isDone()) {
+            // If null, the completing thread has yet to read the subscribers
+            List<E> elements = remaining;
+            if (elements != null) subscriber.terminate(elements);
+        }
+    }
+
+    @Override
+    public void addObserver(final Observer<E> observer) {
+        subscribe(new ObserverSink(observer));
     }
 
     /**
@@ -170,60 +246,236 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
      */
     @Override
     public Iterator<E> iterator() {
+        return iterator(DEFAULT_ITERATOR_CAPACITY);
+    }
+
+    /**
+     * Returns an iterator which is intended to be consumed by a single thread.
+     *
+     * @param capacity the number of elements the iterator may hold before the
+     *                 producer falls back to a slower, unbounded overflow
+     */
+    public Iterator<E> iterator(int capacity) {
+
+        StreamingIterator iterator = new StreamingIterator(capacity);
+        subscribe(iterator);
+        return iterator;
+    }
+
+    /**
+     * Returns a publisher of this future's elements. Elements are buffered
+     * until requested, and all signals to a given subscriber are delivered
+     * serially on the provided executor.
+     *
+     * Note that only the first subscriber is guaranteed to receive all
+     * elements, and only that subscriber's demand paces the producer.
+     */
+    public Flow.Publisher<E> asPublisher(final Executor executor) {
+        return new Flow.Publisher<E>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super E> subscriber) {
+
+                PublisherSink sink = new PublisherSink(subscriber, executor);
+                primary.compareAndSet(null, sink);
+                sink.schedule();
+                ReactiveFuture.this.subscribe(sink);
+            }
+        };
+    }
+
+    private abstract class Sink {
 
-        StreamingIterator i;
-        if (streaming && !drained) {
-            synchronized (this) {
-                if (streaming && !drained) {
-                    drained = true;
-                    i = new StreamingIterator(drain().iterator());
-                    if (isDone()) i.queue(SENTINEL);
-                    iterators.add(i);
-                    return i;
+        private final AtomicBoolean terminated = new AtomicBoolean(false);
+
+        abstract void next(E element);
+        abstract void onTerminate();
+
+        /**
+         * Delivers any elements remaining on completion, then completion
+         * itself, at most once.
+         */
+        final void terminate(List<E> remaining) {
+            if (!terminated.compareAndSet(false, true)) return;
+            for (E element : remaining) {
+                if (onHandOff(element)) next(element);
+            }
+            onTerminate();
+        }
+    }
+
+    private final class ObserverSink extends Sink {
+
+        private final Observer<E> observer;
+
+        ObserverSink(Observer<E> observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        void next(final E element) {
+
+            Executor executor = observer.getExecutor();
+            DirectDispatch.Frames frames = DirectDispatch.enter(executor);
+            if (frames != null) {
+                try {
+                    observer.onNext(element);
+                } finally {
+                    DirectDispatch.exit(frames);
                 }
+                return;
             }
+
+            DirectDispatch.execute(executor, new Runnable() {
+                @Override
+                public void run() {
+                    observer.onNext(element);
+                }
+            });
         }
 
-        i = new StreamingIterator(null);
-        if (isDone()) i.queue(SENTINEL);
-        iterators.add(i);
-        return i;
-    }
+        @Override
+        void onTerminate() {
+
+            final Throwable throwable = getFailure();
+            Executor executor = observer.getExecutor();
+            DirectDispatch.Frames frames = DirectDispatch.enter(executor);
+            if (frames != null) {
+                try {
+                    terminate(throwable);
+                } finally {
+                    DirectDispatch.exit(frames);
+                }
+                return;
+            }
 
-    private class StreamingIterator implements Iterator<E> {
+            DirectDispatch.execute(executor, new Runnable() {
+                @Override
+                public void run() {
+                    terminate(throwable);
+                }
+            });
+        }
 
-        private BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
-        private Iterator<E> drained;
-        Object currentElement;
+        private void terminate(Throwable throwable) {
+            if (throwable != null) {
+                observer.onError(throwable);
+            } else {
+                observer.onComplete();
+            }
+        }
+    }
 
-        StreamingIterator(Iterator<E> drained) {
-            this.drained = drained;
+    /**
+     * A single-producer, single-consumer iterator. Elements are handed over
+     * through a fixed ring of slots; should the consumer fall behind by more
+     * than the ring's capacity, further elements spill into an overflow queue
+     * rather than blocking the producer, which is typically the run loop.
+     * A waiting consumer spins briefly before parking, and is unparked by the
+     * producer only when it has actually parked.
+     */
+    private final class StreamingIterator extends Sink implements Iterator<E> {
+
+        private final Object[] ring;
+        private final int mask;
+        private final Queue<Object> overflow = new ConcurrentLinkedQueue<>();
+        // head is only written by the consumer, tail only by the producer
+        private volatile long head = 0;
+        private volatile long tail = 0;
+        private volatile boolean finished = false;
+        private volatile Thread waiter = null;
+        private Object currentElement;
+
+        StreamingIterator(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+            ring = new Object[Math.max(size, 1)];
+            mask = ring.length - 1;
         }
 
-        private void queue(Object o) {
-            queue.add(o);
+        @Override
+        void next(E element) {
+
+            long tail = this.tail;
+            // Once spilling, keep spilling until the consumer catches up, to preserve order.
+            if (tail - head < ring.length && overflow.isEmpty()) {
+                ring[(int) tail & mask] = element;
+                this.tail = tail + 1;
+            } else {
+                overflow.add(element);
+            }
+            signal();
         }
 
         @Override
-        public boolean hasNext() {
+        void onTerminate() {
+            finished = true;
+            signal();
+        }
 
-            if ((drained != null && drained.hasNext()) || (currentElement != null && currentElement != SENTINEL)) {
-                return true;
+        private void signal() {
+            Thread waiter = this.waiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+
+        private Object poll() {
+
+            // Anything in the ring precedes anything in the overflow, as the
+            // producer only uses the ring while the overflow is empty. The
+            // ring must be rechecked once the overflow is seen to be
+            // non-empty, since it may have been filled in the interim.
+            if (head == tail && overflow.peek() == null) return null;
+
+            long head = this.head;
+            if (head < tail) {
+                int index = (int) head & mask;
+                Object element = ring[index];
+                ring[index] = null;
+                this.head = head + 1;
+                return element;
             }
 
-            if (isDone() && queue.isEmpty()) return false;
+            return overflow.poll();
+        }
+
+        private Object await() throws InterruptedException {
 
-            synchronized(ReactiveFuture.this) {
-                if (isDone() && queue.isEmpty()) return false;
+            Object element;
+            for (int spins = 0; spins < MAX_SPINS; spins++) {
+                if ((element = poll()) != null) return element;
+                if (finished) break;
             }
 
+            waiter = Thread.currentThread();
             try {
-                currentElement = queue.take();
+                while ((element = poll()) == null && !finished) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+            } finally {
+                waiter = null;
+            }
+
+            if (element != null) return element;
+            // Elements are published before termination, so a final check suffices.
+            element = poll();
+            return element != null ? element : SENTINEL;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (currentElement != null && currentElement != SENTINEL) {
+                return true;
+            }
+            if (currentElement == SENTINEL) return false;
+
+            try {
+                currentElement = await();
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
 
             if (currentElement != SENTINEL) return true;
+            Throwable error = getFailure();
             if (error != null) throw new RuntimeException(error);
 
             return false;
@@ -233,20 +485,6 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
         @Override
         public E next() {
 
-            if (drained != null && drained.hasNext()) return drained.next();
-
-            if (currentElement != null && currentElement != SENTINEL) {
-                E element = (E) currentElement;
-                currentElement = null;
-                return element;
-            }
-
-            if (isDone() && queue.isEmpty()) throw new NoSuchElementException();
-
-            synchronized (ReactiveFuture.this) {
-                if (isDone() && queue.isEmpty()) throw new NoSuchElementException();
-            }
-
             if (!hasNext()) throw new NoSuchElementException();
             E element = (E) currentElement;
             currentElement = null;
@@ -258,4 +496,122 @@ public abstract class ReactiveFuture<T, E> extends CompletableFuture<T> implemen
             throw new UnsupportedOperationException();
         }
     }
+
+    private final class PublisherSink extends Sink implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super E> subscriber;
+        private final Executor executor;
+        private final Queue<E> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger scheduled = new AtomicInteger();
+        private volatile boolean finished = false;
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        // Only accessed while draining, which is serialized by scheduled.
+        private boolean subscribed = false;
+
+        PublisherSink(Flow.Subscriber<? super E> subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        void next(E element) {
+            if (cancelled) return;
+            pending.add(element);
+            schedule();
+        }
+
+        @Override
+        void onTerminate() {
+            finished = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                long current, updated;
+                do {
+                    current = requested.get();
+                    if (current == Long.MAX_VALUE) break;
+                    updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, updated));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+
+            if (cancelled) return;
+            cancelled = true;
+            subscribers.remove(this);
+            pending.clear();
+            if (primary.get() == this) onDemandReleased();
+        }
+
+        void schedule() {
+
+            if (scheduled.getAndIncrement() != 0) return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The subscriber can no longer be signalled; don't let that
+                // propagate to the producer.
+                cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            int missed = 1;
+            do {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+
+                while (!cancelled && invalidRequest == null && requested.get() > 0) {
+                    E element = pending.poll();
+                    if (element == null) break;
+                    if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                    if (primary.get() == this) onDeliver(element);
+                    subscriber.onNext(element);
+                }
+
+                if (cancelled) return;
+
+                Throwable error = invalidRequest;
+                if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                    return;
+                }
+
+                // Elements are queued before termination, so once finished
+                // an empty queue means every element has been delivered.
+                if (finished) {
+                    error = getFailure();
+                    if (error != null || pending.isEmpty()) {
+                        cancelled = true;
+                        subscribers.remove(this);
+                        pending.clear();
+                        if (error != null) {
+                            subscriber.onError(error);
+                        } else {
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+                }
+
+                missed = scheduled.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
 }
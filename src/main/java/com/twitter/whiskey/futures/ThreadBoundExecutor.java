@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.futures;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor which runs all commands on a single thread. Futures may invoke
+ * callbacks registered with such an executor directly when they complete on
+ * that thread, rather than enqueueing them.
+ */
+public interface ThreadBoundExecutor extends Executor {
+
+    /**
+     * @return true if the calling thread is the one on which this executor
+     *         runs commands
+     */
+    public boolean inExecutorThread();
+}
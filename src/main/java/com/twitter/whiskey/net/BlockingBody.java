@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A blocking reader of a streamed response body, for callers which prefer
+ * synchronous I/O. Waiting threads are parked rather than blocked on a
+ * monitor, so the reader is suitable for use from lightweight or
+ * user-mode threads.
+ *
+ * Like the iterator it wraps, a BlockingBody should be read by a single
+ * thread. Failure of the underlying request is reported as an
+ * {@link IOException}, and interruption of a waiting thread as an
+ * {@link InterruptedIOException}.
+ */
+public class BlockingBody extends InputStream {
+
+    private final Iterator<ByteBuffer> iterator;
+    private ByteBuffer current;
+
+    public BlockingBody(BodyFuture body) {
+        iterator = body.iterator();
+    }
+
+    /**
+     * Returns the next chunk of the body as received, avoiding a copy.
+     *
+     * @return the next non-empty chunk, or null at the end of the body
+     */
+    public ByteBuffer readChunk() throws IOException {
+
+        if (!advance()) return null;
+        ByteBuffer chunk = current;
+        current = null;
+        return chunk;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return advance() ? current.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        if (!advance()) return -1;
+
+        int count = Math.min(len, current.remaining());
+        current.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * @return false at the end of the body; otherwise the current chunk has
+     *         at least one byte remaining
+     */
+    private boolean advance() throws IOException {
+
+        try {
+            while (current == null || !current.hasRemaining()) {
+                if (!iterator.hasNext()) return false;
+                current = iterator.next();
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause != null ? cause : e);
+        }
+    }
+}
@@ -6,9 +6,11 @@
 
 package com.twitter.whiskey.net;
 
+import com.twitter.whiskey.futures.Flow;
 import com.twitter.whiskey.futures.ObservableFuture;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
  * Future representing the body of an HTTP response. The observable elements
@@ -21,4 +23,15 @@ import java.nio.ByteBuffer;
  * @author Michael Schore
  */
 public interface BodyFuture extends ObservableFuture<ByteBuffer, ByteBuffer> {
+
+    /**
+     * Returns a publisher of the streamed body. Where the protocol supports
+     * it, the first subscriber's demand is propagated to stream-level flow
+     * control: received data is only acknowledged to the server once it has
+     * been requested, so a slow subscriber pauses the stream rather than
+     * causing the body to be buffered without bound.
+     *
+     * @param executor the executor on which the subscriber is signalled
+     */
+    public Flow.Publisher<ByteBuffer> asPublisher(Executor executor);
 }
@@ -6,6 +6,7 @@
 
 package com.twitter.whiskey.net;
 
+import com.twitter.whiskey.futures.Observer;
 import com.twitter.whiskey.futures.ReactiveFuture;
 import com.twitter.whiskey.util.Platform;
 
@@ -24,11 +25,51 @@ class BodyFutureImpl extends ReactiveFuture<ByteBuffer, ByteBuffer> implements B
     private ByteBuffer body;
     private LinkedList<Integer> boundaries = new LinkedList<>();
     private int expectedLength = 0;
+    private volatile Observer<Integer> consumptionObserver;
 
     void setExpectedLength(int expectedLength) {
         this.expectedLength = expectedLength;
     }
 
+    /**
+     * Sets an observer to be notified of the number of bytes handed to a
+     * demand-driven subscriber, and completed if that subscriber cancels.
+     */
+    void setConsumptionObserver(Observer<Integer> observer) {
+        consumptionObserver = observer;
+    }
+
+    boolean isDemandDriven() {
+        return hasDemandSubscriber();
+    }
+
+    @Override
+    protected void onDeliver(ByteBuffer element) {
+
+        final Observer<Integer> observer = consumptionObserver;
+        if (observer == null) return;
+        final int bytes = element.remaining();
+        observer.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                observer.onNext(bytes);
+            }
+        });
+    }
+
+    @Override
+    protected void onDemandReleased() {
+
+        final Observer<Integer> observer = consumptionObserver;
+        if (observer == null) return;
+        observer.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                observer.onComplete();
+            }
+        });
+    }
+
     @Override
     public void accumulate(ByteBuffer element) {
 
@@ -54,17 +95,65 @@ class BodyFutureImpl extends ReactiveFuture<ByteBuffer, ByteBuffer> implements B
         boundaries.add(body.position());
     }
 
+    /**
+     * @return true if the body has been handed to streaming subscribers
+     *         rather than accumulated
+     */
+    boolean isStreamed() {
+        return isDrained();
+    }
+
+    /**
+     * @return a read-only copy of the body accumulated so far, or null if
+     *         it is empty
+     */
+    ByteBuffer snapshot() {
+
+        if (body == null || body.position() == 0) return null;
+        ByteBuffer copy = ByteBuffer.allocate(body.position());
+        ByteBuffer accumulated = body.duplicate();
+        accumulated.flip();
+        copy.put(accumulated);
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Provides an entire body at once, before any other element. Unless
+     * there are streaming subscribers, it is shared rather than copied into
+     * an accumulated body. Either way it is delivered read-only.
+     */
+    void provideShared(ByteBuffer shared) {
+
+        assert body == null;
+        if (isDone() || !shared.hasRemaining()) return;
+        if (hasSubscribers()) {
+            provide(shared.asReadOnlyBuffer());
+            return;
+        }
+        body = shared.asReadOnlyBuffer().slice();
+        body.position(body.limit());
+        boundaries.add(body.limit());
+    }
+
+    /**
+     * Slices the accumulated body without moving it, as it may already be
+     * the future's result.
+     */
     @Override
     public Iterable<ByteBuffer> drain() {
         List<ByteBuffer> chunks = new ArrayList<>(boundaries.size());
         if (body != null) {
-            body.flip();
+            ByteBuffer accumulated = body.duplicate();
+            int start = 0;
             for (int limit : boundaries) {
-                body.limit(limit);
-                chunks.add(body.slice().asReadOnlyBuffer());
-                body.position(limit);
+                accumulated.limit(limit);
+                accumulated.position(start);
+                chunks.add(accumulated.slice().asReadOnlyBuffer());
+                start = limit;
             }
             body = null;
+            boundaries.clear();
         }
         return chunks;
     }
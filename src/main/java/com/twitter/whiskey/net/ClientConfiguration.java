@@ -6,11 +6,20 @@
 
 package com.twitter.whiskey.net;
 
+import com.twitter.whiskey.nio.RunLoop;
+
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
@@ -25,15 +34,32 @@ public class ClientConfiguration {
     final private Protocol preferredProtocol;
     final private UpgradeStrategy upgradeStrategy;
     final private SSLContext sslContext;
+    final private Executor handshakeExecutor;
+    final private ResponseCache responseCache;
+    final private EventListener eventListener;
+    final private RunLoop runLoop;
+    final private SettingsStore settingsStore;
     final private TimeUnit connectTimeoutUnit;
     final private long connectTimeout;
+    final private long pushCacheTtl;
+    final private long pushCacheSize;
+    final private long stallThreshold;
+    final private double hedgePercentile;
+    final private double hedgeBudget;
     final private int compressionLevel;
     final private int maxPushStreams;
     final private int maxTcpConnections;
+    final private int maxPipelineDepth;
     final private int sessionReceiveWindow;
     final private int streamReceiveWindow;
+    final private int frameTraceCapacity;
     final private boolean tcpNoDelay;
+    final private boolean coalesceRequests;
 
+    /**
+     * Creates a configuration with the given options and the defaults of
+     * {@link Builder} for every other.
+     */
     public ClientConfiguration(
         List<Protocol> protocols,
         UpgradeStrategy upgradeStrategy,
@@ -47,18 +73,46 @@ public class ClientConfiguration {
         int streamReceiveWindow,
         boolean tcpNoDelay
     ) {
-        this.protocols = new LinkedHashSet<>(protocols);
-        preferredProtocol = protocols.get(0);
-        this.upgradeStrategy = upgradeStrategy;
-        this.sslContext = sslContext;
-        this.connectTimeoutUnit = connectTimeoutUnit;
-        this.connectTimeout = connectTimeout;
-        this.compressionLevel = compressionLevel;
-        this.maxPushStreams = maxPushStreams;
-        this.maxTcpConnections = maxTcpConnections;
-        this.sessionReceiveWindow = sessionReceiveWindow;
-        this.streamReceiveWindow = streamReceiveWindow;
-        this.tcpNoDelay = tcpNoDelay;
+        this(new Builder()
+            .protocols(protocols)
+            .upgradeStrategy(upgradeStrategy)
+            .sslContext(sslContext)
+            .connectTimeout(connectTimeout, connectTimeoutUnit)
+            .compressionLevel(compressionLevel)
+            .maxPushStreams(maxPushStreams)
+            .maxTcpConnections(maxTcpConnections)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .tcpNoDelay(tcpNoDelay));
+    }
+
+    private ClientConfiguration(Builder builder) {
+        protocols = new LinkedHashSet<>(builder.protocols);
+        preferredProtocol = builder.protocols.get(0);
+        upgradeStrategy = builder.upgradeStrategy;
+        sslContext = builder.sslContext;
+        handshakeExecutor = builder.defaultHandshakeExecutor ?
+            Builder.DefaultHandshakeExecutor.INSTANCE : builder.handshakeExecutor;
+        responseCache = builder.responseCache;
+        eventListener = builder.eventListener;
+        runLoop = builder.runLoop;
+        settingsStore = builder.settingsStore;
+        connectTimeoutUnit = builder.connectTimeoutUnit;
+        connectTimeout = builder.connectTimeout;
+        pushCacheTtl = builder.pushCacheTtl;
+        pushCacheSize = builder.pushCacheSize;
+        stallThreshold = builder.stallThreshold;
+        hedgePercentile = builder.hedgePercentile;
+        hedgeBudget = builder.hedgeBudget;
+        compressionLevel = builder.compressionLevel;
+        maxPushStreams = builder.maxPushStreams;
+        maxTcpConnections = builder.maxTcpConnections;
+        maxPipelineDepth = builder.maxPipelineDepth;
+        sessionReceiveWindow = builder.sessionReceiveWindow;
+        streamReceiveWindow = builder.streamReceiveWindow;
+        frameTraceCapacity = builder.frameTraceCapacity;
+        tcpNoDelay = builder.tcpNoDelay;
+        coalesceRequests = builder.coalesceRequests;
     }
 
     // TODO: respect connect timeouts
@@ -66,6 +120,22 @@ public class ClientConfiguration {
         return connectTimeout;
     }
 
+    /**
+     * @return the percentile of an origin's recent response latency after
+     *         which a hedged request is issued, or 0 if hedging is disabled
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return the ratio of hedged requests to eligible requests that may be
+     *         issued to an origin
+     */
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
     public int getCompressionLevel() {
         return compressionLevel;
     }
@@ -74,10 +144,37 @@ public class ClientConfiguration {
         return maxPushStreams;
     }
 
+    /**
+     * @return the time in milliseconds an unclaimed pushed response is held
+     */
+    public long getPushCacheTtl() {
+        return pushCacheTtl;
+    }
+
+    /**
+     * @return the number of body bytes of unclaimed pushed responses held
+     *         per origin, or 0 if pushed responses are not held
+     */
+    public long getPushCacheSize() {
+        return pushCacheSize;
+    }
+
+    /**
+     * @return the time in milliseconds beyond which a single task on the
+     *         RunLoop is reported to the event listener as a stall
+     */
+    public long getStallThreshold() {
+        return stallThreshold;
+    }
+
     public int getMaxTcpConnections() {
         return maxTcpConnections;
     }
 
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
     public int getSessionReceiveWindow() {
         return sessionReceiveWindow;
     }
@@ -86,10 +183,26 @@ public class ClientConfiguration {
         return streamReceiveWindow;
     }
 
+    /**
+     * @return the number of frames traced per session, or 0 if tracing is
+     *         disabled
+     */
+    public int getFrameTraceCapacity() {
+        return frameTraceCapacity;
+    }
+
     public boolean useTcpNoDelay() {
         return tcpNoDelay;
     }
 
+    /**
+     * @return true if identical GET and HEAD requests in flight at the same
+     *         time share a single response
+     */
+    public boolean shouldCoalesceRequests() {
+        return coalesceRequests;
+    }
+
     public UpgradeStrategy getUpgradeStrategy() {
         return upgradeStrategy;
     }
@@ -98,10 +211,57 @@ public class ClientConfiguration {
         return preferredProtocol;
     }
 
+    /**
+     * @return the protocols this client supports, in order of preference
+     */
+    public Set<Protocol> getProtocols() {
+        return Collections.unmodifiableSet(protocols);
+    }
+
     public SSLContext getSslContext() {
         return sslContext;
     }
 
+    /**
+     * @return the executor on which CPU-intensive TLS handshake tasks are run,
+     *         or null if they should be run on the {@link com.twitter.whiskey.nio.RunLoop}
+     */
+    public Executor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * @return the cache consulted before requests are dispatched, or null
+     *         if responses are not cached
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return the listener notified of request, session and RunLoop events,
+     *         or null if there is none
+     */
+    public EventListener getEventListener() {
+        return eventListener;
+    }
+
+    /**
+     * @return the RunLoop to be shared by clients created with this
+     *         configuration, or null if each is to start its own
+     */
+    public RunLoop getRunLoop() {
+        return runLoop;
+    }
+
+    /**
+     * @return the store of settings servers ask to be persisted, or null if
+     *         each client is to keep its own in memory
+     */
+    public SettingsStore getSettingsStore() {
+        return settingsStore;
+    }
+
     public TimeUnit getConnectTimeoutUnit() {
         return connectTimeoutUnit;
     }
@@ -109,14 +269,19 @@ public class ClientConfiguration {
     /**
      * The upgrade strategy to use when negotiating the protocol for a connection.
      *
-     * DIRECT - No negotiation will be performed and SPDY will be used directly
-     * on the wire. This is the only supported option for a non-TLS connection.
+     * DIRECT - No negotiation will be performed and the preferred protocol will
+     * be used directly on the wire. This is the only supported option for a
+     * non-TLS connection.
      *
      * NPN - Next Protocol Negotiation, a standard proposed by Google.
      * http://technotes.googlecode.com/git/nextprotoneg.html
+     * NPN is not exposed by the platform TLS implementations, and connections
+     * configured for it currently behave as DIRECT.
      *
      * ALPN - A successor to NPN and the standard adopted for HTTP2.
      * https://tools.ietf.org/html/rfc7301
+     * The configured protocols are offered in order of preference. If the
+     * server declines to select one, HTTP/1.1 is assumed where configured.
      */
     public static enum UpgradeStrategy {
         DIRECT,
@@ -128,28 +293,51 @@ public class ClientConfiguration {
         private List<Protocol> protocols;
         private UpgradeStrategy upgradeStrategy;
         private SSLContext sslContext;
+        private Executor handshakeExecutor;
+        private boolean defaultHandshakeExecutor;
+        private ResponseCache responseCache;
+        private EventListener eventListener;
+        private RunLoop runLoop;
+        private SettingsStore settingsStore;
         private TimeUnit connectTimeoutUnit;
         private long connectTimeout;
+        private long pushCacheTtl;
+        private long pushCacheSize;
+        private long stallThreshold;
+        private double hedgePercentile;
+        private double hedgeBudget;
         private int compressionLevel;
         private int maxPushStreams;
         private int maxTcpConnections;
+        private int maxPipelineDepth;
         private int sessionReceiveWindow;
         private int streamReceiveWindow;
+        private int frameTraceCapacity;
         private boolean tcpNoDelay;
+        private boolean coalesceRequests;
 
         public Builder() {
 
             protocols = new ArrayList<>(1);
             protocols.add(Protocol.SPDY_3_1);
             upgradeStrategy = UpgradeStrategy.DIRECT;
+            defaultHandshakeExecutor = true;
             connectTimeoutUnit = TimeUnit.MILLISECONDS;
             connectTimeout = 60000;
+            pushCacheTtl = 60000;
+            pushCacheSize = 4194304;
+            stallThreshold = 100;
+            hedgePercentile = 0;
+            hedgeBudget = 0.05;
             compressionLevel = 0;
             maxPushStreams = 0;
             maxTcpConnections = 1;
+            maxPipelineDepth = 1;
             sessionReceiveWindow = 10485760;
             streamReceiveWindow = 10485760;
+            frameTraceCapacity = 0;
             tcpNoDelay = false;
+            coalesceRequests = false;
         }
 
         public Builder connectTimeout(long connectTimeout, TimeUnit unit) {
@@ -158,6 +346,36 @@ public class ClientConfiguration {
             return this;
         }
 
+        /**
+         * Enables hedging of idempotent requests without a body. If no
+         * response has begun by the given percentile of the origin's recent
+         * response latency, a duplicate request is issued on another
+         * connection; the first to respond is used and the other is reset.
+         * Hedging begins once enough responses have been observed to
+         * estimate the percentile.
+         *
+         * @param percentile a fraction in (0, 1), such as 0.95, or 0 to disable
+         */
+        public Builder hedgePercentile(double percentile) {
+            if (percentile < 0 || percentile >= 1) {
+                throw new IllegalArgumentException("percentile must be in [0, 1): " + percentile);
+            }
+            this.hedgePercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Caps the additional load imposed by hedging at the given ratio of
+         * hedged to eligible requests, per origin. The default is 0.05.
+         */
+        public Builder hedgeBudget(double budget) {
+            if (budget < 0 || budget > 1) {
+                throw new IllegalArgumentException("budget must be in [0, 1]: " + budget);
+            }
+            this.hedgeBudget = budget;
+            return this;
+        }
+
         public Builder compressionLevel(int compressionLevel) {
             this.compressionLevel = compressionLevel;
             return this;
@@ -168,6 +386,27 @@ public class ClientConfiguration {
             return this;
         }
 
+        /**
+         * Sets how long a response pushed by the server is held for a later
+         * request of the same URL to claim. A claimed push is returned by
+         * {@link WhiskeyClient#submit} in place of a new request, whether or
+         * not it has completed. The default is one minute.
+         */
+        public Builder pushCacheTtl(long pushCacheTtl, TimeUnit unit) {
+            this.pushCacheTtl = TimeUnit.MILLISECONDS.convert(pushCacheTtl, unit);
+            return this;
+        }
+
+        /**
+         * Bounds the bytes of completed, unclaimed pushed responses held per
+         * origin; the oldest are dropped first. A size of 0 disables claiming
+         * of pushed responses. The default is 4MB.
+         */
+        public Builder pushCacheSize(long pushCacheSize) {
+            this.pushCacheSize = pushCacheSize;
+            return this;
+        }
+
         /**
          * Sets the maximum number of concurrent connections to open to a given
          * origin.
@@ -182,6 +421,16 @@ public class ClientConfiguration {
             return this;
         }
 
+        /**
+         * Sets the maximum number of idempotent requests that may be written
+         * to an HTTP/1.1 connection ahead of outstanding responses. A depth
+         * of 1 disables pipelining.
+         */
+        public Builder maxPipelineDepth(int maxPipelineDepth) {
+            this.maxPipelineDepth = maxPipelineDepth;
+            return this;
+        }
+
         public Builder protocols(Protocol... protocols) {
             this.protocols = Arrays.asList(protocols);
             return this;
@@ -197,6 +446,73 @@ public class ClientConfiguration {
             return this;
         }
 
+        /**
+         * Sets the executor on which the TLS engine's delegated tasks, such
+         * as certificate validation and key exchange, are run. The handshake
+         * resumes on the {@link com.twitter.whiskey.nio.RunLoop} once they
+         * complete. A null executor runs them on the RunLoop itself.
+         *
+         * By default a small pool of daemon threads is used, shared by every
+         * client. Its threads exit when idle, so it needs no shutdown. When
+         * all of them are busy, tasks wait for a thread: the handshake is
+         * delayed, but the RunLoop is never blocked.
+         */
+        public Builder handshakeExecutor(Executor handshakeExecutor) {
+            this.handshakeExecutor = handshakeExecutor;
+            defaultHandshakeExecutor = false;
+            return this;
+        }
+
+        /**
+         * Sets a cache from which fresh responses to GET requests are served,
+         * and in which cacheable responses are stored. A single cache may be
+         * shared between clients. By default responses are not cached.
+         */
+        public Builder responseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Sets a listener notified of request, session and RunLoop events,
+         * such as for forwarding to a profiler. By default there is none.
+         */
+        public Builder eventListener(EventListener eventListener) {
+            this.eventListener = eventListener;
+            return this;
+        }
+
+        /**
+         * Sets a RunLoop on which clients created with this configuration
+         * run, in place of a loop and thread of their own. The loop is
+         * shared, so is not stopped when a client terminates. By default
+         * each client starts its own.
+         */
+        public Builder runLoop(RunLoop runLoop) {
+            this.runLoop = runLoop;
+            return this;
+        }
+
+        /**
+         * Sets the store of SPDY settings which servers ask to be persisted,
+         * such as a {@link FileSettingsStore} to keep them across restarts.
+         * By default each client keeps its own in a
+         * {@link MemorySettingsStore}.
+         */
+        public Builder settingsStore(SettingsStore settingsStore) {
+            this.settingsStore = settingsStore;
+            return this;
+        }
+
+        /**
+         * Sets the time beyond which a single task on the RunLoop is reported
+         * to the event listener as a stall. The default is 100ms.
+         */
+        public Builder stallThreshold(long stallThreshold, TimeUnit unit) {
+            this.stallThreshold = TimeUnit.MILLISECONDS.convert(stallThreshold, unit);
+            return this;
+        }
+
         public Builder sessionReceiveWindow(int sessionReceiveWindow) {
             this.sessionReceiveWindow = sessionReceiveWindow;
             return this;
@@ -207,30 +523,72 @@ public class ClientConfiguration {
             return this;
         }
 
+        /**
+         * Enables tracing of the frames sent and received by SPDY and HTTP/2
+         * sessions. Each session retains its most recent frames, which are
+         * available through {@link Metrics.SessionMetrics#getFrameTrace()}.
+         * By default frames are not traced.
+         *
+         * @param capacity the number of frames retained per session, or 0 to
+         *        disable tracing
+         */
+        public Builder traceFrames(int capacity) {
+            this.frameTraceCapacity = capacity;
+            return this;
+        }
+
         public Builder tcpNoDelay(boolean tcpNoDelay) {
             this.tcpNoDelay = tcpNoDelay;
             return this;
         }
 
+        /**
+         * Enables coalescing of identical requests. A GET or HEAD request
+         * made while one with the same URL and headers is in flight is not
+         * sent, but completes with the same response, its body a read-only
+         * copy shared between all such requests. Followers receive the
+         * response once it is complete; should the first request's body be
+         * streamed, or the request be cancelled, they are sent separately.
+         */
+        public Builder coalesceRequests(boolean coalesceRequests) {
+            this.coalesceRequests = coalesceRequests;
+            return this;
+        }
+
         public Builder upgradeStrategy(UpgradeStrategy upgradeStrategy) {
             this.upgradeStrategy = upgradeStrategy;
             return this;
         }
 
+        /**
+         * Holds the default handshake executor, created on first use.
+         */
+        private static final class DefaultHandshakeExecutor {
+            static final Executor INSTANCE = newHandshakeExecutor();
+        }
+
+        private static Executor newHandshakeExecutor() {
+
+            final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "whiskey-handshake-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
         public ClientConfiguration create() {
-            return new ClientConfiguration(
-                protocols,
-                upgradeStrategy,
-                sslContext,
-                connectTimeoutUnit,
-                connectTimeout,
-                compressionLevel,
-                maxPushStreams,
-                maxTcpConnections,
-                sessionReceiveWindow,
-                streamReceiveWindow,
-                tcpNoDelay
-            );
+            return new ClientConfiguration(this);
         }
     }
 }
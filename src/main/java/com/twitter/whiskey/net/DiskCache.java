@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Platform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent tier for a {@link ResponseCache}, storing responses in
+ * append-only, memory-mapped segment files within a directory.
+ *
+ * Each record holds a response's metadata and body, guarded by checksums.
+ * A compact in-memory index maps the hash of each key to the location and
+ * expiry of its latest record, and is rebuilt on open by scanning the
+ * segments; a record torn by a crash fails its checksum and is discarded
+ * along with anything after it. Bodies of hits are slices of the mapped
+ * segments, handed to the application without copying.
+ *
+ * Once the total size of the segments would exceed the configured maximum,
+ * the least recently used segment is reclaimed: compacted, by copying its
+ * live records forward, if at least half of it is garbage, and otherwise
+ * dropped whole. Records larger than a segment are not stored. As an older
+ * segment may outlive the one being reclaimed, removals it holds, and those
+ * implied by dropping its records, are carried forward as tombstones while
+ * an older segment still holds a record for the key.
+ *
+ * Writes are to mapped memory, and segments are only forced to disk as
+ * they fill, so storing a response does not ordinarily block on I/O.
+ *
+ * This class is thread-safe.
+ */
+public class DiskCache implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".seg";
+    private static final int MAGIC = 0x57484b59;
+    // magic, metadata length, body length, metadata crc, body crc, key hash, expiry
+    private static final int HEADER_LENGTH = 4 * 5 + 8 * 2;
+    private static final int METADATA_LENGTH_OFFSET = 4;
+    private static final int BODY_LENGTH_OFFSET = 4 * 2;
+    private static final int HASH_OFFSET = 4 * 5;
+    private static final int TOMBSTONE = -1;
+    private static final int DEFAULT_SEGMENTS = 8;
+    private static final int CHECKSUM_CHUNK_SIZE = 8192;
+
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final HashMap<Long, Slot> index = new HashMap<>();
+    private Segment active;
+    private long size;
+    private long clock;
+    private boolean closed;
+
+    /**
+     * Opens the cache in the given directory, recovering any responses
+     * stored by a previous instance. Segments are an eighth of the maximum
+     * size.
+     *
+     * @param directory the directory, created if necessary, which must not
+     *                  be shared with another open instance
+     * @param maxSize the maximum total size of the segment files, in bytes
+     */
+    public DiskCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, (int) Math.min(Integer.MAX_VALUE, maxSize / DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * @param segmentSize the size of each segment file, which bounds the
+     *                    size of any single stored response
+     */
+    public DiskCache(File directory, long maxSize, int segmentSize) throws IOException {
+
+        if (segmentSize <= HEADER_LENGTH || segmentSize > maxSize / 2) {
+            throw new IllegalArgumentException("segment size must be at most half the maximum size");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory);
+        }
+
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        recover();
+    }
+
+    /**
+     * @return the total size of the live segments, in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    /**
+     * Removes all stored responses and their segment files.
+     */
+    public synchronized void evictAll() throws IOException {
+
+        checkOpen();
+        // Dropping the active segment replaces it with an empty one
+        for (Segment segment : new ArrayList<>(segments)) drop(segment);
+    }
+
+    /**
+     * Forces any unwritten records to disk and releases the segment files.
+     * Bodies already handed to the application remain readable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (closed) return;
+        closed = true;
+        active.buffer.force();
+        for (Segment segment : segments) segment.channel.close();
+    }
+
+    /**
+     * @return the stored entry for the key, or null if there is none or it
+     *         has expired without the means to revalidate it
+     */
+    synchronized ResponseCache.Entry get(String key) {
+
+        if (closed) return null;
+        Slot slot = index.get(hash(key));
+        if (slot == null) return null;
+        if (System.currentTimeMillis() >= slot.expiryMs) {
+            remove(key);
+            return null;
+        }
+
+        try {
+            ByteBuffer record = slot.segment.read(slot.offset, slot.length);
+            record.position(HEADER_LENGTH);
+            ResponseCache.Entry entry = decode(key, record, slot.metadataLength, slot.bodyLength);
+            if (entry == null) return null;
+            slot.segment.lastAccess = ++clock;
+            return entry;
+        } catch (IOException e) {
+            Platform.LOGGER.error("unable to read cached response: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends an entry for the key, superseding any earlier one.
+     */
+    synchronized void put(String key, ResponseCache.Entry entry) {
+
+        if (closed) return;
+        try {
+            byte[] metadata = encode(key, entry);
+            ByteBuffer body = entry.body != null ? entry.body.duplicate() : ByteBuffer.allocate(0);
+            long expiryMs = entry.hasValidators() ? Long.MAX_VALUE : entry.expiryMs;
+            if (HEADER_LENGTH + metadata.length + (long) body.remaining() > segmentSize) {
+                remove(key);
+                return;
+            }
+            append(hash(key), metadata, body, expiryMs);
+        } catch (IOException e) {
+            Platform.LOGGER.error("unable to store cached response: " + e);
+        }
+    }
+
+    /**
+     * Records the removal of any entry for the key.
+     */
+    synchronized void remove(String key) {
+
+        if (closed) return;
+        long hash = hash(key);
+        if (!index.containsKey(hash)) return;
+        try {
+            append(hash, key.getBytes(UTF_8), null, 0);
+        } catch (IOException e) {
+            Platform.LOGGER.error("unable to remove cached response: " + e);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) throw new IOException("cache closed");
+    }
+
+    /**
+     * Writes a record, or a tombstone if the body is null, reclaiming
+     * segments as needed to remain within the maximum size.
+     */
+    private void append(long hash, byte[] metadata, ByteBuffer body, long expiryMs) throws IOException {
+
+        int length = HEADER_LENGTH + metadata.length + (body != null ? body.remaining() : 0);
+        reclaim(length);
+        write(hash, metadata, body, expiryMs);
+    }
+
+    private void write(long hash, byte[] metadata, ByteBuffer body, long expiryMs) throws IOException {
+
+        int bodyLength = body != null ? body.remaining() : TOMBSTONE;
+        int length = HEADER_LENGTH + metadata.length + Math.max(0, bodyLength);
+        if (active.written + length > segmentSize) {
+            active.buffer.force();
+            active = newSegment(active.id + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(metadata, 0, metadata.length);
+        int metadataCrc = (int) crc.getValue();
+        crc.reset();
+        if (body != null) update(crc, body.duplicate());
+
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(active.written);
+        buffer.putInt(MAGIC);
+        buffer.putInt(metadata.length);
+        buffer.putInt(bodyLength);
+        buffer.putInt(metadataCrc);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(hash);
+        buffer.putLong(expiryMs);
+        buffer.put(metadata);
+        if (body != null) buffer.put(body.duplicate());
+
+        index(hash, active, active.written, metadata.length, bodyLength, expiryMs);
+        active.written += length;
+        active.lastAccess = ++clock;
+        size += length;
+    }
+
+    private void index(long hash, Segment segment, int offset, int metadataLength, int bodyLength, long expiryMs) {
+
+        Slot previous = bodyLength == TOMBSTONE ? index.remove(hash) : index.put(hash,
+            new Slot(segment, offset, metadataLength, bodyLength, expiryMs));
+        if (previous != null) previous.segment.live -= previous.length;
+        if (bodyLength != TOMBSTONE) segment.live += HEADER_LENGTH + metadataLength + bodyLength;
+    }
+
+    /**
+     * Reclaims the least recently used segments until the given number of
+     * bytes may be appended within the maximum size.
+     */
+    private void reclaim(int length) throws IOException {
+
+        while (size + length > maxSize) {
+            Segment victim = null;
+            for (Segment segment : segments) {
+                if (segment != active && (victim == null || segment.lastAccess < victim.lastAccess)) {
+                    victim = segment;
+                }
+            }
+            if (victim == null) return;
+
+            if (victim.live * 2 <= victim.written) compact(victim);
+            carryRemovals(victim);
+            drop(victim);
+        }
+    }
+
+    /**
+     * Copies the live, unexpired records of a segment forward.
+     */
+    private void compact(Segment segment) throws IOException {
+
+        long now = System.currentTimeMillis();
+        long lastAccess = segment.lastAccess;
+        List<Map.Entry<Long, Slot>> live = new ArrayList<>();
+        for (Map.Entry<Long, Slot> slot : index.entrySet()) {
+            if (slot.getValue().segment == segment && slot.getValue().expiryMs > now) live.add(slot);
+        }
+
+        for (Map.Entry<Long, Slot> entry : live) {
+            Slot slot = entry.getValue();
+            ByteBuffer record = segment.read(slot.offset, slot.length);
+            record.position(HEADER_LENGTH);
+            byte[] metadata = new byte[slot.metadataLength];
+            record.get(metadata);
+            write(entry.getKey(), metadata, record.slice(), slot.expiryMs);
+        }
+        // Compacted records remain as recently used as their old segment
+        active.lastAccess = Math.max(lastAccess, active.lastAccess - 1);
+    }
+
+    /**
+     * Writes tombstones for the keys of a segment about to be dropped that
+     * would otherwise be revived on recovery from an older segment: those it
+     * removed, and those whose records in it are not indexed elsewhere.
+     */
+    private void carryRemovals(Segment segment) throws IOException {
+
+        Map<Long, byte[]> removals = new HashMap<>();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        for (int offset = 0; offset < segment.written; offset += recordLength(buffer, offset)) {
+            long hash = buffer.getLong(offset + HASH_OFFSET);
+            Slot slot = index.get(hash);
+            if (slot != null && slot.segment != segment) continue;
+            // The metadata of a tombstone is not interpreted
+            byte[] metadata = new byte[buffer.getInt(offset + METADATA_LENGTH_OFFSET)];
+            buffer.position(offset + HEADER_LENGTH);
+            buffer.get(metadata);
+            removals.put(hash, metadata);
+        }
+        if (removals.isEmpty()) return;
+
+        Set<Long> older = new HashSet<>();
+        for (Segment other : segments) {
+            if (other.id >= segment.id) continue;
+            ByteBuffer records = other.buffer.duplicate();
+            for (int offset = 0; offset < other.written; offset += recordLength(records, offset)) {
+                older.add(records.getLong(offset + HASH_OFFSET));
+            }
+        }
+        for (Map.Entry<Long, byte[]> removal : removals.entrySet()) {
+            if (older.contains(removal.getKey())) write(removal.getKey(), removal.getValue(), null, 0);
+        }
+    }
+
+    /**
+     * @return the length of the record at the offset, which has been validated
+     */
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        int bodyLength = buffer.getInt(offset + BODY_LENGTH_OFFSET);
+        return HEADER_LENGTH + buffer.getInt(offset + METADATA_LENGTH_OFFSET) + Math.max(0, bodyLength);
+    }
+
+    private void drop(Segment segment) throws IOException {
+
+        Iterator<Slot> slots = index.values().iterator();
+        while (slots.hasNext()) {
+            if (slots.next().segment == segment) slots.remove();
+        }
+        segments.remove(segment);
+        size -= segment.written;
+        segment.channel.close();
+        if (!segment.file.delete()) Platform.LOGGER.error("unable to delete " + segment.file);
+        if (segment == active) active = newSegment(segment.id + 1);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, id + SUFFIX));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from the segment files, in the order they were
+     * written, discarding anything from the first invalid record in each.
+     */
+    private void recover() throws IOException {
+
+        List<Integer> ids = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SUFFIX)) continue;
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            Segment segment = newSegment(id);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset + HEADER_LENGTH <= segmentSize) {
+                int length = scan(buffer, offset, segment);
+                if (length <= 0) break;
+                offset += length;
+            }
+            // Clear what follows a torn record, lest records beyond it be
+            // revived after being overwritten
+            buffer.clear();
+            if (offset + 4 <= segmentSize && buffer.getInt(offset) != 0) {
+                for (int i = offset; i < segmentSize; i++) buffer.put(i, (byte) 0);
+            }
+            segment.written = offset;
+            segment.lastAccess = ++clock;
+            size += offset;
+        }
+
+        if (segments.isEmpty()) {
+            active = newSegment(1);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * @return the length of the valid record at the offset, or 0
+     */
+    private int scan(ByteBuffer buffer, int offset, Segment segment) {
+
+        buffer.limit(segmentSize).position(offset);
+        if (buffer.getInt() != MAGIC) return 0;
+        int metadataLength = buffer.getInt();
+        int bodyLength = buffer.getInt();
+        int metadataCrc = buffer.getInt();
+        int bodyCrc = buffer.getInt();
+        long hash = buffer.getLong();
+        long expiryMs = buffer.getLong();
+        long length = (long) HEADER_LENGTH + metadataLength + Math.max(0, bodyLength);
+        if (metadataLength < 0 || bodyLength < TOMBSTONE || offset + length > segmentSize) return 0;
+
+        CRC32 crc = new CRC32();
+        buffer.limit(buffer.position() + metadataLength);
+        update(crc, buffer);
+        if ((int) crc.getValue() != metadataCrc) return 0;
+        if (bodyLength > 0) {
+            crc.reset();
+            buffer.limit(buffer.position() + bodyLength);
+            update(crc, buffer);
+            if ((int) crc.getValue() != bodyCrc) return 0;
+        }
+
+        index(hash, segment, offset, metadataLength, bodyLength, expiryMs);
+        return (int) length;
+    }
+
+    /**
+     * Adds the remaining bytes of the buffer to the checksum, consuming
+     * them. CRC32.update(ByteBuffer) is unavailable before Java 8 and
+     * Android API 26, so mapped buffers are copied through in chunks.
+     */
+    private static void update(CRC32 crc, ByteBuffer buffer) {
+
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        byte[] chunk = new byte[Math.min(buffer.remaining(), CHECKSUM_CHUNK_SIZE)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+    }
+
+    private static byte[] encode(String key, ResponseCache.Entry entry) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(key);
+        out.writeInt(entry.statusCode);
+        out.writeLong(entry.responseMs);
+        encode(out, entry.headers);
+        encode(out, entry.varying);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void encode(DataOutputStream out, Headers headers) throws IOException {
+        out.writeInt(headers.size());
+        for (Header header : headers.entries()) {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+    }
+
+    private static ResponseCache.Entry decode(
+        String key, ByteBuffer record, int metadataLength, int bodyLength) throws IOException {
+
+        byte[] metadata = new byte[metadataLength];
+        record.get(metadata);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata));
+        // A different key with the same hash
+        if (!in.readUTF().equals(key)) return null;
+        int statusCode = in.readInt();
+        long responseMs = in.readLong();
+        Headers headers = decodeHeaders(in);
+        Headers varying = decodeHeaders(in);
+
+        record.limit(record.position() + bodyLength);
+        ByteBuffer body = bodyLength > 0 ? record.slice() : null;
+        return new ResponseCache.Entry(statusCode, headers, body, varying, responseMs);
+    }
+
+    private static Headers decodeHeaders(DataInputStream in) throws IOException {
+        Headers headers = new Headers();
+        for (int count = in.readInt(); count > 0; count--) {
+            headers.put(in.readUTF(), in.readUTF());
+        }
+        return headers;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key's UTF-8 encoding.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private final class Segment {
+
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int written;
+        int live;
+        long lastAccess;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        /**
+         * @return a read-only view of a record, backed by the mapping
+         */
+        ByteBuffer read(int offset, int length) throws IOException {
+            if (offset + length > written) throw new IOException("record beyond end of segment");
+            ByteBuffer record = buffer.asReadOnlyBuffer();
+            record.position(offset).limit(offset + length);
+            return record.slice();
+        }
+    }
+
+    private static final class Slot {
+
+        final Segment segment;
+        final int offset;
+        final int metadataLength;
+        final int bodyLength;
+        final int length;
+        final long expiryMs;
+
+        Slot(Segment segment, int offset, int metadataLength, int bodyLength, long expiryMs) {
+            this.segment = segment;
+            this.offset = offset;
+            this.metadataLength = metadataLength;
+            this.bodyLength = bodyLength;
+            this.length = HEADER_LENGTH + metadataLength + bodyLength;
+            this.expiryMs = expiryMs;
+        }
+    }
+}
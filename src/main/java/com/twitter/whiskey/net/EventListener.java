@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+/**
+ * Receives events from the lifecycle of a client's requests, sessions and
+ * {@link com.twitter.whiskey.nio.RunLoop}, for forwarding to a profiler or
+ * tracing system. Subclasses override only the events of interest.
+ *
+ * Unless noted otherwise, events are delivered synchronously on the
+ * RunLoop, so implementations must be fast and must never block; time
+ * spent in them delays all other network activity of the client.
+ */
+public abstract class EventListener {
+
+    /**
+     * Called when an attempt at a request is queued for a connection,
+     * including the attempts made to follow redirects and to retry. May be
+     * called from any thread.
+     */
+    public void onRequestQueued(Request request) {
+    }
+
+    /**
+     * Called when a session takes a request, assigning it a stream.
+     *
+     * @param streamId the stream carrying the request, or 0 for HTTP/1.1
+     */
+    public void onStreamOpened(Request request, Protocol protocol, int streamId) {
+    }
+
+    /**
+     * Called when the status of a response arrives, before its headers and
+     * body.
+     */
+    public void onResponseHeaders(Request request, int statusCode) {
+    }
+
+    /**
+     * Called when sending of a request body resumes after stalling for lack
+     * of flow control window.
+     *
+     * @param durationNanos the time for which the body was blocked
+     */
+    public void onFlowControlBlocked(Request request, long durationNanos) {
+    }
+
+    /**
+     * Called once a request has finished, whether it succeeded, failed or
+     * was cancelled. May be called from any thread.
+     *
+     * @param request the original request
+     * @param error the cause of failure, or null if the request succeeded
+     */
+    public void onRequestCompleted(Request request, RequestStats stats, Throwable error) {
+    }
+
+    /**
+     * Called when a TLS handshake with an origin completes.
+     *
+     * @param protocol the protocol negotiated, or the default if none was
+     * @param durationMicros the wall-clock duration of the handshake
+     */
+    public void onHandshakeCompleted(Origin origin, Protocol protocol, long durationMicros) {
+    }
+
+    /**
+     * Called for each frame sent or received by a SPDY or HTTP/2 session.
+     */
+    public void onFrame(Origin origin, FrameTracer.Event frame) {
+    }
+
+    /**
+     * Called when a single task on the RunLoop runs for longer than the
+     * threshold set with {@link ClientConfiguration.Builder#stallThreshold}.
+     * Such tasks delay every other connection served by the loop. Called
+     * on the RunLoop, after the task.
+     *
+     * @param taskClass the class of the task, or of the socket handling a
+     *        network event
+     * @param durationNanos the time for which the task ran
+     */
+    public void onRunLoopStall(Class<?> taskClass, long durationNanos) {
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+import com.twitter.whiskey.util.Platform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link SettingsStore} kept in memory and saved to a file, so that
+ * settings survive restarts of the application. Changes are applied in
+ * memory at once, and the whole file is rewritten by a background executor,
+ * by writing a temporary file and renaming it over the last. Changes made
+ * before a pending save runs, such as each setting of a SETTINGS frame, are
+ * saved together.
+ *
+ * As settings are only hints, a missing or unreadable file is treated as
+ * empty, a failure to save is logged rather than thrown, and changes not yet
+ * saved when the application exits are lost.
+ *
+ * This class is thread-safe.
+ */
+public class FileSettingsStore extends MemorySettingsStore {
+
+    private static final int MAGIC = 0x57485354;
+
+    private final File file;
+    private final Executor executor;
+    private final AtomicBoolean savePending = new AtomicBoolean();
+    // Held while writing, should the executor run saves concurrently
+    private final Object saveLock = new Object();
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            // Changes after this point schedule another save
+            savePending.set(false);
+            synchronized (saveLock) {
+                save();
+            }
+        }
+    };
+
+    /**
+     * Opens the store, loading any settings saved to the file by a previous
+     * instance. Changes are saved by a daemon thread shared by all stores.
+     *
+     * @param file the file, which must not be shared with another open
+     *             instance
+     */
+    public FileSettingsStore(File file) {
+        this(file, DefaultSaveExecutor.INSTANCE);
+    }
+
+    /**
+     * @param executor the executor on which changes are saved
+     */
+    public FileSettingsStore(File file, Executor executor) {
+        this.file = file;
+        this.executor = executor;
+        load();
+    }
+
+    @Override
+    public void put(Origin origin, int id, int value) {
+        super.put(origin, id, value);
+        scheduleSave();
+    }
+
+    @Override
+    public void clear(Origin origin) {
+        super.clear(origin);
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) executor.execute(saveTask);
+    }
+
+    private void load() {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a settings file");
+            int origins = in.readInt();
+            for (int i = 0; i < origins; i++) {
+                Origin origin = new Origin(in.readUTF(), in.readUTF(), in.readInt());
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    super.put(origin, in.readInt(), in.readInt());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been saved yet
+        } catch (IOException e) {
+            Platform.LOGGER.error("unable to load settings from " + file + ": " + e);
+        }
+    }
+
+    private void save() {
+
+        File temp = new File(file.getPath() + ".tmp");
+        Map<Origin, Map<Integer, Integer>> settings = getAll();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(settings.size());
+            for (Map.Entry<Origin, Map<Integer, Integer>> entry : settings.entrySet()) {
+                Origin origin = entry.getKey();
+                out.writeUTF(origin.getScheme());
+                out.writeUTF(origin.getHost());
+                out.writeInt(origin.getPort());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<Integer, Integer> setting : entry.getValue().entrySet()) {
+                    out.writeInt(setting.getKey());
+                    out.writeInt(setting.getValue());
+                }
+            }
+        } catch (IOException e) {
+            Platform.LOGGER.error("unable to save settings to " + file + ": " + e);
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            Platform.LOGGER.error("unable to replace " + file);
+        }
+    }
+
+    private static final class DefaultSaveExecutor {
+        static final Executor INSTANCE = newSaveExecutor();
+    }
+
+    private static Executor newSaveExecutor() {
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "whiskey-settings");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
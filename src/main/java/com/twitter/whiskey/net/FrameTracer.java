@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fixed-size ring of the most recent frames sent and received by a
+ * session, recorded as typed fields into preallocated arrays so that
+ * tracing allocates nothing and formats nothing until it is read.
+ *
+ * Frames are recorded only on the RunLoop. A snapshot may be taken from
+ * any thread without locking; events overwritten while it is taken are
+ * omitted from it. Frames are also forwarded to the client's
+ * {@link EventListener}, if it has one.
+ */
+public class FrameTracer {
+
+    public enum Direction { SENT, RECEIVED }
+
+    /**
+     * Frame types common to SPDY and HTTP/2. SPDY's SYN_STREAM and
+     * SYN_REPLY are traced as HEADERS, and a pushed SYN_STREAM as
+     * PUSH_PROMISE.
+     */
+    public enum Type { DATA, HEADERS, PRIORITY, RST_STREAM, SETTINGS, PUSH_PROMISE, PING, GOAWAY, WINDOW_UPDATE }
+
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x2;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final Type[] TYPES = Type.values();
+
+    private final long[] times;
+    private final long[] values;
+    private final int[] streamIds;
+    private final byte[] directions;
+    private final byte[] types;
+    private final byte[] flags;
+    private final int mask;
+    private final EventListener listener;
+    private final Origin origin;
+    // Count of events recorded; written only on the RunLoop
+    private volatile long sequence;
+
+    /**
+     * @param capacity the number of events retained, rounded up to a power of two
+     */
+    FrameTracer(int capacity) {
+        this(capacity, null, null);
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+
+    private FrameTracer(int capacity, EventListener listener, Origin origin) {
+
+        int size = Integer.highestOneBit(Math.max(0, capacity));
+        if (size < capacity) size <<= 1;
+        this.listener = listener;
+        this.origin = origin;
+        times = new long[size];
+        values = new long[size];
+        streamIds = new int[size];
+        directions = new byte[size];
+        types = new byte[size];
+        flags = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return a tracer for a session to the origin, or null if neither frame
+     *         tracing nor an event listener is configured
+     */
+    static FrameTracer create(ClientConfiguration configuration, Origin origin) {
+
+        int capacity = configuration.getFrameTraceCapacity();
+        EventListener listener = configuration.getEventListener();
+        if (capacity <= 0 && listener == null) return null;
+        return new FrameTracer(capacity, listener, origin);
+    }
+
+    void sent(Type type, int streamId, int flags, long value) {
+        record(Direction.SENT, type, streamId, flags, value);
+    }
+
+    void received(Type type, int streamId, int flags, long value) {
+        record(Direction.RECEIVED, type, streamId, flags, value);
+    }
+
+    private void record(Direction direction, Type type, int streamId, int flags, long value) {
+
+        if (listener != null) {
+            listener.onFrame(origin, new Event(System.nanoTime(), direction, type, streamId, flags, value));
+        }
+        if (times.length == 0) return;
+
+        long sequence = this.sequence;
+        int index = (int) sequence & mask;
+        times[index] = System.nanoTime();
+        values[index] = value;
+        streamIds[index] = streamId;
+        directions[index] = (byte) direction.ordinal();
+        types[index] = (byte) type.ordinal();
+        this.flags[index] = (byte) flags;
+        this.sequence = sequence + 1;
+    }
+
+    /**
+     * @return the retained events, oldest first
+     */
+    public List<Event> snapshot() {
+
+        long end = sequence;
+        long start = Math.max(0, end - times.length);
+        List<Event> events = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            int index = (int) i & mask;
+            events.add(new Event(times[index], DIRECTIONS[directions[index]], TYPES[types[index]],
+                streamIds[index], flags[index], values[index]));
+        }
+
+        // Discard any events the writer may have overwritten while copying,
+        // including the one it may be writing now
+        long overwritten = sequence + 1 - times.length - start;
+        if (overwritten > 0) {
+            return Collections.unmodifiableList(events.subList((int) Math.min(overwritten, events.size()), events.size()));
+        }
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * A single traced frame. The meaning of the value depends on the type:
+     * the payload length of DATA, the promised stream of PUSH_PROMISE, the
+     * error code of RST_STREAM and GOAWAY, the delta of WINDOW_UPDATE and
+     * the opaque data of PING; it is otherwise 0. The stream of a GOAWAY is
+     * the last stream processed by the endpoint which sent it.
+     */
+    public static final class Event {
+
+        private final long timeNanos;
+        private final Direction direction;
+        private final Type type;
+        private final int streamId;
+        private final int flags;
+        private final long value;
+
+        Event(long timeNanos, Direction direction, Type type, int streamId, int flags, long value) {
+            this.timeNanos = timeNanos;
+            this.direction = direction;
+            this.type = type;
+            this.streamId = streamId;
+            this.flags = flags;
+            this.value = value;
+        }
+
+        /**
+         * @return the time the frame was traced, per {@link System#nanoTime()}
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public int getStreamId() {
+            return streamId;
+        }
+
+        public boolean isEndStream() {
+            return (flags & END_STREAM) != 0;
+        }
+
+        public boolean isAck() {
+            return (flags & ACK) != 0;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return direction + " " + type + " stream=" + streamId + " value=" + value +
+                (isEndStream() ? " END_STREAM" : "") + (isAck() ? " ACK" : "");
+        }
+    }
+}
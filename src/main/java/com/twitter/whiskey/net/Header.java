@@ -7,6 +7,7 @@
 package com.twitter.whiskey.net;
 
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.AbstractMap;
 import java.util.Date;
@@ -33,7 +34,7 @@ public class Header extends AbstractMap.SimpleImmutableEntry<String, String> {
     }
 
     public Header(String key, Date date) {
-        this(key, DATE_FORMAT.format(date));
+        this(key, formatDate(date));
     }
 
     public Header(String key, Integer value) {
@@ -60,6 +61,30 @@ public class Header extends AbstractMap.SimpleImmutableEntry<String, String> {
         }
     }
 
+    /**
+     * @return the value parsed as an HTTP date, or null if it is not one
+     */
+    public Date getDateValue() {
+        return parseDate(getValue());
+    }
+
+    static String formatDate(Date date) {
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(date);
+        }
+    }
+
+    static Date parseDate(String value) {
+        if (value == null) return null;
+        try {
+            synchronized (DATE_FORMAT) {
+                return DATE_FORMAT.parse(value);
+            }
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return getKey() + ": " + getValue();
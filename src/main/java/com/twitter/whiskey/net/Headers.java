@@ -24,16 +24,24 @@ public class Headers extends ListMultiMap<String, String> {
     public static final String ACCEPT_CHARSET = "accept-charset";
     public static final String ACCEPT_LANGUAGE = "accept-language";
     public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String AUTHORIZATION = "authorization";
     public static final String CONTENT_LENGTH = "content-length";
     public static final String CONTENT_TYPE = "content-type";
     public static final String COOKIE = "cookie";
     public static final String DATE = "date";
     public static final String IF_MODIFIED_SINCE = "if-modified-since";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String PRAGMA = "pragma";
 
+    public static final String AGE = "age";
+    public static final String CACHE_CONTROL = "cache-control";
     public static final String CONTENT_ENCODING = "content-encoding";
+    public static final String ETAG = "etag";
+    public static final String EXPIRES = "expires";
     public static final String LAST_MODIFIED = "last-modified";
     public static final String LOCATION = "location";
     public static final String SET_COOKIE = "set-cookie";
+    public static final String VARY = "vary";
 
     public static final String CONNECTION = "connection";
     public static final String KEEP_ALIVE = "keep-alive";
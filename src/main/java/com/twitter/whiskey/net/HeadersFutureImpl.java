@@ -8,6 +8,8 @@ package com.twitter.whiskey.net;
 
 import com.twitter.whiskey.futures.ReactiveFuture;
 
+import java.util.Collections;
+
 /**
  * Internal implementation of a {@link HeadersFuture}.
  *
@@ -32,7 +34,7 @@ public class HeadersFutureImpl extends ReactiveFuture<Headers, Header> implement
 
     @Override
     protected Iterable<Header> drain() {
-        return headers.entries();
+        return headers != null ? headers.entries() : Collections.<Header>emptyList();
     }
 
     @Override
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tables and primitive representations shared by {@link HpackEncoder} and
+ * {@link HpackDecoder}, as specified in RFC 7541.
+ */
+final class Hpack {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Per-entry overhead used when computing dynamic table size (RFC 7541 4.1).
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final Header[] STATIC_TABLE = {
+        new Header(":authority", ""),
+        new Header(":method", "GET"),
+        new Header(":method", "POST"),
+        new Header(":path", "/"),
+        new Header(":path", "/index.html"),
+        new Header(":scheme", "http"),
+        new Header(":scheme", "https"),
+        new Header(":status", "200"),
+        new Header(":status", "204"),
+        new Header(":status", "206"),
+        new Header(":status", "304"),
+        new Header(":status", "400"),
+        new Header(":status", "404"),
+        new Header(":status", "500"),
+        new Header("accept-charset", ""),
+        new Header("accept-encoding", "gzip, deflate"),
+        new Header("accept-language", ""),
+        new Header("accept-ranges", ""),
+        new Header("accept", ""),
+        new Header("access-control-allow-origin", ""),
+        new Header("age", ""),
+        new Header("allow", ""),
+        new Header("authorization", ""),
+        new Header("cache-control", ""),
+        new Header("content-disposition", ""),
+        new Header("content-encoding", ""),
+        new Header("content-language", ""),
+        new Header("content-length", ""),
+        new Header("content-location", ""),
+        new Header("content-range", ""),
+        new Header("content-type", ""),
+        new Header("cookie", ""),
+        new Header("date", ""),
+        new Header("etag", ""),
+        new Header("expect", ""),
+        new Header("expires", ""),
+        new Header("from", ""),
+        new Header("host", ""),
+        new Header("if-match", ""),
+        new Header("if-modified-since", ""),
+        new Header("if-none-match", ""),
+        new Header("if-range", ""),
+        new Header("if-unmodified-since", ""),
+        new Header("last-modified", ""),
+        new Header("link", ""),
+        new Header("location", ""),
+        new Header("max-forwards", ""),
+        new Header("proxy-authenticate", ""),
+        new Header("proxy-authorization", ""),
+        new Header("range", ""),
+        new Header("referer", ""),
+        new Header("refresh", ""),
+        new Header("retry-after", ""),
+        new Header("server", ""),
+        new Header("set-cookie", ""),
+        new Header("strict-transport-security", ""),
+        new Header("transfer-encoding", ""),
+        new Header("user-agent", ""),
+        new Header("vary", ""),
+        new Header("via", ""),
+        new Header("www-authenticate", ""),
+    };
+
+    // 1-based indices of the first static entry for each name, and of each
+    // exact name-value pair.
+    static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+    static final Map<Header, Integer> STATIC_ENTRY_INDEX = new HashMap<>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i].getKey(), i + 1);
+            STATIC_ENTRY_INDEX.put(STATIC_TABLE[i], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * @return the size of a header field as counted against the dynamic table
+     */
+    static int entrySize(Header header) {
+        return header.getKey().length() + header.getValue().length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Encodes an integer with an N-bit prefix, preserving the high-order
+     * bits of the first octet specified by mask (RFC 7541 5.1).
+     */
+    static void encodeInteger(ByteBuffer out, int mask, int prefixBits, int value) {
+
+        int maxPrefix = (1 << prefixBits) - 1;
+        if (value < maxPrefix) {
+            out.put((byte) (mask | value));
+            return;
+        }
+
+        out.put((byte) (mask | maxPrefix));
+        value -= maxPrefix;
+        while (value >= 0x80) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Decodes an integer with an N-bit prefix, the first octet of which has
+     * already been read.
+     */
+    static int decodeInteger(ByteBuffer in, int firstOctet, int prefixBits) throws IOException {
+
+        int maxPrefix = (1 << prefixBits) - 1;
+        int value = firstOctet & maxPrefix;
+        if (value < maxPrefix) return value;
+
+        int shift = 0;
+        int b;
+        do {
+            if (!in.hasRemaining()) throw new IOException("truncated integer in header block");
+            b = in.get() & 0xFF;
+            if (shift > 28 || (shift == 28 && (b & 0x7F) > 0x07)) {
+                throw new IOException("integer overflow in header block");
+            }
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (value < 0) throw new IOException("integer overflow in header block");
+        return value;
+    }
+
+    /**
+     * FIFO of header fields with size-based eviction (RFC 7541 4).
+     * Index 1 refers to the most recently inserted entry.
+     */
+    static final class DynamicTable {
+
+        private Header[] entries = new Header[16];
+        private int head = 0;
+        private int length = 0;
+        private int size = 0;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return length;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        /**
+         * @param index 1-based index, where 1 is the newest entry
+         */
+        Header get(int index) {
+            assert index > 0 && index <= length;
+            return entries[(head + length - index) & (entries.length - 1)];
+        }
+
+        void add(Header header) {
+
+            int entrySize = entrySize(header);
+            if (entrySize > maxSize) {
+                // An entry larger than the table empties it and is not inserted.
+                evict(maxSize);
+                return;
+            }
+
+            evict(entrySize);
+            if (length == entries.length) {
+                Header[] expanded = new Header[entries.length << 1];
+                for (int i = 0; i < length; i++) {
+                    expanded[i] = entries[(head + i) & (entries.length - 1)];
+                }
+                entries = expanded;
+                head = 0;
+            }
+            entries[(head + length) & (entries.length - 1)] = header;
+            length++;
+            size += entrySize;
+        }
+
+        /**
+         * Evicts the oldest entries until the specified additional space is available.
+         */
+        private void evict(int required) {
+            while (length > 0 && size + required > maxSize) {
+                Header evicted = entries[head];
+                entries[head] = null;
+                head = (head + 1) & (entries.length - 1);
+                length--;
+                size -= entrySize(evicted);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). A decoder maintains the dynamic
+ * table for a single connection and must see every header block received
+ * on that connection, in order.
+ */
+class HpackDecoder {
+
+    private final Hpack.DynamicTable dynamicTable;
+    private final int maxTableSizeLimit;
+
+    HpackDecoder(int maxTableSize) {
+        dynamicTable = new Hpack.DynamicTable(maxTableSize);
+        maxTableSizeLimit = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @throws IOException if the block is malformed; this is a connection error
+     */
+    List<Header> decode(ByteBuffer block) throws IOException {
+
+        List<Header> headers = new ArrayList<>();
+        boolean headerSeen = false;
+
+        while (block.hasRemaining()) {
+            int b = block.get() & 0xFF;
+
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                headers.add(getIndexed(Hpack.decodeInteger(block, b, 7)));
+                headerSeen = true;
+            } else if ((b & 0x40) != 0) {
+                // Literal header field with incremental indexing
+                Header header = readLiteral(block, b, 6);
+                dynamicTable.add(header);
+                headers.add(header);
+                headerSeen = true;
+            } else if ((b & 0x20) != 0) {
+                // Dynamic table size update, only permitted at the start of a block
+                if (headerSeen) throw new IOException("table size update after header field");
+                int size = Hpack.decodeInteger(block, b, 5);
+                if (size > maxTableSizeLimit) {
+                    throw new IOException("table size update exceeds limit: " + size);
+                }
+                dynamicTable.setMaxSize(size);
+            } else {
+                // Literal header field without indexing (0000) or never indexed (0001)
+                headers.add(readLiteral(block, b, 4));
+                headerSeen = true;
+            }
+        }
+
+        return headers;
+    }
+
+    private Header readLiteral(ByteBuffer block, int firstOctet, int prefixBits) throws IOException {
+
+        int index = Hpack.decodeInteger(block, firstOctet, prefixBits);
+        String name = index == 0 ? readString(block) : getIndexed(index).getKey();
+        if (name.isEmpty()) throw new IOException("empty header name");
+        return new Header(name, readString(block));
+    }
+
+    private Header getIndexed(int index) throws IOException {
+
+        if (index <= 0) throw new IOException("invalid header index: " + index);
+        if (index <= Hpack.STATIC_TABLE.length) return Hpack.STATIC_TABLE[index - 1];
+        index -= Hpack.STATIC_TABLE.length;
+        if (index > dynamicTable.length()) throw new IOException("invalid header index: " + index);
+        return dynamicTable.get(index);
+    }
+
+    private String readString(ByteBuffer block) throws IOException {
+
+        if (!block.hasRemaining()) throw new IOException("truncated string in header block");
+        int b = block.get() & 0xFF;
+        boolean huffman = (b & 0x80) != 0;
+        int length = Hpack.decodeInteger(block, b, 7);
+        if (length > block.remaining()) throw new IOException("truncated string in header block");
+
+        if (huffman) {
+            return new String(HpackHuffman.decode(block, length), Hpack.ISO_8859_1);
+        }
+
+        byte[] bytes = new byte[length];
+        block.get(bytes);
+        return new String(bytes, Hpack.ISO_8859_1);
+    }
+}
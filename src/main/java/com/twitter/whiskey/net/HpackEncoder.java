@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541). An encoder maintains the dynamic
+ * table for a single connection and its output must be sent on that
+ * connection in the order it was produced.
+ */
+class HpackEncoder {
+
+    private final Hpack.DynamicTable dynamicTable;
+    private int pendingTableSize = -1;
+    private int minPendingTableSize = -1;
+
+    HpackEncoder(int maxTableSize) {
+        dynamicTable = new Hpack.DynamicTable(maxTableSize);
+    }
+
+    /**
+     * Updates the maximum dynamic table size in response to the peer's
+     * SETTINGS_HEADER_TABLE_SIZE. The change is signalled at the start of
+     * the next encoded header block.
+     */
+    void setMaxTableSize(int maxTableSize) {
+
+        if (maxTableSize == dynamicTable.getMaxSize() && pendingTableSize < 0) return;
+        minPendingTableSize = minPendingTableSize < 0 ? maxTableSize : Math.min(minPendingTableSize, maxTableSize);
+        pendingTableSize = maxTableSize;
+        dynamicTable.setMaxSize(maxTableSize);
+    }
+
+    ByteBuffer encode(List<Header> headers) {
+
+        int estimate = 10;
+        for (Header header : headers) {
+            estimate += header.getKey().length() + header.getValue().length() + 16;
+        }
+        ByteBuffer out = ByteBuffer.allocate(estimate);
+
+        if (pendingTableSize >= 0) {
+            // If the size shrank and then grew, the peer must observe the minimum first.
+            if (minPendingTableSize < pendingTableSize) {
+                Hpack.encodeInteger(out, 0x20, 5, minPendingTableSize);
+            }
+            Hpack.encodeInteger(out, 0x20, 5, pendingTableSize);
+            pendingTableSize = -1;
+            minPendingTableSize = -1;
+        }
+
+        for (Header header : headers) {
+            encodeHeader(out, header);
+        }
+
+        out.flip();
+        return out;
+    }
+
+    private void encodeHeader(ByteBuffer out, Header header) {
+
+        String name = header.getKey();
+
+        Integer staticIndex = Hpack.STATIC_ENTRY_INDEX.get(header);
+        if (staticIndex != null) {
+            Hpack.encodeInteger(out, 0x80, 7, staticIndex);
+            return;
+        }
+
+        int nameIndex = 0;
+        for (int i = 1; i <= dynamicTable.length(); i++) {
+            Header entry = dynamicTable.get(i);
+            if (entry.getKey().equals(name)) {
+                if (entry.getValue().equals(header.getValue())) {
+                    Hpack.encodeInteger(out, 0x80, 7, Hpack.STATIC_TABLE.length + i);
+                    return;
+                }
+                if (nameIndex == 0) nameIndex = Hpack.STATIC_TABLE.length + i;
+            }
+        }
+
+        Integer staticNameIndex = Hpack.STATIC_NAME_INDEX.get(name);
+        if (staticNameIndex != null) nameIndex = staticNameIndex;
+
+        if (isSensitive(name)) {
+            Hpack.encodeInteger(out, 0x10, 4, nameIndex);
+        } else if (isVolatile(name) || Hpack.entrySize(header) > dynamicTable.getMaxSize() / 2) {
+            Hpack.encodeInteger(out, 0x00, 4, nameIndex);
+        } else {
+            Hpack.encodeInteger(out, 0x40, 6, nameIndex);
+            dynamicTable.add(header);
+        }
+
+        if (nameIndex == 0) writeString(out, name);
+        writeString(out, header.getValue());
+    }
+
+    private static boolean isSensitive(String name) {
+        return name.equals("authorization") || name.equals("proxy-authorization") || name.equals("set-cookie");
+    }
+
+    private static boolean isVolatile(String name) {
+        return name.equals(":path") || name.equals("content-length");
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+
+        byte[] bytes = value.getBytes(Hpack.ISO_8859_1);
+        int huffmanLength = HpackHuffman.encodedLength(bytes);
+        if (huffmanLength < bytes.length) {
+            Hpack.encodeInteger(out, 0x80, 7, huffmanLength);
+            HpackHuffman.encode(bytes, out);
+        } else {
+            Hpack.encodeInteger(out, 0x00, 7, bytes.length);
+            out.put(bytes);
+        }
+    }
+}
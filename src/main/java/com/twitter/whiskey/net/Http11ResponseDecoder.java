@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes {@link ByteBuffer}s into HTTP/1.x response messages, as specified
+ * in RFC 7230. Consecutive (pipelined) responses on a connection are decoded
+ * in order; chunked transfer coding is removed before body data is passed on.
+ */
+class Http11ResponseDecoder {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final Http11ResponseDecoderDelegate delegate;
+    private final int maxChunkSize;
+
+    private State state;
+    private boolean http10;
+    private boolean keepAlive;
+    private boolean chunked;
+    private boolean interim;
+    private int statusCode;
+    private long contentLength;
+    private long remaining;
+
+    private enum State {
+        READ_STATUS_LINE,
+        READ_HEADER_LINE,
+        READ_FIXED_LENGTH_BODY,
+        READ_CHUNK_SIZE,
+        READ_CHUNK_DATA,
+        READ_CHUNK_END,
+        READ_TRAILER_LINE,
+        READ_UNTIL_CLOSE,
+        FRAME_ERROR
+    }
+
+    Http11ResponseDecoder(Http11ResponseDecoderDelegate delegate) {
+        this(delegate, 8192);
+    }
+
+    Http11ResponseDecoder(Http11ResponseDecoderDelegate delegate, int maxChunkSize) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        this.delegate = delegate;
+        this.maxChunkSize = maxChunkSize;
+        state = State.READ_STATUS_LINE;
+    }
+
+    /**
+     * @return true if the decoder is between response messages
+     */
+    boolean isIdle() {
+        return state == State.READ_STATUS_LINE;
+    }
+
+    void decode(ByteBuffer buffer) {
+
+        String line;
+        while (true) {
+            switch (state) {
+                case READ_STATUS_LINE:
+                    if ((line = readLine(buffer)) == null) return;
+                    // Tolerate empty lines preceding a status line (RFC 7230 3.5)
+                    if (line.isEmpty()) break;
+                    readStatusLine(line);
+                    break;
+
+                case READ_HEADER_LINE:
+                    if ((line = readLine(buffer)) == null) return;
+                    if (line.isEmpty()) {
+                        readHeadersEnd();
+                    } else {
+                        readHeaderLine(line);
+                    }
+                    break;
+
+                case READ_FIXED_LENGTH_BODY:
+                    if (remaining == 0) {
+                        endMessage();
+                        break;
+                    }
+                    if (!readData(buffer)) return;
+                    break;
+
+                case READ_CHUNK_SIZE:
+                    if ((line = readLine(buffer)) == null) return;
+                    int extension = line.indexOf(';');
+                    String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+                    try {
+                        remaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException e) {
+                        remaining = -1;
+                    }
+                    if (remaining < 0) {
+                        frameError("invalid chunk size: " + line);
+                        break;
+                    }
+                    state = remaining == 0 ? State.READ_TRAILER_LINE : State.READ_CHUNK_DATA;
+                    break;
+
+                case READ_CHUNK_DATA:
+                    if (remaining == 0) {
+                        state = State.READ_CHUNK_END;
+                        break;
+                    }
+                    if (!readData(buffer)) return;
+                    break;
+
+                case READ_CHUNK_END:
+                    if ((line = readLine(buffer)) == null) return;
+                    if (!line.isEmpty()) {
+                        frameError("missing CRLF after chunk data");
+                        break;
+                    }
+                    state = State.READ_CHUNK_SIZE;
+                    break;
+
+                case READ_TRAILER_LINE:
+                    // Trailer fields are not surfaced to the response headers
+                    if ((line = readLine(buffer)) == null) return;
+                    if (line.isEmpty()) endMessage();
+                    break;
+
+                case READ_UNTIL_CLOSE:
+                    if (!buffer.hasRemaining()) return;
+                    remaining = buffer.remaining();
+                    readData(buffer);
+                    break;
+
+                case FRAME_ERROR:
+                    buffer.position(buffer.limit());
+                    return;
+
+                default:
+                    throw new Error("Shouldn't reach here.");
+            }
+        }
+    }
+
+    /**
+     * Signals that the connection has been closed by the peer.
+     *
+     * @return true if a response delimited by the connection closure was completed
+     */
+    boolean endOfInput() {
+        if (state == State.READ_UNTIL_CLOSE) {
+            state = State.READ_STATUS_LINE;
+            delegate.readMessageEnd(false);
+            return true;
+        }
+        return false;
+    }
+
+    private void readStatusLine(String line) {
+
+        // HTTP-version SP status-code SP reason-phrase
+        if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+            frameError("invalid status line: " + line);
+            return;
+        }
+
+        try {
+            statusCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            frameError("invalid status line: " + line);
+            return;
+        }
+
+        http10 = line.charAt(7) == '0';
+        keepAlive = !http10;
+        chunked = false;
+        contentLength = -1;
+        interim = statusCode >= 100 && statusCode < 200;
+        state = State.READ_HEADER_LINE;
+
+        if (!interim) delegate.readStatusLine(statusCode);
+    }
+
+    private void readHeaderLine(String line) {
+
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            frameError("invalid header line: " + line);
+            return;
+        }
+
+        Header header = new Header(line.substring(0, colon), line.substring(colon + 1));
+        if (interim) return;
+
+        String value = header.getValue();
+        switch (header.getKey()) {
+            case Headers.CONNECTION:
+                if (value.equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                } else if (value.equalsIgnoreCase("keep-alive")) {
+                    keepAlive = true;
+                }
+                break;
+
+            case Headers.TRANSFER_ENCODING:
+                chunked = value.toLowerCase().endsWith("chunked");
+                break;
+
+            case Headers.CONTENT_LENGTH:
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    frameError("invalid content-length: " + value);
+                    return;
+                }
+                break;
+
+            default:
+        }
+
+        delegate.readHeader(header);
+    }
+
+    private void readHeadersEnd() {
+
+        if (interim) {
+            state = State.READ_STATUS_LINE;
+            return;
+        }
+
+        boolean bodyAllowed = delegate.readHeadersEnd();
+        if (state == State.FRAME_ERROR) return;
+
+        // 1xx, 204 and 304 responses never have a body (RFC 7230 3.3.3)
+        if (!bodyAllowed || statusCode == 204 || statusCode == 304) {
+            endMessage();
+        } else if (chunked) {
+            // Transfer-Encoding overrides Content-Length (RFC 7230 3.3.3)
+            state = State.READ_CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = State.READ_FIXED_LENGTH_BODY;
+        } else {
+            keepAlive = false;
+            state = State.READ_UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * Passes up to {@code remaining} buffered body bytes to the delegate.
+     *
+     * @return false if more input is required
+     */
+    private boolean readData(ByteBuffer buffer) {
+
+        if (!buffer.hasRemaining()) return false;
+
+        int bytesToRead = (int) Math.min(Math.min(remaining, buffer.remaining()), maxChunkSize);
+        ByteBuffer data = ByteBuffer.allocate(bytesToRead);
+        int oldLimit = buffer.limit();
+        buffer.limit(buffer.position() + bytesToRead);
+        data.put(buffer);
+        data.flip();
+        buffer.limit(oldLimit);
+        remaining -= bytesToRead;
+
+        delegate.readData(data);
+        return true;
+    }
+
+    private void endMessage() {
+        state = State.READ_STATUS_LINE;
+        delegate.readMessageEnd(keepAlive);
+    }
+
+    /**
+     * Reads a CRLF- (or bare LF-) terminated line.
+     *
+     * @return the line without its terminator, or null if a complete line is not buffered
+     */
+    private String readLine(ByteBuffer buffer) {
+
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                byte[] bytes = new byte[end - start];
+                buffer.get(bytes);
+                buffer.position(i + 1);
+                return new String(bytes, ISO_8859_1);
+            }
+        }
+
+        if (limit - start > MAX_LINE_LENGTH) {
+            frameError("line exceeds maximum length");
+        }
+        return null;
+    }
+
+    private void frameError(String message) {
+        state = State.FRAME_ERROR;
+        delegate.readError(message);
+    }
+}
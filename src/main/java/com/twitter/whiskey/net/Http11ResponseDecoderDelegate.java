@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback interface for {@link Http11ResponseDecoder}.
+ */
+interface Http11ResponseDecoderDelegate {
+
+    /**
+     * Called when the status line of a final (non-1xx) response is received.
+     * Interim responses are discarded by the decoder.
+     */
+    void readStatusLine(int statusCode);
+
+    /**
+     * Repeatedly called for each header field of a final response.
+     */
+    void readHeader(Header header);
+
+    /**
+     * Called when all header fields of a response have been received.
+     *
+     * @return false if no message body may follow regardless of the header
+     *         fields, as for a response to a HEAD request
+     */
+    boolean readHeadersEnd();
+
+    /**
+     * Called when a decoded (de-chunked) portion of the message body is received.
+     */
+    void readData(ByteBuffer data);
+
+    /**
+     * Called when the response message is complete.
+     *
+     * @param keepAlive whether the connection may be reused for further requests
+     */
+    void readMessageEnd(boolean keepAlive);
+
+    /**
+     * Called when the response is malformed. The connection cannot be reused.
+     */
+    void readError(String message);
+}
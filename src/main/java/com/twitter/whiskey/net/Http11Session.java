@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.CompletableFuture;
+import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.futures.Listener;
+import com.twitter.whiskey.nio.Socket;
+import com.twitter.whiskey.util.LinkedHashDeque;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * HTTP/1.1-specific implementation of {@link Session}, as described in
+ * RFC 7230. A session wraps a single persistent connection; concurrency is
+ * achieved by pooling sessions per origin (see
+ * {@link ClientConfiguration#getMaxTcpConnections()}).
+ *
+ * Requests are sent one at a time unless pipelining is configured, in which
+ * case idempotent requests may be written ahead of outstanding responses.
+ * Response handling is shared with the multiplexed protocols via
+ * {@link SpdyStream}.
+ */
+class Http11Session implements Session, Http11ResponseDecoderDelegate {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int MAX_CHUNK_SIZE = 16384;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    // Message framing is determined by the session, not the caller.
+    private static final Set<String> FRAMING_HEADERS;
+    static {
+        FRAMING_HEADERS = new HashSet<String>() {{
+            add(Headers.CONTENT_LENGTH);
+            add(Headers.TRANSFER_ENCODING);
+            add("host");
+        }};
+    }
+
+    private final CompletableFuture<Void> closeFuture;
+    private final SessionManager manager;
+    private final Http11ResponseDecoder responseDecoder;
+    private final Deque<SpdyStream> queuedStreams = new LinkedHashDeque<>();
+    private final Deque<SpdyStream> inFlightStreams = new LinkedHashDeque<>();
+    private final Socket socket;
+    private final int maxPipelineDepth;
+
+    private ByteBuffer inputBuffer;
+    private int nextStreamId = 1;
+    private int nonIdempotentInFlight = 0;
+    private boolean keepAlive = true;
+    private boolean active = false;
+    private boolean error = false;
+    private boolean shutdown = false;
+
+    Http11Session(SessionManager manager, ClientConfiguration configuration, Socket socket) {
+
+        this.manager = manager;
+        this.socket = socket;
+        maxPipelineDepth = Math.max(1, configuration.getMaxPipelineDepth());
+        responseDecoder = new Http11ResponseDecoder(this);
+
+        closeFuture = new CompletableFuture<>();
+        socket.addCloseListener(new SocketCloseListener());
+
+        inputBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        listen();
+    }
+
+    private void listen() {
+        socket.read(inputBuffer).addListener(new Inline.Listener<ByteBuffer>() {
+            @Override
+            public void onComplete(ByteBuffer result) {
+                if (inError()) return; // session is unrecoverable, halt decoding
+                responseDecoder.decode(result);
+                result.compact();
+                if (socket.isConnected()) listen();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                onEndOfInput(throwable);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return keepAlive && !error && socket.isConnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    /**
+     * Unlike a multiplexed session, a connection which has yet to complete a
+     * response only puts the requests written to it at risk, and those are
+     * retried on failure. Treat it as active so that pooled connections are
+     * used as soon as they are established.
+     */
+    @Override
+    public boolean isActive() {
+        return isOpen();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !isOpen();
+    }
+
+    @Override
+    public boolean isDraining() {
+        return !keepAlive && !error && socket.isConnected();
+    }
+
+    @Override
+    public boolean isDisconnected() {
+        return !socket.isConnected();
+    }
+
+    private boolean inError() {
+        return error;
+    }
+
+    @Override
+    public int getCapacity() {
+        if (isClosed() || shutdown) return 0;
+        return Math.max(0, maxPipelineDepth - inFlightStreams.size() - queuedStreams.size());
+    }
+
+    @Override
+    public boolean wasActive() {
+        return active;
+    }
+
+    @Override
+    public void queue(RequestOperation operation) {
+
+        final SpdyStream stream = SpdyStream.newStream(operation);
+        stream.open(nextStreamId++, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        queuedStreams.add(stream);
+
+        operation.hold(this, stream);
+        operation.onDispatched(Protocol.HTTP_1_1, stream.getStreamId());
+
+        sendPending();
+    }
+
+    @Override
+    public Metrics.SessionMetrics getMetrics() {
+        return new Metrics.SessionMetrics(Protocol.HTTP_1_1, queuedStreams.size() + inFlightStreams.size(),
+            -1, -1, socket.getQueuedWriteBytes(), -1, Collections.<FrameTracer.Event>emptyList());
+    }
+
+    @Override
+    public void abandon(RequestOperation operation) {
+
+        SpdyStream stream = operation.getStream();
+        if (stream == null) return;
+        if (queuedStreams.remove(stream)) {
+            stream.abandon();
+            closeIfIdle();
+            return;
+        }
+
+        // A request on the wire can only be abandoned with its connection
+        if (inFlightStreams.remove(stream)) {
+            stream.abandon();
+            closeWithError(new IOException("request cancelled"));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        closeIfIdle();
+    }
+
+    @Override
+    public void terminate(Throwable cause) {
+
+        error = true;
+        SpdyStream stream;
+        while ((stream = inFlightStreams.poll()) != null) {
+            stream.close(cause);
+        }
+        while ((stream = queuedStreams.poll()) != null) {
+            stream.close(cause);
+        }
+        nonIdempotentInFlight = 0;
+        socket.close();
+    }
+
+    /**
+     * Closes the connection once shut down and no requests remain on it.
+     *
+     * @return true if the connection was closed
+     */
+    private boolean closeIfIdle() {
+
+        if (!shutdown || !inFlightStreams.isEmpty() || !queuedStreams.isEmpty() || !socket.isConnected()) {
+            return false;
+        }
+        socket.close();
+        return true;
+    }
+
+    @Override
+    public void addCloseListener(Listener<Void> listener) {
+        closeFuture.addListener(listener);
+    }
+
+    /**
+     * Writes queued requests while the connection permits: one at a time, or
+     * up to the pipeline depth while every outstanding request is idempotent.
+     */
+    private void sendPending() {
+
+        while (!queuedStreams.isEmpty() && isOpen()) {
+            SpdyStream stream = queuedStreams.peek();
+            boolean idempotent = stream.getRequest().isIdempotent();
+
+            if (!inFlightStreams.isEmpty() &&
+                (inFlightStreams.size() >= maxPipelineDepth || !idempotent || nonIdempotentInFlight > 0)) {
+                return;
+            }
+
+            queuedStreams.poll();
+            inFlightStreams.add(stream);
+            if (!idempotent) nonIdempotentInFlight++;
+            sendRequest(stream);
+        }
+    }
+
+    private void sendRequest(SpdyStream stream) {
+
+        Request request = stream.getRequest();
+        URL url = request.getUrl();
+        String path = url.getPath();
+        // Though RFC-3986 allows path to be empty, most user agents will send
+        // a trailing slash in lieu of an empty path.
+        if (path.length() == 0) path = "/";
+        String query = url.getQuery();
+        if (query != null) path = path + "?" + query;
+        String authority = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(authority).append("\r\n");
+        for (Header header : request.getHeaders().entries()) {
+            String key = header.getKey();
+            if (key.startsWith(":") || FRAMING_HEADERS.contains(key)) continue;
+            if (key.equals(Headers.CONNECTION) && header.getValue().equalsIgnoreCase("close")) {
+                keepAlive = false;
+            }
+            head.append(key).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        List<ByteBuffer> buffers = new ArrayList<>();
+        boolean chunked = request.getBodyStream() != null;
+        if (request.getBodyData() != null) {
+            long contentLength = 0;
+            for (ByteBuffer data : request.getBodyData()) {
+                contentLength += data.remaining();
+            }
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (request.getMethod().isBodySupported()) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        buffers.add(ByteBuffer.wrap(head.toString().getBytes(ISO_8859_1)));
+
+        int bodyBytes = 0;
+        try {
+            while (stream.hasPendingData()) {
+                ByteBuffer data = stream.readData(chunked ? MAX_CHUNK_SIZE : Integer.MAX_VALUE);
+                if (!data.hasRemaining()) continue;
+                bodyBytes += data.remaining();
+                if (chunked) {
+                    buffers.add(ByteBuffer.wrap(
+                        (Integer.toHexString(data.remaining()) + "\r\n").getBytes(ISO_8859_1)));
+                }
+                buffers.add(data);
+                if (chunked) buffers.add(ByteBuffer.wrap(CRLF));
+            }
+        } catch (IOException e) {
+            closeWithError(e);
+            return;
+        }
+        if (chunked) buffers.add(ByteBuffer.wrap(LAST_CHUNK));
+        stream.closeLocally();
+
+        socket.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+        stream.getOperation().onSent();
+        stream.getOperation().addTxBytes(bodyBytes);
+    }
+
+    /* Http11ResponseDecoderDelegate */
+    @Override
+    public void readStatusLine(int statusCode) {
+
+        SpdyStream stream = inFlightStreams.peek();
+        if (stream == null) {
+            closeWithError(new ProtocolException("unsolicited response received"));
+            return;
+        }
+
+        stream.onReply();
+        readHeader(new Header(":status", Integer.toString(statusCode)));
+    }
+
+    @Override
+    public void readHeader(Header header) {
+
+        if (inError()) return;
+        try {
+            inFlightStreams.peek().onHeader(header);
+        } catch (IOException e) {
+            closeWithError(e);
+        }
+    }
+
+    @Override
+    public boolean readHeadersEnd() {
+
+        SpdyStream stream = inFlightStreams.peek();
+        return stream == null || stream.getRequest().getMethod() != Request.Method.HEAD;
+    }
+
+    @Override
+    public void readData(ByteBuffer data) {
+
+        if (inError()) return;
+        try {
+            inFlightStreams.peek().onData(data);
+        } catch (DataFormatException e) {
+            closeWithError(e);
+        }
+    }
+
+    @Override
+    public void readMessageEnd(boolean keepAlive) {
+
+        if (inError()) return;
+        SpdyStream stream = inFlightStreams.poll();
+        if (!stream.getRequest().isIdempotent()) nonIdempotentInFlight--;
+        if (!keepAlive) this.keepAlive = false;
+
+        active = true;
+        stream.closeRemotely();
+        stream.complete();
+
+        if (!this.keepAlive) {
+            drain();
+            socket.close();
+            return;
+        }
+
+        sendPending();
+        if (!closeIfIdle()) manager.poll(this, getCapacity());
+    }
+
+    @Override
+    public void readError(String message) {
+        closeWithError(new ProtocolException(message));
+    }
+
+    /**
+     * Handles closure of the connection by the peer.
+     */
+    private void onEndOfInput(Throwable throwable) {
+
+        if (inError() || !socket.isConnected()) return;
+        if (responseDecoder.endOfInput()) return;
+
+        if (inFlightStreams.isEmpty() && responseDecoder.isIdle()) {
+            // An idle persistent connection was closed by the server
+            keepAlive = false;
+            drain();
+            socket.close();
+        } else {
+            closeWithError(throwable);
+        }
+    }
+
+    /**
+     * Returns requests which have not been written to the manager for
+     * dispatch on another connection, and retries idempotent requests which
+     * were written but not answered.
+     */
+    private void drain() {
+
+        SpdyStream stream;
+        while ((stream = queuedStreams.poll()) != null) {
+            manager.queue(stream.getOperation());
+        }
+        closeInFlight(new IOException("connection closed before response received"));
+    }
+
+    /**
+     * Closes the requests written to the connection. The server may have
+     * acted on any of them, so only idempotent requests are retried (RFC
+     * 7230 6.3.1).
+     */
+    private void closeInFlight(Throwable throwable) {
+
+        SpdyStream stream;
+        while ((stream = inFlightStreams.poll()) != null) {
+            if (stream.getRequest().isIdempotent()) {
+                stream.closeRetryably(throwable);
+            } else {
+                stream.close(throwable);
+            }
+        }
+        nonIdempotentInFlight = 0;
+    }
+
+    private void closeWithError(Throwable throwable) {
+
+        if (error) return;
+        error = true;
+
+        closeInFlight(throwable);
+        SpdyStream stream;
+        while ((stream = queuedStreams.poll()) != null) {
+            manager.queue(stream.getOperation());
+        }
+
+        closeFuture.fail(throwable);
+        socket.close();
+    }
+
+    private class SocketCloseListener extends Inline.Listener<Void> {
+
+        /**
+         * Occurs when the client has initiated the connection closure.
+         */
+        @Override
+        public void onComplete(Void result) {
+            closeFuture.set(null);
+        }
+
+        /**
+         * Occurs when the connection closes unexpectedly.
+         * @param throwable the cause of the connection closure
+         */
+        @Override
+        public void onError(Throwable throwable) {
+            closeWithError(throwable);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.charset.Charset;
+
+/**
+ * Protocol constants from RFC 7540.
+ */
+final class Http2Constants {
+
+    static final byte[] CONNECTION_PREFACE =
+        "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    static final int HTTP2_SESSION_STREAM_ID = 0;
+    static final int FRAME_HEADER_SIZE = 9;
+    static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_FRAME_SIZE_UPPER_BOUND = 16777215;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    static final int DEFAULT_MAX_CONCURRENT_STREAMS = Integer.MAX_VALUE;
+    static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+    static final int DATA_FRAME          = 0x0;
+    static final int HEADERS_FRAME       = 0x1;
+    static final int PRIORITY_FRAME      = 0x2;
+    static final int RST_STREAM_FRAME    = 0x3;
+    static final int SETTINGS_FRAME      = 0x4;
+    static final int PUSH_PROMISE_FRAME  = 0x5;
+    static final int PING_FRAME          = 0x6;
+    static final int GOAWAY_FRAME        = 0x7;
+    static final int WINDOW_UPDATE_FRAME = 0x8;
+    static final int CONTINUATION_FRAME  = 0x9;
+
+    static final byte FLAG_END_STREAM  = 0x01;
+    static final byte FLAG_ACK         = 0x01;
+    static final byte FLAG_END_HEADERS = 0x04;
+    static final byte FLAG_PADDED      = 0x08;
+    static final byte FLAG_PRIORITY    = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+    static final int NO_ERROR            = 0x0;
+    static final int PROTOCOL_ERROR      = 0x1;
+    static final int INTERNAL_ERROR      = 0x2;
+    static final int FLOW_CONTROL_ERROR  = 0x3;
+    static final int SETTINGS_TIMEOUT    = 0x4;
+    static final int STREAM_CLOSED       = 0x5;
+    static final int FRAME_SIZE_ERROR    = 0x6;
+    static final int REFUSED_STREAM      = 0x7;
+    static final int CANCEL              = 0x8;
+    static final int COMPRESSION_ERROR   = 0x9;
+    static final int CONNECT_ERROR       = 0xa;
+    static final int ENHANCE_YOUR_CALM   = 0xb;
+    static final int INADEQUATE_SECURITY = 0xc;
+    static final int HTTP_1_1_REQUIRED   = 0xd;
+
+    private Http2Constants() {
+    }
+}
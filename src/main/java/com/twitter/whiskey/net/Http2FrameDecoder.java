@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.twitter.whiskey.net.Http2Constants.*;
+import static com.twitter.whiskey.net.SpdyCodecUtil.getUnsignedInt;
+import static com.twitter.whiskey.net.SpdyCodecUtil.getUnsignedMedium;
+
+/**
+ * Decodes {@link ByteBuffer}s into HTTP/2 frames.
+ *
+ * Unpadded DATA frames are delivered in chunks as they arrive; all other
+ * frames are delivered once their payload has been completely buffered.
+ * Header blocks are reassembled across CONTINUATION frames and decoded
+ * only once complete.
+ */
+class Http2FrameDecoder {
+
+    private final Http2FrameDecoderDelegate delegate;
+    private final HpackDecoder hpackDecoder;
+    private final int maxChunkSize;
+    private final int minChunkSize;
+
+    private State state;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    // Common frame header fields
+    private int type;
+    private byte flags;
+    private int length;
+    private int streamId;
+
+    // Header block reassembly
+    private ByteBuffer headerBlock;
+    private int headerStreamId;
+    private int promisedStreamId;
+    private boolean headerEndStream;
+
+    private enum State {
+        READ_FRAME_HEADER,
+        READ_DATA_FRAME,
+        READ_FRAME_PAYLOAD,
+        DISCARD_FRAME,
+        FRAME_ERROR
+    }
+
+    Http2FrameDecoder(Http2FrameDecoderDelegate delegate) {
+        this(delegate, DEFAULT_HEADER_TABLE_SIZE, 8192, 256);
+    }
+
+    Http2FrameDecoder(Http2FrameDecoderDelegate delegate, int headerTableSize, int maxChunkSize, int minChunkSize) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        if (maxChunkSize <= 0) {
+            throw new IllegalArgumentException(
+                "maxChunkSize must be a positive integer: " + maxChunkSize);
+        }
+        this.delegate = delegate;
+        this.hpackDecoder = new HpackDecoder(headerTableSize);
+        this.maxChunkSize = maxChunkSize;
+        this.minChunkSize = minChunkSize;
+        state = State.READ_FRAME_HEADER;
+    }
+
+    /**
+     * Sets the largest frame payload accepted, as advertised to the peer
+     * via SETTINGS_MAX_FRAME_SIZE.
+     */
+    void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    void decode(ByteBuffer buffer) {
+
+        while (true) {
+            switch (state) {
+                case READ_FRAME_HEADER:
+                    if (buffer.remaining() < FRAME_HEADER_SIZE) {
+                        return;
+                    }
+
+                    length = getUnsignedMedium(buffer);
+                    type = buffer.get() & 0xFF;
+                    flags = buffer.get();
+                    streamId = getUnsignedInt(buffer);
+
+                    state = validateFrameHeader();
+                    break;
+
+                case READ_DATA_FRAME:
+                    if (length == 0) {
+                        state = State.READ_FRAME_HEADER;
+                        delegate.readDataFrame(streamId, hasFlag(flags, FLAG_END_STREAM), ByteBuffer.allocate(0), 0);
+                        break;
+                    }
+
+                    // Generate data chunks that do not exceed maxChunkSize and generally exceed
+                    // minChunkSize
+                    int bytesToRead = Math.min(maxChunkSize, length);
+                    int bytesBuffered = buffer.remaining();
+                    if (bytesBuffered < bytesToRead) {
+                        if (bytesBuffered < minChunkSize || bytesBuffered == 0) return;
+                        bytesToRead = bytesBuffered;
+                    }
+
+                    ByteBuffer data = ByteBuffer.allocate(bytesToRead);
+                    int oldLimit = buffer.limit();
+                    buffer.limit(buffer.position() + bytesToRead);
+                    data.put(buffer);
+                    data.flip();
+                    buffer.limit(oldLimit);
+                    length -= bytesToRead;
+
+                    if (length == 0) {
+                        state = State.READ_FRAME_HEADER;
+                    }
+
+                    boolean endStream = length == 0 && hasFlag(flags, FLAG_END_STREAM);
+                    delegate.readDataFrame(streamId, endStream, data, bytesToRead);
+                    break;
+
+                case READ_FRAME_PAYLOAD:
+                    if (buffer.remaining() < length) {
+                        return;
+                    }
+
+                    ByteBuffer payload = buffer.slice();
+                    payload.limit(length);
+                    buffer.position(buffer.position() + length);
+
+                    state = State.READ_FRAME_HEADER;
+                    readPayload(payload);
+                    break;
+
+                case DISCARD_FRAME:
+                    int numBytes = Math.min(buffer.remaining(), length);
+                    buffer.position(buffer.position() + numBytes);
+                    length -= numBytes;
+                    if (length == 0) {
+                        state = State.READ_FRAME_HEADER;
+                        break;
+                    }
+                    return;
+
+                case FRAME_ERROR:
+                    buffer.position(buffer.limit());
+                    return;
+
+                default:
+                    throw new Error("Shouldn't reach here.");
+            }
+        }
+    }
+
+    private State validateFrameHeader() {
+
+        if (length > maxFrameSize) {
+            return frameError(FRAME_SIZE_ERROR, "frame exceeds SETTINGS_MAX_FRAME_SIZE");
+        }
+
+        // A header block must be followed only by its own CONTINUATION frames.
+        if (headerBlock != null) {
+            if (type != CONTINUATION_FRAME || streamId != headerStreamId) {
+                return frameError(PROTOCOL_ERROR, "expected CONTINUATION frame");
+            }
+            return State.READ_FRAME_PAYLOAD;
+        }
+
+        switch (type) {
+            case DATA_FRAME:
+                if (streamId == HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid DATA Frame");
+                }
+                // Padded frames are buffered whole so padding can be removed.
+                return hasFlag(flags, FLAG_PADDED) ? State.READ_FRAME_PAYLOAD : State.READ_DATA_FRAME;
+
+            case HEADERS_FRAME:
+            case PUSH_PROMISE_FRAME:
+                if (streamId == HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid HEADERS Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case PRIORITY_FRAME:
+                if (streamId == HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid PRIORITY Frame");
+                }
+                if (length != 5) {
+                    delegate.readFrameSkipped(streamId, FRAME_SIZE_ERROR, "Invalid PRIORITY Frame");
+                }
+                // Dependencies are advisory and ignored by this implementation.
+                return State.DISCARD_FRAME;
+
+            case RST_STREAM_FRAME:
+                if (streamId == HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid RST_STREAM Frame");
+                }
+                if (length != 4) {
+                    return frameError(FRAME_SIZE_ERROR, "Invalid RST_STREAM Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case SETTINGS_FRAME:
+                if (streamId != HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid SETTINGS Frame");
+                }
+                if (length % 6 != 0 || (hasFlag(flags, FLAG_ACK) && length != 0)) {
+                    return frameError(FRAME_SIZE_ERROR, "Invalid SETTINGS Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case PING_FRAME:
+                if (streamId != HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid PING Frame");
+                }
+                if (length != 8) {
+                    return frameError(FRAME_SIZE_ERROR, "Invalid PING Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case GOAWAY_FRAME:
+                if (streamId != HTTP2_SESSION_STREAM_ID) {
+                    return frameError(PROTOCOL_ERROR, "Invalid GOAWAY Frame");
+                }
+                if (length < 8) {
+                    return frameError(FRAME_SIZE_ERROR, "Invalid GOAWAY Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case WINDOW_UPDATE_FRAME:
+                if (length != 4) {
+                    return frameError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE Frame");
+                }
+                return State.READ_FRAME_PAYLOAD;
+
+            case CONTINUATION_FRAME:
+                return frameError(PROTOCOL_ERROR, "unexpected CONTINUATION Frame");
+
+            default:
+                // Implementations must ignore frames of unknown types.
+                return State.DISCARD_FRAME;
+        }
+    }
+
+    private void readPayload(ByteBuffer payload) {
+
+        switch (type) {
+            case DATA_FRAME:
+                int padLength = readPadLength(payload);
+                if (padLength < 0) return;
+                payload.limit(payload.limit() - padLength);
+                ByteBuffer data = ByteBuffer.allocate(payload.remaining());
+                data.put(payload);
+                data.flip();
+                delegate.readDataFrame(streamId, hasFlag(flags, FLAG_END_STREAM), data, length);
+                break;
+
+            case HEADERS_FRAME:
+                padLength = readPadLength(payload);
+                if (padLength < 0) return;
+                if (hasFlag(flags, FLAG_PRIORITY)) {
+                    if (payload.remaining() - padLength < 5) {
+                        frameError(PROTOCOL_ERROR, "Invalid HEADERS Frame");
+                        return;
+                    }
+                    // Dependencies are advisory and ignored by this implementation.
+                    payload.position(payload.position() + 5);
+                }
+                payload.limit(payload.limit() - padLength);
+                headerStreamId = streamId;
+                promisedStreamId = 0;
+                headerEndStream = hasFlag(flags, FLAG_END_STREAM);
+                appendHeaderFragment(payload);
+                break;
+
+            case PUSH_PROMISE_FRAME:
+                padLength = readPadLength(payload);
+                if (padLength < 0) return;
+                if (payload.remaining() - padLength < 4) {
+                    frameError(PROTOCOL_ERROR, "Invalid PUSH_PROMISE Frame");
+                    return;
+                }
+                payload.limit(payload.limit() - padLength);
+                headerStreamId = streamId;
+                promisedStreamId = getUnsignedInt(payload);
+                headerEndStream = false;
+                appendHeaderFragment(payload);
+                break;
+
+            case CONTINUATION_FRAME:
+                appendHeaderFragment(payload);
+                break;
+
+            case RST_STREAM_FRAME:
+                delegate.readRstStreamFrame(streamId, payload.getInt());
+                break;
+
+            case SETTINGS_FRAME:
+                delegate.readSettingsFrame(hasFlag(flags, FLAG_ACK));
+                while (payload.hasRemaining()) {
+                    int id = payload.getShort() & 0xFFFF;
+                    int value = payload.getInt();
+                    if (!isValidSetting(id, value)) return;
+                    delegate.readSetting(id, value);
+                }
+                delegate.readSettingsEnd();
+                break;
+
+            case PING_FRAME:
+                delegate.readPingFrame(payload.getLong(), hasFlag(flags, FLAG_ACK));
+                break;
+
+            case GOAWAY_FRAME:
+                int lastStreamId = getUnsignedInt(payload);
+                int errorCode = payload.getInt();
+                delegate.readGoAwayFrame(lastStreamId, errorCode);
+                break;
+
+            case WINDOW_UPDATE_FRAME:
+                int deltaWindowSize = getUnsignedInt(payload);
+                if (deltaWindowSize == 0) {
+                    if (streamId == HTTP2_SESSION_STREAM_ID) {
+                        frameError(PROTOCOL_ERROR, "Invalid WINDOW_UPDATE Frame");
+                    } else {
+                        delegate.readFrameSkipped(streamId, PROTOCOL_ERROR, "Invalid WINDOW_UPDATE Frame");
+                    }
+                    return;
+                }
+                delegate.readWindowUpdateFrame(streamId, deltaWindowSize);
+                break;
+
+            default:
+                throw new Error("Shouldn't reach here.");
+        }
+    }
+
+    /**
+     * Reads the Pad Length field if present.
+     * @return the number of padding octets, or -1 on error
+     */
+    private int readPadLength(ByteBuffer payload) {
+
+        if (!hasFlag(flags, FLAG_PADDED)) return 0;
+        if (!payload.hasRemaining()) {
+            frameError(FRAME_SIZE_ERROR, "missing Pad Length");
+            return -1;
+        }
+        int padLength = payload.get() & 0xFF;
+        if (padLength > payload.remaining()) {
+            frameError(PROTOCOL_ERROR, "padding exceeds frame payload");
+            return -1;
+        }
+        return padLength;
+    }
+
+    private boolean isValidSetting(int id, int value) {
+
+        switch (id) {
+            case SETTINGS_ENABLE_PUSH:
+                if (value != 0 && value != 1) {
+                    frameError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    return false;
+                }
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value < 0) {
+                    frameError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    return false;
+                }
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_UPPER_BOUND) {
+                    frameError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    return false;
+                }
+                break;
+            default:
+        }
+        return true;
+    }
+
+    private void appendHeaderFragment(ByteBuffer fragment) {
+
+        if (headerBlock == null) {
+            headerBlock = ByteBuffer.allocate(Math.max(fragment.remaining(), 256));
+        } else if (headerBlock.remaining() < fragment.remaining()) {
+            int required = headerBlock.position() + fragment.remaining();
+            if (required > MAX_HEADER_BLOCK_SIZE) {
+                frameError(ENHANCE_YOUR_CALM, "header block too large");
+                return;
+            }
+            ByteBuffer expanded = ByteBuffer.allocate(Math.max(required, headerBlock.capacity() << 1));
+            headerBlock.flip();
+            expanded.put(headerBlock);
+            headerBlock = expanded;
+        }
+        headerBlock.put(fragment);
+
+        if (hasFlag(flags, FLAG_END_HEADERS)) {
+            ByteBuffer block = headerBlock;
+            headerBlock = null;
+            block.flip();
+            readHeaderBlock(block);
+        }
+    }
+
+    private void readHeaderBlock(ByteBuffer block) {
+
+        List<Header> headers;
+        try {
+            headers = hpackDecoder.decode(block);
+        } catch (IOException e) {
+            frameError(COMPRESSION_ERROR, e.getMessage());
+            return;
+        }
+
+        int targetStreamId;
+        if (promisedStreamId != 0) {
+            targetStreamId = promisedStreamId;
+            delegate.readPushPromiseFrame(headerStreamId, promisedStreamId);
+        } else {
+            targetStreamId = headerStreamId;
+            delegate.readHeadersFrame(headerStreamId, headerEndStream);
+        }
+
+        for (Header header : headers) {
+            delegate.readHeader(targetStreamId, header);
+        }
+        delegate.readHeadersEnd(targetStreamId);
+    }
+
+    private State frameError(int errorCode, String message) {
+        state = State.FRAME_ERROR;
+        delegate.readFrameError(errorCode, message);
+        return State.FRAME_ERROR;
+    }
+
+    private static boolean hasFlag(byte flags, byte flag) {
+        return (flags & flag) != 0;
+    }
+}
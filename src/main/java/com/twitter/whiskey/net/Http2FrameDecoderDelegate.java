@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback interface for {@link Http2FrameDecoder}.
+ */
+interface Http2FrameDecoderDelegate {
+
+    /**
+     * Called when all or part of a DATA frame is received. Padding is
+     * removed from the data but is included in the flow-controlled length.
+     */
+    void readDataFrame(int streamId, boolean endStream, ByteBuffer data, int flowControlledLength);
+
+    /**
+     * Called when a complete header block has been received on a HEADERS
+     * frame and any CONTINUATION frames.
+     * The header fields are not included. See readHeader().
+     */
+    void readHeadersFrame(int streamId, boolean endStream);
+
+    /**
+     * Called when a complete header block has been received on a
+     * PUSH_PROMISE frame and any CONTINUATION frames. The promised request
+     * header fields are reported against the promised Stream-ID.
+     */
+    void readPushPromiseFrame(int streamId, int promisedStreamId);
+
+    /**
+     * Repeatedly called during the decoding of a header block from a
+     * HEADERS or PUSH_PROMISE frame.
+     */
+    void readHeader(int streamId, Header header);
+
+    /**
+     * Called when the entire header block has been decoded.
+     */
+    void readHeadersEnd(int streamId);
+
+    /**
+     * Called when a RST_STREAM frame is received.
+     */
+    void readRstStreamFrame(int streamId, int errorCode);
+
+    /**
+     * Called when a SETTINGS frame is received.
+     * Settings are not included. See readSetting().
+     */
+    void readSettingsFrame(boolean ack);
+
+    /**
+     * Called when an individual setting within a SETTINGS frame is received.
+     */
+    void readSetting(int id, int value);
+
+    /**
+     * Called when the entire SETTINGS frame has been received.
+     */
+    void readSettingsEnd();
+
+    /**
+     * Called when a PING frame is received.
+     */
+    void readPingFrame(long data, boolean ack);
+
+    /**
+     * Called when a GOAWAY frame is received.
+     */
+    void readGoAwayFrame(int lastStreamId, int errorCode);
+
+    /**
+     * Called when a WINDOW_UPDATE frame is received.
+     */
+    void readWindowUpdateFrame(int streamId, int deltaWindowSize);
+
+    /**
+     * Called when a frame this implementation is unable to handle is received,
+     * but other streams on the session may still be valid.
+     */
+    void readFrameSkipped(int streamId, int errorCode, String message);
+
+    /**
+     * Called when an unrecoverable session error has occurred.
+     */
+    void readFrameError(int errorCode, String message);
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
+import static com.twitter.whiskey.net.Http2Constants.*;
+
+/**
+ * Encodes HTTP/2 frames into {@link ByteBuffer}s.
+ */
+class Http2FrameEncoder {
+
+    private final HpackEncoder hpackEncoder;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    Http2FrameEncoder() {
+        hpackEncoder = new HpackEncoder(DEFAULT_HEADER_TABLE_SIZE);
+    }
+
+    /**
+     * Sets the largest frame payload the peer will accept, as advertised
+     * via SETTINGS_MAX_FRAME_SIZE.
+     */
+    void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the maximum size of the header compression table, as advertised
+     * by the peer via SETTINGS_HEADER_TABLE_SIZE.
+     */
+    void setMaxHeaderTableSize(int maxHeaderTableSize) {
+        hpackEncoder.setMaxTableSize(maxHeaderTableSize);
+    }
+
+    private static void writeFrameHeader(ByteBuffer buffer, int length, int type, byte flags, int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put(flags);
+        buffer.putInt(streamId & 0x7FFFFFFF);
+    }
+
+    private static ByteBuffer allocateFrame(int length) {
+        return ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + length).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    ByteBuffer encodeConnectionPreface() {
+        ByteBuffer preface = ByteBuffer.allocateDirect(CONNECTION_PREFACE.length);
+        preface.put(CONNECTION_PREFACE);
+        preface.flip();
+        return preface;
+    }
+
+    ByteBuffer[] encodeDataFrame(int streamId, boolean endStream, ByteBuffer data) {
+        byte flags = endStream ? FLAG_END_STREAM : 0;
+        ByteBuffer frame = allocateFrame(0);
+        writeFrameHeader(frame, data.remaining(), DATA_FRAME, flags, streamId);
+        frame.flip();
+        return new ByteBuffer[]{ frame, data };
+    }
+
+    /**
+     * Encodes a HEADERS frame, followed by as many CONTINUATION frames as
+     * required to carry the header block within the peer's maximum frame size.
+     *
+     * @param weight the stream weight (1-256), or 0 to omit priority information
+     */
+    ByteBuffer[] encodeHeadersFrame(int streamId, boolean endStream, int weight, List<Header> headers) {
+
+        ByteBuffer headerBlock = hpackEncoder.encode(headers);
+        int priorityLength = weight > 0 ? 5 : 0;
+        int firstFragment = Math.min(headerBlock.remaining(), maxFrameSize - priorityLength);
+        int continuations = (headerBlock.remaining() - firstFragment + maxFrameSize - 1) / maxFrameSize;
+
+        ByteBuffer[] frames = new ByteBuffer[2 * (continuations + 1)];
+
+        byte flags = endStream ? FLAG_END_STREAM : 0;
+        if (continuations == 0) flags |= FLAG_END_HEADERS;
+        if (weight > 0) flags |= FLAG_PRIORITY;
+        ByteBuffer frame = allocateFrame(priorityLength);
+        writeFrameHeader(frame, priorityLength + firstFragment, HEADERS_FRAME, flags, streamId);
+        if (weight > 0) {
+            frame.putInt(0);
+            frame.put((byte) (weight - 1));
+        }
+        frame.flip();
+        frames[0] = frame;
+        frames[1] = slice(headerBlock, firstFragment);
+
+        for (int i = 1; i <= continuations; i++) {
+            int fragment = Math.min(headerBlock.remaining(), maxFrameSize);
+            flags = i == continuations ? FLAG_END_HEADERS : 0;
+            frame = allocateFrame(0);
+            writeFrameHeader(frame, fragment, CONTINUATION_FRAME, flags, streamId);
+            frame.flip();
+            frames[2 * i] = frame;
+            frames[2 * i + 1] = slice(headerBlock, fragment);
+        }
+
+        return frames;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    ByteBuffer encodeRstStreamFrame(int streamId, int errorCode) {
+        ByteBuffer frame = allocateFrame(4);
+        writeFrameHeader(frame, 4, RST_STREAM_FRAME, (byte) 0, streamId);
+        frame.putInt(errorCode);
+        frame.flip();
+        return frame;
+    }
+
+    ByteBuffer encodeSettingsFrame(Map<Integer, Integer> settings) {
+        int length = 6 * settings.size();
+        ByteBuffer frame = allocateFrame(length);
+        writeFrameHeader(frame, length, SETTINGS_FRAME, (byte) 0, HTTP2_SESSION_STREAM_ID);
+        for (Map.Entry<Integer, Integer> setting : settings.entrySet()) {
+            frame.putShort((short) (int) setting.getKey());
+            frame.putInt(setting.getValue());
+        }
+        frame.flip();
+        return frame;
+    }
+
+    ByteBuffer encodeSettingsAckFrame() {
+        ByteBuffer frame = allocateFrame(0);
+        writeFrameHeader(frame, 0, SETTINGS_FRAME, FLAG_ACK, HTTP2_SESSION_STREAM_ID);
+        frame.flip();
+        return frame;
+    }
+
+    ByteBuffer encodePingFrame(long data, boolean ack) {
+        ByteBuffer frame = allocateFrame(8);
+        writeFrameHeader(frame, 8, PING_FRAME, ack ? FLAG_ACK : 0, HTTP2_SESSION_STREAM_ID);
+        frame.putLong(data);
+        frame.flip();
+        return frame;
+    }
+
+    ByteBuffer encodeGoAwayFrame(int lastStreamId, int errorCode) {
+        ByteBuffer frame = allocateFrame(8);
+        writeFrameHeader(frame, 8, GOAWAY_FRAME, (byte) 0, HTTP2_SESSION_STREAM_ID);
+        frame.putInt(lastStreamId & 0x7FFFFFFF);
+        frame.putInt(errorCode);
+        frame.flip();
+        return frame;
+    }
+
+    ByteBuffer encodeWindowUpdateFrame(int streamId, int deltaWindowSize) {
+        ByteBuffer frame = allocateFrame(4);
+        writeFrameHeader(frame, 4, WINDOW_UPDATE_FRAME, (byte) 0, streamId);
+        frame.putInt(deltaWindowSize & 0x7FFFFFFF);
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,887 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.CompletableFuture;
+import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.futures.Listener;
+import com.twitter.whiskey.futures.Observer;
+import com.twitter.whiskey.nio.Socket;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import static com.twitter.whiskey.net.FrameTracer.ACK;
+import static com.twitter.whiskey.net.FrameTracer.END_STREAM;
+import static com.twitter.whiskey.net.FrameTracer.Type.*;
+import static com.twitter.whiskey.net.Http2Constants.*;
+
+/**
+ * HTTP/2-specific implementation of {@link Session}, as described in RFC 7540.
+ *
+ * Per-stream state and response handling are shared with SPDY via
+ * {@link SpdyStream} and {@link SpdyStreamManager}; this class is
+ * responsible only for framing, header compression, and flow control.
+ */
+class Http2Session implements Session, Http2FrameDecoderDelegate {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    // Connection-specific header fields are prohibited in HTTP/2 (RFC 7540 8.1.2.2).
+    private static final Set<String> CONNECTION_HEADERS;
+    static {
+        CONNECTION_HEADERS = new HashSet<String>() {{
+            add(Headers.CONNECTION);
+            add(Headers.KEEP_ALIVE);
+            add(Headers.PROXY_CONNECTION);
+            add(Headers.TRANSFER_ENCODING);
+            add("upgrade");
+            add("host");
+        }};
+    }
+
+    private final ClientConfiguration configuration;
+    private final CompletableFuture<Void> closeFuture;
+    private final SessionManager manager;
+    private final Http2FrameDecoder frameDecoder;
+    private final Http2FrameEncoder frameEncoder;
+    private final SpdyStreamManager activeStreams = new SpdyStreamManager();
+    private final Socket socket;
+    private final FrameTracer tracer;
+
+    private ByteBuffer inputBuffer;
+    private Map<Long, Long> sentPingMap = new HashMap<>();
+    private int lastGoodStreamId = 0;
+    private int nextStreamId = 1;
+    private long nextPingId = 1;
+    private int initialSendWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int initialReceiveWindow;
+    private int sessionSendWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int sessionReceiveWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int sessionReceiveWindowSize;
+    private int localMaxConcurrentStreams;
+    private int remoteMaxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private long latency = -1;
+    private boolean readingSettingsAck = false;
+    private boolean readingPushPromise = false;
+    private boolean receivedGoAwayFrame = false;
+    private boolean sentGoAwayFrame = false;
+    private boolean active = false;
+    private boolean error = false;
+
+    Http2Session(SessionManager manager, ClientConfiguration configuration, Socket socket) {
+
+        this.configuration = configuration;
+        this.manager = manager;
+        this.socket = socket;
+        tracer = FrameTracer.create(configuration, manager.getOrigin());
+
+        frameDecoder = new Http2FrameDecoder(this);
+        frameEncoder = new Http2FrameEncoder();
+
+        initialReceiveWindow = configuration.getStreamReceiveWindow();
+        sessionReceiveWindowSize = Math.max(configuration.getSessionReceiveWindow(), DEFAULT_INITIAL_WINDOW_SIZE);
+        localMaxConcurrentStreams = configuration.getMaxPushStreams();
+
+        closeFuture = new CompletableFuture<>();
+        socket.addCloseListener(new SocketCloseListener());
+        socket.write(frameEncoder.encodeConnectionPreface());
+        sendClientSettings();
+
+        int windowDelta = sessionReceiveWindowSize - sessionReceiveWindow;
+        if (windowDelta > 0) {
+            sessionReceiveWindow += windowDelta;
+            sendWindowUpdate(HTTP2_SESSION_STREAM_ID, windowDelta);
+        }
+        sendPing();
+        manager.poll(this, getCapacity());
+
+        inputBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        listen();
+    }
+
+    private void listen() {
+        socket.read(inputBuffer).addListener(new Inline.Listener<ByteBuffer>() {
+            @Override
+            public void onComplete(ByteBuffer result) {
+                if (inError() || !socket.isConnected()) return; // session is unrecoverable, halt decoding
+                frameDecoder.decode(result);
+                if (closeIfDrained()) return;
+                result.compact();
+                listen();
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !receivedGoAwayFrame && !sentGoAwayFrame && socket.isConnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return receivedGoAwayFrame || sentGoAwayFrame || !socket.isConnected();
+    }
+
+    @Override
+    public boolean isDraining() {
+        return (receivedGoAwayFrame || sentGoAwayFrame) && socket.isConnected();
+    }
+
+    @Override
+    public boolean isDisconnected() {
+        return !socket.isConnected();
+    }
+
+    private boolean inError() {
+        return error;
+    }
+
+    @Override
+    public int getCapacity() {
+        if (isClosed()) return 0;
+        return remoteMaxConcurrentStreams - activeStreams.getLocalSize();
+    }
+
+    @Override
+    public boolean wasActive() {
+        return false;
+    }
+
+    @Override
+    public void queue(RequestOperation operation) {
+
+        final SpdyStream stream = SpdyStream.newStream(operation);
+        final int streamId = nextStreamId;
+        nextStreamId += 2;
+        stream.open(streamId, initialSendWindow, initialReceiveWindow);
+        activeStreams.add(stream);
+
+        operation.hold(this, stream);
+        operation.onDispatched(Protocol.HTTP_2_0, streamId);
+
+        boolean hasBody = stream.hasPendingData();
+        sendHeaders(stream, !hasBody);
+        operation.onSent();
+        if (hasBody) {
+            sendData(stream);
+        }
+    }
+
+    @Override
+    public Metrics.SessionMetrics getMetrics() {
+        return new Metrics.SessionMetrics(Protocol.HTTP_2_0, activeStreams.size(), sessionSendWindow,
+            sessionReceiveWindow, socket.getQueuedWriteBytes(), latency,
+            tracer != null ? tracer.snapshot() : Collections.<FrameTracer.Event>emptyList());
+    }
+
+    @Override
+    public void abandon(RequestOperation operation) {
+
+        SpdyStream stream = operation.getStream();
+        if (stream == null || !activeStreams.contains(stream)) return;
+
+        activeStreams.remove(stream);
+        stream.abandon();
+        sendRstStream(stream.getStreamId(), CANCEL);
+        if (!closeIfDrained()) manager.poll(this, getCapacity());
+    }
+
+    @Override
+    public void shutdown() {
+        sendGoAway(NO_ERROR);
+    }
+
+    @Override
+    public void terminate(Throwable cause) {
+
+        Iterator<SpdyStream> i = activeStreams.iterator();
+        while (i.hasNext()) {
+            SpdyStream stream = i.next();
+            i.remove();
+            if (stream.getOperation() != null) stream.close(cause);
+        }
+        socket.close();
+    }
+
+    /**
+     * Closes the connection once a GOAWAY has been sent and the last stream
+     * started before it has finished, after any frames already written.
+     *
+     * @return true if the connection is closing
+     */
+    private boolean closeIfDrained() {
+
+        if (!sentGoAwayFrame || !activeStreams.isEmpty() || !socket.isConnected()) return false;
+        socket.closeAfterWrites();
+        return true;
+    }
+
+    @Override
+    public void addCloseListener(Listener<Void> listener) {
+        closeFuture.addListener(listener);
+    }
+
+    /* Http2FrameDecoderDelegate */
+    @Override
+    public void readDataFrame(int streamId, boolean endStream, ByteBuffer data, int flowControlledLength) {
+    /*
+     * HTTP/2 DATA frame processing requirements:
+     *
+     * If a DATA frame is received whose stream is not in "open" or
+     * "half-closed (local)" state, the recipient must respond with a stream
+     * error of type STREAM_CLOSED.
+     *
+     * The entire DATA frame payload, including padding, is included in flow
+     * control, and counts against the session window even if the frame is
+     * discarded.
+     */
+
+        if (tracer != null) tracer.received(DATA, streamId, endStream ? END_STREAM : 0, flowControlledLength);
+
+        // Check if session flow control is violated
+        if (sessionReceiveWindow < flowControlledLength) {
+            closeWithError(FLOW_CONTROL_ERROR, new Http2SessionException("session flow control violation"));
+            return;
+        }
+
+        // Update session receive window size and send a WINDOW_UPDATE frame if
+        // less than half the session window size remains
+        sessionReceiveWindow -= flowControlledLength;
+        if (sessionReceiveWindow <= sessionReceiveWindowSize / 2) {
+            int deltaWindowSize = sessionReceiveWindowSize - sessionReceiveWindow;
+            sessionReceiveWindow += deltaWindowSize;
+            sendWindowUpdate(HTTP2_SESSION_STREAM_ID, deltaWindowSize);
+        }
+
+        SpdyStream stream = activeStreams.get(streamId);
+
+        // Check if we received a data frame for a valid Stream-ID
+        if (stream == null) {
+            if (!sentGoAwayFrame) sendRstStream(streamId, STREAM_CLOSED);
+            return;
+        }
+
+        // Check if we received a data frame for a stream which is half-closed
+        if (stream.isClosedRemotely()) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+
+        // Check if we received a data frame before receiving a response
+        if (!stream.hasReceivedReply()) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+
+        // Check if stream flow control is violated
+        if (stream.getReceiveWindow() < flowControlledLength) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        // Update stream receive window size; no update is needed once the
+        // final frame for the stream has been received
+        stream.reduceReceiveWindow(flowControlledLength);
+        if (stream.isDemandDriven()) withholdWindow(stream, data.remaining());
+        if (!endStream) updateReceiveWindow(stream);
+
+        try {
+            stream.onData(data);
+        } catch (DataFormatException e) {
+            sendRstStream(streamId, INTERNAL_ERROR);
+            activeStreams.remove(stream);
+            stream.close(e);
+            return;
+        }
+
+        if (endStream) {
+            stream.closeRemotely();
+            if (stream.isClosed()) {
+                completeStream(stream);
+            }
+        }
+    }
+
+    @Override
+    public void readHeadersFrame(int streamId, boolean endStream) {
+
+        if (tracer != null) tracer.received(HEADERS, streamId, endStream ? END_STREAM : 0, 0);
+        SpdyStream stream = activeStreams.get(streamId);
+
+        // Header fields for unknown streams are still decoded, but discarded
+        if (stream == null) {
+            if (!sentGoAwayFrame) sendRstStream(streamId, STREAM_CLOSED);
+            return;
+        }
+
+        if (stream.isClosedRemotely()) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+
+        // The first header block on a stream carries the response
+        if (!stream.hasReceivedReply()) {
+            active = true;
+            stream.onReply();
+        }
+
+        if (endStream) {
+            stream.closeRemotely();
+            // Defer removing stream from activeStreams until we receive headersEnd
+        }
+    }
+
+    @Override
+    public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+    /*
+     * HTTP/2 PUSH_PROMISE frame processing requirements:
+     *
+     * A client that has disabled push must treat receipt of a PUSH_PROMISE
+     * frame as a connection error of type PROTOCOL_ERROR.
+     *
+     * Promised Stream-IDs must be even and greater than any previously
+     * received.
+     *
+     * The recipient can reject a pushed stream by sending a RST_STREAM frame
+     * with the error code REFUSED_STREAM or CANCEL.
+     */
+
+        if (tracer != null) tracer.received(PUSH_PROMISE, streamId, 0, promisedStreamId);
+
+        if (localMaxConcurrentStreams == 0) {
+            closeWithError(PROTOCOL_ERROR, new Http2SessionException("received PUSH_PROMISE with push disabled"));
+            return;
+        }
+
+        if (promisedStreamId % 2 != 0 || promisedStreamId <= lastGoodStreamId) {
+            closeWithError(PROTOCOL_ERROR, new Http2SessionException("invalid promised Stream-ID"));
+            return;
+        }
+
+        lastGoodStreamId = promisedStreamId;
+        readingPushPromise = true;
+
+        if (receivedGoAwayFrame || activeStreams.getRemoteSize() >= localMaxConcurrentStreams) {
+            sendRstStream(promisedStreamId, REFUSED_STREAM);
+            return;
+        }
+
+        SpdyStream parent = activeStreams.get(streamId);
+        if (parent == null || parent.isClosedRemotely()) {
+            sendRstStream(promisedStreamId, CANCEL);
+            return;
+        }
+
+        SpdyStream stream = new SpdyStream.Pushed(this, parent, parent.getPriority());
+        stream.open(promisedStreamId, initialSendWindow, initialReceiveWindow);
+        activeStreams.add(stream);
+    }
+
+    @Override
+    public void readHeader(int streamId, Header header) {
+
+        SpdyStream stream = activeStreams.get(streamId);
+        if (stream == null) return;
+
+        // Only the pseudo-header fields of a promised request identify the pushed resource
+        if (readingPushPromise && !header.getKey().startsWith(":")) return;
+
+        try {
+            stream.onHeader(header);
+        } catch (IOException e) {
+            sendRstStream(streamId, PROTOCOL_ERROR);
+            activeStreams.remove(stream);
+            if (stream.getOperation() != null) stream.close(e);
+        }
+    }
+
+    @Override
+    public void readHeadersEnd(int streamId) {
+
+        SpdyStream stream = activeStreams.get(streamId);
+
+        if (readingPushPromise) {
+            readingPushPromise = false;
+            // A promise lacking a complete request target cannot be delivered
+            if (stream != null && stream.getOperation() == null) {
+                sendRstStream(streamId, PROTOCOL_ERROR);
+                activeStreams.remove(stream);
+            }
+            return;
+        }
+
+        if (stream != null && stream.isClosed()) {
+            completeStream(stream);
+        }
+    }
+
+    @Override
+    public void readRstStreamFrame(int streamId, int errorCode) {
+    /*
+     * HTTP/2 RST_STREAM frame processing requirements:
+     *
+     * After receiving a RST_STREAM on a stream, the receiver must not send
+     * additional frames on that stream.
+     *
+     * An endpoint must not send a RST_STREAM in response to a RST_STREAM.
+     */
+
+        if (tracer != null) tracer.received(RST_STREAM, streamId, 0, errorCode);
+        SpdyStream stream = activeStreams.get(streamId);
+
+        if (stream != null) {
+            activeStreams.remove(stream);
+            if (stream.getOperation() == null) return;
+            if (errorCode == REFUSED_STREAM) {
+                stream.closeRetryably(new Http2StreamException(errorCode));
+                return;
+            }
+            stream.close(new Http2StreamException(errorCode));
+        }
+    }
+
+    @Override
+    public void readSettingsFrame(boolean ack) {
+        if (tracer != null) tracer.received(SETTINGS, HTTP2_SESSION_STREAM_ID, ack ? ACK : 0, 0);
+        readingSettingsAck = ack;
+    }
+
+    @Override
+    public void readSetting(int id, int value) {
+
+        int delta;
+        switch (id) {
+
+            case SETTINGS_HEADER_TABLE_SIZE:
+                frameEncoder.setMaxHeaderTableSize(Math.min(value, DEFAULT_HEADER_TABLE_SIZE));
+                break;
+
+            case SETTINGS_MAX_CONCURRENT_STREAMS:
+                delta = value - remoteMaxConcurrentStreams;
+                remoteMaxConcurrentStreams = value;
+                if (delta > 0) {
+                    manager.poll(this, getCapacity());
+                }
+                break;
+
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                delta = value - initialSendWindow;
+                initialSendWindow = value;
+                for (SpdyStream stream : new ArrayList<>(activeStreams)) {
+                    if (stream.isClosedLocally()) continue;
+                    if (delta > 0 && stream.getSendWindow() > Integer.MAX_VALUE - delta) {
+                        closeWithError(FLOW_CONTROL_ERROR, new Http2SessionException("stream send window exceeded max value"));
+                        return;
+                    }
+                    stream.increaseSendWindow(delta);
+                    if (delta > 0) {
+                        sendData(stream);
+                    }
+                }
+                break;
+
+            case SETTINGS_MAX_FRAME_SIZE:
+                frameEncoder.setMaxFrameSize(value);
+                break;
+
+            default:
+        }
+    }
+
+    @Override
+    public void readSettingsEnd() {
+        if (!readingSettingsAck && !inError()) {
+            sendSettingsAck();
+        }
+    }
+
+    @Override
+    public void readPingFrame(long data, boolean ack) {
+    /*
+     * HTTP/2 PING frame processing requirements:
+     *
+     * Receivers of a PING frame that does not include an ACK flag must send
+     * a PING frame with the ACK flag set in response, with an identical payload.
+     */
+
+        if (tracer != null) tracer.received(PING, HTTP2_SESSION_STREAM_ID, ack ? ACK : 0, data);
+
+        if (!ack) {
+            sendPingResponse(data);
+        } else {
+            Long sentTime = sentPingMap.remove(data);
+            if (sentTime == null) {
+                return;
+            }
+
+            latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentTime);
+        }
+    }
+
+    @Override
+    public void readGoAwayFrame(int lastStreamId, int errorCode) {
+
+        if (tracer != null) tracer.received(GOAWAY, lastStreamId, 0, errorCode);
+        receivedGoAwayFrame = true;
+
+        // Streams above the last processed Stream-ID were never acted upon
+        // and may safely be retried elsewhere.
+        Iterator<SpdyStream> i = activeStreams.iterator();
+        while (i.hasNext()) {
+            SpdyStream stream = i.next();
+            if (stream.isLocal() && stream.getStreamId() > lastStreamId) {
+                i.remove();
+                stream.closeRetryably(new Http2SessionException(errorCode));
+            }
+        }
+
+        if (activeStreams.isEmpty()) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void readWindowUpdateFrame(int streamId, int deltaWindowSize) {
+    /*
+     * HTTP/2 WINDOW_UPDATE frame processing requirements:
+     *
+     * A sender must not allow a flow-control window to exceed 2^31-1. If a
+     * sender receives a WINDOW_UPDATE that causes a flow-control window to
+     * exceed this maximum, it must terminate either the stream or the
+     * connection, as appropriate.
+     */
+
+        if (tracer != null) tracer.received(WINDOW_UPDATE, streamId, 0, deltaWindowSize);
+        if (streamId == HTTP2_SESSION_STREAM_ID) {
+            // Check for numerical overflow
+            if (sessionSendWindow > MAX_WINDOW_SIZE - deltaWindowSize) {
+                closeWithError(FLOW_CONTROL_ERROR, new Http2SessionException("session send window exceeded max value"));
+                return;
+            }
+
+            sessionSendWindow += deltaWindowSize;
+            for (SpdyStream stream : new ArrayList<>(activeStreams)) {
+                if (!stream.isClosedLocally()) sendData(stream);
+                if (sessionSendWindow == 0) break;
+            }
+
+            return;
+        }
+
+        SpdyStream stream = activeStreams.get(streamId);
+
+        // Ignore frames for non-existent or half-closed streams
+        if (stream == null || stream.isClosedLocally()) {
+            return;
+        }
+
+        // Check for numerical overflow
+        if (stream.getSendWindow() > MAX_WINDOW_SIZE - deltaWindowSize) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        stream.increaseSendWindow(deltaWindowSize);
+        sendData(stream);
+    }
+
+    @Override
+    public void readFrameSkipped(int streamId, int errorCode, String message) {
+
+        SpdyStream stream = activeStreams.get(streamId);
+        sendRstStream(streamId, errorCode);
+        if (stream != null) {
+            activeStreams.remove(stream);
+            if (stream.getOperation() != null) stream.close(new Http2StreamException(message));
+        }
+    }
+
+    @Override
+    public void readFrameError(int errorCode, String message) {
+        closeWithError(errorCode, new Http2SessionException(message));
+    }
+
+    private void completeStream(SpdyStream stream) {
+
+        activeStreams.remove(stream);
+        stream.complete();
+
+        if (receivedGoAwayFrame || sentGoAwayFrame) {
+            if (activeStreams.isEmpty()) socket.close();
+        } else if (stream.isLocal()) {
+            manager.poll(this, getCapacity());
+        }
+    }
+
+    private void resetStream(SpdyStream stream, int errorCode) {
+
+        sendRstStream(stream.getStreamId(), errorCode);
+        activeStreams.remove(stream);
+        if (stream.getOperation() != null) stream.close(new Http2StreamException(errorCode));
+    }
+
+    private List<Header> getRequestHeaders(SpdyStream stream) {
+
+        Request request = stream.getRequest();
+        URL url = request.getUrl();
+        String path = url.getPath();
+        // Though RFC-3986 allows path to be empty, most user agents will send
+        // a trailing slash in lieu of an empty path.
+        if (path.length() == 0) path = "/";
+        String query = url.getQuery();
+        if (query != null) path = path + "?" + query;
+        String authority = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+
+        Headers requestHeaders = request.getHeaders();
+        List<Header> headers = new ArrayList<>(requestHeaders.size() + 4);
+        headers.add(new Header(":method", request.getMethod().toString()));
+        headers.add(new Header(":scheme", url.getProtocol()));
+        headers.add(new Header(":authority", authority));
+        headers.add(new Header(":path", path));
+
+        for (Header header : requestHeaders.entries()) {
+            String key = header.getKey();
+            if (key.startsWith(":") || CONNECTION_HEADERS.contains(key)) continue;
+            // TE is permitted only to signal support for trailers
+            if (key.equals("te") && !header.getValue().equalsIgnoreCase("trailers")) continue;
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    private void sendHeaders(SpdyStream stream, boolean endStream) {
+
+        int streamId = stream.getStreamId();
+        assert(!stream.isClosedLocally());
+        if (endStream) stream.closeLocally();
+
+        List<Header> headers = getRequestHeaders(stream);
+        // Map SPDY's eight priority levels onto HTTP/2 weights of 32-256
+        int weight = (8 - stream.getPriority()) * 32;
+
+        if (tracer != null) tracer.sent(HEADERS, streamId, endStream ? END_STREAM : 0, 0);
+        socket.write(frameEncoder.encodeHeadersFrame(streamId, endStream, weight, headers));
+    }
+
+    private void sendRstStream(int streamId, int errorCode) {
+        if (tracer != null) tracer.sent(RST_STREAM, streamId, 0, errorCode);
+        socket.write(frameEncoder.encodeRstStreamFrame(streamId, errorCode));
+    }
+
+    private void sendWindowUpdate(int streamId, int delta) {
+        if (tracer != null) tracer.sent(WINDOW_UPDATE, streamId, 0, delta);
+        socket.write(frameEncoder.encodeWindowUpdateFrame(streamId, delta));
+    }
+
+    /**
+     * Withholds acknowledgement of received data until a demand-driven body
+     * subscriber has requested it, so that the server's stream window
+     * reflects the application's rate of consumption.
+     */
+    private void withholdWindow(final SpdyStream stream, int delta) {
+
+        if (!stream.isWithholding()) {
+            stream.getOperation().getBodyFuture().setConsumptionObserver(new Observer<Integer>() {
+                @Override
+                public void onNext(Integer bytes) {
+                    stream.releaseWindow(bytes);
+                    if (activeStreams.contains(stream)) updateReceiveWindow(stream);
+                }
+
+                @Override
+                public void onComplete() {
+                    stream.releaseWindow(-1);
+                    if (activeStreams.contains(stream)) updateReceiveWindow(stream);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public Executor getExecutor() {
+                    return manager.getRunLoop();
+                }
+            });
+        }
+        stream.withholdWindow(delta);
+    }
+
+    /**
+     * Sends a WINDOW_UPDATE if less than half the stream window size remains,
+     * not counting data which has been received but withheld.
+     */
+    private void updateReceiveWindow(SpdyStream stream) {
+
+        if (stream.isClosedRemotely()) return;
+        int outstanding = stream.getReceiveWindow() + stream.getWithheldWindow();
+        if (outstanding <= initialReceiveWindow / 2) {
+            int deltaWindowSize = initialReceiveWindow - outstanding;
+            stream.increaseReceiveWindow(deltaWindowSize);
+            sendWindowUpdate(stream.getStreamId(), deltaWindowSize);
+        }
+    }
+
+    private void sendData(SpdyStream stream) {
+
+        int streamId = stream.getStreamId();
+
+        while (stream.hasPendingData()) {
+            assert(!stream.isClosedLocally());
+            int sendWindow = Math.min(sessionSendWindow, stream.getSendWindow());
+            if (sendWindow <= 0) {
+                stream.getOperation().onBlocked();
+                return;
+            }
+            stream.getOperation().onUnblocked();
+
+            ByteBuffer data;
+            try {
+                data = stream.readData(Math.min(sendWindow, frameEncoder.getMaxFrameSize()));
+            } catch (IOException e) {
+                sendRstStream(streamId, INTERNAL_ERROR);
+                activeStreams.remove(stream);
+                stream.close(e);
+                return;
+            }
+
+            int bytesSent = data.remaining();
+            boolean last = !stream.hasPendingData();
+            if (bytesSent > 0 || last) {
+                if (tracer != null) tracer.sent(DATA, streamId, last ? END_STREAM : 0, bytesSent);
+                socket.write(frameEncoder.encodeDataFrame(streamId, last, data));
+
+                sessionSendWindow -= bytesSent;
+                stream.reduceSendWindow(bytesSent);
+                stream.getOperation().addTxBytes(bytesSent);
+            }
+
+            if (last) stream.closeLocally();
+        }
+    }
+
+    private void sendClientSettings() {
+
+        Map<Integer, Integer> settings = new LinkedHashMap<>();
+        settings.put(SETTINGS_ENABLE_PUSH, localMaxConcurrentStreams > 0 ? 1 : 0);
+        settings.put(SETTINGS_MAX_CONCURRENT_STREAMS, localMaxConcurrentStreams);
+        settings.put(SETTINGS_INITIAL_WINDOW_SIZE, initialReceiveWindow);
+
+        if (tracer != null) tracer.sent(SETTINGS, HTTP2_SESSION_STREAM_ID, 0, 0);
+        socket.write(frameEncoder.encodeSettingsFrame(settings));
+    }
+
+    private void sendSettingsAck() {
+        if (tracer != null) tracer.sent(SETTINGS, HTTP2_SESSION_STREAM_ID, ACK, 0);
+        socket.write(frameEncoder.encodeSettingsAckFrame());
+    }
+
+    private void sendPing() {
+
+        final long pingId = nextPingId++;
+
+        if (tracer != null) tracer.sent(PING, HTTP2_SESSION_STREAM_ID, 0, pingId);
+        Socket.WriteFuture pingFuture = socket.write(frameEncoder.encodePingFrame(pingId, false));
+
+        pingFuture.addListener(new Inline.Listener<Long>() {
+            @Override
+            public void onComplete(Long result) {
+                sentPingMap.put(pingId, System.nanoTime());
+            }
+        });
+    }
+
+    private void sendPingResponse(long data) {
+        if (tracer != null) tracer.sent(PING, HTTP2_SESSION_STREAM_ID, ACK, data);
+        socket.write(frameEncoder.encodePingFrame(data, true));
+    }
+
+    private void sendGoAway(int errorCode) {
+
+        if (sentGoAwayFrame) return;
+        sentGoAwayFrame = true;
+
+        if (tracer != null) tracer.sent(GOAWAY, lastGoodStreamId, 0, errorCode);
+        Socket.WriteFuture goawayFuture = socket.write(
+            frameEncoder.encodeGoAwayFrame(lastGoodStreamId, errorCode));
+
+        goawayFuture.addListener(new Inline.Listener<Long>() {
+            @Override
+            public void onComplete(Long result) {
+                if (activeStreams.isEmpty()) {
+                    socket.close();
+                }
+            }
+        });
+    }
+
+    private void closeWithError(int errorCode, Throwable throwable) {
+
+        error = true;
+        Iterator<SpdyStream> i = activeStreams.iterator();
+        while (i.hasNext()) {
+            SpdyStream stream = i.next();
+            i.remove();
+            if (stream.getOperation() != null) stream.close(throwable);
+        }
+        sendGoAway(errorCode);
+        closeFuture.fail(throwable);
+    }
+
+    private class SocketCloseListener extends Inline.Listener<Void> {
+
+        /**
+         * Occurs when the client has initiated the connection closure.
+         */
+        @Override
+        public void onComplete(Void result) {
+            // We should never attempt to close the socket if there are active streams.
+            assert activeStreams.size() == 0;
+            closeFuture.set(null);
+        }
+
+        /**
+         * Occurs when the connection closes unexpectedly.
+         * @param throwable the cause of the connection closure
+         */
+        @Override
+        public void onError(Throwable throwable) {
+
+            Iterator<SpdyStream> i = activeStreams.iterator();
+            while (i.hasNext()) {
+                SpdyStream stream = i.next();
+                i.remove();
+                if (stream.getOperation() != null) stream.close(throwable);
+            }
+            closeFuture.fail(throwable);
+        }
+    }
+}
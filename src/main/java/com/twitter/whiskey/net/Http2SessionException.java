@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+
+/**
+ * Signals that an HTTP/2 session was closed, either by a GOAWAY frame or a
+ * connection error.
+ */
+public class Http2SessionException extends IOException {
+
+    Http2SessionException(int errorCode) {
+        super("Http2Session closed: " + Http2StreamException.errorMessage(errorCode));
+    }
+
+    Http2SessionException(String message) {
+        super(message);
+    }
+
+    Http2SessionException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+}
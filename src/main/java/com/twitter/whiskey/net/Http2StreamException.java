@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+
+/**
+ * Signals that an HTTP/2 stream was reset.
+ */
+public class Http2StreamException extends IOException {
+
+    private static final String[] errorMessages = {
+        "no error",
+        "protocol error",
+        "internal error",
+        "flow control error",
+        "settings timeout",
+        "stream closed",
+        "frame size error",
+        "refused stream",
+        "cancel",
+        "compression error",
+        "connect error",
+        "enhance your calm",
+        "inadequate security",
+        "HTTP/1.1 required",
+    };
+
+    Http2StreamException(int errorCode) {
+        super("Http2Stream reset: " + errorMessage(errorCode));
+    }
+
+    Http2StreamException(String message) {
+        super(message);
+    }
+
+    Http2StreamException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+
+    static String errorMessage(int errorCode) {
+        if (errorCode < 0 || errorCode >= errorMessages.length) return "unknown error (" + errorCode + ")";
+        return errorMessages[errorCode];
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link SettingsStore} held in memory, for the life of the store. This
+ * is the default, with a store for each client.
+ *
+ * This class is thread-safe.
+ */
+public class MemorySettingsStore implements SettingsStore {
+
+    private final Map<Origin, Map<Integer, Integer>> settings = new HashMap<>();
+
+    @Override
+    public synchronized Map<Integer, Integer> get(Origin origin) {
+
+        Map<Integer, Integer> values = settings.get(origin);
+        if (values == null) return Collections.emptyMap();
+        return Collections.unmodifiableMap(new TreeMap<>(values));
+    }
+
+    @Override
+    public synchronized void put(Origin origin, int id, int value) {
+
+        Map<Integer, Integer> values = settings.get(origin);
+        if (values == null) {
+            values = new TreeMap<>();
+            settings.put(origin, values);
+        }
+        values.put(id, value);
+    }
+
+    @Override
+    public synchronized void clear(Origin origin) {
+        settings.remove(origin);
+    }
+
+    /**
+     * @return a copy of the settings of every origin
+     */
+    synchronized Map<Origin, Map<Integer, Integer>> getAll() {
+
+        Map<Origin, Map<Integer, Integer>> copy = new HashMap<>();
+        for (Map.Entry<Origin, Map<Integer, Integer>> entry : settings.entrySet()) {
+            copy.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+        }
+        return copy;
+    }
+}
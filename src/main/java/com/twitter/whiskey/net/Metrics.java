@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.nio.RunLoop;
+import com.twitter.whiskey.util.ConcurrentHistogram;
+import com.twitter.whiskey.util.Origin;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics aggregated by a {@link WhiskeyClient}, as
+ * returned by {@link WhiskeyClient#metrics()}.
+ *
+ * Counters and histograms are cumulative over the life of the client;
+ * session gauges reflect the moment the snapshot was taken.
+ */
+public class Metrics {
+
+    private final Map<Origin, OriginMetrics> origins;
+    private final RunLoop.Stats runLoop;
+
+    Metrics(Map<Origin, OriginMetrics> origins, RunLoop.Stats runLoop) {
+        this.origins = Collections.unmodifiableMap(origins);
+        this.runLoop = runLoop;
+    }
+
+    public Map<Origin, OriginMetrics> getOrigins() {
+        return origins;
+    }
+
+    /**
+     * @return the metrics for the origin, or null if no request has been
+     *         made to it
+     */
+    public OriginMetrics getOrigin(Origin origin) {
+        return origins.get(origin);
+    }
+
+    /**
+     * @return the counters of the {@link RunLoop} serving the client
+     */
+    public RunLoop.Stats getRunLoop() {
+        return runLoop;
+    }
+
+    /**
+     * Totals for the requests completed against a single origin, and the
+     * state of its open sessions.
+     */
+    public static class OriginMetrics {
+
+        private final long requests;
+        private final long failures;
+        private final long cancellations;
+        private final long attempts;
+        private final long redirects;
+        private final long rxBytes;
+        private final long txBytes;
+        private final ConcurrentHistogram.Snapshot latency;
+        private final ConcurrentHistogram.Snapshot duration;
+        private final List<SessionMetrics> sessions;
+
+        OriginMetrics(long requests, long failures, long cancellations, long attempts, long redirects,
+                      long rxBytes, long txBytes, ConcurrentHistogram.Snapshot latency,
+                      ConcurrentHistogram.Snapshot duration, List<SessionMetrics> sessions) {
+            this.requests = requests;
+            this.failures = failures;
+            this.cancellations = cancellations;
+            this.attempts = attempts;
+            this.redirects = redirects;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+            this.latency = latency;
+            this.duration = duration;
+            this.sessions = Collections.unmodifiableList(sessions);
+        }
+
+        /**
+         * @return the number of requests which have finished, whether they
+         *         succeeded, failed or were cancelled
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getCancellations() {
+            return cancellations;
+        }
+
+        /**
+         * @return the number of times requests were sent, including
+         *         redirects, retries and hedges
+         */
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getRedirects() {
+            return redirects;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+
+        /**
+         * @return the distribution of {@link RequestStats#latencyMs} over
+         *         successful requests which were sent
+         */
+        public ConcurrentHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the distribution of {@link RequestStats#durationMs} over
+         *         successful requests which were sent
+         */
+        public ConcurrentHistogram.Snapshot getDuration() {
+            return duration;
+        }
+
+        public List<SessionMetrics> getSessions() {
+            return sessions;
+        }
+    }
+
+    /**
+     * Gauges sampled from a single open session. Values not applicable to
+     * the session's protocol are -1.
+     */
+    public static class SessionMetrics {
+
+        private final Protocol protocol;
+        private final int activeStreams;
+        private final int sendWindow;
+        private final int receiveWindow;
+        private final long queuedWriteBytes;
+        private final long roundTripMs;
+        private final List<FrameTracer.Event> frameTrace;
+
+        SessionMetrics(Protocol protocol, int activeStreams, int sendWindow, int receiveWindow,
+                       long queuedWriteBytes, long roundTripMs, List<FrameTracer.Event> frameTrace) {
+            this.protocol = protocol;
+            this.activeStreams = activeStreams;
+            this.sendWindow = sendWindow;
+            this.receiveWindow = receiveWindow;
+            this.queuedWriteBytes = queuedWriteBytes;
+            this.roundTripMs = roundTripMs;
+            this.frameTrace = frameTrace;
+        }
+
+        public Protocol getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * @return the number of requests in flight or queued on the session
+         */
+        public int getActiveStreams() {
+            return activeStreams;
+        }
+
+        /**
+         * @return the connection-level flow control window available for
+         *         sending request bodies
+         */
+        public int getSendWindow() {
+            return sendWindow;
+        }
+
+        /**
+         * @return the connection-level flow control window available to the
+         *         server for sending response bodies
+         */
+        public int getReceiveWindow() {
+            return receiveWindow;
+        }
+
+        /**
+         * @return the number of bytes written to the session but not yet to
+         *         the network
+         */
+        public long getQueuedWriteBytes() {
+            return queuedWriteBytes;
+        }
+
+        /**
+         * @return the round-trip time measured by PING, or -1 if unmeasured
+         */
+        public long getRoundTripMs() {
+            return roundTripMs;
+        }
+
+        /**
+         * @return the most recent frames sent and received by the session,
+         *         oldest first, or an empty list unless enabled with
+         *         {@link ClientConfiguration.Builder#traceFrames(int)}
+         */
+        public List<FrameTracer.Event> getFrameTrace() {
+            return frameTrace;
+        }
+    }
+}
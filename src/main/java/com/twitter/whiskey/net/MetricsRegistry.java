@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.nio.RunLoop;
+import com.twitter.whiskey.util.ConcurrentHistogram;
+import com.twitter.whiskey.util.Origin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client aggregation of {@link RequestStats} by origin, together with
+ * the open sessions to each origin, from which {@link Metrics} snapshots
+ * are taken. Requests are recorded without locking, from whichever thread
+ * completes them.
+ */
+class MetricsRegistry {
+
+    private final ConcurrentHashMap<Origin, OriginRecorder> origins = new ConcurrentHashMap<>();
+    private final RunLoop runLoop;
+
+    MetricsRegistry(RunLoop runLoop) {
+        this.runLoop = runLoop;
+    }
+
+    OriginRecorder forOrigin(Origin origin) {
+
+        OriginRecorder recorder = origins.get(origin);
+        if (recorder == null) {
+            recorder = new OriginRecorder();
+            OriginRecorder existing = origins.putIfAbsent(origin, recorder);
+            if (existing != null) recorder = existing;
+        }
+        return recorder;
+    }
+
+    Metrics snapshot() {
+
+        Map<Origin, Metrics.OriginMetrics> snapshot = new HashMap<>();
+        for (Map.Entry<Origin, OriginRecorder> entry : origins.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Metrics(snapshot, runLoop.getStats());
+    }
+
+    static final class OriginRecorder {
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong cancellations = new AtomicLong();
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong redirects = new AtomicLong();
+        private final AtomicLong rxBytes = new AtomicLong();
+        private final AtomicLong txBytes = new AtomicLong();
+        private final ConcurrentHistogram latency = new ConcurrentHistogram();
+        private final ConcurrentHistogram duration = new ConcurrentHistogram();
+        private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+        /**
+         * Records the final stats of a request which has finished.
+         *
+         * @param error the cause of failure, or null if the request succeeded
+         */
+        void record(RequestStats stats, Throwable error, boolean cancelled) {
+
+            requests.incrementAndGet();
+            if (cancelled) {
+                cancellations.incrementAndGet();
+            } else if (error != null) {
+                failures.incrementAndGet();
+            }
+            attempts.addAndGet(stats.attempts);
+            redirects.addAndGet(stats.redirects);
+            rxBytes.addAndGet(stats.rxBytes);
+            txBytes.addAndGet(stats.txBytes);
+
+            // Responses served locally would only skew the distributions
+            if (error == null && !cancelled && stats.attempts > 0) {
+                latency.record(stats.latencyMs);
+                duration.record(stats.durationMs);
+            }
+        }
+
+        void register(Session session) {
+            sessions.add(session);
+        }
+
+        void unregister(Session session) {
+            sessions.remove(session);
+        }
+
+        Metrics.OriginMetrics snapshot() {
+
+            List<Metrics.SessionMetrics> sessionMetrics = new ArrayList<>(sessions.size());
+            for (Session session : sessions) {
+                sessionMetrics.add(session.getMetrics());
+            }
+            return new Metrics.OriginMetrics(requests.get(), failures.get(), cancellations.get(),
+                attempts.get(), redirects.get(), rxBytes.get(), txBytes.get(),
+                latency.snapshot(), duration.snapshot(), sessionMetrics);
+        }
+    }
+}
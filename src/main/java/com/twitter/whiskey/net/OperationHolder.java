@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+/**
+ * A queue or session currently holding a {@link RequestOperation}, which is
+ * notified directly when the operation is cancelled or fails.
+ */
+interface OperationHolder {
+
+    /**
+     * Called on the RunLoop when an operation most recently handed to this
+     * holder is cancelled or fails. The holder should release any resources
+     * associated with the operation; it may no longer hold the operation, in
+     * which case this should have no effect.
+     */
+    void abandon(RequestOperation operation);
+}
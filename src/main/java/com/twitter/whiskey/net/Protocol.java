@@ -14,20 +14,40 @@ package com.twitter.whiskey.net;
 public enum Protocol {
     HTTP_1_0 ("http/1.0"),
     HTTP_1_1 ("http/1.1"),
-    HTTP_2_0 ("http/2"),
+    HTTP_2_0 ("http/2", "h2"),
     SPDY_2   ("spdy/2"),
     SPDY_3   ("spdy/3"),
     SPDY_3_1 ("spdy/3.1"),
     QUIC     ("quic");
 
     private final String name;
+    private final String alpnId;
 
     private Protocol(String name) {
+        this(name, name);
+    }
+
+    private Protocol(String name, String alpnId) {
         this.name = name;
+        this.alpnId = alpnId;
     }
 
     @Override public String toString() { return name; }
 
+    /**
+     * @return the protocol identifier used in TLS ALPN negotiation (RFC 7301)
+     */
+    public String getAlpnId() {
+        return alpnId;
+    }
+
+    public static Protocol fromAlpnId(String alpnId) {
+        for (Protocol protocol : values()) {
+            if (protocol.alpnId.equals(alpnId)) return protocol;
+        }
+        return null;
+    }
+
     public static Protocol fromString(String name) {
         Protocol protocol;
         try {
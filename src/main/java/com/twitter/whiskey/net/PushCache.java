@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.nio.RunLoop;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Responses pushed from a single origin, indexed by URL, awaiting a request
+ * to claim them. A push is available from the moment its request is known,
+ * so a claimant may receive a response which is still streaming.
+ *
+ * A request claims a push only if its method and content negotiation
+ * headers match those of the pushed request, along with any headers the
+ * pushed response is known to vary on. Each push is consumed once: those
+ * handed to push subscribers cannot be claimed, and those claimed here are
+ * withheld from subscribers arriving later.
+ *
+ * Unclaimed pushes are dropped after a fixed time, and the oldest are
+ * dropped once the bodies of those complete exceed a memory bound. Pushes
+ * are never cancelled when dropped, since they remain reachable through
+ * the push observers of the response which carried them.
+ *
+ * This class is thread-safe.
+ */
+class PushCache {
+
+    // Request headers which select between representations of a URL
+    private static final String[] SELECTING_HEADERS = {
+        Headers.ACCEPT, Headers.ACCEPT_CHARSET, Headers.ACCEPT_ENCODING,
+        Headers.ACCEPT_LANGUAGE, Headers.AUTHORIZATION, Headers.COOKIE,
+    };
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final RunLoop runLoop;
+    private final long ttlMs;
+    private final long maxSize;
+    private long size;
+
+    PushCache(RunLoop runLoop, long ttlMs, long maxSize) {
+        this.runLoop = runLoop;
+        this.ttlMs = ttlMs;
+        this.maxSize = maxSize;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Makes a push available to matching requests, replacing any earlier
+     * push of the same URL. Must be called on the RunLoop.
+     */
+    void offer(RequestOperation push) {
+
+        // Pushes already handed to the parent's push subscribers are theirs
+        Request request = push.getOriginalRequest();
+        if (request.getMethod() != Request.Method.GET || push.isClaimed()) return;
+
+        final Entry entry = new Entry(keyOf(request), push);
+        entry.expiry = runLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                remove(entry);
+            }
+        }, ttlMs, TimeUnit.MILLISECONDS);
+
+        synchronized (this) {
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null) discard(previous);
+        }
+
+        push.addListener(new Inline.Listener<Response>() {
+            @Override
+            public void onComplete(Response response) {
+                completed(entry, response.getBody());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                remove(entry);
+            }
+        });
+    }
+
+    /**
+     * Removes and returns a push matching the request, if any.
+     */
+    RequestOperation claim(Request request) {
+
+        if (request.getMethod() != Request.Method.GET ||
+            request.getBodyData() != null || request.getBodyStream() != null) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(keyOf(request));
+            if (entry == null || !matches(entry.push, request)) return null;
+            entries.remove(entry.key);
+            discard(entry);
+        }
+        return !entry.push.isCancelled() && entry.push.claim(this) ? entry.push : null;
+    }
+
+    private static boolean matches(RequestOperation push, Request request) {
+
+        Request pushed = push.getOriginalRequest();
+        if (pushed.getMethod() != request.getMethod()) return false;
+        for (String name : SELECTING_HEADERS) {
+            if (!sameValues(pushed, request, name)) return false;
+        }
+
+        // Vary is only known once the pushed response's headers have arrived
+        Headers headers = responseHeaders(push);
+        if (headers == null) return true;
+        for (String value : headers.get(Headers.VARY)) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase(Locale.US);
+                if (name.equals("*")) return false;
+                if (!name.isEmpty() && !sameValues(pushed, request, name)) return false;
+            }
+        }
+        return true;
+    }
+
+    private static Headers responseHeaders(RequestOperation push) {
+
+        HeadersFutureImpl future = push.getHeadersFuture();
+        if (!future.isDone()) return null;
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static boolean sameValues(Request pushed, Request request, String name) {
+        return ResponseCache.Entry.join(pushed.getHeaders().get(name))
+            .equals(ResponseCache.Entry.join(request.getHeaders().get(name)));
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.get(entry.key) != entry) return;
+        entries.remove(entry.key);
+        discard(entry);
+    }
+
+    private synchronized void completed(Entry entry, ByteBuffer body) {
+
+        if (entries.get(entry.key) != entry) return;
+        entry.size = body != null ? body.remaining() : 0;
+        size += entry.size;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            discard(eldest);
+        }
+    }
+
+    private void discard(Entry entry) {
+        size -= entry.size;
+        entry.expiry.cancel();
+    }
+
+    private static String keyOf(Request request) {
+        return request.getUrl().toExternalForm();
+    }
+
+    private static final class Entry {
+
+        final String key;
+        final RequestOperation push;
+        RunLoop.ScheduledTask expiry;
+        long size;
+
+        Entry(String key, RequestOperation push) {
+            this.key = key;
+            this.push = push;
+        }
+    }
+}
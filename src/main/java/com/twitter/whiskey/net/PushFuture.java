@@ -31,6 +31,15 @@ public class PushFuture extends ReactiveFuture<Void, ResponseFuture> {
         return drained;
     }
 
+    /**
+     * Pushes claimed by a request from the {@link PushCache} are withheld
+     * from subscribers, and those handed to subscribers cannot be claimed.
+     */
+    @Override
+    protected boolean onHandOff(ResponseFuture element) {
+        return !(element instanceof RequestOperation) || ((RequestOperation) element).claim(this);
+    }
+
     @Override
     protected boolean complete() {
         return set(null);
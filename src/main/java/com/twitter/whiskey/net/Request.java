@@ -106,6 +106,29 @@ public class Request {
         return timeoutUnit;
     }
 
+    /**
+     * @return true if dispatch of the request may be deferred
+     */
+    public boolean isDiscretionary() {
+        return discretionaryTimeout > 0 && discretionaryUnit != null;
+    }
+
+    public long getDiscretionaryTimeout() {
+        return discretionaryTimeout;
+    }
+
+    public TimeUnit getDiscretionaryUnit() {
+        return discretionaryUnit;
+    }
+
+    /**
+     * @return true if the request was explicitly marked idempotent or uses an
+     *         idempotent method
+     */
+    public boolean isIdempotent() {
+        return idempotent || method.isIdempotent();
+    }
+
     /**
      * HTTP Request Method as specified in RFC 2616
      * http://www.w3.org/Protocols/rfc2616/rfc2616-sec9.html
@@ -195,7 +218,17 @@ public class Request {
         public Builder(Request request) {
             this.url = request.getUrl();
             this.method = request.getMethod();
-            this.headers = request.getHeaders();
+            this.headers = new Headers(request.getHeaders());
+            this.bodyData = request.getBodyData();
+            this.bodyStream = request.getBodyStream();
+            this.cookieHandler = request.getCookieHandler();
+            this.priority = request.getPriority();
+            this.discretionaryTimeout = request.getDiscretionaryTimeout();
+            this.discretionaryUnit = request.getDiscretionaryUnit();
+            this.idempotent = request.idempotent;
+            this.maxRedirects = request.getMaxRedirects();
+            this.timeout = request.getTimeout();
+            this.timeoutUnit = request.getTimeoutUnit();
         }
 
         public Builder url(URL url) {
@@ -322,6 +355,17 @@ public class Request {
             return this;
         }
 
+        /**
+         * Marks the request as discretionary, allowing its dispatch to be
+         * deferred by up to the given time. Rather than opening a
+         * connection, a discretionary request is held until a connection to
+         * its origin is in use and has spare capacity, so background
+         * traffic is batched with other requests. Time spent deferred counts
+         * toward the request's timeout.
+         *
+         * @param timeout the maximum time to defer the request, or 0 to
+         *                dispatch it immediately
+         */
         public Builder discretionary(long timeout, TimeUnit unit) {
             discretionaryTimeout = timeout;
             discretionaryUnit = unit;
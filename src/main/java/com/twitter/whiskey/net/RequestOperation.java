@@ -7,11 +7,21 @@
 package com.twitter.whiskey.net;
 
 import com.twitter.whiskey.futures.CompletableFuture;
+import com.twitter.whiskey.futures.Flow;
 import com.twitter.whiskey.futures.Observer;
-import com.twitter.whiskey.util.Platform;
+import com.twitter.whiskey.nio.RunLoop;
+import com.twitter.whiskey.util.Origin;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Internal object tracking the complete lifecycle of an HTTP request.  May
@@ -30,7 +40,33 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
     private final BodyFutureImpl bodyFuture;
     private final StatsFutureImpl statsFuture;
     private final PushFuture pushFuture;
-    private final long startMs;
+    private final EventListener listener;
+    private final long startNanos;
+    private final AtomicReference<Object> claimant = new AtomicReference<>();
+
+    private volatile RunLoop.ScheduledTask timeout;
+    private volatile RunLoop.ScheduledTask hedgeTimer;
+    private volatile RunLoop.ScheduledTask deferralTimer;
+    // Only accessed on the RunLoop
+    private OperationHolder holder;
+    private SpdyStream stream;
+    private SessionManager manager;
+    private Hedge hedge;
+    private boolean responded;
+    // Marks for the current attempt, from which stats are derived
+    private RequestOperation responder;
+    private Protocol protocol;
+    private int streamId;
+    private long queuedNanos;
+    private long dispatchedNanos;
+    private long sentNanos;
+    private long blockedNanos;
+    private long blockedSinceNanos;
+    private long responseNanos;
+    private boolean sent;
+    // Guarded by this
+    private List<RequestOperation> followers;
+    private boolean landed;
 
     private Request currentRequest;
     private int remainingRedirects;
@@ -38,9 +74,11 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
 
     RequestOperation(WhiskeyClient client, Request request) {
 
-        startMs = Platform.instance().timestamp();
+        startNanos = System.nanoTime();
+        queuedNanos = startNanos;
 
         this.client = client;
+        listener = client.getEventListener();
         originalRequest = request;
         currentRequest = request;
         remainingRedirects = request.getMaxRedirects();
@@ -53,10 +91,33 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
         pushFuture = new PushFuture();
     }
 
+    /**
+     * Constructor for a hedge, which shares the futures of its primary.
+     */
+    private RequestOperation(RequestOperation primary) {
+
+        startNanos = System.nanoTime();
+        queuedNanos = startNanos;
+
+        client = primary.client;
+        listener = primary.listener;
+        originalRequest = primary.originalRequest;
+        currentRequest = primary.currentRequest;
+        remainingRedirects = primary.remainingRedirects;
+        remainingRetries = 0;
+        stats = primary.stats;
+
+        headersFuture = primary.headersFuture;
+        bodyFuture = primary.bodyFuture;
+        statsFuture = primary.statsFuture;
+        pushFuture = primary.pushFuture;
+    }
+
     void redirect(Request request) {
 
         currentRequest = request;
         remainingRedirects--;
+        stats.redirects++;
         assert remainingRedirects >= 0 && !headersFuture.isDone()
             && !bodyFuture.isDone() && !statsFuture.isDone();
         headersFuture.reset();
@@ -71,8 +132,263 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
         client.queue(this);
     }
 
+    /**
+     * Records the queue or session now holding the operation, to which
+     * cancellation or failure will be propagated. Must be called on the
+     * RunLoop.
+     *
+     * @param stream the stream carrying the operation, if any
+     */
+    void hold(OperationHolder holder, SpdyStream stream) {
+        this.holder = holder;
+        this.stream = stream;
+    }
+
+    SpdyStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Takes a pushed operation for a single consumer: either the push cache,
+     * on behalf of a request, or the subscribers of the parent's pushes.
+     *
+     * @return true if the push was unclaimed or already held by the owner
+     */
+    boolean claim(Object owner) {
+        return claimant.compareAndSet(null, owner) || claimant.get() == owner;
+    }
+
+    boolean isClaimed() {
+        return claimant.get() != null;
+    }
+
+    OperationHolder getHolder() {
+        return holder;
+    }
+
+    /**
+     * Marks the start of an attempt, as the operation is queued for a
+     * connection. Time spent before it is handed to a session is reported
+     * as {@link RequestStats#queuedMs}.
+     */
+    void onQueued() {
+        queuedNanos = System.nanoTime();
+        protocol = null;
+        sent = false;
+        blockedNanos = 0;
+        blockedSinceNanos = 0;
+        if (listener != null) listener.onRequestQueued(currentRequest);
+    }
+
+    /**
+     * Called on the RunLoop when a session takes the operation.
+     */
+    void onDispatched(Protocol protocol, int streamId) {
+        this.protocol = protocol;
+        this.streamId = streamId;
+        dispatchedNanos = System.nanoTime();
+        stats.attempts++;
+        if (listener != null) listener.onStreamOpened(currentRequest, protocol, streamId);
+    }
+
+    /**
+     * Called on the RunLoop once the request head has been written to the
+     * session's socket. Any delay after dispatch, such as waiting behind a
+     * pipelined request, is reported as {@link RequestStats#blockedMs}.
+     */
+    void onSent() {
+        sentNanos = System.nanoTime();
+        sent = true;
+    }
+
+    /**
+     * Called on the RunLoop when sending of the request body stalls for
+     * lack of flow control window.
+     */
+    void onBlocked() {
+        if (blockedSinceNanos == 0) blockedSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * Called on the RunLoop when sending of the request body proceeds.
+     */
+    void onUnblocked() {
+        if (blockedSinceNanos == 0) return;
+        long blocked = System.nanoTime() - blockedSinceNanos;
+        blockedNanos += blocked;
+        blockedSinceNanos = 0;
+        if (listener != null) listener.onFlowControlBlocked(currentRequest, blocked);
+    }
+
+    void addRxBytes(int bytes) {
+        stats.rxBytes += bytes;
+    }
+
+    void addTxBytes(int bytes) {
+        stats.txBytes += bytes;
+    }
+
+    /**
+     * Records the manager through which the operation was dispatched, to
+     * which response latency is reported. Must be called on the RunLoop.
+     */
+    void setManager(SessionManager manager) {
+        this.manager = manager;
+    }
+
+    void setTimeout(RunLoop.ScheduledTask timeout) {
+        this.timeout = timeout;
+        if (isDone()) timeout.cancel();
+    }
+
+    /**
+     * @return the time remaining before the request times out, in
+     *         milliseconds, or Long.MAX_VALUE if it has no timeout
+     */
+    long getRemainingMillis() {
+
+        Request request = originalRequest;
+        if (request.getTimeout() <= 0) return Long.MAX_VALUE;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return request.getTimeoutUnit().toMillis(request.getTimeout()) - elapsed;
+    }
+
+    /**
+     * @return true if a hedge may be scheduled for the operation; only the
+     *         first attempt of an idempotent request without a body, which
+     *         has yet to receive a response, qualifies
+     */
+    boolean isHedgeable() {
+        return hedgeTimer == null && !responded && currentRequest == originalRequest &&
+            originalRequest.isIdempotent() && !originalRequest.isDiscretionary() &&
+            originalRequest.getBodyData() == null && originalRequest.getBodyStream() == null;
+    }
+
+    void setHedgeTimer(RunLoop.ScheduledTask hedgeTimer) {
+        this.hedgeTimer = hedgeTimer;
+        if (isDone()) hedgeTimer.cancel();
+    }
+
+    /**
+     * @return true if the operation is discretionary and has yet to be
+     *         deferred
+     */
+    boolean isDeferrable() {
+        return deferralTimer == null && currentRequest == originalRequest && originalRequest.isDiscretionary();
+    }
+
+    /**
+     * Sets the timer which releases the operation for dispatch once its
+     * discretionary deadline passes.
+     */
+    void setDeferralTimer(RunLoop.ScheduledTask deferralTimer) {
+        this.deferralTimer = deferralTimer;
+        if (isDone()) deferralTimer.cancel();
+    }
+
+    /**
+     * Cancels the deferral timer of an operation released for dispatch early.
+     */
+    void cancelDeferral() {
+        RunLoop.ScheduledTask deferralTimer = this.deferralTimer;
+        if (deferralTimer != null) deferralTimer.cancel();
+    }
+
+    /**
+     * @return true if identical requests may share the response to the
+     *         request: only GET and HEAD requests without a body, which are
+     *         dispatched immediately, qualify
+     */
+    static boolean isCoalescable(Request request) {
+        Request.Method method = request.getMethod();
+        return (method == Request.Method.GET || method == Request.Method.HEAD) &&
+            !request.isDiscretionary() && request.getBodyData() == null && request.getBodyStream() == null;
+    }
+
+    /**
+     * Attaches an operation for an identical request, which will complete
+     * with a read-only copy of this operation's response rather than being
+     * dispatched itself.
+     *
+     * @return false if the operation has already finished, in which case
+     *         the follower must be dispatched separately
+     */
+    synchronized boolean addFollower(RequestOperation follower) {
+
+        if (landed) return false;
+        if (followers == null) followers = new ArrayList<>(1);
+        followers.add(follower);
+        return true;
+    }
+
+    private synchronized List<RequestOperation> land() {
+
+        landed = true;
+        List<RequestOperation> landing = followers;
+        followers = null;
+        return landing != null ? landing : Collections.<RequestOperation>emptyList();
+    }
+
+    /**
+     * @return true if the operation is outstanding, has yet to receive a
+     *         response, and has no hedge
+     */
+    boolean awaitsHedge() {
+        return !isDone() && !responded && hedge == null;
+    }
+
+    /**
+     * Creates a duplicate attempt at the operation, to race against the
+     * current one. Must be called on the RunLoop.
+     */
+    RequestOperation newHedge() {
+        hedge = new Hedge(this);
+        return hedge;
+    }
+
+    /**
+     * Called on the RunLoop when an attempt at the operation receives a
+     * response status. If a hedge is outstanding, the attempt wins the race
+     * and the other is abandoned.
+     */
+    void onResponse(int statusCode) {
+        resolve(this, statusCode);
+    }
+
+    private void resolve(RequestOperation attempt, int statusCode) {
+
+        if (listener != null) listener.onResponseHeaders(attempt.currentRequest, statusCode);
+        responder = attempt;
+        responseNanos = System.nanoTime();
+        if (!responded) {
+            responded = true;
+            if (manager != null) manager.recordLatency(System.nanoTime() - attempt.startNanos);
+        }
+
+        Hedge hedge = this.hedge;
+        if (hedge == null) return;
+        this.hedge = null;
+        if (attempt == hedge) {
+            // Adopt the winning stream so cancellation is propagated to it
+            releaseHolder();
+            hold(hedge.getHolder(), hedge.getStream());
+            hedge.adopted = true;
+        } else {
+            hedge.release();
+        }
+    }
+
     @Override
     public boolean fail(Throwable e) {
+        return abort(e, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return abort(new CancellationException(), true);
+    }
+
+    private boolean abort(Throwable e, boolean cancel) {
 
         if (!isDone()) {
             synchronized(this) {
@@ -80,12 +396,17 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
                     finalizeStats();
                     if (!bodyFuture.isDone()) {
                         if (!headersFuture.isDone()) {
-                            headersFuture.fail(e);
+                            if (cancel) headersFuture.cancel(false); else headersFuture.fail(e);
                         }
-                        bodyFuture.fail(e);
+                        if (cancel) bodyFuture.cancel(false); else bodyFuture.fail(e);
                     }
                     statsFuture.set(stats);
-                    super.fail(e);
+                    recordMetrics(e, cancel);
+                    if (cancel) super.cancel(false); else super.fail(e);
+                    client.finished(this);
+                    cancelTimeout();
+                    abandon();
+                    abortFollowers(e, cancel);
                     return true;
                 }
             }
@@ -94,23 +415,158 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
         return false;
     }
 
+    /**
+     * Fails any followers along with the operation, unless it was
+     * cancelled, in which case they are dispatched in its place.
+     */
+    private void abortFollowers(Throwable e, boolean cancel) {
+
+        for (RequestOperation follower : land()) {
+            if (!cancel) {
+                follower.fail(e);
+            } else if (!follower.isDone()) {
+                client.queue(follower);
+            }
+        }
+    }
+
+    private void cancelTimeout() {
+        RunLoop.ScheduledTask timeout = this.timeout;
+        if (timeout != null) timeout.cancel();
+        RunLoop.ScheduledTask hedgeTimer = this.hedgeTimer;
+        if (hedgeTimer != null) hedgeTimer.cancel();
+        cancelDeferral();
+    }
+
+    /**
+     * Notifies the current holders of the operation and of any hedge that
+     * the operation has been abandoned, hopping to the RunLoop if necessary.
+     */
+    private void abandon() {
+
+        RunLoop runLoop = client.getRunLoop();
+        if (runLoop.inExecutorThread()) {
+            releaseAll();
+        } else {
+            runLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseAll();
+                }
+            });
+        }
+    }
+
+    private void releaseAll() {
+
+        releaseHolder();
+        Hedge hedge = this.hedge;
+        if (hedge != null) {
+            this.hedge = null;
+            hedge.release();
+        }
+    }
+
+    private void releaseHolder() {
+
+        OperationHolder holder = this.holder;
+        if (holder == null) return;
+        this.holder = null;
+        holder.abandon(this);
+    }
+
     void complete(int statusCode) {
 
-        if (isDone()) throw new RuntimeException("operation already completed");
+        // The operation may have been cancelled from another thread before
+        // its holder could be notified.
+        if (isDone()) return;
+        List<RequestOperation> followers = land();
+        boolean streamed = bodyFuture.isStreamed();
+        // Followers share a copy, taken before the body is exposed
+        ByteBuffer shared = followers.isEmpty() || streamed ? null : bodyFuture.snapshot();
+
         finalizeStats();
+        cancelTimeout();
+        holder = null;
         headersFuture.complete();
         bodyFuture.complete();
         pushFuture.complete();
         statsFuture.set(stats);
+        Response response;
         try {
-            set(new Response(statusCode, headersFuture.get(), bodyFuture.get(), stats));
-        } catch (ExecutionException | InterruptedException e) {
+            response = new Response(statusCode, headersFuture.get(), bodyFuture.get(), stats);
+        } catch (ExecutionException | InterruptedException | CancellationException e) {
             fail(e);
+            for (RequestOperation follower : followers) follower.fail(e);
+            return;
+        }
+        recordMetrics(null, false);
+        set(response);
+        client.finished(this);
+
+        for (RequestOperation follower : followers) {
+            if (streamed) {
+                // The body was consumed as it arrived; the follower must
+                // fetch its own
+                if (!follower.isDone()) client.queue(follower);
+            } else {
+                follower.complete(statusCode, response.getHeaders(), shared);
+            }
+        }
+    }
+
+    /**
+     * Completes the operation with a response held locally, such as one
+     * served from a {@link ResponseCache}, without dispatching it. The
+     * body is handed to the application as is, rather than copied.
+     */
+    void complete(int statusCode, Headers headers, ByteBuffer body) {
+
+        headersFuture.release();
+        bodyFuture.release();
+        pushFuture.release();
+        if (headers != null) {
+            for (Header header : headers.entries()) headersFuture.provide(header);
         }
+        if (body != null) bodyFuture.provideShared(body);
+        complete(statusCode);
     }
 
+    /**
+     * Derives the timings of the attempt which produced the response, or of
+     * the latest attempt if none did.
+     */
     void finalizeStats() {
-        stats.durationMs = Platform.instance().timestamp() - startMs;
+
+        long now = System.nanoTime();
+        stats.durationMs = toMillis(now - startNanos);
+
+        RequestOperation attempt = responder != null ? responder : this;
+        if (attempt.protocol == null) return;
+        stats.protocol = attempt.protocol;
+        stats.streamId = attempt.streamId;
+        stats.queuedMs = toMillis(attempt.dispatchedNanos - attempt.queuedNanos);
+        if (!attempt.sent) return;
+        long blockedNanos = attempt.blockedNanos;
+        if (attempt.blockedSinceNanos != 0) blockedNanos += now - attempt.blockedSinceNanos;
+        stats.blockedMs = toMillis(attempt.sentNanos - attempt.dispatchedNanos + blockedNanos);
+        if (responder == null) return;
+        stats.latencyMs = toMillis(responseNanos - attempt.sentNanos);
+        stats.serviceMs = toMillis(now - responseNanos);
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Adds the final stats of the operation to the client's metrics.
+     */
+    private void recordMetrics(Throwable error, boolean cancelled) {
+
+        Origin origin = manager != null ? manager.getOrigin() : new Origin(currentRequest.getUrl());
+        client.getMetricsRegistry().forOrigin(origin).record(stats, error, cancelled);
+        if (listener != null) listener.onRequestCompleted(originalRequest, stats, error);
     }
 
     int getRemainingRedirects() {
@@ -163,4 +619,63 @@ class RequestOperation extends CompletableFuture<Response> implements ResponseFu
     public Iterator<ResponseFuture> pushIterator() {
         return pushFuture.iterator();
     }
+
+    @Override
+    public Flow.Publisher<ResponseFuture> pushPublisher(Executor executor) {
+        return pushFuture.asPublisher(executor);
+    }
+
+    /**
+     * A duplicate attempt at an operation, sharing the futures of its
+     * primary. Once it responds first, it is adopted by the primary and
+     * its outcome forwarded; until then its failure is discarded, leaving
+     * the primary attempt to proceed alone.
+     */
+    private static final class Hedge extends RequestOperation {
+
+        private final RequestOperation primary;
+        private boolean adopted;
+
+        Hedge(RequestOperation primary) {
+            super(primary);
+            this.primary = primary;
+        }
+
+        void release() {
+            super.releaseHolder();
+        }
+
+        @Override
+        boolean isHedgeable() {
+            return false;
+        }
+
+        @Override
+        void onResponse(int statusCode) {
+            primary.resolve(this, statusCode);
+        }
+
+        @Override
+        void redirect(Request request) {
+            if (adopted) primary.redirect(request);
+        }
+
+        @Override
+        void complete(int statusCode) {
+            if (adopted) primary.complete(statusCode);
+        }
+
+        @Override
+        public boolean fail(Throwable e) {
+
+            if (adopted) return primary.fail(e);
+            if (primary.hedge == this) primary.hedge = null;
+            return false;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return primary.cancel(mayInterruptIfRunning);
+        }
+    }
 }
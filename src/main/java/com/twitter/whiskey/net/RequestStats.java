@@ -14,16 +14,29 @@ package com.twitter.whiskey.net;
  */
 public class RequestStats {
 
+    /** The protocol of the connection which carried the final attempt. */
     public Protocol protocol;
+    /** The time from submission until the request finished. */
     public long durationMs;
+    /** The time the final attempt waited for a connection. */
     public long queuedMs;
+    /**
+     * The time the final attempt spent on a connection unable to send, such
+     * as behind a pipelined request or for lack of flow control window.
+     */
     public long blockedMs;
+    /** The time from sending the request until its response status arrived. */
     public long latencyMs;
+    /** The time from the response status until the response completed. */
     public long serviceMs;
+    /** Response body bytes received, as framed on the wire, across all attempts. */
     public long rxBytes;
+    /** Request body bytes sent, across all attempts. */
     public long txBytes;
+    /** The number of times the request was sent, including hedges. */
     public int attempts;
     public int redirects;
+    /** The stream carrying the final attempt on its connection. */
     public int streamId;
 
     RequestStats() {
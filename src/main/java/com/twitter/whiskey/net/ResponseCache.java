@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.util.Platform;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * A private, in-memory HTTP response cache, bounded in size and evicting
+ * the least recently used entries first. Configure a {@link WhiskeyClient}
+ * with one via {@link ClientConfiguration.Builder#responseCache}.
+ *
+ * Complete responses to GET requests are stored according to their
+ * {@code cache-control} and {@code expires} headers, or heuristically from
+ * {@code last-modified}. A fresh response is returned without touching the
+ * network or the {@link com.twitter.whiskey.nio.RunLoop}; a stale one with an
+ * {@code etag} or {@code last-modified} validator is revalidated with a
+ * conditional request. Cached bodies are shared, read-only buffers.
+ *
+ * Only responses whose bodies were accumulated are stored: a body consumed
+ * by streaming observers, iterators or publishers is not retained.
+ *
+ * A {@link DiskCache} may be added as a second tier, to which every stored
+ * response is also written and which is consulted on a miss in memory.
+ * Responses too large for memory may still be stored on disk, and those
+ * found on disk are served from there rather than promoted.
+ *
+ * This class is thread-safe.
+ */
+public class ResponseCache {
+
+    private static final int HEURISTIC_DIVISOR = 10;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxSize;
+    private final DiskCache diskCache;
+    private long size;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * @param maxSize the maximum total size, in bytes, of cached responses
+     */
+    public ResponseCache(long maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize the maximum total size, in bytes, of responses cached
+     *                in memory
+     * @param diskCache a persistent tier, or null
+     */
+    public ResponseCache(long maxSize, DiskCache diskCache) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * @return the total size of cached responses, in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * @return the number of responses cached in memory
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of requests served from the cache, including
+     *         those served after successful revalidation
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of cacheable requests which required a full
+     *         response from the network
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Removes the entry for the given URL, if any.
+     */
+    public void remove(String url) {
+
+        synchronized (this) {
+            Entry entry = entries.remove(url);
+            if (entry != null) size -= entry.size;
+        }
+        if (diskCache != null) diskCache.remove(url);
+    }
+
+    /**
+     * Removes all entries, from both memory and disk.
+     */
+    public void evictAll() {
+
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+        if (diskCache != null) {
+            try {
+                diskCache.evictAll();
+            } catch (IOException e) {
+                Platform.LOGGER.error("unable to evict cached responses: " + e);
+            }
+        }
+    }
+
+    /**
+     * Serves the request from the cache where possible, otherwise
+     * dispatches it via the client and stores the response if permitted.
+     */
+    ResponseFuture submit(final WhiskeyClient client, final Request request) {
+
+        final String key = keyOf(request);
+        Request.Method method = request.getMethod();
+        if (method != Request.Method.GET) {
+            // Unsafe methods invalidate any stored response for the resource
+            if (method != Request.Method.HEAD && method != Request.Method.OPTIONS &&
+                method != Request.Method.TRACE) {
+                remove(key);
+            }
+            return client.dispatch(request);
+        }
+
+        CacheControl control = new CacheControl(request.getHeaders());
+        if (control.noStore) return client.dispatch(request);
+
+        long now = System.currentTimeMillis();
+        Entry entry = get(key, request);
+        if (entry != null && entry.isFresh(now, control)) {
+            hit();
+            RequestOperation operation = new RequestOperation(client, request);
+            operation.complete(entry.statusCode, entry.headers, entry.body);
+            return operation;
+        }
+
+        if (entry != null && entry.hasValidators()) {
+            return revalidate(client, request, key, entry);
+        }
+
+        miss();
+        RequestOperation operation = client.dispatch(request);
+        operation.addListener(new Inline.Listener<Response>() {
+            @Override
+            public void onComplete(Response response) {
+                put(key, request, response);
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Issues a conditional request for a stale entry, completing the
+     * returned operation from the entry if it is still valid or with the
+     * new response otherwise.
+     */
+    private ResponseFuture revalidate(
+        final WhiskeyClient client, final Request request, final String key, final Entry entry) {
+
+        Request.Builder builder = new Request.Builder(request);
+        if (entry.etag != null) builder.replaceHeader(Headers.IF_NONE_MATCH, entry.etag);
+        if (entry.lastModified != null) builder.replaceHeader(Headers.IF_MODIFIED_SINCE, entry.lastModified);
+
+        final RequestOperation operation = new RequestOperation(client, request);
+        final RequestOperation validation = client.dispatch(builder.create());
+        validation.addListener(new Inline.Listener<Response>() {
+            @Override
+            public void onComplete(Response response) {
+
+                if (response.getStatusCode() == 304) {
+                    hit();
+                    Entry updated = update(key, entry, response.getHeaders());
+                    operation.complete(updated.statusCode, updated.headers, updated.body);
+                } else {
+                    miss();
+                    put(key, request, response);
+                    operation.complete(response.getStatusCode(), response.getHeaders(), response.getBody());
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                operation.fail(throwable);
+            }
+        });
+        operation.addListener(new Inline.Listener<Response>() {
+            @Override
+            public void onError(Throwable throwable) {
+                validation.cancel(false);
+            }
+        });
+
+        return operation;
+    }
+
+    private synchronized void hit() {
+        hitCount++;
+    }
+
+    private synchronized void miss() {
+        missCount++;
+    }
+
+    /**
+     * @return the entry for the request, if one exists and was stored for a
+     *         request with matching values of the headers it varies on
+     */
+    Entry get(String key, Request request) {
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null && diskCache != null) entry = diskCache.get(key);
+        return entry != null && entry.matches(request) ? entry : null;
+    }
+
+    /**
+     * Stores the response to a request, if it is permitted and useful to do
+     * so, replacing any existing entry for the same resource.
+     */
+    void put(String key, Request request, Response response) {
+
+        Entry entry = Entry.create(request, response, System.currentTimeMillis());
+        if (entry == null) {
+            remove(key);
+            return;
+        }
+        store(key, entry);
+    }
+
+    /**
+     * Refreshes an entry with the headers of a 304 response.
+     */
+    Entry update(String key, Entry entry, Headers notModified) {
+
+        Headers headers = new Headers(entry.headers);
+        if (notModified == null) notModified = new Headers();
+        for (String name : notModified.keySet()) {
+            if (name.equals(Headers.CONTENT_LENGTH)) continue;
+            headers.remove(name);
+            for (String value : notModified.get(name)) headers.put(name, value);
+        }
+
+        Entry updated = new Entry(
+            entry.statusCode, headers, entry.body, entry.varying, System.currentTimeMillis());
+        store(key, updated);
+        return updated;
+    }
+
+    private void store(String key, Entry entry) {
+        storeInMemory(key, entry);
+        if (diskCache != null) diskCache.put(key, entry);
+    }
+
+    private synchronized void storeInMemory(String key, Entry entry) {
+
+        Entry previous = entries.remove(key);
+        if (previous != null) size -= previous.size;
+        if (entry.size > maxSize) return;
+
+        entries.put(key, entry);
+        size += entry.size;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    static String keyOf(Request request) {
+        return request.getUrl().toExternalForm();
+    }
+
+    /**
+     * The directives of a cache-control header relevant to a private cache,
+     * along with the legacy {@code pragma: no-cache}.
+     */
+    static final class CacheControl {
+
+        boolean noStore;
+        boolean noCache;
+        long maxAge = -1;
+
+        CacheControl(Headers headers) {
+
+            for (String pragma : headers.get(Headers.PRAGMA)) {
+                if (pragma.trim().equalsIgnoreCase("no-cache")) noCache = true;
+            }
+
+            for (String value : headers.get(Headers.CACHE_CONTROL)) {
+                for (String directive : value.split(",")) {
+                    String name = directive.trim().toLowerCase(Locale.US);
+                    String argument = null;
+                    int equals = name.indexOf('=');
+                    if (equals >= 0) {
+                        argument = name.substring(equals + 1).trim();
+                        name = name.substring(0, equals).trim();
+                    }
+                    if (name.equals("no-store")) {
+                        noStore = true;
+                    } else if (name.equals("no-cache")) {
+                        noCache = true;
+                    } else if (name.equals("max-age") && argument != null) {
+                        maxAge = parseSeconds(argument);
+                    }
+                }
+            }
+        }
+
+        private static long parseSeconds(String argument) {
+            if (argument.startsWith("\"") && argument.endsWith("\"") && argument.length() > 1) {
+                argument = argument.substring(1, argument.length() - 1);
+            }
+            try {
+                return Math.max(0, Long.parseLong(argument));
+            } catch (NumberFormatException e) {
+                // A malformed max-age is treated as stale (RFC 7234 4.2.1)
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * A stored response, along with the timing information needed to
+     * determine its freshness.
+     */
+    static final class Entry {
+
+        final int statusCode;
+        final Headers headers;
+        final ByteBuffer body;
+        final Headers varying;
+        final String etag;
+        final String lastModified;
+        final boolean noCache;
+        // Wall-clock times, in milliseconds, at which the response was
+        // generated by the origin, as corrected for its age on receipt,
+        // and at which it becomes stale
+        final long responseMs;
+        final long birthMs;
+        final long expiryMs;
+        final long size;
+
+        Entry(int statusCode, Headers headers, ByteBuffer body, Headers varying, long responseMs) {
+
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+            this.varying = varying;
+            this.responseMs = responseMs;
+            etag = headers.getFirst(Headers.ETAG);
+            lastModified = headers.getFirst(Headers.LAST_MODIFIED);
+
+            CacheControl control = new CacheControl(headers);
+            noCache = control.noCache;
+
+            long dateMs = dateOf(headers, Headers.DATE, responseMs);
+            long apparentAgeMs = Math.max(0, responseMs - dateMs);
+            long ageMs = 0;
+            String age = headers.getFirst(Headers.AGE);
+            if (age != null) ageMs = new Header(Headers.AGE, age).getLongValue() * 1000;
+            birthMs = responseMs - Math.max(apparentAgeMs, ageMs);
+
+            long lifetimeMs;
+            if (control.maxAge >= 0) {
+                lifetimeMs = control.maxAge * 1000;
+            } else if (headers.getFirst(Headers.EXPIRES) != null) {
+                // An invalid date, such as 0, means already expired
+                Date expires = Header.parseDate(headers.getFirst(Headers.EXPIRES));
+                lifetimeMs = expires != null ? Math.max(0, expires.getTime() - dateMs) : 0;
+            } else if (lastModified != null) {
+                long lastModifiedMs = dateOf(headers, Headers.LAST_MODIFIED, dateMs);
+                lifetimeMs = Math.max(0, dateMs - lastModifiedMs) / HEURISTIC_DIVISOR;
+            } else {
+                lifetimeMs = 0;
+            }
+            expiryMs = birthMs + lifetimeMs;
+
+            long headerSize = 0;
+            for (Header header : headers.entries()) {
+                headerSize += header.getKey().length() + header.getValue().length();
+            }
+            size = (body != null ? body.remaining() : 0) + headerSize;
+        }
+
+        /**
+         * @return an entry for the response, or null if it may not be stored
+         *         or could never be used
+         */
+        static Entry create(Request request, Response response, long responseMs) {
+
+            if (response.getStatusCode() != 200) return null;
+            Headers headers = response.getHeaders();
+            if (headers == null) return null;
+            if (new CacheControl(request.getHeaders()).noStore) return null;
+
+            ByteBuffer body = response.getBody();
+            if (body == null) {
+                // Either empty, or consumed by a streaming subscriber
+                String length = headers.getFirst(Headers.CONTENT_LENGTH);
+                if (length == null || new Header(Headers.CONTENT_LENGTH, length).getLongValue() != 0) {
+                    return null;
+                }
+            }
+
+            Headers varying = new Headers();
+            for (String value : headers.get(Headers.VARY)) {
+                for (String name : value.split(",")) {
+                    name = name.trim().toLowerCase(Locale.US);
+                    if (name.equals("*")) return null;
+                    if (!name.isEmpty()) varying.put(name, join(request.getHeaders().get(name)));
+                }
+            }
+
+            Entry entry = new Entry(200, new Headers(headers), share(body), varying, responseMs);
+            if (new CacheControl(headers).noStore) return null;
+            if (!entry.isFresh(responseMs, null) && !entry.hasValidators()) return null;
+            return entry;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        boolean isFresh(long nowMs, CacheControl request) {
+
+            if (noCache || nowMs >= expiryMs) return false;
+            if (request == null) return true;
+            if (request.noCache) return false;
+            return request.maxAge < 0 || nowMs - birthMs <= request.maxAge * 1000;
+        }
+
+        boolean matches(Request request) {
+
+            for (String name : varying.keySet()) {
+                if (!join(request.getHeaders().get(name)).equals(varying.getFirst(name))) return false;
+            }
+            return true;
+        }
+
+        private static long dateOf(Headers headers, String name, long defaultMs) {
+            Date date = Header.parseDate(headers.getFirst(name));
+            return date != null ? date.getTime() : defaultMs;
+        }
+
+        static String join(Collection<String> values) {
+            StringBuilder joined = new StringBuilder();
+            for (String value : values) {
+                if (joined.length() > 0) joined.append(',');
+                joined.append(value.trim());
+            }
+            return joined.toString();
+        }
+
+        /**
+         * Copies a body once into a buffer which may then be shared, read
+         * only, between all responses served from the entry. Read-only
+         * bodies are already shared in this way, and are not copied again.
+         */
+        private static ByteBuffer share(ByteBuffer body) {
+            if (body == null) return null;
+            if (body.isReadOnly()) return body.slice();
+            ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+            copy.put(body.duplicate());
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+    }
+}
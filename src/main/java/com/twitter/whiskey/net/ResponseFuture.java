@@ -6,10 +6,12 @@
 
 package com.twitter.whiskey.net;
 
+import com.twitter.whiskey.futures.Flow;
 import com.twitter.whiskey.futures.ListenableFuture;
 import com.twitter.whiskey.futures.Observer;
 
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 /**
  * {@link ListenableFuture} wrapping an HTTP response. Also provides access to
@@ -64,6 +66,16 @@ public interface ResponseFuture extends ListenableFuture<Response> {
      */
     public Iterator<ResponseFuture> pushIterator();
 
+    /**
+     * Returns a publisher of ResponseFutures representing pushed server
+     * content, delivered as they are requested by the subscriber. As with
+     * {@link #addPushObserver}, only the first subscriber is guaranteed to
+     * cover all pushed content for a given request.
+     *
+     * @param executor the executor on which the subscriber is signalled
+     */
+    public Flow.Publisher<ResponseFuture> pushPublisher(Executor executor);
+
     /**
      * @return a future representation of the final response's headers
      */
@@ -13,7 +13,7 @@ import com.twitter.whiskey.futures.Listener;
  *
  * @author Michael Schore
  */
-interface Session {
+interface Session extends OperationHolder {
     /**
      * @return true if the session can handle future requests
      */
@@ -59,6 +59,24 @@ interface Session {
      */
     void queue(RequestOperation operation);
 
+    /**
+     * Samples the session's gauges. May be called from any thread; values
+     * are read without synchronization, so may be momentarily stale.
+     */
+    Metrics.SessionMetrics getMetrics();
+
+    /**
+     * Stops the session accepting requests and closes it once those it
+     * carries have completed. Multiplexed sessions notify the server with
+     * a GOAWAY.
+     */
+    void shutdown();
+
+    /**
+     * Closes the session immediately, failing any requests it carries.
+     */
+    void terminate(Throwable cause);
+
     /**
      * Adds a listener to handle session closure. {@link Listener#onComplete(Object)} is called
      * when the session closes normally and {@link Listener#onError(Throwable)} is called when
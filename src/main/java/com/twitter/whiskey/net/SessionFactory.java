@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.nio.Socket;
+
+/**
+ * Creates protocol-specific {@link Session}s over connected {@link Socket}s.
+ * {@link SessionManager} selects a factory by the {@link Protocol} spoken
+ * over the socket, whether specified directly or negotiated.
+ */
+interface SessionFactory {
+
+    /**
+     * @return a new session handling requests over the connected socket
+     */
+    Session newSession(SessionManager manager, ClientConfiguration configuration, Socket socket);
+}
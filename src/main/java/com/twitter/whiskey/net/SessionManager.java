@@ -6,19 +6,25 @@
 
 package com.twitter.whiskey.net;
 
-import com.twitter.whiskey.futures.Listener;
 import com.twitter.whiskey.nio.RunLoop;
 import com.twitter.whiskey.nio.Socket;
 import com.twitter.whiskey.nio.SSLSocket;
 import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.util.LatencyHistogram;
 import com.twitter.whiskey.util.LinkedHashDeque;
 import com.twitter.whiskey.util.Origin;
+import com.twitter.whiskey.util.Platform;
 import com.twitter.whiskey.util.UniqueMultiMap;
 
 import java.net.ConnectException;
+import java.net.ProtocolException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.concurrent.Executor;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -29,31 +35,89 @@ import javax.net.ssl.SSLEngine;
  *
  * @author Michael Schore
  */
-class SessionManager {
+class SessionManager implements OperationHolder {
 
+    private static final Map<Protocol, SessionFactory> SESSION_FACTORIES = new EnumMap<>(Protocol.class);
+    static {
+        SESSION_FACTORIES.put(Protocol.SPDY_3_1, new SessionFactory() {
+            @Override
+            public Session newSession(SessionManager manager, ClientConfiguration configuration, Socket socket) {
+                return new SpdySession(manager, configuration, socket);
+            }
+        });
+        SESSION_FACTORIES.put(Protocol.HTTP_1_1, new SessionFactory() {
+            @Override
+            public Session newSession(SessionManager manager, ClientConfiguration configuration, Socket socket) {
+                return new Http11Session(manager, configuration, socket);
+            }
+        });
+        SESSION_FACTORIES.put(Protocol.HTTP_2_0, new SessionFactory() {
+            @Override
+            public Session newSession(SessionManager manager, ClientConfiguration configuration, Socket socket) {
+                return new Http2Session(manager, configuration, socket);
+            }
+        });
+    }
+
+    private final WhiskeyClient client;
+    private final RunLoop runLoop;
     private final Origin origin;
     private final ClientConfiguration configuration;
+    private final MetricsRegistry.OriginRecorder recorder;
     private final Deque<RequestOperation> pendingOperations = new LinkedHashDeque<>();
+    // Hedges awaiting a new connection, kept apart so they are never
+    // dispatched to the session carrying their primary
+    private final Deque<RequestOperation> pendingHedges = new LinkedHashDeque<>();
+    private final Deque<RequestOperation> discretionaryOperations = new LinkedHashDeque<>();
+    private final LatencyHistogram latencies = new LatencyHistogram(LATENCY_WINDOW);
     private final SSLContext sslContext;
     private final UniqueMultiMap<Integer, Socket> pendingSocketMap = new UniqueMultiMap<>();
     private final UniqueMultiMap<Integer, Session> openSessionMap = new UniqueMultiMap<>();
+    private final Protocol defaultProtocol;
     private final int maxConnectionsToOrigin;
     private final boolean secure;
+    private double hedgeTokens;
+    private boolean shutdown = false;
+    // SPDY settings the origin has asked to be persisted
+    private final SettingsStore settingsStore;
 
     private static final int OFFLINE = -1;
     private static final int GENERIC = 0;
 
+    private static final int LATENCY_WINDOW = 1000;
+    private static final int MIN_HEDGE_SAMPLES = 16;
+    private static final double MAX_HEDGE_TOKENS = 10;
+
     // TODO: update connectivity via ConnectivityManager/BroadcastReceiver/etc
     // TODO: connect new sockets on connectivity change if requests are pending
     private volatile int connectivity = GENERIC;
 
-    SessionManager(Origin origin, ClientConfiguration configuration) {
+    SessionManager(WhiskeyClient client, Origin origin, ClientConfiguration configuration,
+                   MetricsRegistry.OriginRecorder recorder) {
 
+        this.client = client;
+        this.runLoop = client.getRunLoop();
+        this.settingsStore = client.getSettingsStore();
         this.configuration = configuration;
         this.origin = origin;
+        this.recorder = recorder;
         this.maxConnectionsToOrigin = configuration.getMaxTcpConnections();
         secure = origin.getScheme().equals("https");
         sslContext = secure ? configuration.getSslContext() : null;
+        defaultProtocol = determineDefaultProtocol();
+    }
+
+    /**
+     * @return the protocol to use when none is negotiated for a connection
+     */
+    private Protocol determineDefaultProtocol() {
+
+        // Per RFC 7301, a server that ignores ALPN is assumed to speak HTTP/1.1.
+        if (secure && configuration.getUpgradeStrategy() == ClientConfiguration.UpgradeStrategy.ALPN &&
+            configuration.getProtocols().contains(Protocol.HTTP_1_1)) {
+            return Protocol.HTTP_1_1;
+        }
+        return configuration.getPreferredProtocol();
     }
 
     void queue(final RequestOperation operation) {
@@ -65,6 +129,9 @@ class SessionManager {
             return;
         }
 
+        operation.setManager(this);
+        if (operation.isHedgeable()) scheduleHedge(operation);
+
         int openSessionCount = openSessionMap.get(currentConnectivity).size();
 
         // If an active session with capacity is available in the pool, dispatch the request
@@ -76,57 +143,237 @@ class SessionManager {
                 openSessionMap.put(currentConnectivity, session);
                 if (session.isActive() && session.getCapacity() > 0) {
                     session.queue(operation);
+                    releaseDeferred(session);
                     return;
                 }
             }
         }
 
+        // A discretionary operation waits for a connection opened by other
+        // traffic, rather than opening one itself.
+        if (operation.isDeferrable()) {
+            defer(operation);
+            return;
+        }
+
         // If no active sessions are available, queue the operation locally.
-        // Listen for cancellation/timeout.
-        operation.addListener(new Listener<Response>() {
-            @Override
-            public void onComplete(Response result) {}
+        operation.hold(this, null);
+        pendingOperations.add(operation);
+
+        // Open new socket connection(s) as necessary.
+        openSessionCount = openSessionMap.get(currentConnectivity).size();
+        final int pendingSocketCount = pendingSocketMap.get(currentConnectivity).size();
+        final int availableCount = maxConnectionsToOrigin - pendingSocketCount - openSessionCount;
+        for (int i = 0; i < availableCount; i++) {
+            createSocket(currentConnectivity);
+        }
+    }
+
+    @Override
+    public void abandon(RequestOperation operation) {
+        if (!pendingOperations.remove(operation) && !pendingHedges.remove(operation)) {
+            discretionaryOperations.remove(operation);
+        }
+        drainIfShutdown();
+    }
+
+    /**
+     * Stops new connections being opened for hedges, dispatches deferred
+     * operations without waiting for other traffic, and shuts down each
+     * session once no operations remain waiting for one.
+     */
+    void shutdown() {
+
+        shutdown = true;
+        RequestOperation operation;
+        while ((operation = discretionaryOperations.poll()) != null) {
+            operation.cancelDeferral();
+            queue(operation);
+        }
+        drainIfShutdown();
+    }
+
+    /**
+     * Fails operations awaiting a connection and closes every session
+     * immediately.
+     */
+    void terminate(Throwable cause) {
+
+        shutdown = true;
+        failOperations(cause);
+        RequestOperation operation;
+        while ((operation = discretionaryOperations.poll()) != null) {
+            operation.fail(cause);
+        }
+        for (Session session : new ArrayList<>(openSessionMap.inverse().keySet())) {
+            session.terminate(cause);
+        }
+    }
+
+    /**
+     * @return true if the manager has no open sessions and no connections
+     *         pending
+     */
+    boolean isIdle() {
+        return openSessionMap.isEmpty() && pendingSocketMap.isEmpty();
+    }
+
+    /**
+     * Once shut down, sessions are shut down as soon as no operation waits
+     * for capacity on them; operations they already carry are completed.
+     */
+    private void drainIfShutdown() {
+
+        if (!shutdown || !pendingOperations.isEmpty() || !pendingHedges.isEmpty() ||
+            !discretionaryOperations.isEmpty()) {
+            return;
+        }
+        for (Session session : new ArrayList<>(openSessionMap.inverse().keySet())) {
+            session.shutdown();
+        }
+    }
 
+    /**
+     * Holds a discretionary operation until a session has spare capacity or
+     * its deadline passes, whereupon it is queued as any other.
+     */
+    private void defer(final RequestOperation operation) {
+
+        Request request = operation.getOriginalRequest();
+        long delay = request.getDiscretionaryUnit().toMillis(request.getDiscretionaryTimeout());
+        operation.hold(this, null);
+        discretionaryOperations.add(operation);
+        operation.setDeferralTimer(runLoop.schedule(new Runnable() {
             @Override
-            public void onError(Throwable throwable) {
-                if (pendingOperations.contains(operation)) {
-                    pendingOperations.remove(operation);
-                }
+            public void run() {
+                if (discretionaryOperations.remove(operation)) queue(operation);
             }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Dispatches deferred operations to a session with spare capacity, which
+     * is cheaper than waking an idle connection for them later.
+     */
+    private void releaseDeferred(Session session) {
+
+        RequestOperation operation;
+        while (session.getCapacity() > 0 && (operation = discretionaryOperations.poll()) != null) {
+            operation.cancelDeferral();
+            session.queue(operation);
+        }
+    }
+
+    /**
+     * Records the time taken for a request to this origin to begin receiving
+     * its response.
+     */
+    void recordLatency(long nanos) {
+        latencies.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Schedules a hedge for the operation at the configured percentile of
+     * recent response latency, provided that falls within its deadline.
+     * Every eligible request contributes to the budget from which hedges
+     * are paid, whether or not it is hedged.
+     */
+    private void scheduleHedge(final RequestOperation operation) {
+
+        double percentile = configuration.getHedgePercentile();
+        if (percentile <= 0) return;
+
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + configuration.getHedgeBudget());
+        if (latencies.getCount() < MIN_HEDGE_SAMPLES) return;
 
+        long delay = Math.max(1, latencies.getPercentile(percentile));
+        if (delay >= operation.getRemainingMillis()) return;
+
+        operation.setHedgeTimer(runLoop.schedule(new Runnable() {
             @Override
-            public Executor getExecutor() {
-                return RunLoop.instance();
+            public void run() {
+                hedge(operation);
             }
-        });
+        }, delay, TimeUnit.MILLISECONDS));
+    }
 
-        pendingOperations.add(operation);
+    /**
+     * Issues a hedge for an operation which has yet to receive a response,
+     * on a session other than the one carrying it. If there is none, a new
+     * connection is opened where permitted.
+     */
+    private void hedge(RequestOperation operation) {
 
-        // Open new socket connection(s) as necessary.
-        openSessionCount = openSessionMap.get(currentConnectivity).size();
-        final int pendingSocketCount = pendingSocketMap.get(currentConnectivity).size();
-        final int availableCount = maxConnectionsToOrigin - pendingSocketCount - openSessionCount;
-        for (int i = 0; i < availableCount; i++) {
+        // Hedging an operation still awaiting a connection would gain nothing
+        OperationHolder holder = operation.getHolder();
+        if (shutdown || !operation.awaitsHedge() || holder == null || holder == this || hedgeTokens < 1) return;
+
+        // Unlike a primary request, a hedge may be sent on a session yet to
+        // complete a response.
+        final int currentConnectivity = connectivity;
+        for (Session session : openSessionMap.get(currentConnectivity)) {
+            if (session != holder && !session.isClosed() && session.isConnected() && session.getCapacity() > 0) {
+                hedgeTokens--;
+                session.queue(operation.newHedge());
+                return;
+            }
+        }
+
+        int openSessionCount = openSessionMap.get(currentConnectivity).size();
+        int pendingSocketCount = pendingSocketMap.get(currentConnectivity).size();
+        if (openSessionCount + pendingSocketCount < maxConnectionsToOrigin) {
+            hedgeTokens--;
+            RequestOperation hedge = operation.newHedge();
+            hedge.hold(this, null);
+            pendingHedges.add(hedge);
             createSocket(currentConnectivity);
         }
     }
 
     void poll(Session session, int capacity) {
-        for (int i = 0; i < capacity && i < pendingOperations.size(); i++) {
+        for (int i = 0; i < capacity && !pendingOperations.isEmpty(); i++) {
             session.queue(pendingOperations.poll());
         }
+        if (!discretionaryOperations.isEmpty() && !session.isClosed()) releaseDeferred(session);
+        drainIfShutdown();
     }
 
     public Origin getOrigin() {
         return origin;
     }
 
+    RunLoop getRunLoop() {
+        return runLoop;
+    }
+
+    /**
+     * Records a SPDY setting the origin asked to be persisted, to be
+     * returned on later connections.
+     */
+    void persistSetting(int id, int value) {
+        settingsStore.put(origin, id, value);
+    }
+
+    void clearPersistedSettings() {
+        settingsStore.clear(origin);
+    }
+
+    /**
+     * @return the SPDY settings persisted for the origin, keyed by id
+     */
+    Map<Integer, Integer> getPersistedSettings() {
+        return settingsStore.get(origin);
+    }
+
     private void failOperations(Throwable e) {
 
         RequestOperation operation;
         while ((operation = pendingOperations.poll()) != null) {
             operation.fail(e);
         }
+        while ((operation = pendingHedges.poll()) != null) {
+            operation.fail(e);
+        }
     }
 
     private SSLEngine newSslEngine() throws NoSuchAlgorithmException {
@@ -138,7 +385,24 @@ class SessionManager {
             engine = SSLContext.getDefault().createSSLEngine();
         }
 
-        // TODO: setup protocol negotiation
+        switch (configuration.getUpgradeStrategy()) {
+            case ALPN:
+                Set<Protocol> protocols = configuration.getProtocols();
+                String[] alpnIds = new String[protocols.size()];
+                int i = 0;
+                for (Protocol protocol : protocols) {
+                    alpnIds[i++] = protocol.getAlpnId();
+                }
+                if (!Platform.instance().setApplicationProtocols(engine, alpnIds)) {
+                    Platform.LOGGER.warn("ALPN unsupported on this platform, using " + defaultProtocol);
+                }
+                break;
+            case NPN:
+            case DIRECT:
+            default:
+                break;
+        }
+
         return engine;
     }
 
@@ -156,9 +420,10 @@ class SessionManager {
                 return;
             }
 
-            socket = new SSLSocket(origin, RunLoop.instance(), engine);
+            socket = new SSLSocket(origin, runLoop, engine, defaultProtocol,
+                configuration.getHandshakeExecutor());
         } else {
-            socket = new Socket(origin, RunLoop.instance());
+            socket = new Socket(origin, runLoop, defaultProtocol);
         }
 
         pendingSocketMap.put(connectivity, socket);
@@ -166,12 +431,18 @@ class SessionManager {
             @Override
             public void onComplete(Origin result) {
                 pendingSocketMap.removeValue(socket);
+                EventListener listener = configuration.getEventListener();
+                if (listener != null && socket instanceof SSLSocket) {
+                    listener.onHandshakeCompleted(origin, socket.getProtocol(),
+                        ((SSLSocket) socket).getHandshakeDuration());
+                }
                 createSession(socket);
             }
 
             @Override
             public void onError(Throwable throwable) {
                 pendingSocketMap.removeValue(socket);
+                if (shutdown) client.checkTermination();
 
                 // If connectivity has changed operations may still succeed.
                 // Otherwise, if there are no more pending sockets assume we
@@ -188,25 +459,33 @@ class SessionManager {
     private void createSession(final Socket socket) {
 
         final int currentConnectivity = connectivity;
-        final Session session;
-        switch(socket.getProtocol()) {
-            case SPDY_3_1:
-                session = new SpdySession(this, configuration, socket);
-                break;
-            default:
-                throw new RuntimeException("unsupported protocol");
+        final Protocol protocol = socket.getProtocol();
+        final SessionFactory factory = SESSION_FACTORIES.get(protocol);
+        if (factory == null || !configuration.getProtocols().contains(protocol)) {
+            socket.close();
+            if (pendingSocketMap.isEmpty() && openSessionMap.isEmpty()) {
+                failOperations(new ProtocolException("unsupported protocol: " + protocol));
+            }
+            if (shutdown) client.checkTermination();
+            return;
         }
 
+        final Session session = factory.newSession(this, configuration, socket);
         openSessionMap.put(currentConnectivity, session);
+        recorder.register(session);
         session.addCloseListener(new Inline.Listener<Void>() {
             @Override
             public void onComplete(Void result) {
                 openSessionMap.removeValue(session);
+                recorder.unregister(session);
+                if (shutdown) client.checkTermination();
             }
 
             @Override
             public void onError(Throwable throwable) {
                 openSessionMap.removeValue(session);
+                recorder.unregister(session);
+                if (shutdown) client.checkTermination();
             }
         });
 
@@ -214,5 +493,10 @@ class SessionManager {
         while (session.getCapacity() > 0 && !pendingOperations.isEmpty()) {
             session.queue(pendingOperations.poll());
         }
+        while (session.getCapacity() > 0 && !pendingHedges.isEmpty()) {
+            session.queue(pendingHedges.poll());
+        }
+        releaseDeferred(session);
+        drainIfShutdown();
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import java.util.Map;
+
+/**
+ * Holds the SPDY settings which servers ask a client to persist. Per the
+ * SPDY/3.1 SETTINGS semantics, persisted settings are returned to the
+ * server on each new connection to the same origin, and are applied to the
+ * new session before the server's own SETTINGS arrive.
+ *
+ * Stores are called on the {@link com.twitter.whiskey.nio.RunLoop}, so
+ * must be fast, and must be thread-safe if shared between clients.
+ */
+public interface SettingsStore {
+
+    /**
+     * @return the values persisted for the origin, keyed by setting id; empty
+     *         if there are none
+     */
+    Map<Integer, Integer> get(Origin origin);
+
+    /**
+     * Persists a single setting for the origin, replacing any previous value.
+     */
+    void put(Origin origin, int id, int value);
+
+    /**
+     * Discards every setting persisted for the origin, as requested by a
+     * server with the clear flag of a SETTINGS frame.
+     */
+    void clear(Origin origin);
+}
@@ -102,6 +102,14 @@ public class SpdyFrameDecoder {
         state = State.READ_COMMON_HEADER;
     }
 
+    /**
+     * Releases the native state of the header block decompressor. The
+     * decoder may not be used afterwards.
+     */
+    public void end() {
+        headerBlockDecoder.end();
+    }
+
     public void decode(ByteBuffer buffer) {
         boolean last;
         int statusCode;
@@ -36,6 +36,14 @@ class SpdyFrameEncoder {
         version = spdyVersion.getVersion();
     }
 
+    /**
+     * Releases the native state of the header block compressor. The encoder
+     * may not be used to encode header blocks afterwards.
+     */
+    public void end() {
+        headerBlockEncoder.end();
+    }
+
     private void writeControlFrameHeader(ByteBuffer buffer, int type, byte flags, int length) {
         buffer.putShort((short) (version | 0x8000));
         buffer.putShort((short) type);
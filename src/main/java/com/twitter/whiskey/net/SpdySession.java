@@ -8,21 +8,23 @@ package com.twitter.whiskey.net;
 
 import com.twitter.whiskey.futures.CompletableFuture;
 import com.twitter.whiskey.futures.Listener;
-import com.twitter.whiskey.nio.RunLoop;
+import com.twitter.whiskey.futures.Observer;
 import com.twitter.whiskey.nio.Socket;
 import com.twitter.whiskey.futures.Inline;
 import com.twitter.whiskey.util.Origin;
-import com.twitter.whiskey.util.Platform;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 
+import static com.twitter.whiskey.net.FrameTracer.END_STREAM;
+import static com.twitter.whiskey.net.FrameTracer.Type.*;
 import static com.twitter.whiskey.net.SpdyConstants.*;
 
 /**
@@ -33,7 +35,6 @@ import static com.twitter.whiskey.net.SpdyConstants.*;
  */
 class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
-    private static final Map<Origin, SpdySettings> storedSettings = new HashMap<>();
     private static final int DEFAULT_BUFFER_SIZE = 65536;
 
     private final Origin origin;
@@ -44,6 +45,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
     private final SpdyFrameEncoder frameEncoder;
     private final SpdyStreamManager activeStreams = new SpdyStreamManager();
     private final Socket socket;
+    private final FrameTracer tracer;
 
     private ByteBuffer inputBuffer;
     private Map<Integer, Long> sentPingMap = new TreeMap<>();
@@ -68,6 +70,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         this.manager = manager;
         this.origin = manager.getOrigin();
         this.socket = socket;
+        tracer = FrameTracer.create(configuration, origin);
 
         frameDecoder = new SpdyFrameDecoder(SpdyVersion.SPDY_3_1, this);
         frameEncoder = new SpdyFrameEncoder(SpdyVersion.SPDY_3_1);
@@ -79,6 +82,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         closeFuture = new CompletableFuture<>();
         socket.addCloseListener(new SocketCloseListener());
         sendClientSettings();
+        sendPersistedSettings();
         sendPing();
 
         int windowDelta = sessionReceiveWindow - DEFAULT_INITIAL_WINDOW_SIZE;
@@ -93,8 +97,9 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         socket.read(inputBuffer).addListener(new Inline.Listener<ByteBuffer>() {
             @Override
             public void onComplete(ByteBuffer result) {
-                if (inError()) return; // session is unrecoverable, halt decoding
+                if (inError() || !socket.isConnected()) return; // session is unrecoverable, halt decoding
                 frameDecoder.decode(result);
+                if (closeIfDrained()) return;
                 result.compact();
                 listen();
             }
@@ -103,7 +108,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
     @Override
     public boolean isOpen() {
-        return !receivedGoAwayFrame && socket.isConnected();
+        return !receivedGoAwayFrame && !sentGoAwayFrame && socket.isConnected();
     }
 
     @Override
@@ -118,12 +123,12 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
     @Override
     public boolean isClosed() {
-        return receivedGoAwayFrame || !socket.isConnected();
+        return receivedGoAwayFrame || sentGoAwayFrame || !socket.isConnected();
     }
 
     @Override
     public boolean isDraining() {
-        return receivedGoAwayFrame && socket.isConnected();
+        return (receivedGoAwayFrame || sentGoAwayFrame) && socket.isConnected();
     }
 
     @Override
@@ -137,6 +142,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
     @Override
     public int getCapacity() {
+        if (sentGoAwayFrame) return 0;
         return remoteMaxConcurrentStreams - activeStreams.getLocalSize();
     }
 
@@ -154,32 +160,66 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         stream.open(streamId, initialSendWindow, configuration.getStreamReceiveWindow());
         activeStreams.add(stream);
 
-        // TODO: implement via interrupts to avoid unnecessary calls
-        operation.addListener(new Listener<Response>() {
-            @Override
-            public void onComplete(Response result) {}
-
-            @Override
-            public void onError(Throwable throwable) {
-                if (activeStreams.contains(stream)) {
-                    activeStreams.remove(stream);
-                    sendRstStream(streamId, SPDY_STREAM_CANCEL);
-                }
-            }
-
-            @Override
-            public Executor getExecutor() {
-                return RunLoop.instance();
-            }
-        });
+        operation.hold(this, stream);
+        operation.onDispatched(Protocol.SPDY_3_1, streamId);
         boolean hasBody = stream.hasPendingData();
         sendSynStream(
             streamId, stream.getPriority(), !hasBody, stream.getCanonicalHeaders());
+        operation.onSent();
         if (hasBody) {
             sendData(stream);
         }
     }
 
+    @Override
+    public Metrics.SessionMetrics getMetrics() {
+        return new Metrics.SessionMetrics(Protocol.SPDY_3_1, activeStreams.size(), sessionSendWindow,
+            sessionReceiveWindow, socket.getQueuedWriteBytes(), latency,
+            tracer != null ? tracer.snapshot() : Collections.<FrameTracer.Event>emptyList());
+    }
+
+    @Override
+    public void abandon(RequestOperation operation) {
+
+        SpdyStream stream = operation.getStream();
+        if (stream == null || !activeStreams.contains(stream)) return;
+
+        activeStreams.remove(stream);
+        stream.abandon();
+        sendRstStream(stream.getStreamId(), SPDY_STREAM_CANCEL);
+        if (!closeIfDrained()) manager.poll(this, getCapacity());
+    }
+
+    @Override
+    public void shutdown() {
+        sendGoAway(SPDY_SESSION_OK);
+    }
+
+    @Override
+    public void terminate(Throwable cause) {
+
+        Iterator<SpdyStream> i = activeStreams.iterator();
+        while (i.hasNext()) {
+            SpdyStream stream = i.next();
+            i.remove();
+            stream.close(cause);
+        }
+        socket.close();
+    }
+
+    /**
+     * Closes the connection once a GOAWAY has been sent and the last stream
+     * started before it has finished, after any frames already written.
+     *
+     * @return true if the connection is closing
+     */
+    private boolean closeIfDrained() {
+
+        if (!sentGoAwayFrame || !activeStreams.isEmpty() || !socket.isConnected()) return false;
+        socket.closeAfterWrites();
+        return true;
+    }
+
     @Override
     public void addCloseListener(Listener<Void> listener) {
         closeFuture.addListener(listener);
@@ -211,10 +251,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
      * a RST_STREAM frame with the status PROTOCOL_ERROR.
      */
 
-        Platform.LOGGER.debug(
-            "read DATA\n--> Stream-ID = " + streamId + "\n--> Size = " + data.remaining() +
-                "\n--> Last: " + last
-        );
+        if (tracer != null) tracer.received(DATA, streamId, last ? END_STREAM : 0, data.remaining());
         SpdyStream stream = activeStreams.get(streamId);
 
         // Check if session flow control is violated
@@ -268,12 +305,8 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
         // Update stream receive window size
         stream.reduceReceiveWindow(data.remaining());
-
-        if (stream.getReceiveWindow() <= initialReceiveWindow / 2) {
-            int deltaWindowSize = initialReceiveWindow - stream.getReceiveWindow();
-            stream.increaseReceiveWindow(deltaWindowSize);
-            sendWindowUpdate(streamId, deltaWindowSize);
-        }
+        if (stream.isDemandDriven()) withholdWindow(stream, data.remaining());
+        updateReceiveWindow(stream);
 
         try {
             stream.onData(data);
@@ -294,6 +327,8 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
     @Override
     public void readSynStreamFrame(int streamId, int associatedToStreamId, byte priority, boolean last, boolean unidirectional) {
+
+        if (tracer != null) tracer.received(PUSH_PROMISE, associatedToStreamId, last ? END_STREAM : 0, streamId);
     /*
      * SPDY SYN_STREAM frame processing requirements:
      *
@@ -321,9 +356,10 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         final SpdyStream parent = activeStreams.get(associatedToStreamId);
         if (parent == null || parent.isClosed()) {
             sendRstStream(streamId, SPDY_STREAM_PROTOCOL_ERROR);
+            return;
         }
 
-        final SpdyStream stream = new SpdyStream.Pushed(parent, priority);
+        final SpdyStream stream = new SpdyStream.Pushed(this, parent, priority);
         stream.open(streamId, initialSendWindow, initialReceiveWindow);
 
         lastGoodStreamId = streamId;
@@ -339,7 +375,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
      * it must issue a stream error with the status code STREAM_IN_USE.
      */
 
-        Platform.LOGGER.debug("read SYN_REPLY\n--> Stream-ID = " + streamId + "\n--> Last = " + last);
+        if (tracer != null) tracer.received(HEADERS, streamId, last ? END_STREAM : 0, 0);
         SpdyStream stream = activeStreams.get(streamId);
 
         // Check if this is a reply for an active stream
@@ -374,6 +410,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
     * An endpoint must not send a RST_STREAM in response to a RST_STREAM.
     */
 
+        if (tracer != null) tracer.received(RST_STREAM, streamId, 0, statusCode);
         SpdyStream stream = activeStreams.get(streamId);
 
         if (stream != null) {
@@ -397,9 +434,9 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
      * "origin" is the set of scheme, host, and port from the URI).
      */
 
-        Platform.LOGGER.debug("read SETTINGS\n");
+        if (tracer != null) tracer.received(SETTINGS, SPDY_SESSION_STREAM_ID, 0, 0);
         if (clearPersisted) {
-            storedSettings.remove(origin);
+            manager.clearPersistedSettings();
         }
     }
 
@@ -424,6 +461,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
 
             case SpdySettings.INITIAL_WINDOW_SIZE:
                 delta = value - initialSendWindow;
+                initialSendWindow = value;
                 for (SpdyStream stream : activeStreams) {
                     if (!stream.isClosedLocally()) {
                         stream.increaseSendWindow(delta);
@@ -438,12 +476,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         }
 
         if (persistValue) {
-            SpdySettings settings = storedSettings.get(origin);
-            if (settings == null) {
-                settings = new SpdySettings();
-                storedSettings.put(origin, settings);
-            }
-            settings.setValue(id, value);
+            manager.persistSetting(id, value);
         }
     }
 
@@ -462,7 +495,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
      * Receivers of a PING frame must ignore frames that it did not initiate
      */
 
-        Platform.LOGGER.debug("read PING\n--> Ping-ID = " + id);
+        if (tracer != null) tracer.received(PING, SPDY_SESSION_STREAM_ID, 0, id);
 
         if (id % 2 == 0) {
             sendPingResponse(id);
@@ -473,13 +506,14 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
             }
 
             sentPingMap.remove(id);
-            latency = sentTime - System.currentTimeMillis();
+            latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentTime);
         }
     }
 
     @Override
     public void readGoAwayFrame(int lastGoodStreamId, int statusCode) {
 
+        if (tracer != null) tracer.received(GOAWAY, lastGoodStreamId, 0, statusCode);
         receivedGoAwayFrame = true;
 
         for (SpdyStream stream : activeStreams) {
@@ -493,6 +527,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
     @Override
     public void readHeadersFrame(int streamId, boolean last) {
 
+        if (tracer != null) tracer.received(HEADERS, streamId, last ? END_STREAM : 0, 0);
         SpdyStream stream = activeStreams.get(streamId);
 
         if (stream == null || stream.isClosedRemotely()) {
@@ -514,6 +549,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
      * after sending the last frame for the stream.
      */
 
+        if (tracer != null) tracer.received(WINDOW_UPDATE, streamId, 0, deltaWindowSize);
         if (streamId == SPDY_SESSION_STREAM_ID) {
             // Check for numerical overflow
             if (sessionSendWindow > Integer.MAX_VALUE - deltaWindowSize) {
@@ -553,7 +589,6 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
     @Override
     public void readHeader(int streamId, Header header) {
 
-        Platform.LOGGER.debug("    " + header);
         SpdyStream stream = activeStreams.get(streamId);
         assert(stream != null); // Should have been caught when frame was decoded
 
@@ -569,7 +604,6 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
     @Override
     public void readHeadersEnd(int streamId) {
 
-        Platform.LOGGER.debug("end headers");
         SpdyStream stream = activeStreams.get(streamId);
         assert(stream != null); // Should have been caught when frame was decoded
 
@@ -601,30 +635,67 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         assert(!stream.isClosedLocally());
         if (last) stream.closeLocally();
 
-        StringBuilder headerString = new StringBuilder(headers.size() * 30);
-        for (Header header: headers.entries()) {
-            headerString.append("\n    " + header);
-        }
-
-        WriteLogger logger = new WriteLogger(
-            "sent SYN_STREAM (%d)\n--> Stream-ID = " + streamId + "\n--> Priority = " + priority +
-            "\n--> Last = " + last + headerString.toString().replaceAll("%", "%%")
-        );
-
-        socket.write(frameEncoder.encodeSynStreamFrame(streamId, 0, priority, last, false, headers))
-            .addListener(logger);
+        if (tracer != null) tracer.sent(HEADERS, streamId, last ? END_STREAM : 0, 0);
+        socket.write(frameEncoder.encodeSynStreamFrame(streamId, 0, priority, last, false, headers));
     }
 
     public void sendRstStream(int streamId, int streamStatus) {
-        WriteLogger logger = new WriteLogger(
-            "sent RST_STREAM (%d)\n--> Stream-ID = " + streamId + "\n--> Status = " + streamStatus);
-        socket.write(frameEncoder.encodeRstStreamFrame(streamId, streamStatus)).addListener(logger);
+        if (tracer != null) tracer.sent(RST_STREAM, streamId, 0, streamStatus);
+        socket.write(frameEncoder.encodeRstStreamFrame(streamId, streamStatus));
     }
 
     public void sendWindowUpdate(int streamId, int delta) {
-        WriteLogger logger = new WriteLogger(
-            "sent WINDOW_UPDATE (%d)\n--> Stream-ID = " + streamId + "\n--> Delta = " + delta);
-        socket.write(frameEncoder.encodeWindowUpdateFrame(streamId, delta)).addListener(logger);
+        if (tracer != null) tracer.sent(WINDOW_UPDATE, streamId, 0, delta);
+        socket.write(frameEncoder.encodeWindowUpdateFrame(streamId, delta));
+    }
+
+    /**
+     * Withholds acknowledgement of received data until a demand-driven body
+     * subscriber has requested it, so that the server's stream window
+     * reflects the application's rate of consumption.
+     */
+    private void withholdWindow(final SpdyStream stream, int delta) {
+
+        if (!stream.isWithholding()) {
+            stream.getOperation().getBodyFuture().setConsumptionObserver(new Observer<Integer>() {
+                @Override
+                public void onNext(Integer bytes) {
+                    stream.releaseWindow(bytes);
+                    if (activeStreams.contains(stream)) updateReceiveWindow(stream);
+                }
+
+                @Override
+                public void onComplete() {
+                    stream.releaseWindow(-1);
+                    if (activeStreams.contains(stream)) updateReceiveWindow(stream);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public Executor getExecutor() {
+                    return manager.getRunLoop();
+                }
+            });
+        }
+        stream.withholdWindow(delta);
+    }
+
+    /**
+     * Sends a WINDOW_UPDATE if less than half the stream window size remains,
+     * not counting data which has been received but withheld.
+     */
+    private void updateReceiveWindow(SpdyStream stream) {
+
+        if (stream.isClosedRemotely()) return;
+        int outstanding = stream.getReceiveWindow() + stream.getWithheldWindow();
+        if (outstanding <= initialReceiveWindow / 2) {
+            int deltaWindowSize = initialReceiveWindow - outstanding;
+            stream.increaseReceiveWindow(deltaWindowSize);
+            sendWindowUpdate(stream.getStreamId(), deltaWindowSize);
+        }
     }
 
     private void sendData(SpdyStream stream) {
@@ -635,11 +706,10 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         while (stream.hasPendingData()) {
             assert(!stream.isClosedLocally());
             if (sendWindow == 0) {
-                // TODO: measure flow control delay here
-                // stream.markBlocked();
+                stream.getOperation().onBlocked();
                 return;
             }
-            // stream.markUnblocked();
+            stream.getOperation().onUnblocked();
 
             ByteBuffer data;
             try {
@@ -654,13 +724,12 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
             int bytesSent = data.remaining();
             boolean last = !stream.hasPendingData();
             if (bytesSent > 0 || last) {
-                WriteLogger logger = new WriteLogger(
-                    "sent DATA (%d)\n--> Stream-ID = " + streamId + "\n--> Last = " + last);
-                socket.write(frameEncoder.encodeDataFrame(streamId, last, data))
-                    .addListener(logger);
+                if (tracer != null) tracer.sent(DATA, streamId, last ? END_STREAM : 0, bytesSent);
+                socket.write(frameEncoder.encodeDataFrame(streamId, last, data));
 
                 sessionSendWindow -= bytesSent;
                 stream.reduceSendWindow(bytesSent);
+                stream.getOperation().addTxBytes(bytesSent);
             }
 
             if (last) stream.closeLocally();
@@ -673,8 +742,37 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         settings.setValue(SpdySettings.MAX_CONCURRENT_STREAMS, localMaxConcurrentStreams);
         settings.setValue(SpdySettings.INITIAL_WINDOW_SIZE, initialReceiveWindow);
 
-        WriteLogger logger = new WriteLogger("sent SETTINGS (%d)\n" + settings.toString());
-        socket.write(frameEncoder.encodeSettingsFrame(settings)).addListener(logger);
+        if (tracer != null) tracer.sent(SETTINGS, SPDY_SESSION_STREAM_ID, 0, 0);
+        socket.write(frameEncoder.encodeSettingsFrame(settings));
+    }
+
+    /**
+     * Returns the settings the server asked to be persisted on a previous
+     * connection, and assumes them until the server's own SETTINGS arrive,
+     * so that the first requests are sent within the limits the server last
+     * gave. They go in a frame of their own as they may share ids with the
+     * client's settings.
+     */
+    private void sendPersistedSettings() {
+
+        Map<Integer, Integer> persisted = manager.getPersistedSettings();
+        if (persisted.isEmpty()) return;
+
+        SpdySettings settings = new SpdySettings();
+        for (Map.Entry<Integer, Integer> entry : persisted.entrySet()) {
+            int id = entry.getKey();
+            int value = entry.getValue();
+            settings.setValue(id, value, false, true);
+
+            if (id == SpdySettings.MAX_CONCURRENT_STREAMS) {
+                remoteMaxConcurrentStreams = value;
+            } else if (id == SpdySettings.INITIAL_WINDOW_SIZE) {
+                initialSendWindow = value;
+            }
+        }
+
+        if (tracer != null) tracer.sent(SETTINGS, SPDY_SESSION_STREAM_ID, 0, 0);
+        socket.write(frameEncoder.encodeSettingsFrame(settings));
     }
 
     private void sendPing() {
@@ -682,21 +780,20 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         final int pingId = nextPingId;
         nextPingId += 2;
 
+        if (tracer != null) tracer.sent(PING, SPDY_SESSION_STREAM_ID, 0, pingId);
         Socket.WriteFuture pingFuture = socket.write(frameEncoder.encodePingFrame(pingId));
 
         pingFuture.addListener(new Inline.Listener<Long>() {
             @Override
             public void onComplete(Long result) {
-                sentPingMap.put(pingId, Platform.instance().timestamp());
+                sentPingMap.put(pingId, System.nanoTime());
             }
         });
-
-        pingFuture.addListener(new WriteLogger("sent PING (%d)\n--> Ping-ID = " + pingId));
     }
 
     private void sendPingResponse(int pingId) {
-        WriteLogger logger = new WriteLogger("sent PING (%d)\n--> Ping-ID = " + pingId);
-        socket.write(frameEncoder.encodePingFrame(pingId)).addListener(logger);
+        if (tracer != null) tracer.sent(PING, SPDY_SESSION_STREAM_ID, 0, pingId);
+        socket.write(frameEncoder.encodePingFrame(pingId));
     }
 
     private void sendGoAway(int status) {
@@ -704,6 +801,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         if (sentGoAwayFrame) return;
         sentGoAwayFrame = true;
 
+        if (tracer != null) tracer.sent(GOAWAY, lastGoodStreamId, 0, status);
         Socket.WriteFuture goawayFuture = socket.write(
             frameEncoder.encodeGoAwayFrame(lastGoodStreamId, status));
 
@@ -715,10 +813,6 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
                 }
             }
         });
-        goawayFuture.addListener(new WriteLogger(
-            "sent GOAWAY (%d)\n--> Last-Good-Stream-ID = " + lastGoodStreamId +
-                "\n--> Status: " + status
-        ));
     }
 
     public void closeWithError(Throwable throwable) {
@@ -734,19 +828,6 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         closeFuture.fail(throwable);
     }
 
-    private class WriteLogger extends Inline.Listener<Long> {
-        String message;
-
-        WriteLogger(final String message) {
-            this.message = message;
-        }
-
-        @Override
-        public void onComplete(Long result) {
-            Platform.LOGGER.debug(String.format(message, result));
-        }
-    }
-
     private class SocketCloseListener extends Inline.Listener<Void> {
 
         /**
@@ -756,6 +837,7 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
         public void onComplete(Void result) {
             // We should never attempt to close the socket if there are active streams.
             assert activeStreams.size() == 0;
+            release();
             closeFuture.set(null);
         }
 
@@ -772,7 +854,17 @@ class SpdySession implements Session, SpdyFrameDecoderDelegate {
                 i.remove();
                 stream.close(throwable);
             }
+            release();
             closeFuture.fail(throwable);
         }
+
+        /**
+         * Frees the native zlib state of the header block codecs, which
+         * would otherwise be held until finalization.
+         */
+        private void release() {
+            frameDecoder.end();
+            frameEncoder.end();
+        }
     }
 }
@@ -30,6 +30,7 @@ class SpdyStream {
     static final String SPDY_HOST = ":host";
     static final String SPDY_PATH = ":path";
     static final String SPDY_METHOD = ":method";
+    static final String HTTP2_AUTHORITY = ":authority";
 
     private static final Set<String> INVALID_HEADERS;
     static {
@@ -52,6 +53,8 @@ class SpdyStream {
     private int sendWindow;
     private int receiveWindow;
     private int unackedWindow;
+    private int withheldWindow;
+    private boolean withholding;
     private int expectedContentLength;
     private boolean compressed;
     private boolean local;
@@ -153,6 +156,16 @@ class SpdyStream {
         if (!retry()) close(e);
     }
 
+    /**
+     * Releases resources held by a stream whose operation has been
+     * cancelled or has failed elsewhere.
+     */
+    void abandon() {
+        closedLocally = true;
+        closedRemotely = true;
+        if (inflater != null) inflater.end();
+    }
+
     void close(Throwable e) {
         closedLocally = true;
         closedRemotely = true;
@@ -216,6 +229,38 @@ class SpdyStream {
         sendWindow -= delta;
     }
 
+    /**
+     * @return true if received data should only be acknowledged once the
+     *         application has requested it
+     */
+    boolean isDemandDriven() {
+        return operation != null && operation.getBodyFuture().isDemandDriven();
+    }
+
+    boolean isWithholding() {
+        return withholding;
+    }
+
+    /**
+     * Marks received bytes as not yet eligible for a WINDOW_UPDATE.
+     */
+    void withholdWindow(int delta) {
+        withholding = true;
+        withheldWindow += delta;
+    }
+
+    /**
+     * Makes up to delta withheld bytes eligible for a WINDOW_UPDATE, or all of
+     * them if delta is negative.
+     */
+    void releaseWindow(int delta) {
+        withheldWindow = delta < 0 ? 0 : Math.max(0, withheldWindow - delta);
+    }
+
+    int getWithheldWindow() {
+        return withheldWindow;
+    }
+
     Headers getCanonicalHeaders() {
 
         Headers canonical = new Headers(request.getHeaders());
@@ -328,6 +373,7 @@ class SpdyStream {
     void onData(ByteBuffer data) throws DataFormatException {
 
         if (!data.hasRemaining()) return;
+        operation.addRxBytes(data.remaining());
         if (!compressed) {
             operation.getBodyFuture().provide(data);
         } else {
@@ -361,6 +407,7 @@ class SpdyStream {
             throw new ProtocolException("unexpected second response status received: " + statusCode);
         }
 
+        operation.onResponse(statusCode);
         this.statusCode = statusCode;
         if (statusCode >= 300 && statusCode < 400 && operation.getRemainingRedirects() > 0) {
             Request currentRequest = operation.getCurrentRequest();
@@ -525,10 +572,12 @@ class SpdyStream {
 
         private Request.Builder pushBuilder = new Request.Builder();
         private RequestOperation parentOperation;
+        private OperationHolder holder;
         private String scheme, host, path, method;
 
-        Pushed(SpdyStream parent, byte priority) {
+        Pushed(OperationHolder holder, SpdyStream parent, byte priority) {
             super(false, priority);
+            this.holder = holder;
             parentOperation = parent.getOperation();
             pushBuilder = new Request.Builder();
             pushBuilder.addHeaders(parent.getRequest().getHeaders());
@@ -542,6 +591,7 @@ class SpdyStream {
                     scheme = header.getValue();
                     break;
                 case SPDY_HOST:
+                case HTTP2_AUTHORITY:
                     host = header.getValue();
                     break;
                 case SPDY_PATH:
@@ -557,12 +607,25 @@ class SpdyStream {
             }
 
             if (scheme != null && host != null && path != null) {
-                pushBuilder.url(new URL(scheme, host, path));
+                // The host may carry a port, so parse the URL as a whole
+                pushBuilder.url(new URL(scheme + "://" + host + path));
+                if (method != null) pushBuilder.method(methodOf(method));
                 final Request request = pushBuilder.create();
                 final RequestOperation pushOperation =
                     new RequestOperation(parentOperation.getClient(), request);
                 setOperation(pushOperation);
+                // Held by the session, so a claimant's cancellation resets the stream
+                pushOperation.hold(holder, this);
                 parentOperation.getPushFuture().provide(pushOperation);
+                parentOperation.getClient().offerPush(pushOperation);
+            }
+        }
+
+        private static Request.Method methodOf(String method) throws IOException {
+            try {
+                return Request.Method.valueOf(method);
+            } catch (IllegalArgumentException e) {
+                throw new SpdyStreamException("unsupported pushed method: " + method);
             }
         }
 
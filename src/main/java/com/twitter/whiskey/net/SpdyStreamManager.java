@@ -28,13 +28,7 @@ import static com.twitter.whiskey.net.SpdyConstants.PRIORITY_LEVELS;
 final class SpdyStreamManager extends AbstractCollection<SpdyStream> implements Set<SpdyStream> {
 
     @SuppressWarnings("unchecked")
-    private static final LinkedHashDeque<SpdyStream>[] streamSets = new LinkedHashDeque[PRIORITY_LEVELS];
-    static {
-        for (int i = 0; i < PRIORITY_LEVELS; i++) {
-            streamSets[i] = new LinkedHashDeque<>();
-        }
-    }
-
+    private final LinkedHashDeque<SpdyStream>[] streamSets = new LinkedHashDeque[PRIORITY_LEVELS];
     private final Map<Integer, SpdyStream> streamMap = new HashMap<>();
 
     private volatile int mutations = 0;
@@ -42,6 +36,9 @@ final class SpdyStreamManager extends AbstractCollection<SpdyStream> implements
     private int remoteSize = 0;
 
     SpdyStreamManager() {
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            streamSets[i] = new LinkedHashDeque<>();
+        }
     }
 
     @Override
@@ -6,11 +6,20 @@
 
 package com.twitter.whiskey.net;
 
+import com.twitter.whiskey.futures.Inline;
 import com.twitter.whiskey.nio.RunLoop;
 import com.twitter.whiskey.util.Origin;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -29,6 +38,20 @@ public class WhiskeyClient {
     final private ClientConfiguration configuration;
     final private HashMap<Origin, SessionManager> managers = new HashMap<>();
     final private ConcurrentHashMap<Origin, Origin> aliases = new ConcurrentHashMap<>();
+    final private ConcurrentHashMap<String, RequestOperation> inFlight = new ConcurrentHashMap<>();
+    final private ConcurrentHashMap<Origin, PushCache> pushCaches = new ConcurrentHashMap<>();
+    final private RunLoop runLoop;
+    final private SettingsStore settingsStore;
+    // Whether the loop was started for this client alone, and so is stopped
+    // on termination
+    final private boolean ownsRunLoop;
+    final private MetricsRegistry metrics;
+    final private RunLoop.StallListener stallListener;
+    // Operations submitted and not yet finished, which shutdown waits for
+    final private Set<RequestOperation> outstanding =
+        Collections.newSetFromMap(new ConcurrentHashMap<RequestOperation, Boolean>());
+    final private CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean shutdown = false;
 
     public WhiskeyClient() {
         this(new ClientConfiguration.Builder().create());
@@ -36,23 +59,167 @@ public class WhiskeyClient {
 
     public WhiskeyClient(ClientConfiguration configuration) {
         this.configuration = configuration;
+
+        RunLoop sharedRunLoop = configuration.getRunLoop();
+        ownsRunLoop = sharedRunLoop == null;
+        runLoop = ownsRunLoop ? new RunLoop() : sharedRunLoop;
+        metrics = new MetricsRegistry(runLoop);
+        SettingsStore sharedSettingsStore = configuration.getSettingsStore();
+        settingsStore = sharedSettingsStore != null ? sharedSettingsStore : new MemorySettingsStore();
+
+        final EventListener listener = configuration.getEventListener();
+        if (listener != null) {
+            stallListener = new RunLoop.StallListener() {
+                @Override
+                public void onStall(Class<?> taskClass, long durationNanos) {
+                    listener.onRunLoopStall(taskClass, durationNanos);
+                }
+            };
+            runLoop.addStallListener(stallListener, configuration.getStallThreshold(), TimeUnit.MILLISECONDS);
+        } else {
+            stallListener = null;
+        }
     }
 
     /**
-     * Submits a request for execution. A new {@link RunLoop} will be started
-     * if necessary, and new connections established where required.
+     * Submits a request for execution. The client's {@link RunLoop} will be
+     * started if necessary, and new connections established where required. If a
+     * {@link ResponseCache} is configured, a fresh cached response is
+     * returned instead, already complete. Once the client has been shut
+     * down, the returned future fails with a
+     * {@link RejectedExecutionException}.
      *
      * @param request the request to be executed
      * @return a ResponseFuture tracking progress of the submitted request
      */
     public ResponseFuture submit(Request request) {
 
+        if (shutdown) {
+            RequestOperation rejected = new RequestOperation(this, request);
+            rejected.fail(new RejectedExecutionException("client has been shut down"));
+            return rejected;
+        }
+
+        ResponseCache cache = configuration.getResponseCache();
+        return cache != null ? cache.submit(this, request) : dispatch(request);
+    }
+
+    /**
+     * Creates and queues an operation for the request, bypassing any cache,
+     * and schedules its timeout. If coalescing is enabled and an identical
+     * request is in flight, the operation follows it instead. A matching
+     * response pushed by the server is claimed in place of a new operation.
+     */
+    RequestOperation dispatch(Request request) {
+
+        RequestOperation pushed = claimPush(request);
+        if (pushed != null) {
+            track(pushed);
+            scheduleTimeout(pushed, request);
+            return pushed;
+        }
+
         final RequestOperation operation = new RequestOperation(this, request);
+        track(operation);
+        if (configuration.shouldCoalesceRequests() && RequestOperation.isCoalescable(request)) {
+            coalesce(operation);
+        } else {
+            queue(operation);
+        }
+        scheduleTimeout(operation, request);
+        return operation;
+    }
+
+    /**
+     * Records an operation as outstanding until it finishes, so that
+     * shutdown may wait for it.
+     */
+    private void track(RequestOperation operation) {
+
+        outstanding.add(operation);
+        if (operation.isDone()) finished(operation);
+    }
+
+    /**
+     * Called when an operation finishes, from whichever thread finishes it.
+     * Once the client is shut down, the last operation to finish releases
+     * its connections.
+     */
+    void finished(RequestOperation operation) {
+        if (outstanding.remove(operation) && shutdown && outstanding.isEmpty()) drain();
+    }
+
+    private RequestOperation claimPush(Request request) {
+
+        if (pushCaches.isEmpty()) return null;
+        PushCache pushes = pushCaches.get(new Origin(request.getUrl()));
+        return pushes != null ? pushes.claim(request) : null;
+    }
+
+    /**
+     * Makes a response pushed by the server available to later requests
+     * for the same URL. Called on the {@link RunLoop}.
+     */
+    void offerPush(RequestOperation push) {
+
+        if (configuration.getPushCacheSize() <= 0) return;
+        Origin origin = new Origin(push.getOriginalRequest().getUrl());
+        PushCache pushes = pushCaches.get(origin);
+        if (pushes == null) {
+            pushes = new PushCache(runLoop, configuration.getPushCacheTtl(), configuration.getPushCacheSize());
+            PushCache existing = pushCaches.putIfAbsent(origin, pushes);
+            if (existing != null) pushes = existing;
+        }
+        pushes.offer(push);
+    }
+
+    /**
+     * Attaches the operation to an identical one in flight, or queues it
+     * and records it as in flight until it finishes.
+     */
+    private void coalesce(final RequestOperation operation) {
+
+        final String key = coalescingKey(operation.getOriginalRequest());
+        while (true) {
+            RequestOperation leader = inFlight.putIfAbsent(key, operation);
+            if (leader != null && leader.addFollower(operation)) return;
+            if (leader == null || inFlight.replace(key, leader, operation)) break;
+        }
+
+        operation.addListener(new Inline.Listener<Response>() {
+            @Override
+            public void onComplete(Response result) {
+                inFlight.remove(key, operation);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                inFlight.remove(key, operation);
+            }
+        });
         queue(operation);
+    }
+
+    /**
+     * Identifies requests whose responses are interchangeable. All headers
+     * are included, so a response may not vary on any which differ.
+     */
+    static String coalescingKey(Request request) {
+
+        StringBuilder key = new StringBuilder();
+        key.append(request.getMethod()).append(' ').append(request.getUrl().toExternalForm());
+        TreeSet<String> names = new TreeSet<>(request.getHeaders().keySet());
+        for (String name : names) {
+            key.append('\n').append(name);
+            for (String value : request.getHeaders().get(name)) key.append(':').append(value);
+        }
+        return key.toString();
+    }
+
+    private void scheduleTimeout(final RequestOperation operation, Request request) {
 
         long timeout = request.getTimeout();
         if (timeout > 0) {
-            // TODO: add cancellation of timeouts
             Runnable timeoutOperation = new Runnable() {
                 @Override
                 public void run() {
@@ -60,10 +227,63 @@ public class WhiskeyClient {
                 }
             };
             timeout = Math.max(1, TimeUnit.MILLISECONDS.convert(timeout, request.getTimeoutUnit()));
-            RunLoop.instance().schedule(timeoutOperation, timeout, TimeUnit.MILLISECONDS);
+            operation.setTimeout(runLoop.schedule(timeoutOperation, timeout, TimeUnit.MILLISECONDS));
         }
+    }
 
-        return operation;
+    /**
+     * Submits a request and waits for the complete response. The calling
+     * thread is parked while waiting, so this is suitable for use from
+     * lightweight or user-mode threads. Use {@link #submit} together with
+     * {@link BlockingBody} to read a large body incrementally instead.
+     *
+     * @param request the request to be executed
+     * @return the final response
+     * @throws IOException if the request fails
+     * @throws InterruptedException if the calling thread is interrupted, in
+     *         which case the request is cancelled
+     */
+    public Response send(Request request) throws IOException, InterruptedException {
+
+        ResponseFuture future = submit(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (CancellationException e) {
+            throw new IOException("request cancelled", e);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metrics aggregated from requests completed
+     * by this client, per origin, along with gauges of its open sessions.
+     * Requests are recorded when they finish, so those in flight are not
+     * yet reflected in the totals.
+     */
+    public Metrics metrics() {
+        return metrics.snapshot();
+    }
+
+    MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    EventListener getEventListener() {
+        return configuration.getEventListener();
+    }
+
+    RunLoop getRunLoop() {
+        return runLoop;
+    }
+
+    SettingsStore getSettingsStore() {
+        return settingsStore;
     }
 
     /**
@@ -77,21 +297,22 @@ public class WhiskeyClient {
         Origin requestOrigin = new Origin(operation.getCurrentRequest().getUrl());
         Origin aliasedOrigin = aliases.get(requestOrigin);
         final Origin origin = aliasedOrigin != null ? aliasedOrigin : requestOrigin;
+        operation.onQueued();
 
-        RunLoop.instance().execute(new Runnable() {
+        runLoop.execute(new Runnable() {
             @Override
             public void run() {
 
                 SessionManager manager = managers.get(origin);
                 if (manager == null) {
-                    manager = new SessionManager(origin, configuration);
+                    manager = new SessionManager(WhiskeyClient.this, origin, configuration, metrics.forOrigin(origin));
                     managers.put(origin, manager);
                 }
 
                 manager.queue(operation);
             }
         });
-        RunLoop.instance().startThread();
+        runLoop.startThread();
     }
 
     /**
@@ -124,7 +345,7 @@ public class WhiskeyClient {
      * @return true if this client has been shut down.
      */
     public boolean isShutdown() {
-        return false;
+        return shutdown;
     }
 
     /**
@@ -132,25 +353,121 @@ public class WhiskeyClient {
      *         closed following shutdown.
      */
     public boolean isTerminated() {
-        return false;
+        return terminated.getCount() == 0;
     }
 
+    /**
+     * Blocks until the client has terminated following shutdown, or the
+     * timeout elapses.
+     *
+     * @return true if the client terminated, false if the timeout elapsed
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
 
     /**
      * Attempt to complete all submitted requests, but stop accepting new requests.
+     *
+     * Each connection is shut down once no submitted request is waiting for
+     * one; SPDY and HTTP/2 connections send GOAWAY, then close when the
+     * streams they carry have completed. Requests submitted afterwards fail
+     * with a {@link RejectedExecutionException}.
      */
     public void shutdown() {
+        shutdown = true;
+        drain();
+    }
+
+    /**
+     * Shuts down as {@link #shutdown()}, then cancels any requests which
+     * have not completed once the timeout elapses, as
+     * {@link #shutdownNow()}.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+
+        shutdown();
+        if (isTerminated()) return;
+        runLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isTerminated()) shutdownNow();
+            }
+        }, timeout, unit);
     }
 
     /**
      * Attempt to gracefully cancel all in-flight requests and close all open connections.
+     *
+     * Cancelled streams are reset and connections closed with GOAWAY, as
+     * for {@link #shutdown()}.
      */
     public void shutdownNow() {
+
+        shutdown = true;
+        for (RequestOperation operation : outstanding) {
+            operation.cancel(true);
+        }
+        drain();
     }
 
     /**
      * Immediately terminate all connections and fail in-flight requests.
      */
     public void terminate() {
+
+        shutdown = true;
+        if (isTerminated()) return;
+        final IOException cause = new IOException("client terminated");
+        for (RequestOperation operation : outstanding) {
+            operation.fail(cause);
+        }
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (SessionManager manager : managers.values()) {
+                    manager.terminate(cause);
+                }
+                checkTermination();
+            }
+        });
+        runLoop.startThread();
+    }
+
+    /**
+     * Shuts down the session managers, on the {@link RunLoop}, then checks
+     * whether termination is complete. Once terminated, the loop of a
+     * client which owns it has stopped, so there is nothing to drain.
+     */
+    private void drain() {
+
+        if (isTerminated()) return;
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (SessionManager manager : managers.values()) {
+                    manager.shutdown();
+                }
+                checkTermination();
+            }
+        });
+        runLoop.startThread();
+    }
+
+    /**
+     * Marks the client terminated once it has been shut down, every
+     * submitted request has finished and every connection has closed, and
+     * stops its RunLoop unless that is shared. Called on the {@link RunLoop}.
+     */
+    void checkTermination() {
+
+        if (!shutdown || !outstanding.isEmpty() || isTerminated()) return;
+        for (SessionManager manager : managers.values()) {
+            if (!manager.isIdle()) return;
+        }
+
+        if (stallListener != null) runLoop.removeStallListener(stallListener);
+        if (ownsRunLoop) runLoop.stop();
+        terminated.countDown();
     }
 }
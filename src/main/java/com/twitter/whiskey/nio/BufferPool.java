@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A bounded pool of direct buffers for transient use by sockets. Direct
+ * buffers are expensive to allocate and are released only on GC, so sockets
+ * borrow them for the duration of a single operation and return them here.
+ *
+ * This class is not thread-safe: it is owned by a {@link RunLoop} and must
+ * only be accessed from that loop's thread.
+ */
+final class BufferPool {
+
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final int maxPooledBuffers;
+
+    BufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * @return a cleared direct buffer with at least the requested capacity
+     */
+    ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            // Undersized buffers are left for the GC; the pool is homogeneous in practice.
+            if (buffer.capacity() >= capacity) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffers.size() < maxPooledBuffers) {
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * Drops every pooled buffer, leaving them to the GC.
+     */
+    void clear() {
+        buffers.clear();
+    }
+
+    int size() {
+        return buffers.size();
+    }
+}
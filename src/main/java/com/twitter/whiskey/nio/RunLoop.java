@@ -6,10 +6,14 @@
 
 package com.twitter.whiskey.nio;
 
+import com.twitter.whiskey.futures.ThreadBoundExecutor;
 import com.twitter.whiskey.util.Clock;
+import com.twitter.whiskey.util.ConcurrentHistogram;
 import com.twitter.whiskey.util.DefaultClock;
+import com.twitter.whiskey.util.Platform;
 
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -17,10 +21,11 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 // TODO: consider simply implementing ScheduledExecutorService
@@ -31,22 +36,41 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * @author Michael Schore
  */
-public class RunLoop implements Executor {
+public class RunLoop implements ThreadBoundExecutor {
 
     private static final RunLoop INSTANCE = new RunLoop();
+    private static final int MAX_POOLED_BUFFERS = 32;
+    // Consecutive premature empty selects after which the selector is
+    // assumed to be spinning, as with the JDK epoll bug, and rebuilt
+    private static final int SELECTOR_SPIN_THRESHOLD = 512;
 
-    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<QueuedTask> tasks = new ConcurrentLinkedQueue<>();
     private final PriorityBlockingQueue<ScheduledRunnable> scheduledTasks = new PriorityBlockingQueue<>(1, ScheduledRunnable.Comparator());
-    private final Selector selector;
     private final Clock clock;
     private final RunLoopThread thread = new RunLoopThread();
+    private final BufferPool bufferPool = new BufferPool(MAX_POOLED_BUFFERS);
+    private final CopyOnWriteArrayList<StallWatch> stallWatches = new CopyOnWriteArrayList<>();
 
-    private int executions = 0;
-    private int loops = 0;
+    private final ConcurrentHistogram queueLag = new ConcurrentHistogram();
+
+    // Written only on the RunLoop; volatile to be read by getStats()
+    private volatile long executions = 0;
+    private volatile long loops = 0;
+    private volatile long taskNanos = 0;
+    private volatile long ioNanos = 0;
+    private volatile long selectNanos = 0;
+    private volatile long maxTaskNanos = 0;
+    private volatile long selectorRebuilds = 0;
+    private int prematureSelects = 0;
 
     private AtomicBoolean running = new AtomicBoolean(false);
+    private AtomicBoolean started = new AtomicBoolean(false);
     private AtomicBoolean signal = new AtomicBoolean(false);
     private volatile boolean selecting = false;
+    // Replaced only on the RunLoop, should the current one fail
+    private volatile Selector selector;
+    // The lowest threshold of any stall listener
+    private volatile long stallThresholdNanos = Long.MAX_VALUE;
 
     public RunLoop() {
         this(new DefaultClock());
@@ -64,19 +88,38 @@ public class RunLoop implements Executor {
         this.clock = clock;
     }
 
+    /**
+     * @return a process-wide loop, for clients configured to share one with
+     *         {@link com.twitter.whiskey.net.ClientConfiguration.Builder#runLoop}
+     */
     public static RunLoop instance() {
         return INSTANCE;
     }
 
+    /**
+     * Starts the thread, at most once: a loop which has been stopped is
+     * never restarted, and tasks executed on it are never run.
+     */
     public void startThread() {
-        if (running.compareAndSet(false, true)) thread.start();
+        if (started.compareAndSet(false, true) && running.compareAndSet(false, true)) thread.start();
     }
 
+    /**
+     * Stops the thread and waits for it to exit. Tasks still pending are
+     * never run.
+     */
     public void stopThread() throws InterruptedException {
-        if (running.compareAndSet(true, false)) {
-            selector.wakeup();
-            thread.join();
-        }
+        stop();
+        if (!inExecutorThread()) thread.join();
+    }
+
+    /**
+     * Stops the thread once its current pass completes, without waiting for
+     * it, so may be called from a task on the loop. Pooled buffers are
+     * released as the thread exits. Tasks still pending are never run.
+     */
+    public void stop() {
+        if (running.compareAndSet(true, false)) selector.wakeup();
     }
 
     /**
@@ -84,7 +127,8 @@ public class RunLoop implements Executor {
      */
     @Override
     public void execute(Runnable command) {
-        tasks.add(command);
+        // Each task is dated, to measure how long tasks wait
+        tasks.add(new QueuedTask(command, System.nanoTime()));
         // We don't need to perform the CAS unless we're already selecting, due to the check
         // prior to entering a blocking select for tasks in the task queue.
         if (selecting && signal.compareAndSet(false, true)) {
@@ -92,15 +136,24 @@ public class RunLoop implements Executor {
         }
     }
 
+    /**
+     * @return true if called from the internal RunLoopThread
+     */
+    @Override
+    public boolean inExecutorThread() {
+        return Thread.currentThread() == thread;
+    }
+
     /**
      * Schedules the runnable for future execution on the internal RunLoopThread.
      *
      * @param command the runnable to execute
      * @param delay the delay to wait before execution
      * @param unit time unit of the specified delay
+     * @return a handle by which the scheduled execution may be cancelled
      */
-    public void schedule(Runnable command, long delay, TimeUnit unit) {
-        schedule(command, delay, 0, unit);
+    public ScheduledTask schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(command, delay, 0, unit);
     }
 
     /**
@@ -112,20 +165,47 @@ public class RunLoop implements Executor {
      *                  this is set to 0, then the command will still be executed regardless of how
      *                  much additional time may have passed.
      * @param unit time unit of both the specified delay and tolerance
+     * @return a handle by which the scheduled execution may be cancelled
      */
-    public void schedule(Runnable command, long delay, long tolerance, TimeUnit unit) {
+    public ScheduledTask schedule(Runnable command, long delay, long tolerance, TimeUnit unit) {
 
         if (delay < 0 || tolerance < 0) {
             throw new IllegalArgumentException();
         }
 
         long triggerPoint = clock.now() + unit.toMillis(delay);
-        scheduledTasks.add(new ScheduledRunnable(command, triggerPoint, unit.toMillis(tolerance)));
+        ScheduledRunnable task = new ScheduledRunnable(command, triggerPoint, unit.toMillis(tolerance));
+        scheduledTasks.add(task);
         // Ensure we don't hit the race where a new scheduled task is added right before the
         // RunLoop enters a blocking select.
         if (signal.compareAndSet(false, true)) {
             selector.wakeup();
         }
+        return task;
+    }
+
+    /**
+     * Adds a listener notified of any single task, scheduled task or socket
+     * event handler which runs for longer than the threshold. Such tasks
+     * delay everything else served by the loop. Listeners are called on
+     * the internal RunLoopThread and must not block.
+     */
+    public synchronized void addStallListener(StallListener listener, long threshold, TimeUnit unit) {
+        stallWatches.add(new StallWatch(listener, unit.toNanos(threshold)));
+        updateStallThreshold();
+    }
+
+    public synchronized void removeStallListener(StallListener listener) {
+        for (StallWatch watch : stallWatches) {
+            if (watch.listener == listener) stallWatches.remove(watch);
+        }
+        updateStallThreshold();
+    }
+
+    private void updateStallThreshold() {
+        long threshold = Long.MAX_VALUE;
+        for (StallWatch watch : stallWatches) threshold = Math.min(threshold, watch.thresholdNanos);
+        stallThresholdNanos = threshold;
     }
 
      /**
@@ -135,6 +215,10 @@ public class RunLoop implements Executor {
     @SuppressWarnings("ResourceType")
     public void register(int interestSet, Selectable selectable) {
         if (interestSet == 0) {
+            // Clear any interest left over, such as in a completed connect,
+            // or the key would be selected endlessly with nothing to handle
+            SelectionKey key = selectable.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) key.interestOps(0);
             return;
         }
 
@@ -148,6 +232,13 @@ public class RunLoop implements Executor {
         }
     }
 
+    /**
+     * @return the pool of direct buffers for sockets handled by this loop
+     */
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     void wake() {
         if (signal.compareAndSet(false, true)) {
             selector.wakeup();
@@ -159,11 +250,20 @@ public class RunLoop implements Executor {
         loops++;
         signal.set(false);
 
-        // Check standard tasks
-        Runnable currentTask;
-        while ((currentTask = tasks.poll()) != null) {
+        // Each task is timed from the end of the one before it, so the
+        // loop reads the clock only once per task
+        final long start = System.nanoTime();
+        long last = start;
+
+        // Check standard tasks, sampling the wait of the oldest
+        QueuedTask currentTask = tasks.poll();
+        if (currentTask != null) {
+            queueLag.record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, start - currentTask.queuedNanos)));
+        }
+        for (; currentTask != null; currentTask = tasks.poll()) {
             executions++;
-            currentTask.run();
+            currentTask.command.run();
+            last = finishTask(currentTask.command.getClass(), last);
         }
 
         long selectTimeout = 0;
@@ -173,14 +273,19 @@ public class RunLoop implements Executor {
         while (!scheduledTasks.isEmpty()) {
             nextScheduledTask = scheduledTasks.peek();
             long now = clock.now();
-            if (nextScheduledTask.tolerance > 0 &&
+            if (nextScheduledTask.isCancelled()) {
+                // Cancelled tasks are discarded lazily, as removal is linear
+                scheduledTasks.poll();
+            } else if (nextScheduledTask.tolerance > 0 &&
                 nextScheduledTask.triggerPoint <= now - nextScheduledTask.tolerance) {
                 // Discard the task - we missed the tolerance window
                 scheduledTasks.poll();
             } else if (nextScheduledTask.triggerPoint <= now) {
                 // It's time to run the task
                 executions++;
+                Class<?> taskClass = nextScheduledTask.getCommandClass();
                 nextScheduledTask.run();
+                last = finishTask(taskClass, last);
                 scheduledTasks.poll();
             } else {
                 // Determine the select timeout and break
@@ -189,21 +294,41 @@ public class RunLoop implements Executor {
             }
         }
 
+        final long selectStart = System.nanoTime();
+        taskNanos += selectStart - start;
         int readyChannels = 0;
+        boolean blocked = false;
 
         // Select
         try {
             selecting = true;
             if (blocking && tasks.isEmpty() && !signal.get()) {
+                blocked = true;
                 readyChannels = selector.select(selectTimeout);
             } else {
                 readyChannels = selector.selectNow();
             }
-            selecting = false;
         } catch (IOException e) {
-            // Recovery would have to involve re-registering all sockets
-            // on a new Selector. Consider this fatal for now.
-            throw new RuntimeException(e);
+            // A failed selector would leave every socket stranded; move
+            // them to a new one
+            rebuildSelector();
+            return;
+        } finally {
+            selecting = false;
+        }
+
+        final long selectEnd = System.nanoTime();
+        selectNanos += selectEnd - selectStart;
+        last = selectEnd;
+
+        // A blocking select which returns nothing, early and without being
+        // woken, has been woken spuriously. An interrupt would also end the
+        // select early, every time, so it is cleared rather than counted.
+        if (blocked && readyChannels == 0 && !signal.get() && !Thread.interrupted() &&
+            (selectTimeout == 0 || selectEnd - selectStart < TimeUnit.MILLISECONDS.toNanos(selectTimeout))) {
+            if (++prematureSelects >= SELECTOR_SPIN_THRESHOLD) rebuildSelector();
+        } else {
+            prematureSelects = 0;
         }
 
         if (readyChannels > 0) {
@@ -225,12 +350,231 @@ public class RunLoop implements Executor {
                         executions++;
                         selectable.onWriteable();
                     }
+                    last = finishTask(selectable.getClass(), last);
                 }
             }
+            ioNanos += last - selectEnd;
+        }
+    }
+
+    /**
+     * Replaces the selector with a new one, moving each registered socket
+     * to it with the same interest set. Sockets whose registration cannot
+     * be moved are closed. Must be called on the RunLoop.
+     */
+    void rebuildSelector() {
+
+        Selector oldSelector = selector;
+        Selector newSelector;
+        try {
+            newSelector = Selector.open();
+        } catch (IOException e) {
+            // Without any selector the loop can do nothing further
+            throw new RuntimeException(e);
+        }
+
+        Platform.LOGGER.warn("rebuilding selector with " + oldSelector.keys().size() + " registered key(s)");
+        for (SelectionKey key : oldSelector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Selectable)) continue;
+            Selectable selectable = (Selectable) attachment;
+            try {
+                int interestSet = key.interestOps();
+                key.cancel();
+                SelectionKey newKey = selectable.getChannel().register(newSelector, interestSet);
+                newKey.attach(selectable);
+                selectable.setSelectionKey(newKey);
+            } catch (CancelledKeyException e) {
+                // The socket was closed and will not be selected again
+            } catch (ClosedChannelException e) {
+                selectable.onClose(e);
+            }
+        }
+
+        selector = newSelector;
+        prematureSelects = 0;
+        selectorRebuilds++;
+        try {
+            oldSelector.close();
+        } catch (IOException e) {
+            Platform.LOGGER.error("failed to close selector: " + e);
+        }
+    }
+
+    /**
+     * Records the duration of a task which started at the given time, and
+     * reports it to stall listeners if it ran too long.
+     *
+     * @return the time the task finished
+     */
+    private long finishTask(Class<?> taskClass, long startNanos) {
+
+        long now = System.nanoTime();
+        long duration = now - startNanos;
+        if (duration > maxTaskNanos) maxTaskNanos = duration;
+        if (duration >= stallThresholdNanos && taskClass != null) {
+            for (StallWatch watch : stallWatches) {
+                if (duration >= watch.thresholdNanos) watch.listener.onStall(taskClass, duration);
+            }
+        }
+        return now;
+    }
+
+    /**
+     * @return a snapshot of the loop's counters. May be called from any
+     *         thread; counters are updated as the loop runs, so those of a
+     *         snapshot may be slightly inconsistent with one another.
+     */
+    public Stats getStats() {
+        return new Stats(loops, executions, tasks.size(), scheduledTasks.size(),
+            taskNanos, ioNanos, selectNanos, maxTaskNanos, selectorRebuilds, queueLag.snapshot());
+    }
+
+    /**
+     * A handle to a task scheduled on the RunLoop.
+     */
+    public interface ScheduledTask {
+
+        /**
+         * Prevents the task from running, if it has not already. May be
+         * called from any thread.
+         *
+         * @return true if the task had neither run nor been cancelled
+         */
+        boolean cancel();
+    }
+
+    /**
+     * Notified of tasks which occupy the RunLoop for too long.
+     */
+    public interface StallListener {
+
+        /**
+         * @param taskClass the class of the task, or of the {@link Selectable}
+         *                  handling a network event
+         * @param durationNanos the time for which the task ran
+         */
+        void onStall(Class<?> taskClass, long durationNanos);
+    }
+
+    /**
+     * Counters of the work done by a RunLoop, cumulative since it was
+     * created. Durations are measured in wall-clock time; the share of
+     * time spent selecting, which includes time spent idle, indicates how
+     * close the loop is to saturation.
+     */
+    public static class Stats {
+
+        private final long loops;
+        private final long executions;
+        private final int pendingTasks;
+        private final int scheduledTasks;
+        private final long taskNanos;
+        private final long ioNanos;
+        private final long selectNanos;
+        private final long maxTaskNanos;
+        private final long selectorRebuilds;
+        private final ConcurrentHistogram.Snapshot queueLag;
+
+        Stats(long loops, long executions, int pendingTasks, int scheduledTasks, long taskNanos, long ioNanos,
+              long selectNanos, long maxTaskNanos, long selectorRebuilds, ConcurrentHistogram.Snapshot queueLag) {
+            this.loops = loops;
+            this.executions = executions;
+            this.pendingTasks = pendingTasks;
+            this.scheduledTasks = scheduledTasks;
+            this.taskNanos = taskNanos;
+            this.ioNanos = ioNanos;
+            this.selectNanos = selectNanos;
+            this.maxTaskNanos = maxTaskNanos;
+            this.selectorRebuilds = selectorRebuilds;
+            this.queueLag = queueLag;
+        }
+
+        /**
+         * @return the number of iterations of the loop
+         */
+        public long getLoops() {
+            return loops;
+        }
+
+        /**
+         * @return the number of tasks, scheduled tasks and socket events run
+         */
+        public long getExecutions() {
+            return executions;
+        }
+
+        /**
+         * @return the number of tasks awaiting execution
+         */
+        public int getPendingTasks() {
+            return pendingTasks;
+        }
+
+        /**
+         * @return the number of scheduled tasks not yet run, including
+         *         cancelled tasks awaiting discard
+         */
+        public int getScheduledTasks() {
+            return scheduledTasks;
+        }
+
+        /**
+         * @return the time spent running tasks and scheduled tasks
+         */
+        public long getTaskTime(TimeUnit unit) {
+            return unit.convert(taskNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the time spent handling socket events
+         */
+        public long getIoTime(TimeUnit unit) {
+            return unit.convert(ioNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the time spent selecting, whether blocked or not
+         */
+        public long getSelectTime(TimeUnit unit) {
+            return unit.convert(selectNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the longest time taken by a single task or socket event
+         */
+        public long getMaxTaskTime(TimeUnit unit) {
+            return unit.convert(maxTaskNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the number of times the selector failed or was found to be
+         *         spinning, and was replaced
+         */
+        public long getSelectorRebuilds() {
+            return selectorRebuilds;
+        }
+
+        /**
+         * @return the distribution, in microseconds, of the time the oldest
+         *         pending task waited to run, sampled once per loop in which
+         *         tasks were pending
+         */
+        public ConcurrentHistogram.Snapshot getQueueLag() {
+            return queueLag;
+        }
+    }
+
+    private static class StallWatch {
+        final StallListener listener;
+        final long thresholdNanos;
+
+        StallWatch(StallListener listener, long thresholdNanos) {
+            this.listener = listener;
+            this.thresholdNanos = thresholdNanos;
         }
     }
 
-    // TODO: allow cancellation of scheduled tasks
     private class RunLoopThread extends Thread {
         public RunLoopThread() {
             setDaemon(true);
@@ -241,23 +585,51 @@ public class RunLoop implements Executor {
             while (running.get()) {
                 RunLoop.this.run(true);
             }
+            bufferPool.clear();
+        }
+    }
+
+    private static final class QueuedTask {
+        final Runnable command;
+        final long queuedNanos;
+
+        QueuedTask(Runnable command, long queuedNanos) {
+            this.command = command;
+            this.queuedNanos = queuedNanos;
         }
     }
 
-    private static class ScheduledRunnable implements Runnable {
+    private static class ScheduledRunnable implements Runnable, ScheduledTask {
         public long triggerPoint;
         public long tolerance;
-        private Runnable runnable;
+        // Cleared once run or cancelled, releasing the command while a
+        // cancelled task awaits discard.
+        private final AtomicReference<Runnable> runnable;
 
         ScheduledRunnable(Runnable runnable, long triggerPoint, long tolerance) {
-            this.runnable = runnable;
+            this.runnable = new AtomicReference<>(runnable);
             this.triggerPoint = triggerPoint;
             this.tolerance = tolerance;
         }
 
         @Override
         public void run() {
-            runnable.run();
+            Runnable command = runnable.getAndSet(null);
+            if (command != null) command.run();
+        }
+
+        @Override
+        public boolean cancel() {
+            return runnable.getAndSet(null) != null;
+        }
+
+        boolean isCancelled() {
+            return runnable.get() == null;
+        }
+
+        Class<?> getCommandClass() {
+            Runnable command = runnable.get();
+            return command != null ? command.getClass() : null;
         }
 
         public static Comparator<ScheduledRunnable> Comparator() {
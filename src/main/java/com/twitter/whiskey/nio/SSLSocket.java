@@ -7,7 +7,9 @@
 package com.twitter.whiskey.nio;
 
 import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.net.Protocol;
 import com.twitter.whiskey.util.Origin;
+import com.twitter.whiskey.util.Platform;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -16,8 +18,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An asynchronous TLS socket interface.
@@ -27,6 +31,11 @@ import java.util.Deque;
 public final class SSLSocket extends Socket {
 
     private static final ByteBuffer[] EMPTY_BUFFER_ARRAY = new ByteBuffer[0];
+    private static final int RECORD_HEADER_LENGTH = 5;
+
+    // Number of TLS records that may be read from, or written to, the channel
+    // in a single system call.
+    private static final int RECORDS_PER_IO = 4;
 
     private final SSLEngine engine;
 
@@ -34,12 +43,41 @@ public final class SSLSocket extends Socket {
     private final Deque<ReadFuture> handshakeReadQueue = new ArrayDeque<>();
 
     private final ByteBuffer bufferedWrapped;
+    private final int packetBufferSize;
+    private final Executor handshakeExecutor;
+
+    private long handshakeStart;
+    private long handshakeDuration = -1;
+    private long handshakeTaskCpuTime = 0;
+    private int handshakeTaskCount = 0;
+    private boolean handshakeReadPending = false;
 
     public SSLSocket(Origin origin, RunLoop runLoop, SSLEngine engine) {
-        super(origin, runLoop);
+        this(origin, runLoop, engine, Protocol.SPDY_3_1);
+    }
+
+    /**
+     * @param defaultProtocol the application protocol to use if none is negotiated
+     *                        via ALPN during the handshake
+     */
+    public SSLSocket(Origin origin, RunLoop runLoop, SSLEngine engine, Protocol defaultProtocol) {
+        this(origin, runLoop, engine, defaultProtocol, null);
+    }
+
+    /**
+     * @param defaultProtocol the application protocol to use if none is negotiated
+     *                        via ALPN during the handshake
+     * @param handshakeExecutor the executor on which to run the engine's delegated
+     *                          tasks, or null to run them on the RunLoop
+     */
+    public SSLSocket(Origin origin, RunLoop runLoop, SSLEngine engine, Protocol defaultProtocol,
+                     Executor handshakeExecutor) {
+        super(origin, runLoop, defaultProtocol);
+        this.handshakeExecutor = handshakeExecutor;
         this.engine = engine;
         this.engine.setUseClientMode(true);
-        bufferedWrapped = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        packetBufferSize = engine.getSession().getPacketBufferSize();
+        bufferedWrapped = ByteBuffer.allocateDirect(packetBufferSize * RECORDS_PER_IO);
     }
 
     @Override
@@ -47,85 +85,163 @@ public final class SSLSocket extends Socket {
         return true;
     }
 
+    /**
+     * @return the application protocol negotiated via ALPN, or the default protocol
+     *         if none was negotiated
+     */
+    @Override
+    public Protocol getProtocol() {
+        String negotiated = Platform.instance().getApplicationProtocol(engine);
+        Protocol protocol = negotiated != null ? Protocol.fromAlpnId(negotiated) : null;
+        return protocol != null ? protocol : super.getProtocol();
+    }
+
+    /**
+     * @return the wall-clock duration of the completed TLS handshake in
+     *         microseconds, or -1 if the handshake has not completed
+     */
+    public long getHandshakeDuration() {
+        return handshakeDuration;
+    }
+
+    /**
+     * @return the CPU time consumed by the engine's delegated handshake tasks
+     *         (e.g. certificate validation and key exchange), in the specified
+     *         unit; 0 if unavailable on this platform
+     */
+    public long getHandshakeTaskCpuTime(TimeUnit unit) {
+        return unit.convert(handshakeTaskCpuTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of delegated handshake tasks run
+     */
+    public int getHandshakeTaskCount() {
+        return handshakeTaskCount;
+    }
+
     @Override
     void finishConnect() throws IOException {
+        handshakeStart = System.nanoTime();
         // writing an empty buffer will initiate a handshake
         wrapHandshake();
     }
 
-    private void wrapHandshake() throws IOException {
-        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    private void finishHandshake() throws IOException {
 
-        SSLEngineResult result;
-        do {
-            result = engine.wrap(EMPTY_BUFFER_ARRAY, out);
+        // The engine may report completion while its final flight (e.g. the
+        // client Finished message under TLS 1.3) is still queued. Those
+        // records must precede any application data on the wire.
+        Deque<WriteFuture> writeQueue = super.getWriteQueue();
+        for (Iterator<WriteFuture> iterator = handshakeWriteQueue.descendingIterator(); iterator.hasNext(); ) {
+            writeQueue.addFirst(iterator.next());
+        }
+        handshakeWriteQueue.clear();
 
-            if (result.bytesProduced() > 0) {
-                out.flip();
-                handshakeWriteQueue.add(new WriteFuture(new ByteBuffer[] { out }));
-                out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-            }
+        handshakeDuration = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - handshakeStart);
 
-            switch (result.getHandshakeStatus()) {
-                case FINISHED:
-                    super.finishConnect();
-                    break;
-                case NEED_TASK:
-                    runDelegatedTasks(engine);
-                    break;
-                case NEED_UNWRAP:
-                    readAndUnwrapHandshake();
-                    break;
-                case NEED_WRAP:
-                case NOT_HANDSHAKING:
-                    break;
-            }
-        } while (result.bytesProduced() > 0);
+        super.finishConnect();
     }
 
-    private void unwrapHandshake(ByteBuffer wrappedBuf) throws IOException {
+    /**
+     * Wraps the records of the next handshake flight, batching consecutive
+     * records into pooled direct buffers as for application data.
+     */
+    private void wrapHandshake() throws IOException {
 
-        SSLEngineResult result;
-        do {
-            // TODO(bgallagher) buffer pooling
-            ByteBuffer to = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        BufferPool pool = getRunLoop().getBufferPool();
+        ByteBuffer out = pool.acquire(packetBufferSize * RECORDS_PER_IO);
+        try {
+            SSLEngineResult result;
+            do {
+                result = engine.wrap(EMPTY_BUFFER_ARRAY, out);
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+
+                // Records must be queued before the handshake moves on
+                if (out.position() > 0 && (status != SSLEngineResult.HandshakeStatus.NEED_WRAP ||
+                    result.bytesProduced() == 0 || out.remaining() < packetBufferSize)) {
+                    out.flip();
+                    handshakeWriteQueue.add(new HandshakeWriteFuture(out));
+                    out = pool.acquire(packetBufferSize * RECORDS_PER_IO);
+                }
 
-            bufferedWrapped.put(wrappedBuf);
-            bufferedWrapped.flip();
-            result = engine.unwrap(bufferedWrapped, to);
-            bufferedWrapped.compact();
+                switch (status) {
+                    case FINISHED:
+                        finishHandshake();
+                        break;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        return;
+                    case NEED_UNWRAP:
+                        readAndUnwrapHandshake();
+                        break;
+                    case NEED_WRAP:
+                    case NOT_HANDSHAKING:
+                        break;
+                }
+            } while (result.bytesProduced() > 0);
+        } finally {
+            pool.release(out);
+        }
 
-            switch (result.getHandshakeStatus()) {
-                case NEED_UNWRAP:
-                    break;
-                case NEED_WRAP:
-                    wrapHandshake();
-                    return;
-                case NEED_TASK:
-                    runDelegatedTasks(engine);
-                    break;
-                case FINISHED:
-                    super.finishConnect();
-                    if (bufferedWrapped.position() > 0) {
-                        onReadable();
-                    }
-                    return;
-                case NOT_HANDSHAKING:
-                    break;
-            }
-        } while (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW);
+        // flush any handshake records produced above
+        if (!handshakeWriteQueue.isEmpty()) reregister();
+    }
+
+    /**
+     * Unwraps the handshake records buffered from the channel.
+     */
+    private void unwrapHandshake() throws IOException {
+
+        BufferPool pool = getRunLoop().getBufferPool();
+        ByteBuffer to = pool.acquire(engine.getSession().getApplicationBufferSize());
+        try {
+            SSLEngineResult result;
+            do {
+                to.clear();
+                bufferedWrapped.flip();
+                result = engine.unwrap(bufferedWrapped, to);
+                bufferedWrapped.compact();
+
+                switch (result.getHandshakeStatus()) {
+                    case NEED_UNWRAP:
+                        break;
+                    case NEED_WRAP:
+                        wrapHandshake();
+                        return;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        return;
+                    case FINISHED:
+                        finishHandshake();
+                        if (bufferedWrapped.position() > 0) {
+                            onReadable();
+                        }
+                        return;
+                    case NOT_HANDSHAKING:
+                        break;
+                }
+            } while (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW);
+        } finally {
+            pool.release(to);
+        }
 
         readAndUnwrapHandshake();
     }
 
     private void readAndUnwrapHandshake() {
-        ReadFuture readFuture = super.read();
+
+        if (handshakeReadPending) return;
+        handshakeReadPending = true;
+
+        ReadFuture readFuture = super.read(new HandshakeReadFuture());
         readFuture.addListener(new Inline.Listener<ByteBuffer>() {
 
             @Override
             public void onComplete(ByteBuffer result) {
+                handshakeReadPending = false;
                 try {
-                    unwrapHandshake(result);
+                    unwrapHandshake();
                 } catch (IOException ioe) {
                     failConnect(ioe);
                 }
@@ -133,18 +249,101 @@ public final class SSLSocket extends Socket {
 
             @Override
             public void onError(Throwable throwable) {
+                handshakeReadPending = false;
                 failConnect(throwable);
             }
         });
     }
 
-    private static void runDelegatedTasks(SSLEngine engine) {
-        Runnable task;
-        while ((task = engine.getDelegatedTask()) != null) {
-            task.run();
+    /**
+     * Runs the engine's delegated tasks on the handshake executor, if any, and
+     * resumes the handshake on the RunLoop once they complete. The handshake
+     * state machine is suspended in the meantime.
+     */
+    private void runDelegatedTasks() {
+
+        final Runnable tasks = new Runnable() {
+            @Override
+            public void run() {
+                long start = Platform.instance().threadCpuTime();
+                int count = 0;
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                    count++;
+                }
+                long end = Platform.instance().threadCpuTime();
+                final long cpuTime = start >= 0 && end >= 0 ? end - start : 0;
+                final int taskCount = count;
+
+                getRunLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handshakeTaskCpuTime += cpuTime;
+                        handshakeTaskCount += taskCount;
+                        resumeHandshake();
+                    }
+                });
+            }
+        };
+
+        if (handshakeExecutor == null) {
+            tasks.run();
+            return;
+        }
+
+        try {
+            handshakeExecutor.execute(tasks);
+        } catch (RuntimeException e) {
+            failConnect(e);
+        }
+    }
+
+    private void resumeHandshake() {
+
+        if (getChannel() == null || !getChannel().isOpen()) return;
+
+        try {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrapHandshake();
+                    break;
+                case NEED_UNWRAP:
+                    // records may already be buffered from a previous read
+                    unwrapHandshake();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    finishHandshake();
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            failConnect(e);
+        }
+    }
+
+    private static void checkHandshakeStatus(SSLEngineResult result) throws SSLException {
+        switch (result.getHandshakeStatus()) {
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                // post-handshake messages (e.g. TLS 1.3 session tickets) are
+                // consumed by the engine without further action
+                return;
+            default:
+                throw new SSLException("renegotiation not supported");
         }
     }
 
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+
     @Override
     public ReadFuture read(ByteBuffer readBuffer) {
         return read(new SSLReadFuture(readBuffer));
@@ -160,6 +359,21 @@ public final class SSLSocket extends Socket {
         return write(new SSLWriteFuture(data));
     }
 
+    /**
+     * @return true if at least one complete TLS record has been read from the
+     *         channel but not yet unwrapped
+     */
+    @Override
+    boolean hasBufferedInput() {
+        int position = bufferedWrapped.position();
+        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING ||
+            position < RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        int recordLength = (bufferedWrapped.get(3) & 0xFF) << 8 | (bufferedWrapped.get(4) & 0xFF);
+        return position >= RECORD_HEADER_LENGTH + recordLength;
+    }
+
     @Override
     protected Deque<ReadFuture> getReadQueue() {
         if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
@@ -184,6 +398,53 @@ public final class SSLSocket extends Socket {
         super.close();
     }
 
+    /**
+     * Reads handshake records directly into the buffer from which they are
+     * unwrapped, never reading more than it can hold.
+     */
+    private final class HandshakeReadFuture extends ReadFuture {
+
+        HandshakeReadFuture() {
+            super(bufferedWrapped);
+        }
+
+        @Override
+        boolean doRead(SocketChannel channel) throws IOException {
+
+            int bytesRead = channel.read(bufferedWrapped);
+            if (bytesRead < 0) {
+                fail(new IOException("connection closed"));
+                return true;
+            }
+            if (bytesRead == 0) return false;
+
+            set(bufferedWrapped);
+            return true;
+        }
+    }
+
+    /**
+     * Writes a batch of handshake records, returning their pooled buffer
+     * once written.
+     */
+    private final class HandshakeWriteFuture extends WriteFuture {
+
+        private final ByteBuffer records;
+
+        HandshakeWriteFuture(ByteBuffer records) {
+            super(new ByteBuffer[] { records });
+            this.records = records;
+        }
+
+        @Override
+        boolean doWrite() throws IOException {
+
+            if (!super.doWrite()) return false;
+            getRunLoop().getBufferPool().release(records);
+            return true;
+        }
+    }
+
     private final class SSLReadFuture extends ReadFuture {
 
         SSLReadFuture() {
@@ -194,34 +455,49 @@ public final class SSLSocket extends Socket {
             super(buffer);
         }
 
+        /**
+         * Reads as much as the channel and the network buffer allow, then
+         * unwraps every complete record that fits in the read buffer. Records
+         * left over are delivered by the next read without waiting for the
+         * channel to become readable. Closure is reported once a read yields
+         * no new data, even if the buffer still holds unconsumed bytes.
+         */
         @Override
         boolean doRead(SocketChannel channel) throws IOException {
 
             ByteBuffer out = getBuffer();
+            // Data left unconsumed by the caller, such as a partial frame
+            int start = out.position();
 
-            int bytesRead = channel.read(bufferedWrapped);
-
-            if (bytesRead < 0) {
-                fail(new IOException("connection closed"));
-                return true;
-            }
+            int bytesRead = bufferedWrapped.hasRemaining() ? channel.read(bufferedWrapped) : 0;
 
             bufferedWrapped.flip();
 
             SSLEngineResult.Status status = SSLEngineResult.Status.OK;
-            while (out.remaining() > 0 && bufferedWrapped.remaining() > 0 && status ==
-                SSLEngineResult.Status.OK) {
-
-                SSLEngineResult result = engine.unwrap(bufferedWrapped, out);
-                status = result.getStatus();
-
-                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-                    throw new SSLException("renegotiation not supported");
+            try {
+                while (out.hasRemaining() && bufferedWrapped.hasRemaining() &&
+                    status == SSLEngineResult.Status.OK) {
+
+                    SSLEngineResult result = engine.unwrap(bufferedWrapped, out);
+                    status = result.getStatus();
+                    // the engine wants to answer a close_notify, not renegotiate
+                    if (status != SSLEngineResult.Status.CLOSED) checkHandshakeStatus(result);
                 }
-
+            } finally {
+                bufferedWrapped.compact();
             }
 
-            bufferedWrapped.compact();
+            if (out.position() == start) {
+                if (bytesRead < 0 || status == SSLEngineResult.Status.CLOSED || engine.isInboundDone()) {
+                    fail(new IOException("connection closed"));
+                    return true;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("read buffer has no room for a TLS record");
+                }
+                // only a partial record is available; wait for the rest
+                return false;
+            }
 
             out.flip();
             set(out);
@@ -229,46 +505,64 @@ public final class SSLSocket extends Socket {
         }
     }
 
+    /**
+     * Wraps application data into as few records as the engine permits,
+     * batching up to {@link #RECORDS_PER_IO} records into a single pooled
+     * direct buffer per channel write.
+     */
     private final class SSLWriteFuture extends WriteFuture {
 
-        private boolean wrapped = false;
+        private ByteBuffer wrapped;
 
         SSLWriteFuture(ByteBuffer[] data) {
             super(data);
         }
 
-        private void wrap() throws IOException {
+        /**
+         * @return false if there was no application data left to wrap
+         */
+        private boolean wrap() throws IOException {
 
-            ArrayList<ByteBuffer> wrapped = new ArrayList<>();
-
-            while (true) {
-                // TODO(bgallagher) buffer pooling
-                ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            ByteBuffer[] data = pending();
+            if (!hasRemaining(data)) return false;
 
-                SSLEngineResult result = engine.wrap(pending(), out);
+            if (wrapped == null) {
+                wrapped = getRunLoop().getBufferPool().acquire(packetBufferSize * RECORDS_PER_IO);
+            } else {
+                wrapped.clear();
+            }
 
-                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-                    throw new SSLException("renegotiation not supported");
-                }
+            while (wrapped.remaining() >= packetBufferSize && hasRemaining(data)) {
+                SSLEngineResult result = engine.wrap(data, wrapped);
+                checkHandshakeStatus(result);
 
-                if (result.bytesProduced() > 0) {
-                    out.flip();
-                    wrapped.add(out);
-                } else {
-                    break;
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("engine closed");
                 }
+                if (result.getStatus() != SSLEngineResult.Status.OK) break;
             }
 
-            setPending(wrapped.toArray(new ByteBuffer[wrapped.size()]));
+            wrapped.flip();
+            return true;
         }
 
+        @Override
         boolean doWrite() throws IOException {
-            if (!wrapped) {
-                wrap();
-                wrapped = true;
-            }
 
-            return super.doWrite();
+            while (true) {
+                if ((wrapped == null || !wrapped.hasRemaining()) && !wrap()) {
+                    if (wrapped != null) {
+                        getRunLoop().getBufferPool().release(wrapped);
+                        wrapped = null;
+                    }
+                    finish();
+                    return true;
+                }
+
+                long bytesWritten = getChannel().write(wrapped);
+                if (bytesWritten > 0) provide(bytesWritten);
+                if (wrapped.hasRemaining()) return false;
+            }
         }
     }
 }
@@ -7,6 +7,7 @@
 package com.twitter.whiskey.nio;
 
 import com.twitter.whiskey.futures.CompletableFuture;
+import com.twitter.whiskey.futures.Inline;
 import com.twitter.whiskey.futures.Listener;
 import com.twitter.whiskey.futures.ReactiveFuture;
 import com.twitter.whiskey.net.Protocol;
@@ -33,6 +34,7 @@ public class Socket extends Selectable {
 
     private final Origin origin;
     private final RunLoop runLoop;
+    private final Protocol protocol;
 
     private boolean closed = false;
 
@@ -43,10 +45,20 @@ public class Socket extends Selectable {
     private CloseFuture closeFuture;
     private Deque<ReadFuture> readQueue = new ArrayDeque<>(1);
     private Deque<WriteFuture> writeQueue = new ArrayDeque<>(32);
+    // Written on the RunLoop, read from any thread
+    private volatile long queuedWriteBytes;
 
     public Socket(Origin origin, RunLoop runLoop) {
+        this(origin, runLoop, Protocol.SPDY_3_1);
+    }
+
+    /**
+     * @param protocol the application protocol to be spoken directly over the socket
+     */
+    public Socket(Origin origin, RunLoop runLoop, Protocol protocol) {
         this.origin = origin;
         this.runLoop = runLoop;
+        this.protocol = protocol;
     }
 
     public ConnectFuture connect() {
@@ -83,7 +95,11 @@ public class Socket extends Selectable {
                 getReadQueue().add(readFuture);
 
                 if (channel != null && getReadQueue().size() == 1) {
-                    reregister();
+                    if (isConnected() && hasBufferedInput()) {
+                        onReadable();
+                    } else {
+                        reregister();
+                    }
                 }
             }
         });
@@ -118,6 +134,8 @@ public class Socket extends Selectable {
     public WriteFuture write(final WriteFuture writeFuture) {
         runLoop.execute(new Runnable() {
             public void run() {
+                writeFuture.queuedBytes = remaining(writeFuture.data);
+                queuedWriteBytes += writeFuture.queuedBytes;
                 getWriteQueue().add(writeFuture);
 
                 if (isConnected() && getWriteQueue().size() == 1) {
@@ -129,6 +147,33 @@ public class Socket extends Selectable {
         return writeFuture;
     }
 
+    /**
+     * @return true if input has already been received from the channel but
+     *         not yet delivered, such that a read may complete without the
+     *         channel becoming readable again
+     */
+    boolean hasBufferedInput() {
+        return false;
+    }
+
+    RunLoop getRunLoop() {
+        return runLoop;
+    }
+
+    /**
+     * @return the number of bytes of application data written to the socket
+     *         which have yet to be fully written to the channel
+     */
+    public long getQueuedWriteBytes() {
+        return queuedWriteBytes;
+    }
+
+    private static long remaining(ByteBuffer[] data) {
+        long remaining = 0;
+        for (ByteBuffer buffer : data) remaining += buffer.remaining();
+        return remaining;
+    }
+
     protected Deque<ReadFuture> getReadQueue() {
         return readQueue;
     }
@@ -145,6 +190,12 @@ public class Socket extends Selectable {
         } catch (IOException e) {
             connectFuture.fail(e);
             closed = true;
+            // Left registered, the failed channel would be selected forever
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
@@ -174,20 +225,24 @@ public class Socket extends Selectable {
             return;
         }
 
-        ReadFuture currentRead = readQueue.peek();
-        assert (!currentRead.isDone());
-
         boolean complete;
-        try {
-            complete = currentRead.doRead(channel);
-        } catch (IOException e) {
-            close(e);
-            return;
-        }
+        do {
+            ReadFuture currentRead = readQueue.peek();
+            assert (!currentRead.isDone());
+
+            try {
+                complete = currentRead.doRead(channel);
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
 
-        if (complete) {
-            readQueue.poll();
-        }
+            if (complete) {
+                readQueue.poll();
+            }
+            // Input buffered by a previous read can satisfy queued reads
+            // without waiting on the selector.
+        } while (complete && !closed && !readQueue.isEmpty() && hasBufferedInput());
 
         reregister();
     }
@@ -219,6 +274,7 @@ public class Socket extends Selectable {
 
         if (complete) {
             getWriteQueue().poll();
+            queuedWriteBytes -= currentWrite.queuedBytes;
         }
 
         reregister();
@@ -257,7 +313,7 @@ public class Socket extends Selectable {
         if (closed) return;
         closed = true;
         key = null;
-        closeFuture.fail(e);
+        if (closeFuture != null) closeFuture.fail(e); else failConnect(e);
     }
 
     boolean isSecure() {
@@ -269,7 +325,8 @@ public class Socket extends Selectable {
         if (closed) return;
         closed = true;
         if (key != null) key.cancel();
-        closeFuture.fail(e);
+        // An SSLSocket may fail before its handshake completes
+        if (closeFuture != null) closeFuture.fail(e); else failConnect(e);
     }
 
     public void close() {
@@ -286,8 +343,24 @@ public class Socket extends Selectable {
         closeFuture.set(null);
     }
 
+    /**
+     * Closes the socket once every write queued before the call has been
+     * written to the channel.
+     */
+    public void closeAfterWrites() {
+        write(ByteBuffer.allocate(0)).addListener(new Inline.Listener<Long>() {
+            @Override
+            public void onComplete(Long result) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * @return the application protocol to be used over this socket
+     */
     public Protocol getProtocol() {
-        return Protocol.SPDY_3_1;
+        return protocol;
     }
 
     // TODO: split internal futures into public interface and package-private implementation
@@ -341,6 +414,7 @@ public class Socket extends Selectable {
 
     public class WriteFuture extends ReactiveFuture<Long, Long> {
         private ByteBuffer[] data;
+        private long queuedBytes;
         ArrayList<Long> bytesWritten;
         Long totalBytesWritten;
 
@@ -386,7 +460,11 @@ public class Socket extends Selectable {
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            return getWriteQueue().contains(this) && super.cancel(mayInterruptIfRunning) && getWriteQueue().remove(this);
+            if (getWriteQueue().contains(this) && super.cancel(mayInterruptIfRunning) && getWriteQueue().remove(this)) {
+                queuedWriteBytes -= queuedBytes;
+                return true;
+            }
+            return false;
         }
 
     }
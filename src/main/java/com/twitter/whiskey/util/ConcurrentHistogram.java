@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cumulative histogram of latencies which may be recorded from any thread
+ * without locking.
+ *
+ * Values are counted in the same log-linear buckets as
+ * {@link LatencyHistogram}, bounding the relative error of any percentile
+ * estimate to 12.5%, but counts never decay.
+ *
+ * This class is thread-safe.
+ */
+public class ConcurrentHistogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single non-negative value.
+     */
+    public void record(long value) {
+
+        if (value < 0) throw new IllegalArgumentException("negative value: " + value);
+        value = Math.min(value, LatencyHistogram.MAX_VALUE);
+        counts.incrementAndGet(LatencyHistogram.indexOf(value));
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * @return a copy of the counts recorded so far. Values recorded while
+     *         the copy is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+
+        long[] copy = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.get(), max.get());
+    }
+
+    /**
+     * An immutable copy of a {@link ConcurrentHistogram}.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean of the recorded values, or 0 if there are none
+         */
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Estimates a percentile of the recorded values, rounding up to the
+         * upper bound of the bucket containing it.
+         *
+         * @param percentile a fraction in (0, 1]
+         * @return the estimated value, or -1 if nothing has been recorded
+         */
+        public long getPercentile(double percentile) {
+
+            if (percentile <= 0 || percentile > 1) {
+                throw new IllegalArgumentException("percentile must be in (0, 1]: " + percentile);
+            }
+            if (count == 0) return -1;
+
+            long target = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(max, LatencyHistogram.upperBound(i));
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.util;
+
+/**
+ * A compact histogram of recent latencies, from which percentiles may be
+ * estimated.
+ *
+ * Values are counted in log-linear buckets, with eight buckets per power of
+ * two, bounding the relative error of any estimate to 12.5%. To track
+ * changing conditions, all counts are halved each time the number of
+ * samples reaches the configured window, so older samples decay
+ * geometrically.
+ *
+ * Not thread-safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values beyond 2^32 are recorded as 2^32 - 1.
+    private static final int MAX_EXPONENT = 32;
+    static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    static final int BUCKET_COUNT = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 1);
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private final int window;
+    private int count;
+
+    /**
+     * @param window the number of samples after which all counts are halved
+     */
+    public LatencyHistogram(int window) {
+        if (window < 2) throw new IllegalArgumentException("window must be at least 2");
+        this.window = window;
+    }
+
+    /**
+     * Records a single non-negative value.
+     */
+    public void record(long value) {
+
+        if (value < 0) throw new IllegalArgumentException("negative value: " + value);
+        counts[indexOf(Math.min(value, MAX_VALUE))]++;
+        if (++count >= window) decay();
+    }
+
+    /**
+     * @return the weight of samples currently held, which decays with age
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates a percentile of the recorded values, rounding up to the
+     * upper bound of the bucket containing it.
+     *
+     * @param percentile a fraction in (0, 1]
+     * @return the estimated value, or -1 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]: " + percentile);
+        }
+        if (count == 0) return -1;
+
+        long target = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) return upperBound(i);
+        }
+        return MAX_VALUE;
+    }
+
+    private void decay() {
+
+        count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] >>= 1;
+            count += counts[i];
+        }
+    }
+
+    static int indexOf(long value) {
+
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long upperBound(int index) {
+
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -10,6 +10,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.logging.Level;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
 // TODO: use to acquire instances of specific utility objects, e.g. Clock
 
 /**
@@ -19,6 +22,13 @@ public abstract class Platform {
 
     private static final Platform INSTANCE = establishPlatform();
 
+    // ALPN is exposed on SSLEngine beginning with Java 9 (backported to 8u252)
+    // and Android API 29, so these are resolved reflectively.
+    private static final Method SET_APPLICATION_PROTOCOLS = findMethod(
+        SSLParameters.class, "setApplicationProtocols", String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL = findMethod(
+        SSLEngine.class, "getApplicationProtocol");
+
     public static final Clock CLOCK = new DefaultClock();
     public static final Logger LOGGER = new Logger() {
         @Override public void fatal(String s) {
@@ -52,6 +62,64 @@ public abstract class Platform {
 
     abstract public long timestamp();
 
+    /**
+     * @return the CPU time consumed by the current thread in nanoseconds, or
+     *         -1 if unavailable on this platform
+     */
+    abstract public long threadCpuTime();
+
+    /**
+     * @return true if protocols may be negotiated via ALPN on this platform
+     */
+    public boolean supportsAlpn() {
+        return SET_APPLICATION_PROTOCOLS != null && GET_APPLICATION_PROTOCOL != null;
+    }
+
+    /**
+     * Configures the engine to offer the specified protocols, in order of
+     * preference, via ALPN during the TLS handshake.
+     *
+     * @return false if ALPN is unsupported on this platform
+     */
+    public boolean setApplicationProtocols(SSLEngine engine, String[] protocols) {
+
+        if (!supportsAlpn()) return false;
+
+        try {
+            SSLParameters parameters = engine.getSSLParameters();
+            SET_APPLICATION_PROTOCOLS.invoke(parameters, (Object) protocols);
+            engine.setSSLParameters(parameters);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the protocol negotiated via ALPN for the engine's current session,
+     *         or null if no protocol was negotiated
+     */
+    public String getApplicationProtocol(SSLEngine engine) {
+
+        if (GET_APPLICATION_PROTOCOL == null) return null;
+
+        try {
+            String protocol = (String) GET_APPLICATION_PROTOCOL.invoke(engine);
+            return protocol == null || protocol.isEmpty() ? null : protocol;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> c, String name, Class<?>... parameterTypes) {
+
+        try {
+            return c.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException | SecurityException e) {
+            return null;
+        }
+    }
+
     private static Platform establishPlatform() {
 
         try {
@@ -79,11 +147,18 @@ public abstract class Platform {
         public long timestamp() {
             return System.nanoTime() / 1000;
         }
+
+        @Override
+        public long threadCpuTime() {
+            java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        }
     }
 
     private static class Android extends Platform {
 
         private Method now;
+        private Method cpuTime;
 
         Android() {
 
@@ -93,6 +168,13 @@ public abstract class Platform {
             } catch (ClassNotFoundException | NoSuchMethodException | SecurityException e) {
                 now = null;
             }
+
+            try {
+                cpuTime = Class.forName("android.os.Debug").getDeclaredMethod("threadCpuTimeNanos");
+                cpuTime.setAccessible(true);
+            } catch (ClassNotFoundException | NoSuchMethodException | SecurityException e) {
+                cpuTime = null;
+            }
         }
 
         @Override
@@ -111,5 +193,18 @@ public abstract class Platform {
 
             return System.nanoTime() / 1000;
         }
+
+        @Override
+        public long threadCpuTime() {
+            if (cpuTime != null) {
+                try {
+                    return (Long) cpuTime.invoke(null);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    cpuTime = null;
+                }
+            }
+
+            return -1;
+        }
     }
 }
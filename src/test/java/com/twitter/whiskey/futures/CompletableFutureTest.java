@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.futures;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class CompletableFutureTest {
+
+    @Test
+    public void testSetAndGet() throws Exception {
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        Assert.assertFalse(future.isDone());
+        Assert.assertTrue(future.set("done"));
+        Assert.assertFalse(future.set("again"));
+        Assert.assertFalse(future.fail(new Exception()));
+        Assert.assertFalse(future.cancel(false));
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals("done", future.get());
+        Assert.assertEquals("done", future.get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailAndCancel() throws Exception {
+
+        Exception cause = new Exception();
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.fail(cause);
+        try {
+            failed.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertSame(cause, e.getCause());
+        }
+
+        CompletableFuture<String> cancelled = new CompletableFuture<>();
+        Assert.assertTrue(cancelled.cancel(true));
+        Assert.assertTrue(cancelled.isCancelled());
+        try {
+            cancelled.get();
+            Assert.fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (TimeoutException expected) {
+        }
+
+        // an abandoned waiter must not prevent later completion
+        future.set("late");
+        Assert.assertEquals("late", future.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+
+        final List<Integer> order = new ArrayList<>();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            future.addListener(new Inline.Listener<Void>() {
+                @Override
+                public void onComplete(Void result) {
+                    order.add(index);
+                }
+            });
+        }
+        future.set(null);
+
+        // a null result is a success, not a cancellation, for late listeners too
+        future.addListener(new Inline.Listener<Void>() {
+            @Override
+            public void onComplete(Void result) {
+                order.add(3);
+            }
+        });
+
+        Assert.assertEquals(4, order.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void testDirectDispatch() throws Exception {
+
+        final AtomicInteger queued = new AtomicInteger();
+        final Thread current = Thread.currentThread();
+        final List<Runnable> tasks = new ArrayList<>();
+        ThreadBoundExecutor executor = new ThreadBoundExecutor() {
+            @Override
+            public boolean inExecutorThread() {
+                return Thread.currentThread() == current;
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                queued.incrementAndGet();
+                tasks.add(command);
+            }
+        };
+
+        // Chain futures such that each listener completes the next; beyond
+        // the depth limit callbacks must be handed to the executor.
+        int length = DirectDispatch.MAX_DEPTH * 2;
+        final List<CompletableFuture<Integer>> chain = new ArrayList<>();
+        for (int i = 0; i <= length; i++) chain.add(new CompletableFuture<Integer>());
+        for (int i = 0; i < length; i++) {
+            final int next = i + 1;
+            chain.get(i).addListener(new ExecutorListener<Integer>(executor) {
+                @Override
+                public void onComplete(Integer result) {
+                    chain.get(next).set(result + 1);
+                }
+            });
+        }
+
+        chain.get(0).set(0);
+        Assert.assertEquals(1, queued.get());
+        Assert.assertFalse(chain.get(length).isDone());
+
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals(length, (int) chain.get(length).get());
+        Assert.assertEquals(1, queued.get());
+    }
+
+    @Test
+    public void testLongInlineChain() throws Exception {
+
+        // Callbacks beyond the depth limit are deferred on the thread rather
+        // than run on its stack
+        int length = 100000;
+        final List<CompletableFuture<Integer>> chain = new ArrayList<>();
+        for (int i = 0; i <= length; i++) chain.add(new CompletableFuture<Integer>());
+        for (int i = 0; i < length; i++) {
+            final int next = i + 1;
+            chain.get(i).addListener(new Inline.Listener<Integer>() {
+                @Override
+                public void onComplete(Integer result) {
+                    chain.get(next).set(result + 1);
+                }
+            });
+        }
+
+        chain.get(0).set(0);
+        Assert.assertEquals(length, (int) chain.get(length).get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testConcurrentCompletion() throws Exception {
+
+        final int threads = 8;
+        for (int round = 0; round < 100; round++) {
+            final CompletableFuture<Integer> future = new CompletableFuture<>();
+            final AtomicInteger winners = new AtomicInteger();
+            final AtomicInteger notifications = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(threads * 2);
+
+            for (int i = 0; i < threads; i++) {
+                final int value = i;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            if (future.set(value)) winners.incrementAndGet();
+                            finished.countDown();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }).start();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            future.addListener(new Inline.Listener<Integer>() {
+                                @Override
+                                public void onComplete(Integer result) {
+                                    notifications.incrementAndGet();
+                                }
+                            });
+                            future.get();
+                            finished.countDown();
+                        } catch (InterruptedException | ExecutionException ignored) {
+                        }
+                    }
+                }).start();
+            }
+
+            start.countDown();
+            Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, winners.get());
+            Assert.assertEquals(threads, notifications.get());
+        }
+    }
+
+    @Test
+    public void testReactiveStreaming() throws Exception {
+
+        TestReactiveFuture future = new TestReactiveFuture();
+        future.provide(1);
+        future.provide(2);
+
+        final List<Integer> observed = new ArrayList<>();
+        final AtomicInteger completions = new AtomicInteger();
+        future.addObserver(new Inline.Observer<Integer>() {
+            @Override
+            public void onNext(Integer element) {
+                observed.add(element);
+            }
+
+            @Override
+            public void onComplete() {
+                completions.incrementAndGet();
+            }
+        });
+        Iterator<Integer> iterator = future.iterator();
+
+        // elements accumulate until released
+        Assert.assertTrue(observed.isEmpty());
+        future.release();
+        future.provide(3);
+        future.finish();
+
+        Assert.assertEquals(3, observed.size());
+        Assert.assertEquals(1, completions.get());
+        int expected = 1;
+        while (iterator.hasNext()) {
+            Assert.assertEquals(expected++, (int) iterator.next());
+        }
+        Assert.assertEquals(4, expected);
+        Assert.assertTrue(future.isDone());
+    }
+
+    @Test
+    public void testConcurrentSubscribeAndFinish() throws Exception {
+
+        for (int round = 0; round < 2000; round++) {
+            final TestReactiveFuture future = new TestReactiveFuture();
+            future.release();
+            future.provide(1);
+            future.provide(2);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        future.finish();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+            producer.start();
+
+            // The first subscriber receives every element, however it races
+            // with completion
+            final List<Integer> observed = new ArrayList<>();
+            final AtomicInteger completions = new AtomicInteger();
+            start.countDown();
+            future.addObserver(new Inline.Observer<Integer>() {
+                @Override
+                public void onNext(Integer element) {
+                    observed.add(element);
+                }
+
+                @Override
+                public void onComplete() {
+                    completions.incrementAndGet();
+                }
+            });
+            producer.join();
+
+            Assert.assertEquals(1, completions.get());
+            Assert.assertEquals(2, observed.size());
+            Assert.assertEquals(1, (int) observed.get(0));
+            Assert.assertEquals(2, (int) observed.get(1));
+        }
+    }
+
+    @Test
+    public void testSubscribeWhileFinishing() throws Exception {
+
+        final CountDownLatch completing = new CountDownLatch(1);
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final TestReactiveFuture future = new TestReactiveFuture() {
+            @Override
+            protected boolean complete() {
+                // The producer has found no subscribers to drain to
+                completing.countDown();
+                try {
+                    subscribed.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.complete();
+            }
+        };
+        future.release();
+        future.provide(1);
+        future.provide(2);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                future.finish();
+            }
+        });
+        producer.start();
+        Assert.assertTrue(completing.await(5, TimeUnit.SECONDS));
+
+        final List<Integer> observed = new ArrayList<>();
+        Iterator<Integer> iterator = future.iterator();
+        subscribed.countDown();
+        while (iterator.hasNext()) observed.add(iterator.next());
+        producer.join();
+
+        Assert.assertEquals(2, observed.size());
+        Assert.assertEquals(2, future.get().size());
+    }
+
+    @Test
+    public void testStreamingIteratorOverflow() throws Exception {
+
+        final int count = 100000;
+        final TestReactiveFuture future = new TestReactiveFuture();
+        future.release();
+        Iterator<Integer> iterator = future.iterator(4);
+
+        // the producer runs ahead of the consumer, spilling past the ring
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) future.provide(i);
+                future.finish();
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (iterator.hasNext()) {
+            Assert.assertEquals(expected++, (int) iterator.next());
+        }
+        Assert.assertEquals(count, expected);
+        producer.join();
+    }
+
+    @Test
+    public void testPublisherDemand() throws Exception {
+
+        TestReactiveFuture future = new TestReactiveFuture();
+        future.provide(1);
+        future.release();
+
+        final List<Integer> observed = new ArrayList<>();
+        final List<Flow.Subscription> subscriptions = new ArrayList<>();
+        final AtomicInteger completions = new AtomicInteger();
+        future.asPublisher(Inline.INSTANCE).subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriptions.add(subscription);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                observed.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completions.incrementAndGet();
+            }
+        });
+
+        future.provide(2);
+        future.provide(3);
+        future.finish();
+        Assert.assertEquals(1, subscriptions.size());
+        Assert.assertTrue(observed.isEmpty());
+        Assert.assertEquals(0, completions.get());
+
+        // elements, and completion, are only delivered as requested
+        subscriptions.get(0).request(2);
+        Assert.assertEquals(2, observed.size());
+        Assert.assertEquals(2, future.delivered.size());
+        Assert.assertEquals(0, completions.get());
+        subscriptions.get(0).request(1);
+        Assert.assertEquals(3, observed.size());
+        Assert.assertEquals(1, completions.get());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i + 1, (int) observed.get(i));
+        }
+    }
+
+    private static abstract class ExecutorListener<T> implements Listener<T> {
+
+        private final Executor executor;
+
+        ExecutorListener(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public Executor getExecutor() {
+            return executor;
+        }
+    }
+
+    private static class TestReactiveFuture extends ReactiveFuture<List<Integer>, Integer> {
+
+        private List<Integer> elements = new ArrayList<>();
+        private final List<Integer> delivered = new ArrayList<>();
+
+        @Override
+        protected void accumulate(Integer element) {
+            elements.add(element);
+        }
+
+        @Override
+        protected Iterable<Integer> drain() {
+            List<Integer> drained = elements;
+            elements = new ArrayList<>();
+            return drained;
+        }
+
+        @Override
+        protected boolean complete() {
+            return set(elements);
+        }
+
+        @Override
+        protected void onDeliver(Integer element) {
+            delivered.add(element);
+        }
+    }
+}
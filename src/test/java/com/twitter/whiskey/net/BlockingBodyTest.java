@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises {@link WhiskeyClient#send} and {@link BlockingBody} against an
+ * in-process HTTP/2 server.
+ */
+public final class BlockingBodyTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testBlockingSend() throws Exception {
+
+        final WhiskeyClient client = newClient();
+        final int threads = 200;
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final String path = "/blocking/" + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Response response = client.send(new Request.Builder(baseUrl + path).create());
+                        if (("hello " + path).equals(bodyString(response))) succeeded.incrementAndGet();
+                    } catch (Exception ignored) {
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertEquals(threads, succeeded.get());
+    }
+
+    @Test
+    public void testBlockingBody() throws Exception {
+
+        int size = 1 << 20;
+        ResponseFuture future = newClient(65535, 16384)
+            .submit(new Request.Builder(baseUrl + "/large/" + size).create());
+
+        BlockingBody body = new BlockingBody(future.getBodyFuture());
+        byte[] buffer = new byte[5000];
+        int total = 0;
+        int read;
+        while ((read = body.read(buffer, 0, buffer.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                Assert.assertEquals((byte) (total + i), buffer[i]);
+            }
+            total += read;
+        }
+        Assert.assertEquals(size, total);
+        Assert.assertEquals(-1, body.read());
+    }
+}
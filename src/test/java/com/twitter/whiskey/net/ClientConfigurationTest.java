@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public final class ClientConfigurationTest {
+
+    @Test
+    public void testPositionalConstructor() {
+
+        ClientConfiguration configuration = new ClientConfiguration(
+            Arrays.asList(Protocol.HTTP_2_0, Protocol.HTTP_1_1), ClientConfiguration.UpgradeStrategy.ALPN, null,
+            TimeUnit.SECONDS, 5, 1, 2, 3, 4096, 1024, true);
+
+        Assert.assertEquals(Protocol.HTTP_2_0, configuration.getPreferredProtocol());
+        Assert.assertEquals(ClientConfiguration.UpgradeStrategy.ALPN, configuration.getUpgradeStrategy());
+        Assert.assertEquals(5, configuration.getConnectTimeout());
+        Assert.assertEquals(3, configuration.getMaxTcpConnections());
+        Assert.assertEquals(4096, configuration.getSessionReceiveWindow());
+        Assert.assertTrue(configuration.useTcpNoDelay());
+
+        // Options added since are left at their defaults
+        ClientConfiguration defaults = new ClientConfiguration.Builder().create();
+        Assert.assertEquals(defaults.getMaxPipelineDepth(), configuration.getMaxPipelineDepth());
+        Assert.assertEquals(defaults.getPushCacheSize(), configuration.getPushCacheSize());
+        Assert.assertSame(defaults.getHandshakeExecutor(), configuration.getHandshakeExecutor());
+    }
+
+    @Test
+    public void testSharedHandshakeExecutor() {
+
+        Executor executor = new ClientConfiguration.Builder().create().getHandshakeExecutor();
+        Assert.assertNotNull(executor);
+        Assert.assertSame(executor, new ClientConfiguration.Builder().create().getHandshakeExecutor());
+        Assert.assertNull(new ClientConfiguration.Builder().handshakeExecutor(null).create().getHandshakeExecutor());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises the coalescing of identical requests against an in-process
+ * HTTP/2 server.
+ */
+public final class CoalescingTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .coalesceRequests(true)
+            .create());
+
+        // Identical requests made while the first is in flight share its response
+        Request request = new Request.Builder(baseUrl + "/large/100000").create();
+        List<ResponseFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) futures.add(client.submit(request));
+        ResponseFuture distinct = client.submit(new Request.Builder(baseUrl + "/large/100000")
+            .addHeader(Headers.ACCEPT, "text/plain").create());
+
+        for (int i = 0; i < futures.size(); i++) {
+            Response response = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            ByteBuffer body = response.getBody();
+            Assert.assertEquals(100000, body.remaining());
+            Assert.assertEquals(i > 0, body.isReadOnly());
+            for (int j = 0; j < 100000; j++) Assert.assertEquals((byte) j, body.get());
+        }
+        distinct.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(2, server.getRequestCount());
+
+        // Followers of a cancelled request are sent in its place
+        Request cancelled = new Request.Builder(baseUrl + "/cancelled").create();
+        ResponseFuture leader = client.submit(cancelled);
+        ResponseFuture follower = client.submit(cancelled);
+        leader.cancel(false);
+        Assert.assertEquals("hello /cancelled", bodyString(follower.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises the deferral of discretionary requests against an in-process
+ * HTTP/2 server.
+ */
+public final class DiscretionaryTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testDiscretionary() throws Exception {
+
+        WhiskeyClient client = newClient();
+        ResponseFuture deferred = client.submit(new Request.Builder(baseUrl + "/deferred")
+            .discretionary(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)
+            .create());
+
+        // A discretionary request alone doesn't open a connection
+        Thread.sleep(200);
+        Assert.assertFalse(deferred.isDone());
+        Assert.assertEquals(0, server.getConnectionCount());
+
+        // but rides along with other traffic once one is open
+        Response response = client.submit(new Request.Builder(baseUrl + "/eager").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /eager", bodyString(response));
+        Assert.assertEquals("hello /deferred", bodyString(deferred.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(1, server.getConnectionCount());
+
+        // or is dispatched once its deadline passes
+        Response expired = newClient().submit(new Request.Builder(baseUrl + "/expired")
+            .discretionary(100, TimeUnit.MILLISECONDS)
+            .create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /expired", bodyString(expired));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Date;
+
+public final class DiskCacheTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ResponseCache.Entry entry(int size, int fill) throws Exception {
+
+        Headers headers = new Headers();
+        headers.add(new Header(Headers.DATE, new Date()));
+        headers.put(Headers.CACHE_CONTROL, "max-age=3600");
+        ByteBuffer body = ByteBuffer.allocate(size);
+        while (body.hasRemaining()) body.put((byte) fill);
+        body.flip();
+        Request request = new Request.Builder("http://example.com/").create();
+        return ResponseCache.Entry.create(request, new Response(200, headers, body, null), System.currentTimeMillis());
+    }
+
+    private static void assertBody(ResponseCache.Entry entry, int size, int fill) {
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(size, entry.body.remaining());
+        for (int i = 0; i < size; i++) Assert.assertEquals((byte) fill, entry.body.get(entry.body.position() + i));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+
+        File directory = folder.newFolder();
+        DiskCache cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        cache.put("a", entry(100, 1));
+        cache.put("b", entry(200, 2));
+        cache.put("a", entry(300, 3));
+        cache.put("c", entry(10, 4));
+        cache.remove("c");
+
+        ResponseCache.Entry a = cache.get("a");
+        assertBody(a, 300, 3);
+        Assert.assertTrue(a.body instanceof MappedByteBuffer);
+        Assert.assertTrue(a.body.isReadOnly());
+        Assert.assertEquals("max-age=3600", a.headers.getFirst(Headers.CACHE_CONTROL));
+        cache.close();
+
+        cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        Assert.assertEquals(2, cache.getEntryCount());
+        assertBody(cache.get("a"), 300, 3);
+        assertBody(cache.get("b"), 200, 2);
+        Assert.assertNull(cache.get("c"));
+        Assert.assertNull(cache.get("d"));
+        cache.close();
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+
+        File directory = folder.newFolder();
+        DiskCache cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        cache.put("a", entry(100, 1));
+        long intact = cache.size();
+        cache.put("b", entry(100, 2));
+        cache.put("c", entry(100, 3));
+        cache.close();
+
+        // Corrupt the body of the second record, as if its write were torn
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "1.seg"), "rw");
+        file.seek(intact + 100);
+        file.write(0xff);
+        file.close();
+
+        cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        Assert.assertEquals(intact, cache.size());
+        assertBody(cache.get("a"), 100, 1);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNull(cache.get("c"));
+
+        // Records after the tear are not revived by later appends
+        cache.put("d", entry(10, 4));
+        cache.close();
+        cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        Assert.assertEquals(2, cache.getEntryCount());
+        assertBody(cache.get("d"), 10, 4);
+        Assert.assertNull(cache.get("c"));
+        cache.close();
+    }
+
+    @Test
+    public void testReclamation() throws Exception {
+
+        DiskCache cache = new DiskCache(folder.newFolder(), SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        cache.put("kept", entry(1000, 1));
+        for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, entry(1000, i));
+            // Keep the first entry, and so its segment, recently used
+            Assert.assertNotNull(cache.get("kept"));
+            Assert.assertTrue(cache.size() <= cache.maxSize());
+        }
+        assertBody(cache.get("kept"), 1000, 1);
+        assertBody(cache.get("key39"), 1000, 39);
+        Assert.assertNull(cache.get("key5"));
+
+        // Overwriting a key leaves garbage, which is compacted away
+        DiskCache compacted = new DiskCache(folder.newFolder(), SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        compacted.put("old", entry(100, 5));
+        for (int i = 0; i < 40; i++) {
+            compacted.put("same", entry(1000, i));
+            Assert.assertTrue(compacted.size() <= compacted.maxSize());
+        }
+        assertBody(compacted.get("old"), 100, 5);
+        assertBody(compacted.get("same"), 1000, 39);
+
+        // Responses larger than a segment are not stored
+        compacted.put("large", entry(SEGMENT_SIZE, 6));
+        Assert.assertNull(compacted.get("large"));
+
+        compacted.evictAll();
+        Assert.assertEquals(0, compacted.getEntryCount());
+        Assert.assertNull(compacted.get("old"));
+        cache.close();
+        compacted.close();
+    }
+
+    @Test
+    public void testReclaimedRemoval() throws Exception {
+
+        File directory = folder.newFolder();
+        DiskCache cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        cache.put("kept", entry(1000, 1));
+        cache.put("removed", entry(1000, 2));
+        cache.put("replaced", entry(1000, 3));
+        // The removal and replacement land in a later segment than the
+        // records they supersede, which is reclaimed first
+        cache.remove("removed");
+        cache.put("replaced", entry(1000, 4));
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, entry(1000, i));
+            Assert.assertNotNull(cache.get("kept"));
+            Assert.assertNull(cache.get("removed"));
+            Assert.assertTrue(cache.size() <= cache.maxSize());
+        }
+        Assert.assertNull(cache.get("replaced"));
+        cache.close();
+
+        cache = new DiskCache(directory, SEGMENT_SIZE * 4, SEGMENT_SIZE);
+        assertBody(cache.get("kept"), 1000, 1);
+        Assert.assertNull(cache.get("removed"));
+        Assert.assertNull(cache.get("replaced"));
+        cache.close();
+    }
+}
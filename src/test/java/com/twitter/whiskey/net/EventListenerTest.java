@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises {@link EventListener} callbacks against an in-process HTTP/2
+ * server.
+ */
+public final class EventListenerTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    @Test
+    public void testEventListener() throws Exception {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger frames = new AtomicInteger();
+        EventListener listener = new EventListener() {
+            @Override
+            public void onRequestQueued(Request request) {
+                events.add("queued " + request.getUrl().getPath());
+            }
+
+            @Override
+            public void onStreamOpened(Request request, Protocol protocol, int streamId) {
+                events.add("opened " + protocol.name() + " " + streamId);
+            }
+
+            @Override
+            public void onResponseHeaders(Request request, int statusCode) {
+                events.add("status " + statusCode);
+            }
+
+            @Override
+            public void onRequestCompleted(Request request, RequestStats stats, Throwable error) {
+                events.add("completed " + error);
+            }
+
+            @Override
+            public void onFrame(Origin origin, FrameTracer.Event frame) {
+                frames.incrementAndGet();
+            }
+        };
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .eventListener(listener)
+            .create());
+        client.submit(new Request.Builder(baseUrl + "/hello").create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(
+            Arrays.asList("queued /hello", "opened HTTP_2_0 1", "status 200", "completed null"), events);
+        Assert.assertTrue(frames.get() >= 4);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class FrameTracerTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+
+    @Test
+    public void testSnapshot() {
+
+        FrameTracer tracer = new FrameTracer(4);
+        Assert.assertTrue(tracer.snapshot().isEmpty());
+
+        tracer.sent(FrameTracer.Type.HEADERS, 1, FrameTracer.END_STREAM, 0);
+        tracer.received(FrameTracer.Type.SETTINGS, 0, FrameTracer.ACK, 0);
+        List<FrameTracer.Event> events = tracer.snapshot();
+        Assert.assertEquals(2, events.size());
+
+        FrameTracer.Event headers = events.get(0);
+        Assert.assertEquals(FrameTracer.Direction.SENT, headers.getDirection());
+        Assert.assertEquals(FrameTracer.Type.HEADERS, headers.getType());
+        Assert.assertEquals(1, headers.getStreamId());
+        Assert.assertTrue(headers.isEndStream());
+        Assert.assertFalse(headers.isAck());
+
+        FrameTracer.Event settings = events.get(1);
+        Assert.assertEquals(FrameTracer.Direction.RECEIVED, settings.getDirection());
+        Assert.assertTrue(settings.isAck());
+        Assert.assertTrue(settings.getTimeNanos() >= headers.getTimeNanos());
+    }
+
+    @Test
+    public void testWrap() {
+
+        // Capacity is rounded up to a power of two
+        FrameTracer tracer = new FrameTracer(3);
+        for (int i = 0; i < 10; i++) {
+            tracer.received(FrameTracer.Type.DATA, 1, 0, i);
+        }
+
+        List<FrameTracer.Event> events = tracer.snapshot();
+        Assert.assertTrue(events.size() >= 3 && events.size() <= 4);
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(10 - events.size() + i, events.get(i).getValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new FrameTracer(0);
+    }
+
+    @Test
+    public void testFrameTrace() throws Exception {
+
+        String baseUrl = server.getBaseUrl();
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .traceFrames(64)
+            .create());
+        client.submit(new Request.Builder(baseUrl + "/hello").create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Metrics.OriginMetrics metrics = client.metrics().getOrigin(new Origin(new URL(baseUrl)));
+        List<FrameTracer.Event> trace = metrics.getSessions().get(0).getFrameTrace();
+        boolean sentHeaders = false;
+        boolean receivedData = false;
+        for (FrameTracer.Event event : trace) {
+            if (event.getDirection() == FrameTracer.Direction.SENT &&
+                event.getType() == FrameTracer.Type.HEADERS && event.getStreamId() == 1) {
+                sentHeaders = true;
+            }
+            if (event.getDirection() == FrameTracer.Direction.RECEIVED &&
+                event.getType() == FrameTracer.Type.DATA && event.isEndStream()) {
+                receivedData = true;
+            }
+        }
+        Assert.assertTrue(trace.toString(), sentHeaders && receivedData);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises hedged requests against an in-process HTTP/2 server.
+ */
+public final class HedgingTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    @Test
+    public void testHedge() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .maxTcpConnections(2)
+            .hedgePercentile(0.5)
+            .hedgeBudget(1)
+            .create());
+
+        // Establish the latency distribution from which the hedge delay is derived
+        for (int i = 0; i < 20; i++) {
+            client.submit(new Request.Builder(baseUrl + "/warm/" + i).create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        // The first attempt never responds, so only a hedge can complete the
+        // request; the first attempt must then be reset
+        Response response = client.submit(new Request.Builder(baseUrl + "/stall/hedge").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /stall/hedge", bodyString(response));
+        Assert.assertTrue(server.awaitReset(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
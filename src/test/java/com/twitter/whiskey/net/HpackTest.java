@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class HpackTest {
+
+    private static ByteBuffer hex(String hex) {
+        ByteBuffer buffer = ByteBuffer.allocate(hex.length() / 2);
+        for (int i = 0; i < hex.length(); i += 2) {
+            buffer.put((byte) Integer.parseInt(hex.substring(i, i + 2), 16));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * RFC 7541 Appendix C.4: requests with Huffman coding.
+     */
+    @Test
+    public void testDecodeHuffmanRequests() throws IOException {
+
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        Assert.assertEquals(Arrays.asList(
+            new Header(":method", "GET"),
+            new Header(":scheme", "http"),
+            new Header(":path", "/"),
+            new Header(":authority", "www.example.com")
+        ), decoder.decode(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")));
+
+        Assert.assertEquals(Arrays.asList(
+            new Header(":method", "GET"),
+            new Header(":scheme", "http"),
+            new Header(":path", "/"),
+            new Header(":authority", "www.example.com"),
+            new Header("cache-control", "no-cache")
+        ), decoder.decode(hex("828684be5886a8eb10649cbf")));
+
+        Assert.assertEquals(Arrays.asList(
+            new Header(":method", "GET"),
+            new Header(":scheme", "https"),
+            new Header(":path", "/index.html"),
+            new Header(":authority", "www.example.com"),
+            new Header("custom-key", "custom-value")
+        ), decoder.decode(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        List<Header> headers = new ArrayList<>();
+        headers.add(new Header(":method", "POST"));
+        headers.add(new Header(":scheme", "https"));
+        headers.add(new Header(":authority", "api.twitter.com"));
+        headers.add(new Header(":path", "/1.1/statuses/update.json?trim_user=true"));
+        headers.add(new Header("authorization", "OAuth oauth_token=\"abc\""));
+        headers.add(new Header("content-type", "application/x-www-form-urlencoded"));
+        headers.add(new Header("x-binary", "ÿ\u0001\u007f"));
+
+        // Repeated blocks exercise dynamic table references.
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer block = encoder.encode(headers);
+            Assert.assertEquals(headers, decoder.decode(block));
+        }
+
+        // Shrinking the table must be signalled to and honored by the decoder.
+        encoder.setMaxTableSize(0);
+        Assert.assertEquals(headers, decoder.decode(encoder.encode(headers)));
+        encoder.setMaxTableSize(256);
+        Assert.assertEquals(headers, decoder.decode(encoder.encode(headers)));
+    }
+
+    @Test
+    public void testHuffmanRoundTrip() throws IOException {
+
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        ByteBuffer encoded = ByteBuffer.allocate(HpackHuffman.encodedLength(data));
+        HpackHuffman.encode(data, encoded);
+        Assert.assertFalse(encoded.hasRemaining());
+        encoded.flip();
+        Assert.assertArrayEquals(data, HpackHuffman.decode(encoded, encoded.remaining()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidIndex() throws IOException {
+        new HpackDecoder(4096).decode(hex("be"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTableSizeUpdateExceedingLimit() throws IOException {
+        new HpackDecoder(4096).decode(hex("3fe21f"));
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises {@link Http11Session} against an in-process HTTP/1.1 server.
+ */
+public final class Http11SessionTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Http11TestServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Http11TestServer();
+        server.start();
+        baseUrl = "http://localhost:" + server.getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static WhiskeyClient newClient(int maxTcpConnections, int maxPipelineDepth) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_1_1)
+            .maxTcpConnections(maxTcpConnections)
+            .maxPipelineDepth(maxPipelineDepth)
+            .create());
+    }
+
+    private Response get(WhiskeyClient client, String path) throws Exception {
+        return client.submit(new Request.Builder(baseUrl + path).create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static String bodyString(Response response) {
+        ByteBuffer body = response.getBody();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, Http11TestServer.ISO_8859_1);
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+
+        WhiskeyClient client = newClient(1, 1);
+        for (int i = 0; i < 3; i++) {
+            Response response = get(client, "/hello/" + i);
+            Assert.assertEquals(200, response.getStatusCode());
+            Assert.assertEquals("hello /hello/" + i, bodyString(response));
+            Assert.assertEquals("localhost:" + server.getPort(), response.getHeaders().getFirst("x-host"));
+        }
+        Assert.assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testChunkedResponse() throws Exception {
+
+        int size = 100000;
+        Response response = get(newClient(1, 1), "/chunked/" + size);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        ByteBuffer body = response.getBody();
+        Assert.assertEquals(size, body.remaining());
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals((byte) i, body.get(i));
+        }
+    }
+
+    @Test
+    public void testRequestBodies() throws Exception {
+
+        WhiskeyClient client = newClient(1, 1);
+        byte[] data = new byte[50000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 7);
+
+        Response response = client.submit(new Request.Builder(baseUrl + "/echo")
+            .method(Request.Method.POST)
+            .body(ByteBuffer.wrap(data))
+            .create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(ByteBuffer.wrap(data), response.getBody());
+
+        // Streamed bodies are sent with chunked transfer coding
+        response = client.submit(new Request.Builder(baseUrl + "/echo")
+            .method(Request.Method.PUT)
+            .body(new ByteArrayInputStream(data))
+            .create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("PUT", response.getHeaders().getFirst("x-request-method"));
+        Assert.assertEquals(ByteBuffer.wrap(data), response.getBody());
+    }
+
+    @Test
+    public void testHead() throws Exception {
+
+        Response response = newClient(1, 1).submit(new Request.Builder(baseUrl + "/hello")
+            .method(Request.Method.HEAD)
+            .create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("12", response.getHeaders().getFirst(Headers.CONTENT_LENGTH));
+        Assert.assertNull(response.getBody());
+    }
+
+    @Test
+    public void testBodilessStatus() throws Exception {
+
+        // Neither response has a length, so would otherwise be read until close
+        WhiskeyClient client = newClient(1, 1);
+        Response response = get(client, "/status/204");
+        Assert.assertEquals(204, response.getStatusCode());
+        Assert.assertFalse(response.getBody() != null && response.getBody().hasRemaining());
+
+        response = get(client, "/status/304");
+        Assert.assertEquals(304, response.getStatusCode());
+        Assert.assertFalse(response.getBody() != null && response.getBody().hasRemaining());
+
+        Assert.assertEquals("hello /after", bodyString(get(client, "/after")));
+        Assert.assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionClose() throws Exception {
+
+        WhiskeyClient client = newClient(1, 1);
+        Assert.assertEquals("closed", bodyString(get(client, "/close")));
+        Assert.assertEquals("delimited by close", bodyString(get(client, "/eof")));
+        Assert.assertEquals("hello /after", bodyString(get(client, "/after")));
+        Assert.assertEquals(3, server.getConnectionCount());
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+
+        WhiskeyClient client = newClient(1, 4);
+        Assert.assertEquals(200, get(client, "/warm").getStatusCode());
+
+        List<ResponseFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            futures.add(client.submit(new Request.Builder(baseUrl + "/pipelined/" + i).create()));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Response response = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.assertEquals("hello /pipelined/" + i, bodyString(response));
+        }
+        Assert.assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionPool() throws Exception {
+
+        WhiskeyClient client = newClient(3, 1);
+        List<ResponseFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(client.submit(new Request.Builder(baseUrl + "/slow").create()));
+        }
+
+        Set<String> connections = new HashSet<>();
+        for (ResponseFuture future : futures) {
+            Response response = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.assertEquals("hello /slow", bodyString(response));
+            connections.add(response.getHeaders().getFirst("x-connection"));
+        }
+        Assert.assertEquals(3, server.getConnectionCount());
+        Assert.assertEquals(3, connections.size());
+        Assert.assertEquals(6, server.getRequestCount());
+    }
+
+    @Test
+    public void testRetryOnlyIdempotent() throws Exception {
+
+        WhiskeyClient client = newClient(1, 1);
+        try {
+            get(client, "/drop");
+            Assert.fail("expected the request to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(2, server.getRequestCount());
+
+        // A request the server may have acted on is not sent again
+        try {
+            client.submit(new Request.Builder(baseUrl + "/drop")
+                .method(Request.Method.POST)
+                .body(ByteBuffer.wrap(new byte[10]))
+                .create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("expected the request to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+
+        WhiskeyClient client = newClient(1, 1);
+        List<ResponseFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(client.submit(new Request.Builder(baseUrl + "/slow").create()));
+        }
+
+        // Requests still waiting for the connection are sent before it closes
+        client.shutdown();
+        for (ResponseFuture future : futures) {
+            Assert.assertEquals("hello /slow", bodyString(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        }
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertEquals(1, server.getConnectionCount());
+        Assert.assertEquals(3, server.getRequestCount());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal blocking HTTP/1.1 server for loopback testing.
+ *
+ * Responses are produced by path:
+ *   /echo          responds with the request body
+ *   /chunked/{n}   responds with n bytes where byte i is (byte) i, chunked
+ *   /close         responds and closes the connection
+ *   /eof           responds with a body delimited by connection closure
+ *   /slow          responds after a short delay
+ *   /drop          closes the connection without responding
+ *   /status/{n}    responds with status n, and neither a body nor a length
+ *   anything else  responds with "hello {path}"
+ * Every response carries an x-connection header identifying its connection.
+ */
+class Http11TestServer {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    Http11TestServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        executor.execute(new Connection(serverSocket.accept(), connectionCount.incrementAndGet()));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+        private final int id;
+
+        Connection(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    if (requestLine.isEmpty()) continue;
+                    if (!respond(requestLine, in, out)) break;
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * @return true if the connection should be kept open
+         */
+        private boolean respond(String requestLine, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+
+            requestCount.incrementAndGet();
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String path = parts[1];
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+
+            ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+            if ("chunked".equals(headers.get("transfer-encoding"))) {
+                int size;
+                while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                    byte[] chunk = new byte[size];
+                    new DataInputStream(in).readFully(chunk);
+                    requestBody.write(chunk);
+                    readLine(in);
+                }
+                readLine(in);
+            } else if (headers.containsKey("content-length")) {
+                byte[] body = new byte[Integer.parseInt(headers.get("content-length"))];
+                new DataInputStream(in).readFully(body);
+                requestBody.write(body);
+            }
+
+            if (path.equals("/drop")) return false;
+            if (path.startsWith("/status/")) {
+                String status = path.substring("/status/".length());
+                out.write(("HTTP/1.1 " + status + " Status\r\nX-Connection: " + id + "\r\n\r\n").getBytes(ISO_8859_1));
+                out.flush();
+                return true;
+            }
+
+            StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+            head.append("X-Connection: ").append(id).append("\r\n");
+            head.append("X-Request-Method: ").append(method).append("\r\n");
+            head.append("X-Host: ").append(headers.get("host")).append("\r\n");
+            byte[] body;
+            boolean keepAlive = true;
+
+            if (path.startsWith("/chunked/")) {
+                int size = Integer.parseInt(path.substring("/chunked/".length()));
+                head.append("Transfer-Encoding: chunked\r\n\r\n");
+                out.write(head.toString().getBytes(ISO_8859_1));
+                for (int offset = 0; offset < size; offset += 1000) {
+                    int length = Math.min(1000, size - offset);
+                    out.write((Integer.toHexString(length) + ";ext=1\r\n").getBytes(ISO_8859_1));
+                    for (int i = offset; i < offset + length; i++) out.write((byte) i);
+                    out.write("\r\n".getBytes(ISO_8859_1));
+                }
+                out.write("0\r\nx-trailer: ignored\r\n\r\n".getBytes(ISO_8859_1));
+                out.flush();
+                return true;
+            }
+
+            if (path.equals("/echo")) {
+                body = requestBody.toByteArray();
+            } else if (path.equals("/close")) {
+                head.append("Connection: close\r\n");
+                keepAlive = false;
+                body = "closed".getBytes(ISO_8859_1);
+            } else if (path.equals("/eof")) {
+                head.append("Connection: close\r\n\r\n");
+                out.write(head.toString().getBytes(ISO_8859_1));
+                out.write("delimited by close".getBytes(ISO_8859_1));
+                out.flush();
+                return false;
+            } else if (path.equals("/slow")) {
+                Thread.sleep(200);
+                body = ("hello " + path).getBytes(ISO_8859_1);
+            } else {
+                body = ("hello " + path).getBytes(ISO_8859_1);
+            }
+
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes(ISO_8859_1));
+            if (!method.equals("HEAD")) out.write(body);
+            out.flush();
+            return keepAlive;
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) return null;
+                if (b != '\r') line.write(b);
+            }
+            return new String(line.toByteArray(), ISO_8859_1);
+        }
+    }
+}
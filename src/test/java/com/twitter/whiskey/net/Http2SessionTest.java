@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.Flow;
+import com.twitter.whiskey.futures.Inline;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises {@link Http2Session} against an in-process HTTP/2 server.
+ */
+public final class Http2SessionTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+
+        Response response = newClient().submit(new Request.Builder(baseUrl + "/hello").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("hello /hello", bodyString(response));
+        Assert.assertEquals("GET", response.getHeaders().getFirst("x-request-method"));
+        Assert.assertEquals("/hello", response.getHeaders().getFirst("x-request-path"));
+    }
+
+    @Test
+    public void testPostEcho() throws Exception {
+
+        // Larger than the default 65535 byte send windows
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+
+        Request request = new Request.Builder(baseUrl + "/echo")
+            .method(Request.Method.POST)
+            .body(ByteBuffer.wrap(data))
+            .create();
+        Response response = newClient().submit(request).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("POST", response.getHeaders().getFirst("x-request-method"));
+        ByteBuffer body = response.getBody();
+        Assert.assertEquals(data.length, body.remaining());
+        Assert.assertEquals(ByteBuffer.wrap(data), body);
+    }
+
+    @Test
+    public void testReceiveFlowControl() throws Exception {
+
+        int size = 1 << 20;
+        Response response = newClient(65535, 16384)
+            .submit(new Request.Builder(baseUrl + "/large/" + size).create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        ByteBuffer body = response.getBody();
+        Assert.assertEquals(size, body.remaining());
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals((byte) i, body.get(i));
+        }
+    }
+
+    @Test
+    public void testPublisherBackpressure() throws Exception {
+
+        int size = 1 << 20;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ResponseFuture future = newClient(10485760, 16384)
+                .submit(new Request.Builder(baseUrl + "/large/" + size).create());
+
+            final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+            final AtomicInteger received = new AtomicInteger();
+            final CountDownLatch completed = new CountDownLatch(1);
+            future.getBodyFuture().asPublisher(executor).subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription.set(s);
+                    s.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    received.addAndGet(item.remaining());
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+
+            // Without further demand the server exhausts the stream window,
+            // which is only replenished by data actually consumed
+            Thread.sleep(500);
+            Assert.assertFalse(future.isDone());
+            Assert.assertTrue(server.getDataBytesSent() <= 16384 + received.get());
+
+            subscription.get().request(Long.MAX_VALUE);
+            Assert.assertTrue(completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            Assert.assertEquals(size, received.get());
+            Assert.assertEquals(200, future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+
+        WhiskeyClient client = newClient();
+        List<ResponseFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.submit(new Request.Builder(baseUrl + "/concurrent/" + i).create()));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            Response response = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.assertEquals(200, response.getStatusCode());
+            Assert.assertEquals("hello /concurrent/" + i, bodyString(response));
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+
+        // A single stream slot ensures the cancelled stream must be released
+        // before the next request can be dispatched.
+        server.setMaxConcurrentStreams(1);
+        WhiskeyClient client = newClient(65535, 16384);
+        ResponseFuture cancelled = client.submit(new Request.Builder(baseUrl + "/large/" + (1 << 20)).create());
+
+        // A subscriber without demand stalls the stream once its window is spent
+        cancelled.getBodyFuture().asPublisher(Inline.INSTANCE).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        final CountDownLatch headers = new CountDownLatch(1);
+        cancelled.getHeadersFuture().addObserver(new Inline.Observer<Header>() {
+            @Override
+            public void onNext(Header element) {
+                headers.countDown();
+            }
+        });
+        Assert.assertTrue(headers.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        Assert.assertTrue(cancelled.cancel(true));
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertTrue(cancelled.getBodyFuture().isCancelled());
+
+        Response response = client.submit(new Request.Builder(baseUrl + "/after").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /after", bodyString(response));
+        Assert.assertTrue(server.awaitReset(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+
+        Response response = newClient().submit(new Request.Builder(baseUrl + "/redirect").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("hello /redirected", bodyString(response));
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.rules.ExternalResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.twitter.whiskey.net.Http2Constants.*;
+
+/**
+ * Minimal blocking HTTP/2 server for loopback testing with prior knowledge.
+ *
+ * Responses are produced by path:
+ *   /echo          responds with the request body
+ *   /large/{n}     responds with n bytes where byte i is (byte) i
+ *   /redirect      responds 302 to /redirected
+ *   /fresh/{key}   responds as for any other path, fresh for a minute
+ *   /validated/{key} responds with an etag which must always be
+ *                  revalidated, and 304 to a matching if-none-match
+ *   /push/{path}   pushes /{path} before responding as for any other path
+ *   /stall/{key}   never responds to the first request for each key, and
+ *                  responds as for any other path thereafter
+ *   anything else  responds with "hello {path}"
+ * Every response carries x-request-method and x-request-path headers.
+ *
+ * May be used as a rule, started before and stopped after each test.
+ */
+class Http2TestServer extends ExternalResource {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicLong dataBytesSent = new AtomicLong();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final CountDownLatch resetReceived = new CountDownLatch(1);
+    private final CountDownLatch goAwayReceived = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Map<String, Boolean> stalled = new ConcurrentHashMap<>();
+    private volatile int maxConcurrentStreams = 0;
+
+    static String bodyString(Response response) {
+        ByteBuffer body = response.getBody();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + getPort();
+    }
+
+    /**
+     * @return the total length of DATA frame payloads sent on all connections
+     */
+    long getDataBytesSent() {
+        return dataBytesSent.get();
+    }
+
+    /**
+     * @return the number of connections accepted
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of requests received on all connections
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Limits the number of concurrent streams advertised to new connections.
+     */
+    void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * @return true if a RST_STREAM was received on any connection in time
+     */
+    boolean awaitReset(long timeout, TimeUnit unit) throws InterruptedException {
+        return resetReceived.await(timeout, unit);
+    }
+
+    /**
+     * @return true if a GOAWAY was received on any connection in time
+     */
+    boolean awaitGoAway(long timeout, TimeUnit unit) throws InterruptedException {
+        return goAwayReceived.await(timeout, unit);
+    }
+
+    @Override
+    protected void before() throws IOException {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        try {
+            stop();
+        } catch (IOException ignored) {
+        }
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(0);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connectionCount.incrementAndGet();
+                        executor.execute(new Connection(socket));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() throws IOException {
+        stopped.countDown();
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    private static final class ServerStream {
+        final int streamId;
+        final List<Header> headers = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean endStream;
+        int sendWindow;
+
+        ServerStream(int streamId, int sendWindow) {
+            this.streamId = streamId;
+            this.sendWindow = sendWindow;
+        }
+
+        String getHeader(String name) {
+            for (Header header : headers) {
+                if (header.getKey().equals(name)) return header.getValue();
+            }
+            return null;
+        }
+    }
+
+    private final class Connection implements Runnable, Http2FrameDecoderDelegate {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Http2FrameDecoder decoder = new Http2FrameDecoder(this);
+        private final Http2FrameEncoder encoder = new Http2FrameEncoder();
+        private final Map<Integer, ServerStream> streams = new ConcurrentHashMap<>();
+        private final Object windowLock = new Object();
+
+        private int connectionSendWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+        private int initialSendWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+        private int nextPushedStreamId = 2;
+        private boolean settingsAck;
+        private volatile boolean closed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] preface = new byte[CONNECTION_PREFACE.length];
+                new DataInputStream(in).readFully(preface);
+                if (!Arrays.equals(preface, CONNECTION_PREFACE)) {
+                    throw new IOException("invalid connection preface");
+                }
+
+                Map<Integer, Integer> settings = new HashMap<>();
+                if (maxConcurrentStreams > 0) settings.put(SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+                write(encoder.encodeSettingsFrame(settings));
+
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                int read;
+                while (!closed && (read = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+                    buffer.position(buffer.position() + read);
+                    buffer.flip();
+                    decoder.decode(buffer);
+                    buffer.compact();
+                }
+            } catch (IOException e) {
+                // connection closed
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            closed = true;
+            synchronized (windowLock) {
+                windowLock.notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void write(ByteBuffer... buffers) throws IOException {
+            synchronized (out) {
+                for (ByteBuffer buffer : buffers) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes);
+                }
+                out.flush();
+            }
+        }
+
+        private void respond(ServerStream stream) throws IOException, InterruptedException {
+
+            String method = stream.getHeader(":method");
+            String path = stream.getHeader(":path");
+            String status = "200";
+            List<Header> headers = new ArrayList<>();
+            byte[] body;
+            requestCount.incrementAndGet();
+
+            if (path.equals("/echo")) {
+                body = stream.body.toByteArray();
+            } else if (path.startsWith("/large/")) {
+                body = new byte[Integer.parseInt(path.substring("/large/".length()))];
+                for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+            } else if (path.startsWith("/stall/") && stalled.put(path, true) == null) {
+                stopped.await();
+                return;
+            } else if (path.startsWith("/push/")) {
+                push(stream, path.substring("/push".length()));
+                body = ("hello " + path).getBytes(UTF_8);
+            } else if (path.startsWith("/fresh/")) {
+                headers.add(new Header(Headers.CACHE_CONTROL, "max-age=60"));
+                body = ("hello " + path).getBytes(UTF_8);
+            } else if (path.startsWith("/validated/")) {
+                headers.add(new Header(Headers.CACHE_CONTROL, "no-cache"));
+                headers.add(new Header(Headers.ETAG, "\"v1\""));
+                if ("\"v1\"".equals(stream.getHeader(Headers.IF_NONE_MATCH))) {
+                    status = "304";
+                    body = new byte[0];
+                } else {
+                    body = ("hello " + path).getBytes(UTF_8);
+                }
+            } else if (path.equals("/redirect")) {
+                status = "302";
+                headers.add(new Header(Headers.LOCATION, "/redirected"));
+                body = new byte[0];
+            } else {
+                body = ("hello " + path).getBytes(UTF_8);
+            }
+
+            headers.add(0, new Header(":status", status));
+            headers.add(new Header(Headers.CONTENT_LENGTH, body.length));
+            headers.add(new Header("x-request-method", method));
+            headers.add(new Header("x-request-path", path));
+
+            synchronized (out) {
+                write(encoder.encodeHeadersFrame(stream.streamId, body.length == 0, 0, headers));
+            }
+
+            int offset = 0;
+            while (offset < body.length) {
+                int length = acquireWindow(stream, Math.min(body.length - offset, encoder.getMaxFrameSize()));
+                ByteBuffer data = ByteBuffer.wrap(body, offset, length);
+                offset += length;
+                write(encoder.encodeDataFrame(stream.streamId, offset == body.length, data));
+                dataBytesSent.addAndGet(length);
+            }
+        }
+
+        private void push(ServerStream parent, String path) throws IOException {
+
+            ServerStream promised;
+            synchronized (windowLock) {
+                promised = new ServerStream(nextPushedStreamId, initialSendWindow);
+                nextPushedStreamId += 2;
+            }
+            promised.headers.add(new Header(":method", "GET"));
+            promised.headers.add(new Header(":scheme", parent.getHeader(":scheme")));
+            promised.headers.add(new Header(":authority", parent.getHeader(":authority")));
+            promised.headers.add(new Header(":path", path));
+
+            synchronized (out) {
+                // Borrow the header block of an encoded HEADERS frame
+                ByteBuffer block = encoder.encodeHeadersFrame(parent.streamId, false, 0, promised.headers)[1];
+                int length = block.remaining() + 4;
+                ByteBuffer frame = ByteBuffer.allocate(13);
+                frame.put((byte) (length >>> 16));
+                frame.put((byte) (length >>> 8));
+                frame.put((byte) length);
+                frame.put((byte) PUSH_PROMISE_FRAME);
+                frame.put(FLAG_END_HEADERS);
+                frame.putInt(parent.streamId);
+                frame.putInt(promised.streamId);
+                frame.flip();
+                write(frame, block);
+            }
+
+            streams.put(promised.streamId, promised);
+            dispatch(promised);
+        }
+
+        private int acquireWindow(ServerStream stream, int requested) throws InterruptedException, IOException {
+            synchronized (windowLock) {
+                while (!closed && Math.min(connectionSendWindow, stream.sendWindow) <= 0) {
+                    windowLock.wait();
+                }
+                if (closed) throw new IOException("connection closed");
+                int length = Math.min(requested, Math.min(connectionSendWindow, stream.sendWindow));
+                connectionSendWindow -= length;
+                stream.sendWindow -= length;
+                return length;
+            }
+        }
+
+        private void dispatch(final ServerStream stream) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(stream);
+                    } catch (Exception e) {
+                        close();
+                    } finally {
+                        streams.remove(stream.streamId);
+                    }
+                }
+            });
+        }
+
+        private void sendQuietly(ByteBuffer... buffers) {
+            try {
+                write(buffers);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void readDataFrame(int streamId, boolean endStream, ByteBuffer data, int flowControlledLength) {
+            ServerStream stream = streams.get(streamId);
+            if (stream == null) return;
+            stream.body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            if (flowControlledLength > 0) {
+                sendQuietly(encoder.encodeWindowUpdateFrame(HTTP2_SESSION_STREAM_ID, flowControlledLength));
+                if (!endStream) sendQuietly(encoder.encodeWindowUpdateFrame(streamId, flowControlledLength));
+            }
+            if (endStream) dispatch(stream);
+        }
+
+        @Override
+        public void readHeadersFrame(int streamId, boolean endStream) {
+            ServerStream stream;
+            synchronized (windowLock) {
+                stream = new ServerStream(streamId, initialSendWindow);
+            }
+            stream.endStream = endStream;
+            streams.put(streamId, stream);
+        }
+
+        @Override
+        public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+            readFrameError(PROTOCOL_ERROR, "clients cannot push");
+        }
+
+        @Override
+        public void readHeader(int streamId, Header header) {
+            ServerStream stream = streams.get(streamId);
+            if (stream != null) stream.headers.add(header);
+        }
+
+        @Override
+        public void readHeadersEnd(int streamId) {
+            ServerStream stream = streams.get(streamId);
+            if (stream != null && stream.endStream) dispatch(stream);
+        }
+
+        @Override
+        public void readRstStreamFrame(int streamId, int errorCode) {
+            streams.remove(streamId);
+            resetReceived.countDown();
+        }
+
+        @Override
+        public void readSettingsFrame(boolean ack) {
+            settingsAck = ack;
+        }
+
+        @Override
+        public void readSetting(int id, int value) {
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                synchronized (windowLock) {
+                    int delta = value - initialSendWindow;
+                    initialSendWindow = value;
+                    for (ServerStream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    windowLock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void readSettingsEnd() {
+            if (!settingsAck) sendQuietly(encoder.encodeSettingsAckFrame());
+        }
+
+        @Override
+        public void readPingFrame(long data, boolean ack) {
+            if (!ack) sendQuietly(encoder.encodePingFrame(data, true));
+        }
+
+        @Override
+        public void readGoAwayFrame(int lastStreamId, int errorCode) {
+            // Streams already open are still answered; the client closes
+            // the connection once they complete.
+            goAwayReceived.countDown();
+        }
+
+        @Override
+        public void readWindowUpdateFrame(int streamId, int deltaWindowSize) {
+            synchronized (windowLock) {
+                if (streamId == HTTP2_SESSION_STREAM_ID) {
+                    connectionSendWindow += deltaWindowSize;
+                } else {
+                    ServerStream stream = streams.get(streamId);
+                    if (stream != null) stream.sendWindow += deltaWindowSize;
+                }
+                windowLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void readFrameSkipped(int streamId, int errorCode, String message) {
+            sendQuietly(encoder.encodeRstStreamFrame(streamId, errorCode));
+        }
+
+        @Override
+        public void readFrameError(int errorCode, String message) {
+            sendQuietly(encoder.encodeGoAwayFrame(0, errorCode));
+            close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises the isolation of clients from one another against an
+ * in-process HTTP/2 server.
+ */
+public final class IndependentClientsTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testIndependentClients() throws Exception {
+
+        WhiskeyClient first = newClient();
+        WhiskeyClient second = newClient();
+        Assert.assertNotSame(first.getRunLoop(), second.getRunLoop());
+
+        Assert.assertEquals(200, first.submit(new Request.Builder(baseUrl + "/first").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        Assert.assertEquals(200, second.submit(new Request.Builder(baseUrl + "/second").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+
+        // Terminating one client stops its loop without affecting the other
+        first.shutdown();
+        Assert.assertTrue(first.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Response response = second.submit(new Request.Builder(baseUrl + "/after").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /after", bodyString(response));
+        Assert.assertEquals(2, server.getConnectionCount());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises request stats and client metrics against an in-process HTTP/2
+ * server.
+ */
+public final class MetricsTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+
+        WhiskeyClient client = newClient();
+        byte[] data = new byte[100000];
+        Request post = new Request.Builder(baseUrl + "/echo")
+            .method(Request.Method.POST)
+            .body(ByteBuffer.wrap(data))
+            .create();
+        RequestStats stats = client.submit(post).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStats();
+        Assert.assertEquals(Protocol.HTTP_2_0, stats.protocol);
+        Assert.assertEquals(1, stats.attempts);
+        Assert.assertEquals(1, stats.streamId);
+        Assert.assertEquals(100000, stats.txBytes);
+        Assert.assertEquals(100000, stats.rxBytes);
+        Assert.assertTrue(stats.durationMs >= stats.queuedMs + stats.latencyMs + stats.serviceMs);
+
+        stats = client.submit(new Request.Builder(baseUrl + "/redirect").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStats();
+        Assert.assertEquals(1, stats.redirects);
+        Assert.assertEquals(2, stats.attempts);
+        Assert.assertEquals(5, stats.streamId);
+
+        Metrics.OriginMetrics metrics = client.metrics().getOrigin(new Origin(new URL(baseUrl)));
+        Assert.assertEquals(2, metrics.getRequests());
+        Assert.assertEquals(0, metrics.getFailures());
+        Assert.assertEquals(3, metrics.getAttempts());
+        Assert.assertEquals(100000, metrics.getTxBytes());
+        Assert.assertEquals(2, metrics.getLatency().getCount());
+        Assert.assertEquals(1, metrics.getSessions().size());
+        Metrics.SessionMetrics session = metrics.getSessions().get(0);
+        Assert.assertEquals(Protocol.HTTP_2_0, session.getProtocol());
+        Assert.assertEquals(0, session.getActiveStreams());
+        Assert.assertTrue(session.getReceiveWindow() > 0);
+        Assert.assertTrue(client.metrics().getRunLoop().getExecutions() > 0);
+    }
+}
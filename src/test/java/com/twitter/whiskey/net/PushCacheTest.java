@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+/**
+ * Exercises the claiming of server pushes against an in-process HTTP/2
+ * server.
+ */
+public final class PushCacheTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    @Test
+    public void testPushCache() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .maxPushStreams(10)
+            .create());
+
+        Response response = client.submit(new Request.Builder(baseUrl + "/push/pushed").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /push/pushed", bodyString(response));
+
+        // A later request for the pushed URL claims the push rather than being sent
+        ResponseFuture claimed = client.submit(new Request.Builder(baseUrl + "/pushed").create());
+        Assert.assertEquals("hello /pushed", bodyString(claimed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, server.getRequestCount());
+
+        // Each push is claimed only once
+        ResponseFuture sent = client.submit(new Request.Builder(baseUrl + "/pushed").create());
+        Assert.assertEquals("hello /pushed", bodyString(sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testPushCacheMatchesHeaders() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .maxPushStreams(10)
+            .create());
+
+        // The pushed request carries the headers of the request it was pushed with
+        client.submit(new Request.Builder(baseUrl + "/push/pushed")
+            .addHeader(Headers.ACCEPT_LANGUAGE, "fr").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        ResponseFuture sent = client.submit(new Request.Builder(baseUrl + "/pushed")
+            .addHeader(Headers.ACCEPT_LANGUAGE, "de").create());
+        Assert.assertEquals("hello /pushed", bodyString(sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(3, server.getRequestCount());
+
+        // A request which doesn't match leaves the push for one which does
+        ResponseFuture claimed = client.submit(new Request.Builder(baseUrl + "/pushed")
+            .addHeader(Headers.ACCEPT_LANGUAGE, "fr").create());
+        Assert.assertEquals("hello /pushed", bodyString(claimed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testPushClaimedOnce() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .maxPushStreams(10)
+            .create());
+
+        // A push claimed from the cache is withheld from later push observers
+        ResponseFuture parent = client.submit(new Request.Builder(baseUrl + "/push/pushed").create());
+        parent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        ResponseFuture claimed = client.submit(new Request.Builder(baseUrl + "/pushed").create());
+        Assert.assertEquals("hello /pushed", bodyString(claimed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertFalse(parent.pushIterator().hasNext());
+
+        // A push handed to observers is never claimed from the cache
+        parent = client.submit(new Request.Builder(baseUrl + "/push/pushed").create());
+        Iterator<ResponseFuture> pushes = parent.pushIterator();
+        Assert.assertTrue(pushes.hasNext());
+        Assert.assertEquals("hello /pushed", bodyString(pushes.next().get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        parent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        ResponseFuture sent = client.submit(new Request.Builder(baseUrl + "/pushed").create());
+        Assert.assertEquals("hello /pushed", bodyString(sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Assert.assertEquals(5, server.getRequestCount());
+    }
+}
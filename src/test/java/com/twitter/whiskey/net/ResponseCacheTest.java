@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.twitter.whiskey.net.Http2TestServer.bodyString;
+
+public final class ResponseCacheTest {
+
+    private static final long NOW = 1420070400000L;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+
+    private static Request request(String path, String... headers) throws Exception {
+        Request.Builder builder = new Request.Builder("http://example.com" + path);
+        for (int i = 0; i < headers.length; i += 2) builder.addHeader(headers[i], headers[i + 1]);
+        return builder.create();
+    }
+
+    private static Response response(int size, String... headers) {
+        return response(NOW, size, headers);
+    }
+
+    private static Response response(long dateMs, int size, String... headers) {
+        Headers responseHeaders = new Headers();
+        responseHeaders.add(new Header(Headers.DATE, new Date(dateMs)));
+        for (int i = 0; i < headers.length; i += 2) responseHeaders.put(headers[i], headers[i + 1]);
+        return new Response(200, responseHeaders, ByteBuffer.allocate(size), null);
+    }
+
+    @Test
+    public void testFreshness() throws Exception {
+
+        Request request = request("/");
+        ResponseCache.Entry maxAge = ResponseCache.Entry.create(request, response(1, Headers.CACHE_CONTROL, "public, max-age=60"), NOW);
+        Assert.assertTrue(maxAge.isFresh(NOW + 59999, null));
+        Assert.assertFalse(maxAge.isFresh(NOW + 60000, null));
+
+        // Age on receipt counts against the lifetime
+        ResponseCache.Entry aged = ResponseCache.Entry.create(request, response(1, Headers.CACHE_CONTROL, "max-age=60", Headers.AGE, "50"), NOW);
+        Assert.assertFalse(aged.isFresh(NOW + 10000, null));
+
+        ResponseCache.Entry expires = ResponseCache.Entry.create(request, response(1, Headers.EXPIRES, Header.formatDate(new Date(NOW + 30000))), NOW);
+        Assert.assertTrue(expires.isFresh(NOW + 29000, null));
+        Assert.assertFalse(expires.isFresh(NOW + 30000, null));
+
+        // A tenth of the time since modification, absent explicit freshness
+        ResponseCache.Entry heuristic = ResponseCache.Entry.create(request, response(1, Headers.LAST_MODIFIED, Header.formatDate(new Date(NOW - 100000))), NOW);
+        Assert.assertTrue(heuristic.isFresh(NOW + 9000, null));
+        Assert.assertFalse(heuristic.isFresh(NOW + 10000, null));
+        Assert.assertTrue(heuristic.hasValidators());
+
+        // Request directives may demand a fresher or validated response
+        Assert.assertFalse(maxAge.isFresh(NOW + 20000, new ResponseCache.CacheControl(request("/", Headers.CACHE_CONTROL, "max-age=10").getHeaders())));
+        Assert.assertFalse(maxAge.isFresh(NOW, new ResponseCache.CacheControl(request("/", Headers.PRAGMA, "no-cache").getHeaders())));
+    }
+
+    @Test
+    public void testStorability() throws Exception {
+
+        Request request = request("/");
+        Assert.assertNull(ResponseCache.Entry.create(request, response(1, Headers.CACHE_CONTROL, "no-store"), NOW));
+        Assert.assertNull(ResponseCache.Entry.create(request, response(1), NOW));
+        Assert.assertNull(ResponseCache.Entry.create(request, response(1, Headers.CACHE_CONTROL, "max-age=60", Headers.VARY, "*"), NOW));
+        Assert.assertNull(ResponseCache.Entry.create(request("/", Headers.CACHE_CONTROL, "no-store"), response(1, Headers.CACHE_CONTROL, "max-age=60"), NOW));
+
+        // no-cache responses are stored for revalidation
+        ResponseCache.Entry noCache = ResponseCache.Entry.create(request, response(1, Headers.CACHE_CONTROL, "no-cache", Headers.ETAG, "\"a\""), NOW);
+        Assert.assertFalse(noCache.isFresh(NOW, null));
+        Assert.assertEquals("\"a\"", noCache.etag);
+    }
+
+    @Test
+    public void testVary() throws Exception {
+
+        ResponseCache cache = new ResponseCache(1024);
+        Request english = request("/", Headers.ACCEPT_LANGUAGE, "en");
+        cache.put("/", english, response(System.currentTimeMillis(), 1, Headers.CACHE_CONTROL, "max-age=60", Headers.VARY, "Accept-Language"));
+        Assert.assertNotNull(cache.get("/", request("/", Headers.ACCEPT_LANGUAGE, "en")));
+        Assert.assertNull(cache.get("/", request("/", Headers.ACCEPT_LANGUAGE, "fr")));
+        Assert.assertNull(cache.get("/", request("/")));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+
+        ResponseCache cache = new ResponseCache(1200);
+        Request request = request("/");
+        cache.put("a", request, response(System.currentTimeMillis(), 300, Headers.CACHE_CONTROL, "max-age=60"));
+        cache.put("b", request, response(System.currentTimeMillis(), 300, Headers.CACHE_CONTROL, "max-age=60"));
+        cache.put("c", request, response(System.currentTimeMillis(), 300, Headers.CACHE_CONTROL, "max-age=60"));
+        Assert.assertEquals(3, cache.getEntryCount());
+
+        // the least recently used entry is evicted first
+        Assert.assertNotNull(cache.get("a", request));
+        cache.put("d", request, response(System.currentTimeMillis(), 300, Headers.CACHE_CONTROL, "max-age=60"));
+        Assert.assertEquals(3, cache.getEntryCount());
+        Assert.assertTrue(cache.size() <= cache.maxSize());
+        Assert.assertNotNull(cache.get("a", request));
+        Assert.assertNull(cache.get("b", request));
+
+        // entries larger than the cache are not stored
+        cache.put("e", request, response(System.currentTimeMillis(), 2000, Headers.CACHE_CONTROL, "max-age=60"));
+        Assert.assertNull(cache.get("e", request));
+
+        cache.remove("a");
+        Assert.assertNull(cache.get("a", request));
+        cache.evictAll();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+
+        ResponseCache cache = new ResponseCache(1024);
+        Request request = request("/");
+        cache.put("/", request, response(System.currentTimeMillis(), 10, Headers.CACHE_CONTROL, "no-cache", Headers.ETAG, "\"a\"", "x-kept", "1"));
+        ResponseCache.Entry entry = cache.get("/", request);
+
+        Headers notModified = new Headers();
+        notModified.add(new Header(Headers.DATE, new Date()));
+        notModified.put(Headers.CACHE_CONTROL, "max-age=60");
+        ResponseCache.Entry updated = cache.update("/", entry, notModified);
+        Assert.assertTrue(updated.isFresh(System.currentTimeMillis(), null));
+        Assert.assertEquals("1", updated.headers.getFirst("x-kept"));
+        Assert.assertSame(entry.body, updated.body);
+        Assert.assertSame(updated, cache.get("/", request));
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+
+        File directory = folder.newFolder();
+        Request request = request("/");
+        ResponseCache cache = new ResponseCache(1024, new DiskCache(directory, 1 << 20));
+        cache.put("small", request, response(System.currentTimeMillis(), 10, Headers.CACHE_CONTROL, "max-age=60"));
+        cache.put("large", request, response(System.currentTimeMillis(), 4096, Headers.CACHE_CONTROL, "max-age=60"));
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertTrue(cache.get("large", request).body instanceof MappedByteBuffer);
+        cache.getDiskCache().close();
+
+        // Both survive a restart
+        cache = new ResponseCache(1024, new DiskCache(directory, 1 << 20));
+        Assert.assertEquals(10, cache.get("small", request).body.remaining());
+        Assert.assertEquals(4096, cache.get("large", request).body.remaining());
+        cache.remove("small");
+        Assert.assertNull(cache.get("small", request));
+        cache.getDiskCache().close();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+
+        String baseUrl = server.getBaseUrl();
+        ResponseCache cache = new ResponseCache(1 << 20);
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .responseCache(cache)
+            .create());
+
+        // A fresh response is served complete, without a request
+        Request fresh = new Request.Builder(baseUrl + "/fresh/a").create();
+        Assert.assertEquals("hello /fresh/a", bodyString(client.submit(fresh).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        ResponseFuture hit = client.submit(fresh);
+        Assert.assertTrue(hit.isDone());
+        Response cached = hit.get();
+        Assert.assertEquals(200, cached.getStatusCode());
+        Assert.assertEquals("/fresh/a", cached.getHeaders().getFirst("x-request-path"));
+        Assert.assertTrue(cached.getBody().isReadOnly());
+        Assert.assertEquals("hello /fresh/a", bodyString(cached));
+        Assert.assertEquals("hello /fresh/a", bodyString(client.submit(fresh).get()));
+        Assert.assertEquals(1, server.getRequestCount());
+
+        // A response which must be revalidated is served after a 304
+        Request validated = new Request.Builder(baseUrl + "/validated/b").create();
+        Assert.assertEquals("hello /validated/b",
+            bodyString(client.submit(validated).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        Response revalidated = client.submit(validated).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(200, revalidated.getStatusCode());
+        Assert.assertEquals("hello /validated/b", bodyString(revalidated));
+        Assert.assertEquals(3, server.getRequestCount());
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        // Unsafe methods invalidate
+        client.submit(new Request.Builder(baseUrl + "/fresh/a").method(Request.Method.DELETE).create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(1, cache.getEntryCount());
+        client.submit(fresh).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(5, server.getRequestCount());
+    }
+}
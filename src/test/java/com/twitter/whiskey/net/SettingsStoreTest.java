@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.util.Origin;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public final class SettingsStoreTest {
+
+    private static final Origin ORIGIN = new Origin("https", "example.com", 443);
+    private static final Origin OTHER = new Origin("http", "example.com", 8080);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Runnable> saves = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            saves.add(command);
+        }
+    };
+
+    private void runSaves() {
+        while (!saves.isEmpty()) saves.remove(0).run();
+    }
+
+    @Test
+    public void testMemoryStore() {
+
+        SettingsStore store = new MemorySettingsStore();
+        Assert.assertTrue(store.get(ORIGIN).isEmpty());
+
+        store.put(ORIGIN, SpdySettings.MAX_CONCURRENT_STREAMS, 100);
+        store.put(ORIGIN, SpdySettings.INITIAL_WINDOW_SIZE, 1 << 20);
+        store.put(ORIGIN, SpdySettings.MAX_CONCURRENT_STREAMS, 50);
+        store.put(OTHER, SpdySettings.MAX_CONCURRENT_STREAMS, 10);
+
+        Map<Integer, Integer> settings = store.get(ORIGIN);
+        Assert.assertEquals(2, settings.size());
+        Assert.assertEquals(50, (int) settings.get(SpdySettings.MAX_CONCURRENT_STREAMS));
+        Assert.assertEquals(1 << 20, (int) settings.get(SpdySettings.INITIAL_WINDOW_SIZE));
+
+        store.clear(ORIGIN);
+        Assert.assertTrue(store.get(ORIGIN).isEmpty());
+        Assert.assertEquals(10, (int) store.get(OTHER).get(SpdySettings.MAX_CONCURRENT_STREAMS));
+    }
+
+    @Test
+    public void testFileStore() throws Exception {
+
+        File file = new File(folder.getRoot(), "settings");
+        SettingsStore store = new FileSettingsStore(file, executor);
+        Assert.assertTrue(store.get(ORIGIN).isEmpty());
+
+        // Changes apply at once, and are saved together in the background
+        store.put(ORIGIN, SpdySettings.MAX_CONCURRENT_STREAMS, 100);
+        store.put(ORIGIN, SpdySettings.INITIAL_WINDOW_SIZE, 1 << 20);
+        store.put(OTHER, SpdySettings.MAX_CONCURRENT_STREAMS, 10);
+        Assert.assertEquals(100, (int) store.get(ORIGIN).get(SpdySettings.MAX_CONCURRENT_STREAMS));
+        Assert.assertEquals(1, saves.size());
+        Assert.assertFalse(file.exists());
+        runSaves();
+
+        store = new FileSettingsStore(file, executor);
+        Assert.assertEquals(100, (int) store.get(ORIGIN).get(SpdySettings.MAX_CONCURRENT_STREAMS));
+        Assert.assertEquals(1 << 20, (int) store.get(ORIGIN).get(SpdySettings.INITIAL_WINDOW_SIZE));
+        Assert.assertEquals(10, (int) store.get(OTHER).get(SpdySettings.MAX_CONCURRENT_STREAMS));
+
+        store.clear(ORIGIN);
+        runSaves();
+        store = new FileSettingsStore(file, executor);
+        Assert.assertTrue(store.get(ORIGIN).isEmpty());
+        Assert.assertEquals(1, store.get(OTHER).size());
+    }
+
+    @Test
+    public void testCorruptFile() throws Exception {
+
+        File file = new File(folder.getRoot(), "settings");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+
+        SettingsStore store = new FileSettingsStore(file, executor);
+        Assert.assertTrue(store.get(ORIGIN).isEmpty());
+        store.put(ORIGIN, SpdySettings.MAX_CONCURRENT_STREAMS, 100);
+        runSaves();
+        Assert.assertEquals(100, (int) new FileSettingsStore(file).get(ORIGIN).get(SpdySettings.MAX_CONCURRENT_STREAMS));
+    }
+}
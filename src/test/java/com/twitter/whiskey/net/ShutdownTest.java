@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.Inline;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises the shutdown and termination of clients against an in-process
+ * HTTP/2 server.
+ */
+public final class ShutdownTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final Http2TestServer server = new Http2TestServer();
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        baseUrl = server.getBaseUrl();
+    }
+
+    private static WhiskeyClient newClient(int sessionReceiveWindow, int streamReceiveWindow) {
+        return new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.HTTP_2_0)
+            .sessionReceiveWindow(sessionReceiveWindow)
+            .streamReceiveWindow(streamReceiveWindow)
+            .create());
+    }
+
+    private static WhiskeyClient newClient() {
+        return newClient(10485760, 10485760);
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+
+        WhiskeyClient client = newClient(65535, 16384);
+        ResponseFuture inFlight = client.submit(new Request.Builder(baseUrl + "/large/" + (1 << 20)).create());
+
+        final CountDownLatch headers = new CountDownLatch(1);
+        inFlight.getHeadersFuture().addObserver(new Inline.Observer<Header>() {
+            @Override
+            public void onNext(Header element) {
+                headers.countDown();
+            }
+        });
+        Assert.assertTrue(headers.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        client.shutdown();
+        Assert.assertTrue(client.isShutdown());
+
+        // The stream open when the GOAWAY was sent runs to completion
+        Response response = inFlight.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(1 << 20, response.getBody().remaining());
+        Assert.assertTrue(server.awaitGoAway(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertTrue(client.isTerminated());
+
+        try {
+            client.submit(new Request.Builder(baseUrl + "/rejected").create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("request submitted after shutdown");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testShutdownTimeout() throws Exception {
+
+        WhiskeyClient client = newClient();
+        ResponseFuture stalled = client.submit(new Request.Builder(baseUrl + "/stall/shutdown").create());
+        while (server.getRequestCount() == 0) Thread.sleep(10);
+
+        // The stalled request outlives the deadline, so is cancelled
+        client.shutdown(100, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertTrue(stalled.isCancelled());
+        Assert.assertTrue(server.awaitReset(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTerminate() throws Exception {
+
+        WhiskeyClient client = newClient();
+        ResponseFuture stalled = client.submit(new Request.Builder(baseUrl + "/stall/terminate").create());
+        while (server.getRequestCount() == 0) Thread.sleep(10);
+
+        client.terminate();
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        try {
+            stalled.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("request completed after termination");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testShutdownTwice() throws Exception {
+
+        WhiskeyClient client = newClient();
+        client.submit(new Request.Builder(baseUrl + "/before").create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client.shutdown();
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Once terminated, further shutdowns are no-ops
+        client.shutdown();
+        client.shutdown(100, TimeUnit.MILLISECONDS);
+        client.shutdownNow();
+        Assert.assertTrue(client.isTerminated());
+    }
+
+    @Test
+    public void testTerminateAfterTermination() throws Exception {
+
+        WhiskeyClient client = newClient();
+        client.submit(new Request.Builder(baseUrl + "/before").create()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client.terminate();
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        client.terminate();
+        Assert.assertTrue(client.isTerminated());
+    }
+}
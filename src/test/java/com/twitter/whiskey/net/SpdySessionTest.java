@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import com.twitter.whiskey.futures.Inline;
+import com.twitter.whiskey.nio.RunLoop;
+import com.twitter.whiskey.nio.Socket;
+import com.twitter.whiskey.util.Origin;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises {@link SpdySession} against an in-process SPDY/3.1 server.
+ */
+public final class SpdySessionTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private SpdyTestServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SpdyTestServer();
+        server.start();
+        baseUrl = "http://localhost:" + server.getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static String bodyString(Response response) {
+        ByteBuffer body = response.getBody();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, SpdyTestServer.UTF_8);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+
+        WhiskeyClient client = new WhiskeyClient(new ClientConfiguration.Builder()
+            .protocols(Protocol.SPDY_3_1)
+            .create());
+        Response response = client.submit(new Request.Builder(baseUrl + "/get").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("hello /get", bodyString(response));
+    }
+
+    @Test
+    public void testPersistedSettings() throws Exception {
+
+        server.persistSetting(SpdySettings.MAX_CONCURRENT_STREAMS, 2);
+        server.persistSetting(SpdySettings.INITIAL_WINDOW_SIZE, 32768);
+        final ClientConfiguration configuration = new ClientConfiguration.Builder()
+            .protocols(Protocol.SPDY_3_1)
+            .create();
+        final WhiskeyClient client = new WhiskeyClient(configuration);
+        final Origin origin = new Origin(new URL(baseUrl));
+
+        // The first session has nothing to replay, and stores what it is asked to
+        Response response = client.submit(new Request.Builder(baseUrl + "/first").create())
+            .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.assertEquals("hello /first", bodyString(response));
+        Map<Integer, Integer> expected = new HashMap<>();
+        expected.put(SpdySettings.MAX_CONCURRENT_STREAMS, 2);
+        expected.put(SpdySettings.INITIAL_WINDOW_SIZE, 32768);
+        Assert.assertEquals(expected, client.getSettingsStore().get(origin));
+
+        // A second session sends the stored settings back, and assumes them
+        // before the server's own SETTINGS arrive
+        final RunLoop runLoop = client.getRunLoop();
+        final SessionManager manager = new SessionManager(client, origin, configuration,
+            client.getMetricsRegistry().forOrigin(origin));
+        final Socket socket = new Socket(origin, runLoop, Protocol.SPDY_3_1);
+        final AtomicInteger capacity = new AtomicInteger(-1);
+        final CountDownLatch created = new CountDownLatch(1);
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                socket.connect().addListener(new Inline.Listener<Origin>() {
+                    @Override
+                    public void onComplete(Origin result) {
+                        capacity.set(new SpdySession(manager, configuration, socket).getCapacity());
+                        created.countDown();
+                    }
+                });
+            }
+        });
+        Assert.assertTrue(created.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertEquals(2, capacity.get());
+        Assert.assertEquals(expected, server.awaitPersistedSettings(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertNull(server.awaitPersistedSettings(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, server.getConnectionCount());
+
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                socket.close();
+            }
+        });
+        client.shutdown();
+        Assert.assertTrue(client.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class SpdyStreamManagerTest {
+
+    private static SpdyStream newStream(int streamId, int priority) {
+        SpdyStream stream = new SpdyStream(true, (byte) priority);
+        stream.setStreamId(streamId);
+        return stream;
+    }
+
+    @Test
+    public void testPriorityOrder() {
+
+        SpdyStreamManager streams = new SpdyStreamManager();
+        SpdyStream low = newStream(1, 7);
+        SpdyStream high = newStream(3, 0);
+        streams.add(low);
+        streams.add(high);
+
+        Assert.assertEquals(Arrays.asList(high, low), new ArrayList<>(streams));
+        Assert.assertSame(low, streams.get(1));
+        Assert.assertEquals(2, streams.getLocalSize());
+    }
+
+    @Test
+    public void testIsolation() {
+
+        // Streams with the same id and priority on different sessions
+        SpdyStreamManager first = new SpdyStreamManager();
+        SpdyStreamManager second = new SpdyStreamManager();
+        SpdyStream firstStream = newStream(1, 3);
+        SpdyStream secondStream = newStream(1, 3);
+        first.add(firstStream);
+        second.add(secondStream);
+
+        List<SpdyStream> iterated = new ArrayList<>(first);
+        Assert.assertEquals(Arrays.asList(firstStream), iterated);
+
+        Assert.assertFalse(first.remove(secondStream));
+        Assert.assertEquals(1, first.size());
+        Assert.assertTrue(second.remove(secondStream));
+        Assert.assertTrue(second.isEmpty());
+        Assert.assertEquals(Arrays.asList(firstStream), new ArrayList<>(first));
+    }
+}
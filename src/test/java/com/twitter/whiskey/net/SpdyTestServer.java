@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal blocking SPDY/3.1 server for loopback testing with prior
+ * knowledge. Every request is answered with "hello {path}", and the
+ * settings given to {@link #persistSetting} are sent to every connection,
+ * asking the client to persist them.
+ */
+class SpdyTestServer {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final Map<Integer, Integer> persistSettings = new ConcurrentHashMap<>();
+    private final BlockingQueue<Map<Integer, Integer>> persistedSettings = new LinkedBlockingQueue<>();
+
+    SpdyTestServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of connections accepted
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of requests received on all connections
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Asks new connections to persist a setting.
+     */
+    void persistSetting(int id, int value) {
+        persistSettings.put(id, value);
+    }
+
+    /**
+     * @return the settings of the next SETTINGS frame received with values
+     *         the client has persisted, keyed by id, or null on timeout
+     */
+    Map<Integer, Integer> awaitPersistedSettings(long timeout, TimeUnit unit) throws InterruptedException {
+        return persistedSettings.poll(timeout, unit);
+    }
+
+    void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connectionCount.incrementAndGet();
+                        executor.execute(new Connection(socket));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    private final class Connection implements Runnable, SpdyFrameDecoderDelegate {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final SpdyFrameDecoder decoder = new SpdyFrameDecoder(SpdyVersion.SPDY_3_1, this);
+        private final SpdyFrameEncoder encoder = new SpdyFrameEncoder(SpdyVersion.SPDY_3_1);
+        // Only accessed by the connection's thread, which decodes
+        private final Map<Integer, String> paths = new HashMap<>();
+        private final Map<Integer, Boolean> finished = new HashMap<>();
+        private Map<Integer, Integer> settings;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!persistSettings.isEmpty()) {
+                    SpdySettings persist = new SpdySettings();
+                    for (Map.Entry<Integer, Integer> entry : persistSettings.entrySet()) {
+                        persist.setValue(entry.getKey(), entry.getValue(), true, false);
+                    }
+                    write(encoder.encodeSettingsFrame(persist));
+                }
+
+                InputStream in = socket.getInputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                int read;
+                while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+                    buffer.position(buffer.position() + read);
+                    buffer.flip();
+                    decoder.decode(buffer);
+                    buffer.compact();
+                }
+            } catch (IOException e) {
+                // connection closed
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void write(ByteBuffer... buffers) throws IOException {
+            synchronized (out) {
+                for (ByteBuffer buffer : buffers) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes);
+                }
+                out.flush();
+            }
+        }
+
+        private void writeQuietly(ByteBuffer... buffers) {
+            try {
+                write(buffers);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void respond(int streamId) {
+
+            requestCount.incrementAndGet();
+            byte[] body = ("hello " + paths.remove(streamId)).getBytes(UTF_8);
+            Headers headers = new Headers();
+            headers.put(":status", "200");
+            headers.put(":version", "HTTP/1.1");
+            headers.put(Headers.CONTENT_LENGTH, String.valueOf(body.length));
+            writeQuietly(encoder.encodeSynReplyFrame(streamId, false, headers));
+            writeQuietly(encoder.encodeDataFrame(streamId, true, ByteBuffer.wrap(body)));
+        }
+
+        @Override
+        public void readDataFrame(int streamId, boolean last, ByteBuffer data) {
+            if (last) respond(streamId);
+        }
+
+        @Override
+        public void readSynStreamFrame(
+            int streamId, int associatedToStreamId, byte priority, boolean last, boolean unidirectional) {
+            finished.put(streamId, last);
+        }
+
+        @Override
+        public void readSynReplyFrame(int streamId, boolean last) {
+        }
+
+        @Override
+        public void readRstStreamFrame(int streamId, int statusCode) {
+            paths.remove(streamId);
+        }
+
+        @Override
+        public void readSettingsFrame(boolean clearPersisted) {
+            settings = new HashMap<>();
+        }
+
+        @Override
+        public void readSetting(int id, int value, boolean persistValue, boolean persisted) {
+            if (persisted) settings.put(id, value);
+        }
+
+        @Override
+        public void readSettingsEnd() {
+            if (!settings.isEmpty()) persistedSettings.add(settings);
+        }
+
+        @Override
+        public void readPingFrame(int id) {
+            writeQuietly(encoder.encodePingFrame(id));
+        }
+
+        @Override
+        public void readGoAwayFrame(int lastGoodStreamId, int statusCode) {
+        }
+
+        @Override
+        public void readHeadersFrame(int streamId, boolean last) {
+        }
+
+        @Override
+        public void readHeader(int streamId, Header header) {
+            if (header.getKey().equals(":path")) paths.put(streamId, header.getValue());
+        }
+
+        @Override
+        public void readHeadersEnd(int streamId) {
+            Boolean last = finished.remove(streamId);
+            if (last != null && last) respond(streamId);
+        }
+
+        @Override
+        public void readWindowUpdateFrame(int streamId, int deltaWindowSize) {
+        }
+
+        @Override
+        public void readFrameSkipped(int streamId, String message) {
+        }
+
+        @Override
+        public void readFrameError(String message) {
+            close();
+        }
+    }
+}
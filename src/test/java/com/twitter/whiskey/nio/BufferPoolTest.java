@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.nio;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public final class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(2);
+
+        ByteBuffer buffer = pool.acquire(1024);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(1024, buffer.capacity());
+
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        Assert.assertEquals(1, pool.size());
+
+        ByteBuffer reused = pool.acquire(512);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(reused.capacity(), reused.limit());
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testBounds() {
+        BufferPool pool = new BufferPool(2);
+
+        pool.release(pool.acquire(16));
+        pool.release(pool.acquire(16));
+        pool.release(ByteBuffer.allocateDirect(16));
+        pool.release(ByteBuffer.allocateDirect(16));
+        Assert.assertEquals(2, pool.size());
+
+        // heap buffers are never pooled
+        pool = new BufferPool(2);
+        pool.release(ByteBuffer.allocate(16));
+        Assert.assertEquals(0, pool.size());
+
+        // undersized buffers are discarded rather than returned
+        pool.release(ByteBuffer.allocateDirect(16));
+        Assert.assertEquals(64, pool.acquire(64).capacity());
+        Assert.assertEquals(0, pool.size());
+    }
+}
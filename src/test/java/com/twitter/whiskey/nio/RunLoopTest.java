@@ -11,6 +11,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
@@ -248,4 +250,177 @@ public final class RunLoopTest {
 
         Assert.assertEquals(1, events.count);
     }
+
+    @Test
+    public void testStallListener() throws InterruptedException {
+
+        final List<Class<?>> stalls = new ArrayList<>();
+        RunLoop.StallListener listener = new RunLoop.StallListener() {
+            @Override
+            public void onStall(Class<?> taskClass, long durationNanos) {
+                Assert.assertTrue(durationNanos >= TimeUnit.MILLISECONDS.toNanos(10));
+                stalls.add(taskClass);
+            }
+        };
+        runLoop.addStallListener(listener, 10, TimeUnit.MILLISECONDS);
+
+        Runnable fast = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        Runnable slow = new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            }
+        };
+        runLoop.execute(fast);
+        runLoop.execute(slow);
+        runLoop.schedule(slow, 100, TimeUnit.MILLISECONDS);
+        runLoop.run(false);
+        Assert.assertEquals(1, stalls.size());
+        Assert.assertEquals(slow.getClass(), stalls.get(0));
+
+        clock.tick(100, TimeUnit.MILLISECONDS);
+        runLoop.run(false);
+        Assert.assertEquals(2, stalls.size());
+
+        runLoop.removeStallListener(listener);
+        runLoop.execute(slow);
+        runLoop.run(false);
+        Assert.assertEquals(2, stalls.size());
+    }
+
+    @Test
+    public void testStats() throws InterruptedException {
+
+        RunLoop.Stats stats = runLoop.getStats();
+        Assert.assertEquals(0, stats.getLoops());
+        Assert.assertEquals(0, stats.getQueueLag().getCount());
+
+        Runnable slow = new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        };
+        runLoop.execute(slow);
+        runLoop.execute(slow);
+        runLoop.schedule(slow, 100, TimeUnit.MILLISECONDS);
+        stats = runLoop.getStats();
+        Assert.assertEquals(2, stats.getPendingTasks());
+        Assert.assertEquals(1, stats.getScheduledTasks());
+
+        runLoop.run(false);
+        stats = runLoop.getStats();
+        Assert.assertEquals(1, stats.getLoops());
+        Assert.assertEquals(2, stats.getExecutions());
+        Assert.assertEquals(0, stats.getPendingTasks());
+        Assert.assertEquals(1, stats.getScheduledTasks());
+        Assert.assertEquals(1, stats.getQueueLag().getCount());
+        Assert.assertTrue(stats.getMaxTaskTime(TimeUnit.MILLISECONDS) >= 5);
+        Assert.assertTrue(stats.getTaskTime(TimeUnit.MILLISECONDS) >= 10);
+
+        // No tasks were pending, so no lag is sampled
+        clock.tick(100, TimeUnit.MILLISECONDS);
+        runLoop.run(false);
+        stats = runLoop.getStats();
+        Assert.assertEquals(3, stats.getExecutions());
+        Assert.assertEquals(0, stats.getScheduledTasks());
+        Assert.assertEquals(1, stats.getQueueLag().getCount());
+        Assert.assertTrue(stats.getTaskTime(TimeUnit.MILLISECONDS) >= 15);
+    }
+
+    @Test
+    public void testQueueLagWhileIdle() throws InterruptedException {
+
+        runLoop.startThread();
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        // Bursts race the loop's draining; the idle gaps between them, in
+        // which the loop blocks, must not be counted as waiting
+        for (int round = 0; round < 20; round++) {
+            final CountDownLatch drained = new CountDownLatch(1);
+            for (int i = 0; i < 1000; i++) runLoop.execute(noop);
+            runLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            Assert.assertTrue(drained.await(1, TimeUnit.SECONDS));
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(runLoop.getStats().getQueueLag().getMax() < TimeUnit.MILLISECONDS.toMicros(50));
+    }
+
+    @Test
+    public void testSchedule_cancelled() throws InterruptedException {
+
+        final Counter events = new Counter();
+        Runnable event = new Runnable() {
+            @Override
+            public void run() {
+                events.count++;
+            }
+        };
+
+        RunLoop.ScheduledTask cancelled = runLoop.schedule(event, 100, TimeUnit.MILLISECONDS);
+        RunLoop.ScheduledTask retained = runLoop.schedule(event, 200, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+
+        runLoop.run(false);
+        clock.tick(100, TimeUnit.MILLISECONDS);
+        runLoop.run(false);
+        Assert.assertEquals(0, events.count);
+
+        clock.tick(100, TimeUnit.MILLISECONDS);
+        runLoop.run(false);
+        Assert.assertEquals(1, events.count);
+
+        // a task that has run can no longer be cancelled
+        Assert.assertFalse(retained.cancel());
+    }
+
+    @Test
+    public void testStopFromLoop() throws InterruptedException {
+
+        runLoop.startThread();
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                runLoop.getBufferPool().release(runLoop.getBufferPool().acquire(1024));
+                runLoop.stop();
+            }
+        });
+
+
+        // Pooled buffers are dropped as the thread exits
+        runLoop.stopThread();
+        Assert.assertEquals(0, runLoop.getBufferPool().size());
+    }
+
+    @Test
+    public void testStartAfterStop() throws InterruptedException {
+
+        runLoop.startThread();
+        runLoop.stopThread();
+
+        // A stopped loop is never restarted
+        final CountDownLatch latch = new CountDownLatch(1);
+        runLoop.startThread();
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        Assert.assertFalse(latch.await(50, TimeUnit.MILLISECONDS));
+    }
 }
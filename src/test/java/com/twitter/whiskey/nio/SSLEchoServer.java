@@ -8,6 +8,8 @@ package com.twitter.whiskey.nio;
 
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.security.GeneralSecurityException;
@@ -17,15 +19,31 @@ import java.security.GeneralSecurityException;
  */
 final class SSLEchoServer extends EchoServer {
 
+    private final String[] applicationProtocols;
+
     SSLEchoServer(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param applicationProtocols protocols the server will accept via ALPN
+     */
+    SSLEchoServer(int port, String[] applicationProtocols) throws IOException {
         super(port);
+        this.applicationProtocols = applicationProtocols;
     }
 
     @Override
     ServerSocket createServerSocket(int port) throws IOException, GeneralSecurityException {
         SSLContext sslCtx = SSLTestUtil.createTestSSLContext();
         ServerSocketFactory factory = sslCtx.getServerSocketFactory();
-        return factory.createServerSocket(port);
+        SSLServerSocket serverSocket = (SSLServerSocket) factory.createServerSocket(port);
+        if (applicationProtocols != null) {
+            SSLParameters parameters = serverSocket.getSSLParameters();
+            parameters.setApplicationProtocols(applicationProtocols);
+            serverSocket.setSSLParameters(parameters);
+        }
+        return serverSocket;
     }
 
 }
@@ -6,10 +6,13 @@
 
 package com.twitter.whiskey.nio;
 
+import com.twitter.whiskey.net.Protocol;
 import com.twitter.whiskey.util.Origin;
+import com.twitter.whiskey.util.Platform;
 
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -26,7 +29,13 @@ import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Bill Gallagher
@@ -35,6 +44,7 @@ import java.util.concurrent.ExecutionException;
 public class SocketTest {
 
     private static final int TEST_PORT = 1234;
+    private static final String[] ALPN_PROTOCOLS = { "h2", "http/1.1" };
 
     private final boolean ssl;
 
@@ -55,7 +65,7 @@ public class SocketTest {
         runLoop = new RunLoop();
         runLoop.startThread();
 
-        echoServer = ssl ? new SSLEchoServer(TEST_PORT) : new EchoServer(TEST_PORT);
+        echoServer = ssl ? new SSLEchoServer(TEST_PORT, ALPN_PROTOCOLS) : new EchoServer(TEST_PORT);
         echoServer.start();
 
         socket = ssl ? createSSLSocket() : createSocket();
@@ -113,6 +123,35 @@ public class SocketTest {
         expectRead(socket, expected);
     }
 
+    @Test
+    public void testRebuildSelector() throws Exception {
+
+        echoServer.addTask(new EchoServer.EchoTask());
+        socket.connect().get();
+
+        // A read pending across the rebuild must still complete
+        Socket.ReadFuture pending = socket.read();
+        final CountDownLatch rebuilt = new CountDownLatch(1);
+        runLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                runLoop.rebuildSelector();
+                rebuilt.countDown();
+            }
+        });
+        Assert.assertTrue(rebuilt.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, runLoop.getStats().getSelectorRebuilds());
+
+        ByteBuffer expected = createTestMessage(100);
+        socket.write(expected).get();
+        expected.flip();
+
+        ByteBuffer actual = ByteBuffer.allocate(expected.remaining());
+        actual.put(pending.get(5, TimeUnit.SECONDS));
+        readFully(socket, actual);
+        Assert.assertTrue(expected.compareTo(actual) == 0);
+    }
+
     @Test
     public void testConnectFail() throws Exception {
         echoServer.stop();
@@ -235,6 +274,111 @@ public class SocketTest {
         }
     }
 
+    @Test
+    public void testCloseWithUnconsumedData() throws Exception {
+
+        final byte[] partial = "partial".getBytes("UTF-8");
+        echoServer.addTask(new EchoServer.Task() {
+            @Override
+            public void execute(ServerSocket serverSocket, java.net.Socket socket) throws IOException {
+                socket.getOutputStream().write(partial);
+                socket.getOutputStream().flush();
+                socket.close();
+            }
+        });
+        socket.connect().get();
+
+        // Bytes left in the buffer, like a partial frame, must not mask the close
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        int received = 0;
+        try {
+            while (true) {
+                ByteBuffer result = socket.read(buffer).get(5, TimeUnit.SECONDS);
+                Assert.assertTrue("read yielded no new data", result.remaining() > received);
+                received = result.remaining();
+                result.compact();
+            }
+        } catch (ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(partial.length, received);
+    }
+
+    @Test
+    public void testAlpnNegotiation() throws Exception {
+
+        Assume.assumeTrue(ssl && Platform.instance().supportsAlpn());
+
+        SSLEngine sslEngine = SSLTestUtil.createTestSSLContext().createSSLEngine();
+        Assert.assertTrue(Platform.instance().setApplicationProtocols(
+            sslEngine, new String[] { "spdy/3.1", "h2" }));
+        Origin origin = new Origin("https", "127.0.0.1", TEST_PORT);
+        socket = new SSLSocket(origin, runLoop, sslEngine, Protocol.HTTP_1_1);
+
+        echoServer.addTask(new EchoServer.EchoTask());
+
+        Socket.ConnectFuture connectFuture = socket.connect();
+        connectFuture.get();
+
+        Assert.assertEquals(Protocol.HTTP_2_0, socket.getProtocol());
+    }
+
+    @Test
+    public void testAlpnDefaultProtocol() throws Exception {
+
+        Assume.assumeTrue(ssl);
+
+        SSLEngine sslEngine = SSLTestUtil.createTestSSLContext().createSSLEngine();
+        Origin origin = new Origin("https", "127.0.0.1", TEST_PORT);
+        socket = new SSLSocket(origin, runLoop, sslEngine, Protocol.HTTP_1_1);
+
+        echoServer.addTask(new EchoServer.EchoTask());
+
+        Socket.ConnectFuture connectFuture = socket.connect();
+        connectFuture.get();
+
+        Assert.assertEquals(Protocol.HTTP_1_1, socket.getProtocol());
+    }
+
+    @Test
+    public void testHandshakeExecutor() throws Exception {
+
+        Assume.assumeTrue(ssl);
+
+        final AtomicInteger executions = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        Executor countingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executions.incrementAndGet();
+                executor.execute(command);
+            }
+        };
+
+        SSLEngine sslEngine = SSLTestUtil.createTestSSLContext().createSSLEngine();
+        Origin origin = new Origin("https", "127.0.0.1", TEST_PORT);
+        SSLSocket sslSocket = new SSLSocket(origin, runLoop, sslEngine, Protocol.HTTP_1_1, countingExecutor);
+        socket = sslSocket;
+
+        echoServer.addTask(new EchoServer.EchoTask());
+
+        try {
+            socket.connect().get();
+
+            ByteBuffer expected = createTestMessage(100);
+            socket.write(expected).get();
+            expected.flip();
+            expectRead(socket, expected);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertTrue(executions.get() > 0);
+        Assert.assertTrue(sslSocket.getHandshakeTaskCount() >= executions.get());
+        Assert.assertTrue(sslSocket.getHandshakeTaskCpuTime(TimeUnit.NANOSECONDS) >= 0);
+        Assert.assertTrue(sslSocket.getHandshakeDuration() >= 0);
+    }
+
     private static ByteBuffer createTestMessage(int size) {
         byte[] randomData = new byte[size];
         Random random = new Random();
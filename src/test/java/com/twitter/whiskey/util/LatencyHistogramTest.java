@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Twitter, Inc. All rights reserved.
+ * Licensed under the Apache License v2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package com.twitter.whiskey.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+
+        // every value lies within its bucket, which spans at most 1/8 of it
+        long previousBound = -1;
+        for (int index = 0; LatencyHistogram.upperBound(index) < (1L << 32) - 1; index++) {
+            long bound = LatencyHistogram.upperBound(index);
+            assertTrue(bound > previousBound);
+            assertEquals(index, LatencyHistogram.indexOf(bound));
+            assertEquals(index, LatencyHistogram.indexOf(previousBound + 1));
+            assertTrue(bound - previousBound <= Math.max(1, (previousBound + 1) / 8));
+            previousBound = bound;
+        }
+    }
+
+    @Test
+    public void testPercentile() {
+
+        LatencyHistogram histogram = new LatencyHistogram(1000);
+        assertEquals(-1, histogram.getPercentile(0.5));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(4, histogram.getPercentile(0.04));
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 50 && median <= 50 * 9 / 8);
+        long tail = histogram.getPercentile(0.99);
+        assertTrue(tail >= 99 && tail <= 99 * 9 / 8);
+        assertTrue(histogram.getPercentile(1) >= 100);
+    }
+
+    @Test
+    public void testDecay() {
+
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+
+        // reaching the window halves older samples, so newer ones dominate sooner
+        histogram.record(1000);
+        assertEquals(50, histogram.getCount());
+        for (int i = 0; i < 49; i++) {
+            histogram.record(1);
+        }
+        assertEquals(99, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(0.49));
+        assertTrue(histogram.getPercentile(0.6) >= 1000);
+    }
+}